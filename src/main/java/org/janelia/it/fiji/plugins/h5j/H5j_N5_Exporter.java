@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import java.io.File;
+
+import org.janelia.it.h5j.n5.export.N5Exporter;
+
+/**
+ * Converts an H5J file to a multiscale N5 or Zarr container, without
+ * opening it as an image.  Macro-recordable, so it can be run in batch.
+ */
+public class H5j_N5_Exporter implements PlugIn {
+
+    private static final String MESSAGE_PREFIX = "HHMI_H5J_N5_Exporter: ";
+    private static final String[] FORMATS = new String[] { "N5", "Zarr" };
+
+    @Override
+    public void run(String string) {
+        GenericDialog gd = new GenericDialog("H5J to N5/Zarr");
+        gd.addFileField("input", "");
+        gd.addDirectoryField("output", "");
+        gd.addChoice("format", FORMATS, FORMATS[0]);
+        gd.addNumericField("chunk_size", N5Exporter.DEFAULT_CHUNK_SIZE, 0);
+        gd.addNumericField("scales", 0, 0, 3, "(0 = automatic)");
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        File input = new File(gd.getNextString());
+        File output = new File(gd.getNextString());
+        int format = gd.getNextChoiceIndex();
+        int chunkSize = (int) gd.getNextNumber();
+        int scales = (int) gd.getNextNumber();
+
+        N5Exporter exporter = new N5Exporter();
+        exporter.setFormat(format == 1 ? N5Exporter.Format.ZARR : N5Exporter.Format.N5);
+        exporter.setBlockSize(new int[] { chunkSize, chunkSize, chunkSize });
+        exporter.setNumScales(scales);
+        try {
+            IJ.showStatus("Exporting " + input.getName() + "...");
+            exporter.export(input, output);
+            IJ.showStatus("Exported " + input.getName());
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            IJ.showMessage(MESSAGE_PREFIX + "Problem exporting file data.  Messsage is '" + ex.getLocalizedMessage() + "'.");
+        }
+    }
+}
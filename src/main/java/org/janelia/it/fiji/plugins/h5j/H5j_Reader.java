@@ -9,6 +9,7 @@ package org.janelia.it.fiji.plugins.h5j;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Macro;
 import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
 import java.awt.GraphicsEnvironment;
@@ -17,8 +18,15 @@ import java.io.File;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
 
 import org.janelia.it.h5j.fiji.adapter.FijiAdapter;
+import org.janelia.it.jacs.shared.ffmpeg.FFMpegNatives;
+import org.janelia.it.jacs.shared.ffmpeg.LoadProfile;
+import org.janelia.it.jacs.shared.ffmpeg.PlaneStorage;
 
 /**
  * Reader for HHMI HDF 5 reader.  Consumes H.265-compressed data.
@@ -33,6 +41,8 @@ public class H5j_Reader extends ImagePlus implements PlugIn {
     private static final String MESSAGE_PREFIX = "HHMI_H5J_Reader: ";
     private static final String EXTENSION = ".h5j";
     public static final String INFO_PROPERTY = "Info";
+    public static final String PROFILE_OPTION = "load_profile";
+    public static final String NEXT_FILE_OPTION = "next";
     private static final boolean HYPERSTACK = true;
     
     private boolean asImage = false;
@@ -50,6 +60,16 @@ public class H5j_Reader extends ImagePlus implements PlugIn {
                 File infile = ensureFileAvailable(string);
                 if (infile != null) {
                     FijiAdapter adapter = new FijiAdapter();
+                    LoadProfile profile = createProfile();
+                    adapter.setProfile(profile);
+                    adapter.setNextFile(nextFile());
+                    if (asHyperstack && !asImage && !IJ.isMacro() && isProgressive(profile)) {
+                        // Show the window as soon as its size is known, and
+                        // let it fill in while the rest is decoded.
+                        adapter.getMultiChannelImagePlusAsync(infile, ImagePlus::show)
+                                .whenComplete((image, ex) -> reportFailure(ex));
+                        return;
+                    }
                     ImagePlus infileImage = null;
                     if (asHyperstack) {
                         infileImage = adapter.getMultiChannelImagePlus(infile);
@@ -66,10 +86,65 @@ public class H5j_Reader extends ImagePlus implements PlugIn {
                 }
                 
             } catch (Exception ex) {
-                ex.printStackTrace();
-                IJ.showMessage(MESSAGE_PREFIX + "Problem reading file data.  Messsage is '" + ex.getLocalizedMessage() + "'.");
+                reportFailure(ex);
+            }
+        }
+    }
+
+    /**
+     * The default load profile, with any of its settings given as macro
+     * options, eg. codec_threads=4 storage=compact; load_profile=path
+     * starts from a profile file instead.
+     */
+    private LoadProfile createProfile() throws Exception {
+        String options = Macro.getOptions();
+        if (options == null) {
+            return LoadProfile.getDefault();
+        }
+        String path = Macro.getValue(options, PROFILE_OPTION, null);
+        LoadProfile profile = path == null ? LoadProfile.getDefault().copy() : LoadProfile.load(new File(path));
+        Map<String, String> settings = new HashMap<String, String>();
+        for (String key : LoadProfile.KEYS) {
+            String value = Macro.getValue(options, LoadProfile.macroKey(key), null);
+            if (value != null) {
+                settings.put(key, value);
             }
         }
+        return profile.apply(settings);
+    }
+
+    /**
+     * The window filled in while decoding holds a plain hyperstack on the
+     * heap, so only a profile asking for that is loaded progressively; other
+     * storage, or a memory budget, is honoured by the synchronous load.
+     */
+    private static boolean isProgressive(LoadProfile profile) {
+        return profile.getStorage() == PlaneStorage.Mode.HEAP && profile.getMemoryBudget() <= 0;
+    }
+
+    /**
+     * A batch macro may name the file it opens next, as next=path, for its
+     * channels to be read while this one decodes.
+     */
+    private File nextFile() {
+        String options = Macro.getOptions();
+        String path = options == null ? null : Macro.getValue(options, NEXT_FILE_OPTION, null);
+        return path == null ? null : new File(path);
+    }
+
+    private void reportFailure(Throwable ex) {
+        if (ex instanceof CompletionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        if (ex == null) {
+            return;
+        }
+        if (ex instanceof CancellationException) {
+            IJ.showStatus(MESSAGE_PREFIX + "load cancelled.");
+            return;
+        }
+        ex.printStackTrace();
+        IJ.showMessage(MESSAGE_PREFIX + "Problem reading file data.  Messsage is '" + ex.getLocalizedMessage() + "'.");
     }
     
     /**
@@ -137,7 +212,8 @@ public class H5j_Reader extends ImagePlus implements PlugIn {
      * @throws HeadlessException 
      */
     private File showFileChooser() throws HeadlessException {
-        // Will replace the file with a user input.
+        // Will replace the file with a user input.  FFmpeg loads meanwhile.
+        FFMpegNatives.prewarm();
         try {
             OpenDialog od = new OpenDialog("H5J Reader");
             String dir = od.getDirectory();
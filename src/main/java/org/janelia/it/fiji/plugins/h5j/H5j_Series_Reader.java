@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import java.io.File;
+import java.util.List;
+
+import org.janelia.it.h5j.fiji.adapter.H5JTimeSeries;
+import org.janelia.it.jacs.shared.ffmpeg.FFMpegNatives;
+import org.janelia.it.jacs.shared.ffmpeg.LoadProfile;
+
+/**
+ * Opens a folder of H5J files, or those matching a name pattern, as one
+ * virtual hyperstack with a timepoint per file.  Timepoints are decoded as
+ * they are shown.  Macro-recordable.
+ */
+public class H5j_Series_Reader implements PlugIn {
+
+    private static final String MESSAGE_PREFIX = "HHMI_H5J_Series_Reader: ";
+
+    @Override
+    public void run(String string) {
+        // Decoding starts as soon as the first timepoint is shown.
+        FFMpegNatives.prewarm();
+        GenericDialog gd = new GenericDialog("H5J Series");
+        gd.addDirectoryField("source", "");
+        gd.addMessage("A folder, or a file pattern such as /data/tile_*.h5j");
+        gd.addNumericField("cache_timepoints", LoadProfile.getDefault().getSeriesCache(), 0);
+        gd.addNumericField("prefetch", H5JTimeSeries.DEFAULT_PREFETCH, 0);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        String source = gd.getNextString();
+        int cacheTimepoints = (int) gd.getNextNumber();
+        int prefetch = (int) gd.getNextNumber();
+
+        List<File> files = H5JTimeSeries.listFiles(source);
+        if (files.isEmpty()) {
+            IJ.showMessage(MESSAGE_PREFIX + "No H5J files found for '" + source + "'.");
+            return;
+        }
+        try {
+            H5JTimeSeries series = new H5JTimeSeries(files);
+            series.setCacheTimepoints(cacheTimepoints);
+            series.setPrefetch(prefetch);
+            File folder = new File(source).isDirectory() ? new File(source) : files.get(0).getAbsoluteFile().getParentFile();
+            ImagePlus image = series.createImagePlus(folder.getName());
+            image.show();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            IJ.showMessage(MESSAGE_PREFIX + "Problem reading file data.  Messsage is '" + ex.getLocalizedMessage() + "'.");
+        }
+    }
+}
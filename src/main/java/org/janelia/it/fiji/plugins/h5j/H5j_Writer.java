@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
+import ij.plugin.PlugIn;
+
+import org.janelia.it.jacs.shared.ffmpeg.FFMpegEncoder;
+import org.janelia.it.jacs.shared.ffmpeg.H5JWriter;
+
+/**
+ * Saves the current image as H5J, encoding each channel with H.265.
+ * Macro-recordable, so it can be run in batch.
+ */
+public class H5j_Writer implements PlugIn {
+
+    private static final String MESSAGE_PREFIX = "HHMI_H5J_Writer: ";
+    private static final String EXTENSION = ".h5j";
+    private static final String[] PRESETS = new String[] {
+        "ultrafast", "superfast", "veryfast", "faster", "fast", "medium", "slow", "slower", "veryslow"
+    };
+
+    @Override
+    public void run(String string) {
+        ImagePlus imp = IJ.getImage();
+        if (imp == null) {
+            return;
+        }
+        String path = string;
+        if (path == null || path.trim().equals("")) {
+            SaveDialog sd = new SaveDialog("Save as H5J", imp.getTitle(), EXTENSION);
+            if (sd.getFileName() == null) {
+                return;
+            }
+            path = sd.getDirectory() + sd.getFileName();
+        }
+
+        GenericDialog gd = new GenericDialog("H5J Writer");
+        gd.addNumericField("crf", FFMpegEncoder.DEFAULT_CRF, 0, 3, "(lower is better quality)");
+        gd.addChoice("preset", PRESETS, FFMpegEncoder.DEFAULT_PRESET);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        int crf = (int) gd.getNextNumber();
+        String preset = gd.getNextChoice();
+
+        H5JWriter writer = new H5JWriter(path);
+        writer.setCrf(crf);
+        writer.setPreset(preset);
+        try {
+            IJ.showStatus("Saving " + imp.getTitle() + "...");
+            writer.write(imp);
+            IJ.showStatus("Saved " + path);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            IJ.showMessage(MESSAGE_PREFIX + "Problem writing file data.  Messsage is '" + ex.getLocalizedMessage() + "'.");
+        }
+    }
+}
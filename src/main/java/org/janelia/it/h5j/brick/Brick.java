@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.brick;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One brick of one resolution level, ready to upload: interleaved voxels in
+ * a direct buffer, padded as its BrickLayout says.
+ */
+public class Brick {
+    private final int level;
+    private final int[] gridPosition;
+    private final int[] size;
+    private final int[] storedSize;
+    private final ByteBuffer data;
+
+    public Brick(int level, int[] gridPosition, int[] size, int[] storedSize, ByteBuffer data) {
+        this.level = level;
+        this.gridPosition = gridPosition.clone();
+        this.size = size.clone();
+        this.storedSize = storedSize.clone();
+        this.data = data;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return position in the level's grid of bricks, in X, Y and Z.
+     */
+    public int[] getGridPosition() {
+        return gridPosition.clone();
+    }
+
+    /**
+     * @return voxels of the volume within the brick, in X, Y and Z.
+     */
+    public int[] getSize() {
+        return size.clone();
+    }
+
+    /**
+     * @return size of the data, padding included, in X, Y and Z.
+     */
+    public int[] getStoredSize() {
+        return storedSize.clone();
+    }
+
+    /**
+     * @return the voxels, from position 0 to the limit; a duplicate, so
+     *         reading it does not disturb other readers.
+     */
+    public ByteBuffer getData() {
+        return data.duplicate().order(data.order());
+    }
+}
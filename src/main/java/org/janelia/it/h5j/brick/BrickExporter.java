@@ -0,0 +1,350 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.brick;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.janelia.it.jacs.shared.ffmpeg.FFMPGByteAcceptor;
+import org.janelia.it.jacs.shared.ffmpeg.FFMpegLoader;
+import org.janelia.it.jacs.shared.ffmpeg.H5JLoader;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+import org.janelia.it.jacs.shared.ffmpeg.StreamHeader;
+
+/**
+ * This will turn an H5J file into bricks a volume renderer can upload as
+ * they are: every channel interleaved into each voxel, in cubes of a set
+ * size, with 2x coarser levels below full resolution.  It is one streaming
+ * pass: all channels are decoded at once, each on a thread of its own,
+ * straight into one shared slab a brick deep.  Whenever the slab is full it
+ * is cut into bricks and downsampled, in parallel, and the decoders carry on
+ * into it again.  The ImageStack is never built.
+ *
+ * Samples are as FijiAdapter shows them: 8-bit as is, 16-bit scaled down
+ * by 16, unless eight-bit output is asked for.
+ */
+public class BrickExporter {
+    public static final int POOL_TIMEOUT_IN_SECONDS = 1200;
+    public static final int DEFAULT_BRICK_SIZE = 128;
+    public static final int MAX_LEVELS = 8;
+
+    private int brickSize = DEFAULT_BRICK_SIZE;
+    private int numLevels = 0;
+    private int components = 0;
+    private boolean eightBit = false;
+    private BrickLayout.Padding padding = BrickLayout.Padding.POWER_OF_TWO;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param brickSize edge of a brick, in voxels; a power of two suits
+     *                  renderers best.
+     * @throws IllegalArgumentException unless even and at least 2: each
+     *                  full slab must halve into whole slabs of the next level.
+     */
+    public void setBrickSize(int brickSize) {
+        if (brickSize < 2 || brickSize % 2 != 0) {
+            throw new IllegalArgumentException("Brick size must be even and at least 2, not " + brickSize);
+        }
+        this.brickSize = brickSize;
+    }
+
+    /**
+     * @param numLevels number of resolution levels, including full
+     *                  resolution; 0 to go on until one brick holds it all.
+     */
+    public void setNumLevels(int numLevels) {
+        this.numLevels = numLevels;
+    }
+
+    /**
+     * @param components samples per voxel, eg. 4 for RGBA textures; extra
+     *                   components are 0.  0 (default) for one per channel.
+     */
+    public void setComponents(int components) {
+        this.components = components;
+    }
+
+    /**
+     * @param eightBit true to bring 16-bit channels down to 8 bits.
+     */
+    public void setEightBit(boolean eightBit) {
+        this.eightBit = eightBit;
+    }
+
+    public void setPadding(BrickLayout.Padding padding) {
+        this.padding = padding;
+    }
+
+    /**
+     * @param threads how many bricks to cut, and pass to the sink, at once.
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Brick a whole file.
+     *
+     * @param inputFile H5J file to read.
+     * @param sink receives the bricks.
+     * @return how the volume was bricked.
+     * @throws Exception if reading, decoding or the sink fails.
+     */
+    public BrickLayout export(File inputFile, BrickSink sink) throws Exception {
+        H5JLoader loader = new H5JLoader(inputFile.getAbsolutePath());
+        List<byte[]> channels = new ArrayList<byte[]>();
+        ImageStack header;
+        try {
+            header = loader.extractHeader();
+            for (String channelName : loader.channelNames()) {
+                channels.add(loader.readChannel(channelName));
+            }
+        } finally {
+            loader.close();
+        }
+        return export(channels, header, sink);
+    }
+
+    /**
+     * Brick channels already read.
+     *
+     * @param channels each channel's compressed stream, in channel order.
+     * @param header padding, voxel size and unit, as from
+     *               H5JLoader.extractHeader().
+     * @param sink receives the bricks.
+     * @return how the volume was bricked.
+     * @throws Exception if decoding or the sink fails.
+     */
+    public BrickLayout export(List<byte[]> channels, ImageStack header, BrickSink sink) throws Exception {
+        StreamHeader stream = StreamHeader.probe(channels.get(0));
+        int width = stream.getWidth() - Math.max(0, header.getPaddingRight());
+        int height = stream.getHeight() - Math.max(0, header.getPaddingBottom());
+        int depth = stream.getFrames();
+        int sampleBytes = eightBit ? 1 : stream.getBytesPerPixel();
+        String unit = header.getUnit().isEmpty() ? "pixels" : header.getUnit();
+        BrickLayout layout = new BrickLayout(levelDimensions(width, height, depth), brickSize,
+                Math.max(components, channels.size()), sampleBytes, padding, header.getSpacings(), unit);
+
+        sink.start(layout);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ExecutorService decoders = Executors.newFixedThreadPool(channels.size());
+        try {
+            BrickLevel top = null;
+            for (int level = layout.getNumLevels() - 1; level >= 0; level--) {
+                top = new BrickLevel(layout, level, pool, sink, top);
+            }
+            final BrickLevel fullResolution = top;
+            final int[] slabNum = new int[1];
+            final CyclicBarrier slabFilled = new CyclicBarrier(channels.size(), new Runnable() {
+                public void run() {
+                    try {
+                        fullResolution.flushSlab(Math.min(brickSize, depth - slabNum[0] * brickSize));
+                        slabNum[0]++;
+                    } catch (RuntimeException re) {
+                        throw re;
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+
+            List<Future<?>> decoding = new ArrayList<Future<?>>();
+            for (int c = 0; c < channels.size(); c++) {
+                final byte[] data = channels.get(c);
+                final ChannelAcceptor acceptor = new ChannelAcceptor(top, c, layout, depth, slabFilled);
+                decoding.add(decoders.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        try (FFMpegLoader movie = new FFMpegLoader(data)) {
+                            movie.start();
+                            movie.grab(acceptor);
+                            acceptor.finish();
+                        } catch (Exception | Error ex) {
+                            // Free the other channels from waiting on this one.
+                            slabFilled.reset();
+                            throw ex;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            awaitDecoding(decoding);
+            top.finish();
+        } finally {
+            decoders.shutdownNow();
+            pool.shutdown();
+            pool.awaitTermination(POOL_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+        }
+        sink.finish();
+        return layout;
+    }
+
+    /**
+     * Wait for every channel; report the failure that broke the barrier,
+     * rather than the channels it then freed.
+     */
+    private void awaitDecoding(List<Future<?>> decoding) throws Exception {
+        Throwable failure = null;
+        boolean secondary = false;
+        for (Future<?> future : decoding) {
+            try {
+                future.get();
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                boolean broken = cause instanceof BrokenBarrierException
+                        || cause.getCause() instanceof BrokenBarrierException;
+                if (failure == null || secondary && !broken) {
+                    failure = cause;
+                    secondary = broken;
+                }
+            }
+        }
+        if (failure instanceof Exception) {
+            throw (Exception) failure;
+        } else if (failure != null) {
+            throw (Error) failure;
+        }
+    }
+
+    private int[][] levelDimensions(int width, int height, int depth) {
+        List<int[]> levels = new ArrayList<int[]>();
+        int[] dims = new int[] { width, height, depth };
+        levels.add(dims);
+        while (levels.size() < (numLevels > 0 ? numLevels : MAX_LEVELS)) {
+            if (numLevels <= 0 && dims[0] <= brickSize && dims[1] <= brickSize && dims[2] <= brickSize) {
+                break;
+            }
+            dims = new int[] { (dims[0] + 1) / 2, (dims[1] + 1) / 2, (dims[2] + 1) / 2 };
+            levels.add(dims);
+        }
+        return levels.toArray(new int[levels.size()][]);
+    }
+
+    /**
+     * Takes the decoded planes of one channel, strips their padding, and
+     * writes them as one component of the full-resolution slab.  Waits for
+     * the other channels each time the slab is full.
+     */
+    private static class ChannelAcceptor implements FFMPGByteAcceptor {
+        private final byte[] slab;
+        private final int planeBytes;
+        private final int channel;
+        private final int width;
+        private final int height;
+        private final int depth;
+        private final int brickSize;
+        private final int voxelBytes;
+        private final int sampleBytes;
+        private final CyclicBarrier slabFilled;
+        private int bytesPerPixel = 1;
+        private int planes;
+        private int slabs;
+        private byte[] buffer;
+
+        ChannelAcceptor(BrickLevel top, int channel, BrickLayout layout, int depth, CyclicBarrier slabFilled) {
+            this.slab = top.getSlab();
+            this.planeBytes = top.getPlaneBytes();
+            this.channel = channel;
+            int[] dimensions = layout.getDimensions(0);
+            this.width = dimensions[0];
+            this.height = dimensions[1];
+            this.depth = depth;
+            this.brickSize = layout.getBrickSize();
+            this.voxelBytes = layout.getVoxelBytes();
+            this.sampleBytes = layout.getSampleBytes();
+            this.slabFilled = slabFilled;
+        }
+
+        @Override
+        public void accept(BytePointer data, int linesize, int width, int height) {
+            if (buffer == null || buffer.length < linesize * height) {
+                buffer = new byte[linesize * height];
+            }
+            data.position(0).get(buffer, 0, linesize * height);
+            accept(buffer, linesize, width, height);
+        }
+
+        @Override
+        public void accept(byte[] data, int linesize, int frameWidth, int frameHeight) {
+            if (planes >= depth) {
+                return;
+            }
+            int dest = (planes % brickSize) * planeBytes + channel * sampleBytes;
+            for (int y = 0; y < height; y++) {
+                int src = y * linesize;
+                for (int x = 0; x < width; x++, dest += voxelBytes) {
+                    int value;
+                    if (bytesPerPixel == 1) {
+                        value = data[src++] & 0xff;
+                    } else {
+                        int raw = ((data[src] & 0xff) << 8) | (data[src + 1] & 0xff);
+                        value = sampleBytes == 1 ? raw >> 8 : raw / 16;
+                        src += 2;
+                    }
+                    slab[dest] = (byte) value;
+                    if (sampleBytes == 2) {
+                        slab[dest + 1] = (byte) (value >> 8);
+                    }
+                }
+            }
+            planes++;
+            if (planes % brickSize == 0 || planes == depth) {
+                awaitSlab();
+            }
+        }
+
+        /**
+         * Should the stream end early, stand in blank planes for the rest,
+         * so that the other channels are not kept waiting.
+         */
+        void finish() {
+            int totalSlabs = (depth + brickSize - 1) / brickSize;
+            while (slabs < totalSlabs) {
+                int first = planes % brickSize;
+                for (int z = first; z < brickSize && z < slab.length / planeBytes; z++) {
+                    for (int dest = z * planeBytes + channel * sampleBytes; dest < (z + 1) * planeBytes; dest += voxelBytes) {
+                        Arrays.fill(slab, dest, dest + sampleBytes, (byte) 0);
+                    }
+                }
+                planes += Math.min(brickSize - first, depth - planes);
+                awaitSlab();
+            }
+        }
+
+        private void awaitSlab() {
+            try {
+                slabFilled.await();
+                slabs++;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ie);
+            } catch (BrokenBarrierException bbe) {
+                throw new RuntimeException("Another channel failed.", bbe);
+            }
+        }
+
+        @Override
+        public void setFrameNum(int frameNum) {
+            // unused
+        }
+
+        @Override
+        public void setPixelBytes(int pixelBytes) {
+            this.bytesPerPixel = pixelBytes;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.brick;
+
+import java.util.Arrays;
+
+/**
+ * How a volume is cut into bricks: the size of each resolution level, the
+ * brick size, and what each voxel holds.  Level 0 is full resolution, each
+ * level after it 2x coarser in X, Y and Z.
+ *
+ * Voxels are interleaved, all components of a voxel together, X fastest,
+ * then Y, then Z.  16-bit samples are little-endian, as uploaded to OpenGL.
+ */
+public class BrickLayout {
+
+    /**
+     * How bricks at the far edges of a level, which the volume does not
+     * fill, are stored.
+     */
+    public static enum Padding {
+        /** Only the voxels the volume has. */
+        NONE,
+        /** Zero-filled up to the next power of two in each direction. */
+        POWER_OF_TWO,
+        /** Zero-filled up to the full brick size. */
+        FULL
+    }
+
+    private final int[][] dimensions;
+    private final int brickSize;
+    private final int components;
+    private final int sampleBytes;
+    private final Padding padding;
+    private final double[] spacings;
+    private final String unit;
+
+    /**
+     * @param dimensions width, height and depth of each level.
+     * @param brickSize edge of a brick, in voxels.
+     * @param components samples per voxel.
+     * @param sampleBytes 1, or 2 for 16-bit samples.
+     * @param padding of edge bricks.
+     * @param spacings voxel size at full resolution, in X, Y and Z.
+     * @param unit of the spacings.
+     */
+    public BrickLayout(int[][] dimensions, int brickSize, int components, int sampleBytes,
+                       Padding padding, double[] spacings, String unit) {
+        this.dimensions = new int[dimensions.length][];
+        for (int level = 0; level < dimensions.length; level++) {
+            this.dimensions[level] = dimensions[level].clone();
+        }
+        this.brickSize = brickSize;
+        this.components = components;
+        this.sampleBytes = sampleBytes;
+        this.padding = padding;
+        this.spacings = spacings.clone();
+        this.unit = unit;
+    }
+
+    public int getNumLevels() {
+        return dimensions.length;
+    }
+
+    /**
+     * @return width, height and depth of the level, in voxels.
+     */
+    public int[] getDimensions(int level) {
+        return dimensions[level].clone();
+    }
+
+    /**
+     * @return bricks across the level in X, Y and Z.
+     */
+    public int[] getGridSize(int level) {
+        int[] grid = new int[3];
+        for (int d = 0; d < 3; d++) {
+            grid[d] = (dimensions[level][d] + brickSize - 1) / brickSize;
+        }
+        return grid;
+    }
+
+    /**
+     * @return voxels of the volume within the brick, in X, Y and Z.
+     */
+    public int[] getBrickSize(int level, int[] gridPosition) {
+        int[] size = new int[3];
+        for (int d = 0; d < 3; d++) {
+            size[d] = Math.min(brickSize, dimensions[level][d] - gridPosition[d] * brickSize);
+        }
+        return size;
+    }
+
+    /**
+     * @return size of the brick as stored, padding included.
+     */
+    public int[] getStoredSize(int level, int[] gridPosition) {
+        int[] size = getBrickSize(level, gridPosition);
+        for (int d = 0; d < 3; d++) {
+            size[d] = storedExtent(size[d]);
+        }
+        return size;
+    }
+
+    public int getBrickSize() {
+        return brickSize;
+    }
+
+    public int getComponents() {
+        return components;
+    }
+
+    public int getSampleBytes() {
+        return sampleBytes;
+    }
+
+    /**
+     * @return bytes of one voxel, all components.
+     */
+    public int getVoxelBytes() {
+        return components * sampleBytes;
+    }
+
+    public Padding getPadding() {
+        return padding;
+    }
+
+    /**
+     * @return voxel size of the level, in X, Y and Z.
+     */
+    public double[] getSpacings(int level) {
+        double factor = 1L << level;
+        return new double[] { spacings[0] * factor, spacings[1] * factor, spacings[2] * factor };
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    private int storedExtent(int extent) {
+        switch (padding) {
+            case POWER_OF_TWO:
+                return Integer.highestOneBit(extent) == extent ? extent : Integer.highestOneBit(extent) << 1;
+            case FULL:
+                return brickSize;
+            default:
+                return extent;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder levels = new StringBuilder();
+        for (int[] level : dimensions) {
+            levels.append(Arrays.toString(level));
+        }
+        return "BrickLayout[" + levels + " in " + brickSize + "^3 bricks, " + components + "x"
+                + (sampleBytes * 8) + "-bit, " + padding + "]";
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.brick;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * One resolution level being bricked.  Interleaved planes are gathered into
+ * a slab one brick deep; each full slab is cut into bricks, and averaged
+ * 2x2x2 into planes of the next coarser level, in parallel on the pool.
+ * Bricks go to the sink as soon as they are cut, so that the slab is the
+ * only memory held.
+ */
+class BrickLevel {
+
+    private final BrickLayout layout;
+    private final int level;
+    private final ExecutorService pool;
+    private final BrickSink sink;
+    private final BrickLevel next;
+
+    private final int width;
+    private final int height;
+    private final int brickSize;
+    private final int voxelBytes;
+    private final int sampleBytes;
+    private final int planeBytes;
+    private final byte[] slab;
+    private int planesInSlab;
+    private int slabNum;
+
+    BrickLevel(BrickLayout layout, int level, ExecutorService pool, BrickSink sink, BrickLevel next) {
+        this.layout = layout;
+        this.level = level;
+        this.pool = pool;
+        this.sink = sink;
+        this.next = next;
+        int[] dimensions = layout.getDimensions(level);
+        this.width = dimensions[0];
+        this.height = dimensions[1];
+        this.brickSize = layout.getBrickSize();
+        this.voxelBytes = layout.getVoxelBytes();
+        this.sampleBytes = layout.getSampleBytes();
+        this.planeBytes = width * height * voxelBytes;
+        this.slab = new byte[planeBytes * Math.min(brickSize, dimensions[2])];
+    }
+
+    /**
+     * @return the slab, for planes to be written into directly.
+     */
+    byte[] getSlab() {
+        return slab;
+    }
+
+    int getPlaneBytes() {
+        return planeBytes;
+    }
+
+    /**
+     * @param plane one interleaved plane, next in Z order.
+     */
+    void addPlane(byte[] plane) throws Exception {
+        System.arraycopy(plane, 0, slab, planesInSlab * planeBytes, planeBytes);
+        planesInSlab++;
+        if (planesInSlab == brickSize) {
+            flushSlab(planesInSlab);
+        }
+    }
+
+    /**
+     * Brick what is left at the end of the volume, at this level and all
+     * coarser ones.
+     */
+    void finish() throws Exception {
+        if (planesInSlab > 0) {
+            flushSlab(planesInSlab);
+        }
+        if (next != null) {
+            next.finish();
+        }
+    }
+
+    /**
+     * Cut the first planes of the slab into bricks, and pass them on,
+     * downsampled, to the next level.
+     *
+     * @param planes how many planes of the slab are filled.
+     */
+    void flushSlab(final int planes) throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        int[] grid = layout.getGridSize(level);
+        for (int y = 0; y < grid[1]; y++) {
+            for (int x = 0; x < grid[0]; x++) {
+                final int[] gridPosition = new int[] { x, y, slabNum };
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        sink.accept(cutBrick(gridPosition, planes));
+                        return null;
+                    }
+                });
+            }
+        }
+        final byte[][] downsampled = new byte[next == null ? 0 : (planes + 1) / 2][];
+        for (int i = 0; i < downsampled.length; i++) {
+            final int z = i;
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    // An odd plane left at the end is averaged with itself.
+                    downsampled[z] = downsample(2 * z, Math.min(2 * z + 1, planes - 1));
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> future : pool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException ee) {
+                throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+            }
+        }
+        slabNum++;
+        planesInSlab = 0;
+        for (byte[] plane : downsampled) {
+            next.addPlane(plane);
+        }
+    }
+
+    private Brick cutBrick(int[] gridPosition, int planes) {
+        int[] stored = layout.getStoredSize(level, gridPosition);
+        int[] size = layout.getBrickSize(level, gridPosition);
+        size[2] = planes;
+        ByteBuffer data = ByteBuffer.allocateDirect(stored[0] * stored[1] * stored[2] * voxelBytes)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        int x0 = gridPosition[0] * brickSize;
+        int y0 = gridPosition[1] * brickSize;
+        int rowBytes = size[0] * voxelBytes;
+        for (int z = 0; z < size[2]; z++) {
+            for (int y = 0; y < size[1]; y++) {
+                data.position(((z * stored[1] + y) * stored[0]) * voxelBytes);
+                data.put(slab, z * planeBytes + ((y0 + y) * width + x0) * voxelBytes, rowBytes);
+            }
+        }
+        data.clear();
+        return new Brick(level, gridPosition, size, stored, data);
+    }
+
+    /**
+     * Average two planes of the slab into one plane of the next level.  At
+     * odd edges, the samples that exist are averaged.
+     */
+    private byte[] downsample(int za, int zb) {
+        int nextWidth = next.width;
+        int nextHeight = next.height;
+        int components = voxelBytes / sampleBytes;
+        byte[] result = new byte[next.planeBytes];
+        int a = za * planeBytes;
+        int b = zb * planeBytes;
+        int dest = 0;
+        for (int y = 0; y < nextHeight; y++) {
+            int y1 = 2 * y * width;
+            int y2 = Math.min(2 * y + 1, height - 1) * width;
+            for (int x = 0; x < nextWidth; x++) {
+                int x1 = 2 * x;
+                int x2 = Math.min(x1 + 1, width - 1);
+                int p11 = (y1 + x1) * voxelBytes;
+                int p12 = (y1 + x2) * voxelBytes;
+                int p21 = (y2 + x1) * voxelBytes;
+                int p22 = (y2 + x2) * voxelBytes;
+                for (int c = 0; c < components; c++) {
+                    int offset = c * sampleBytes;
+                    int sum = sample(a + p11 + offset) + sample(a + p12 + offset)
+                            + sample(a + p21 + offset) + sample(a + p22 + offset)
+                            + sample(b + p11 + offset) + sample(b + p12 + offset)
+                            + sample(b + p21 + offset) + sample(b + p22 + offset);
+                    int mean = (sum + 4) / 8;
+                    result[dest++] = (byte) mean;
+                    if (sampleBytes == 2) {
+                        result[dest++] = (byte) (mean >> 8);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private int sample(int offset) {
+        if (sampleBytes == 1) {
+            return slab[offset] & 0xff;
+        }
+        return (slab[offset] & 0xff) | ((slab[offset + 1] & 0xff) << 8);
+    }
+}
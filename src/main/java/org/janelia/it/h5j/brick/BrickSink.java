@@ -0,0 +1,32 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.brick;
+
+import java.io.IOException;
+
+/**
+ * Implement this to receive the bricks of a BrickExporter.
+ */
+public interface BrickSink {
+
+    /**
+     * Called once, before any brick.
+     */
+    default void start(BrickLayout layout) throws IOException {
+    }
+
+    /**
+     * Called from several threads at once, for bricks in no set order.
+     */
+    void accept(Brick brick) throws IOException;
+
+    /**
+     * Called once, after the last brick.
+     */
+    default void finish() throws IOException {
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.brick;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Writes each brick, as is, to a raw file of its own: s{level}/x_y_z.raw
+ * under the output directory.  The layout is written beside them, to
+ * bricks.properties, before the first brick.
+ */
+public class FileBrickSink implements BrickSink {
+    public static final String LAYOUT_FILE = "bricks.properties";
+
+    private final File directory;
+
+    /**
+     * @param directory to write into; made if missing.
+     */
+    public FileBrickSink(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void start(BrickLayout layout) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("levels", Integer.toString(layout.getNumLevels()));
+        properties.setProperty("brickSize", Integer.toString(layout.getBrickSize()));
+        properties.setProperty("components", Integer.toString(layout.getComponents()));
+        properties.setProperty("bitsPerSample", Integer.toString(layout.getSampleBytes() * 8));
+        properties.setProperty("byteOrder", "LITTLE_ENDIAN");
+        properties.setProperty("padding", layout.getPadding().name());
+        properties.setProperty("unit", layout.getUnit());
+        for (int level = 0; level < layout.getNumLevels(); level++) {
+            properties.setProperty("s" + level + ".dimensions", join(layout.getDimensions(level)));
+            properties.setProperty("s" + level + ".spacings", Arrays.toString(layout.getSpacings(level))
+                    .replaceAll("[\\[\\] ]", ""));
+            mkdirs(new File(directory, "s" + level));
+        }
+        try (OutputStream out = new FileOutputStream(new File(directory, LAYOUT_FILE))) {
+            properties.store(out, layout.toString());
+        }
+    }
+
+    @Override
+    public void accept(Brick brick) throws IOException {
+        int[] position = brick.getGridPosition();
+        File file = new File(new File(directory, "s" + brick.getLevel()), join(position).replace(',', '_') + ".raw");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = brick.getData();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+    }
+
+    private static void mkdirs(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create " + dir);
+        }
+    }
+
+    private static String join(int[] values) {
+        return values[0] + "," + values[1] + "," + values[2];
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.brick;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps every brick, to be looked up by level and grid position.
+ */
+public class MemoryBrickSink implements BrickSink {
+    private final Map<String, Brick> bricks = new ConcurrentHashMap<String, Brick>();
+    private volatile BrickLayout layout;
+
+    @Override
+    public void start(BrickLayout layout) {
+        this.layout = layout;
+    }
+
+    @Override
+    public void accept(Brick brick) {
+        int[] position = brick.getGridPosition();
+        bricks.put(key(brick.getLevel(), position[0], position[1], position[2]), brick);
+    }
+
+    public BrickLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return the brick, or null if there is none there.
+     */
+    public Brick get(int level, int x, int y, int z) {
+        return bricks.get(key(level, x, y, z));
+    }
+
+    public Collection<Brick> getBricks() {
+        return new ArrayList<Brick>(bricks.values());
+    }
+
+    public int size() {
+        return bricks.size();
+    }
+
+    private static String key(int level, int x, int y, int z) {
+        return level + "/" + x + "/" + y + "/" + z;
+    }
+}
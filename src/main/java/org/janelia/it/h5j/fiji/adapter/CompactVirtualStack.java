@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.fiji.adapter;
+
+import ij.IJ;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+
+/**
+ * Shows a decoded H5J stack to ImageJ without copying it: each slice is
+ * read out of the stack's plane storage as it is asked for, unpadded, and
+ * 16-bit samples scaled back to 12 bits.  Meant for stacks kept in COMPACT
+ * storage, where every plane stays compressed until it is looked at.
+ *
+ * Slices are in hyperstack order, channel fastest, then z.  The stack is
+ * read-only: adding or deleting a slice shows an error and does nothing.
+ */
+public class CompactVirtualStack extends VirtualStack {
+    private static final String READ_ONLY_TITLE = "H5J";
+    private static final String READ_ONLY_MESSAGE = "Slices cannot be added to or deleted from a compact H5J stack.";
+
+    private final ImageStack source;
+    private final int channels;
+    private final int slices;
+    private final int paddedWidth;
+    private final int width;
+    private final int height;
+    private final int bytesPerPixel;
+
+    /**
+     * @param source decoded channels, one component each; released by
+     *               release().
+     */
+    public CompactVirtualStack(ImageStack source) {
+        this.source = source;
+        this.channels = source.getNumComponents();
+        this.slices = source.getNumFrames();
+        this.paddedWidth = source.width();
+        this.width = source.width() - Math.max(0, source.getPaddingRight());
+        this.height = source.height() - Math.max(0, source.getPaddingBottom());
+        this.bytesPerPixel = source.getBytesPerPixel();
+    }
+
+    public int getNumChannels() {
+        return channels;
+    }
+
+    public int getNumSlices() {
+        return slices;
+    }
+
+    @Override
+    public int getSize() {
+        return channels * slices;
+    }
+
+    @Override
+    public int size() {
+        return getSize();
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return bytesPerPixel * 8;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return null;
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        if (n < 1 || n > getSize()) {
+            throw new IllegalArgumentException("Plane " + n + " out of range 1-" + getSize());
+        }
+        byte[] plane = source.image((n - 1) / channels, (n - 1) % channels);
+        if (bytesPerPixel == 1) {
+            return new ByteProcessor(width, height, unpadBytes(plane));
+        }
+        return new ShortProcessor(width, height, unpadShorts(plane), null);
+    }
+
+    /**
+     * @param channel 0-based channel.
+     * @return the brightest value in the channel, decompressing every plane.
+     */
+    public int getChannelMax(int channel) {
+        int max = 0;
+        for (int z = 0; z < slices; z++) {
+            byte[] plane = source.image(z, channel);
+            for (int y = 0; y < height; y++) {
+                int src = y * paddedWidth * bytesPerPixel;
+                for (int x = 0; x < width; x++) {
+                    int value;
+                    if (bytesPerPixel == 1) {
+                        value = plane[src++] & 0xff;
+                    } else {
+                        value = (((plane[src] & 0xff) << 8) | (plane[src + 1] & 0xff)) / 16;
+                        src += 2;
+                    }
+                    if (value > max) {
+                        max = value;
+                    }
+                }
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public void addSlice(String name) {
+        IJ.error(READ_ONLY_TITLE, READ_ONLY_MESSAGE);
+    }
+
+    @Override
+    public void deleteSlice(int n) {
+        IJ.error(READ_ONLY_TITLE, READ_ONLY_MESSAGE);
+    }
+
+    /**
+     * Free the planes; the stack is unusable afterwards.
+     */
+    public void release() throws Exception {
+        source.release();
+    }
+
+    private byte[] unpadBytes(byte[] plane) {
+        if (width == paddedWidth && plane.length == width * height) {
+            return plane;
+        }
+        byte[] target = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(plane, y * paddedWidth, target, y * width, width);
+        }
+        return target;
+    }
+
+    private short[] unpadShorts(byte[] plane) {
+        short[] target = new short[width * height];
+        for (int y = 0; y < height; y++) {
+            int src = y * paddedWidth * 2;
+            int dest = y * width;
+            for (int x = 0; x < width; x++, src += 2) {
+                target[dest + x] = (short) ((((plane[src] & 0xff) << 8) | (plane[src + 1] & 0xff)) / 16);
+            }
+        }
+        return target;
+    }
+}
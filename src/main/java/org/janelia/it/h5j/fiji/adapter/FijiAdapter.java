@@ -23,10 +23,14 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * This will pull H5j data into Fiji's required internal format.
@@ -34,53 +38,184 @@ import java.util.concurrent.TimeUnit;
  * @author fosterl
  */
 public class FijiAdapter {
-    public static final int POOL_TIMEOUT_IN_SECONDS = 1200;    
-    public static final int STD_THREAD_POOL_SIZE = 8;
+    /** Default of LoadProfile.getPoolTimeoutSeconds(). */
+    public static final int POOL_TIMEOUT_IN_SECONDS = LoadProfile.DEFAULT_POOL_TIMEOUT_SECONDS;
+    /** Default of LoadProfile.getAssemblyThreads(). */
+    public static final int STD_THREAD_POOL_SIZE = LoadProfile.DEFAULT_ASSEMBLY_THREADS;
     
     private static final boolean LOG_OK = false;
+    private static final long CANCEL_POLL_MS = 50;
+
+    private LoadProfile profile = LoadProfile.getDefault().copy();
+    private LoadTimings timings = null;
+    private CancellationToken cancellation = null;
+    private LoadProgress.Listener progressListener = null;
+    private DecoderPool decoderPool = null;
+    private File nextFile = null;
+    private final RgbComposite rgbComposite = new RgbComposite();
+
+    /**
+     * @param profile threads, caches, storage and memory budget for loads
+     *                from now on; copied.  The default LoadProfile unless
+     *                set.
+     */
+    public void setProfile(LoadProfile profile) {
+        this.profile = profile.copy();
+    }
+
+    /**
+     * @return the profile loads use; changes to it apply to the next load.
+     */
+    public LoadProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @param threadCount decoder threads per channel; 0 for one per
+     *                    processor.  The profile's by default.
+     */
+    public void setThreadCount(int threadCount) {
+        profile.setCodecThreads(threadCount);
+    }
+
+    /**
+     * @param timings where to record the time spent in each phase of the
+     *                load; null (default) to record nothing.
+     */
+    public void setTimings(LoadTimings timings) {
+        this.timings = timings;
+    }
+
+    /**
+     * @param cancellation lets the load be abandoned, or bounded by a
+     *                     deadline; a cancelled load frees what it holds and
+     *                     throws CancellationException.  Null (default) for
+     *                     a token of the adapter's own, cancelled by Esc.
+     */
+    public void setCancellation(CancellationToken cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * @param progressListener told of progress at a fixed rate, and of how
+     *                         the load ended; null (default) for ImageJ's
+     *                         progress bar, unless in batch mode.  Esc
+     *                         cancels the load either way, outside batch
+     *                         mode.
+     */
+    public void setProgressListener(LoadProgress.Listener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * @param fastOpen probe only the first channel, and keep FFmpeg quiet;
+     *                 see H5JLoader.setFastOpen().
+     */
+    public void setFastOpen(boolean fastOpen) {
+        profile.setFastOpen(fastOpen);
+    }
+
+    /**
+     * @param decoderPool decoders to reuse across channels and files; see
+     *                    H5JLoader.setDecoderPool().
+     */
+    public void setDecoderPool(DecoderPool decoderPool) {
+        this.decoderPool = decoderPool;
+    }
+
+    /**
+     * @param nextFile the file to be loaded after this one, as in a batch;
+     *                 its channels are read in the background once this
+     *                 one's have been, within the profile's prefetch
+     *                 budget.  null (default) for none.
+     */
+    public void setNextFile(File nextFile) {
+        this.nextFile = nextFile;
+    }
+
+    /**
+     * @param compactPlanes keep decoded planes in COMPACT storage; the
+     *                      hyperstack is then a CompactVirtualStack over
+     *                      them, each slice decompressed as it is shown,
+     *                      rather than a copy of every plane.  Sets the
+     *                      profile's storage.
+     */
+    public void setCompactPlanes(boolean compactPlanes) {
+        profile.setStorage(compactPlanes ? PlaneStorage.Mode.COMPACT : PlaneStorage.Mode.HEAP);
+    }
+
+    /**
+     * @param channel 0-based channel.
+     * @param settings color or LUT, and display range, of the channel in
+     *                 getImagePlus()'s RGB rendering; null (default) for
+     *                 ImageJ's composite color and the full data range.
+     */
+    public void setRgbChannel(int channel, RgbComposite.Channel settings) {
+        rgbComposite.setChannel(channel, settings);
+    }
 
 	public ImagePlus getImagePlus(File inputFile) throws Exception {
+        CancellationToken token = cancellation != null ? cancellation : new CancellationToken();
+        LoadProgress progress = startProgress(token);
+        // Closed however the load ends, so no file handle or native
+        // allocation outlives it.
+        boolean completed = false;
+        try (H5JLoader loader = createLoader(inputFile, token, progress)) {
+            ImagePlus rtnVal = getImagePlus(inputFile, loader, token);
+            completed = true;
+            return rtnVal;
+        } finally {
+            stopProgress(progress, completed);
+        }
+    }
+
+	private ImagePlus getImagePlus(File inputFile, H5JLoader loader, CancellationToken token) throws Exception {
 		Calibration calibration = createCalibration();
+		Object loadEvent = H5JMetrics.beginLoad();
 
-		// Need here, to pull the values IN from the input file, per H5J
-		// read mechanism.
-		H5JLoader loader = new H5JLoader(inputFile.getAbsolutePath());
 		org.janelia.it.jacs.shared.ffmpeg.ImageStack h5jImageStack
 				= loader.extractAllChannels();
+		long assemblyStart = H5JMetrics.mark(timings);
 
 		FileInfo fileInfo = createFileInfo(inputFile, h5jImageStack);
-		ImagePlus rtnVal = IJ.createImage(inputFile.getName(), "RGB black", fileInfo.width, fileInfo.height, fileInfo.nImages);
-
-		// Iterate over all frames.
-		for (int i = 0; i < fileInfo.nImages; i++) {
-			Frame frame = h5jImageStack.frame(i);
-			int channelCount = frame.imageBytes.size();
-
-            int[] packagedInts = new int[ frame.imageBytes.get(0).length ];
-			int channelNum = 0;
-            for (byte[] nextBytes: frame.imageBytes) {
-				int shifter = (channelCount - channelNum - 1) * 8;
-				for (int j = 0; j < nextBytes.length; j++) {
-					int nextInt = intValue(nextBytes, j) << shifter;
-                    packagedInts[ j ] += nextInt;
-				}
-                channelNum ++;
-			}
-
-			rtnVal.setSlice(i);
-			rtnVal.getChannelProcessor().setPixels(packagedInts);
-
+		ij.ImageStack rgbStack;
+		try {
+			rgbComposite.setThreadCount(profile.getAssemblyThreads());
+			rgbStack = rgbComposite.render(h5jImageStack, token);
+		} finally {
+			h5jImageStack.release();
 		}
+		fileInfo.width = rgbStack.getWidth();
+		fileInfo.height = rgbStack.getHeight();
+		fileInfo.fileType = FileInfo.RGB;
+		ImagePlus rtnVal = new ImagePlus(inputFile.getName(), rgbStack);
 		rtnVal.setFileInfo(fileInfo);
 		rtnVal.setCalibration(calibration);
-        h5jImageStack.release();
+        H5JMetrics.record(timings, LoadTimings.Phase.ASSEMBLY, assemblyStart);
+        H5JMetrics.endLoad(loadEvent, inputFile.getAbsolutePath(), loader.numberOfChannels(),
+                (long) fileInfo.width * fileInfo.height * fileInfo.nImages, loader.getBytesRead());
 		return rtnVal;
 	}
 
 	public ImagePlus getMultiChannelImagePlus(File inputFile) throws Exception {
-		// Need here, to pull the values IN from the input file, per H5J
-		// read mechanism.
-		H5JLoader loader = new H5JLoader(inputFile.getAbsolutePath());
+        CancellationToken token = cancellation != null ? cancellation : new CancellationToken();
+        LoadProgress progress = startProgress(token);
+        // Closed however the load ends, so no file handle or native
+        // allocation outlives it.
+        boolean completed = false;
+        try (H5JLoader loader = createLoader(inputFile, token, progress)) {
+            ImagePlus rtnVal = loader.getStorageMode() == PlaneStorage.Mode.COMPACT
+                    ? getCompactImagePlus(inputFile, loader, token)
+                    : getMultiChannelImagePlus(inputFile, loader, token);
+            completed = true;
+            return rtnVal;
+        } finally {
+            stopProgress(progress, completed);
+        }
+    }
+
+	private ImagePlus getMultiChannelImagePlus(File inputFile, H5JLoader loader, final CancellationToken token) throws Exception {
+		Object loadEvent = H5JMetrics.beginLoad();
 		FileInfo fileInfo = null;
 		ImagePlus rtnVal = null;
 
@@ -96,103 +231,112 @@ public class FijiAdapter {
             //if (!Interpreter.isBatchMode()) {
             //    IJ.showProgress(channelNum, channelCount);
             //}
+            token.check();
             max[channelNum - 1] = -Double.MAX_VALUE;
 			final org.janelia.it.jacs.shared.ffmpeg.ImageStack h5jImageStack = loader.extract(channelName, channelNum-1);
-			// Scoop whole-product data from the first channel.
-			if (rtnVal == null || fileInfo == null) {
-				fileInfo = createFileInfo(inputFile, h5jImageStack);
-				if (LOG_OK) {
-					System.out.println("Padded width=" + fileInfo.width + ", width padding=" + h5jImageStack.getPaddingRight() + ", padded height=" + fileInfo.height + ", height padding=" + h5jImageStack.getPaddingBottom());
-				}
-
-				bytesPerPixel = h5jImageStack.getBytesPerPixel();  // Adjusting
-				//IJ.log("bytesPerPixel: "+bytesPerPixel);
-				//IJ.log("channelCount: "+channelCount);
-                // Assume exactly 1, if the value is not given.
-                if (bytesPerPixel == 0) {
+            // Released however assembly ends, so a failed channel leaves no
+            // planes behind in native storage.
+            try {
+				long assemblyStart = H5JMetrics.mark(timings);
+				// Scoop whole-product data from the first channel.
+				if (rtnVal == null || fileInfo == null) {
+					fileInfo = createFileInfo(inputFile, h5jImageStack);
 					if (LOG_OK) {
-	                    IJ.log("No bytes-per-pixel value available.  Assuming 1 byte/pixel.");
+						System.out.println("Padded width=" + fileInfo.width + ", width padding=" + h5jImageStack.getPaddingRight() + ", padded height=" + fileInfo.height + ", height padding=" + h5jImageStack.getPaddingBottom());
+					}
+
+					bytesPerPixel = h5jImageStack.getBytesPerPixel();  // Adjusting
+					//IJ.log("bytesPerPixel: "+bytesPerPixel);
+					//IJ.log("channelCount: "+channelCount);
+                    // Assume exactly 1, if the value is not given.
+                    if (bytesPerPixel == 0) {
+						if (LOG_OK) {
+		                    IJ.log("No bytes-per-pixel value available.  Assuming 1 byte/pixel.");
+						}
+                        bytesPerPixel = 1;
+                    }
+					if (bytesPerPixel != 1 && bytesPerPixel != 2) {
+						throw new Exception("Unexpected value for bytes-per-pixel: " + bytesPerPixel + ", value of 1 or 2 acceptable.");
 					}
-                    bytesPerPixel = 1;
-                }
-				if (bytesPerPixel != 1 && bytesPerPixel != 2) {
-					throw new Exception("Unexpected value for bytes-per-pixel: " + bytesPerPixel + ", value of 1 or 2 acceptable.");
-				}
-				
-				spc = h5jImageStack.getSpacings();
-				unit = h5jImageStack.getUnit();
-				if (unit.isEmpty()) unit = "pixels";
-
-				rtnVal = NewImage.createImage(
-						inputFile.getName(),              //Name
-						fileInfo.width - h5jImageStack.getPaddingRight(),
-                                                          //Width
-						fileInfo.height - h5jImageStack.getPaddingBottom(),
-                                                          //Height
-						channelCount * fileInfo.nImages,  //nSlices
-						8 * bytesPerPixel,                //BitDepth
-                        NewImage.FILL_BLACK               //Options
-                );
 				
-				if (!Interpreter.isBatchMode()) {
-					IJ.showStatus("Loading H5J...");
-					IJ.showProgress(channelNum, channelCount);
-				}
+					spc = h5jImageStack.getSpacings();
+					unit = h5jImageStack.getUnit();
+					if (unit.isEmpty()) unit = "pixels";
 
-				rtnVal = new CompositeImage(rtnVal, CompositeImage.COMPOSITE);
-                rtnVal.setDimensions(channelCount, fileInfo.nImages, 1);
-				if (LOG_OK) {
-					System.out.println("Setting dimensions: channelCount=" + channelCount + ", n-Images=" + fileInfo.nImages);
-				}
-				rtnVal.setOpenAsHyperStack(true);
+					rtnVal = NewImage.createImage(
+							inputFile.getName(),              //Name
+							fileInfo.width - h5jImageStack.getPaddingRight(),
+                                                              //Width
+							fileInfo.height - h5jImageStack.getPaddingBottom(),
+                                                              //Height
+							channelCount * fileInfo.nImages,  //nSlices
+							8 * bytesPerPixel,                //BitDepth
+                            NewImage.FILL_BLACK               //Options
+                    );
+
+
+					rtnVal = new CompositeImage(rtnVal, CompositeImage.COMPOSITE);
+                    rtnVal.setDimensions(channelCount, fileInfo.nImages, 1);
+					if (LOG_OK) {
+						System.out.println("Setting dimensions: channelCount=" + channelCount + ", n-Images=" + fileInfo.nImages);
+					}
+					rtnVal.setOpenAsHyperStack(true);
 				
-            }
+                }
 			
-            final Map<IPKey, ImageProcessor> imageProcessors =
-                    Collections.synchronizedMap(new HashMap<IPKey, ImageProcessor>());
-			// Iterate over all frames in the input.
-            ExecutorService buildBPPool = Executors.newFixedThreadPool(STD_THREAD_POOL_SIZE);
-            final ExecutorService applyBPPool = Executors.newFixedThreadPool(1);
-			for (int i = 0; i < fileInfo.nImages; i++) {
-                final int finalChannelNum = channelNum;
-                final int finalI = i;
-                final FileInfo finalFileInfo = fileInfo;
-                final ImagePlus finalRtnVal = rtnVal;
-                if (bytesPerPixel == 1) {
-                	buildBPPool.submit(new Runnable() {
-                        public void run() {
-                            final IPKey key = addByteProcessor(finalChannelNum, finalI, h5jImageStack, finalFileInfo, max, imageProcessors);                        
-                            applyBPPool.submit(new Runnable() {
-                                public void run() {
-                                    applyProcessorToStack(imageProcessors, key, finalRtnVal, finalChannelNum);
+                final Map<IPKey, ImageProcessor> imageProcessors =
+                        Collections.synchronizedMap(new HashMap<IPKey, ImageProcessor>());
+				// Iterate over all frames in the input.
+                ExecutorService buildBPPool = Executors.newFixedThreadPool(profile.getAssemblyThreads());
+                final ExecutorService applyBPPool = Executors.newFixedThreadPool(1);
+				for (int i = 0; i < fileInfo.nImages; i++) {
+                    final int finalChannelNum = channelNum;
+                    final int finalI = i;
+                    final FileInfo finalFileInfo = fileInfo;
+                    final ImagePlus finalRtnVal = rtnVal;
+                    if (bytesPerPixel == 1) {
+                    	buildBPPool.submit(new Runnable() {
+                            public void run() {
+                                if (token.isCancelled()) {
+                                    return;
                                 }
-                            });
-                        }
-                    });
-                } else if (bytesPerPixel == 2) {
-                	buildBPPool.submit(new Runnable() {
-                        public void run() {
-                            final IPKey key = addShortProcessor(finalChannelNum, finalI, h5jImageStack, finalFileInfo, max, imageProcessors);                        
-                            applyBPPool.submit(new Runnable() {
-                                public void run() {
-                                    applyProcessorToStack(imageProcessors, key, finalRtnVal, finalChannelNum);
+                                final IPKey key = addByteProcessor(finalChannelNum, finalI, h5jImageStack, finalFileInfo, max, imageProcessors);                        
+                                applyBPPool.submit(new Runnable() {
+                                    public void run() {
+                                        applyProcessorToStack(imageProcessors, key, finalRtnVal, finalChannelNum);
+                                    }
+                                });
+                            }
+                        });
+                    } else if (bytesPerPixel == 2) {
+                    	buildBPPool.submit(new Runnable() {
+                            public void run() {
+                                if (token.isCancelled()) {
+                                    return;
                                 }
-                            });
-                        }
-                    });
+                                final IPKey key = addShortProcessor(finalChannelNum, finalI, h5jImageStack, finalFileInfo, max, imageProcessors);                        
+                                applyBPPool.submit(new Runnable() {
+                                    public void run() {
+                                        applyProcessorToStack(imageProcessors, key, finalRtnVal, finalChannelNum);
+                                    }
+                                });
+                            }
+                        });
+                    }
                 }
-            }
-            buildBPPool.shutdown();
-            buildBPPool.awaitTermination(POOL_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
-            applyBPPool.shutdown();
-            applyBPPool.awaitTermination(POOL_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
-
-			if (LOG_OK) {
-				System.out.println("ByteProcessor executor service completed for channel " + channelName);
-			}		
+                awaitPool(buildBPPool, token);
+                awaitPool(applyBPPool, token);
+                token.check();
+
+				if (LOG_OK) {
+					System.out.println("ByteProcessor executor service completed for channel " + channelName);
+				}		
             
-			channelNum++;
-            h5jImageStack.release();
+				channelNum++;
+                H5JMetrics.record(timings, LoadTimings.Phase.ASSEMBLY, assemblyStart);
+            } finally {
+                h5jImageStack.release();
+            }
 		}
 
         if (LOG_OK) {
@@ -203,7 +347,7 @@ public class FijiAdapter {
         if (rtnVal != null) {
             final Calibration calibration = new Calibration(rtnVal);
             if (LOG_OK) System.out.println("Setting calibration...");
-            calibration.fps = 20;
+            calibration.fps = profile.getFrameRate();
             if (LOG_OK) System.out.println("FPS: " + calibration.fps);
             if (spc != null) {
             	if (LOG_OK) System.out.println("Setting properties...");
@@ -236,17 +380,251 @@ public class FijiAdapter {
 			rtnVal.setZ(1);
 		}
         if (LOG_OK) System.out.println("Getting metadata...");
-        String info = loader.getAllAttributeString("/");
-        if (LOG_OK) System.out.println("[ROOT]"+System.getProperty("line.separator")+info);
-        info += loader.getAllAttributeString("/Channels");
+        String info = loader.getMetadata().getInfo();
         if (LOG_OK) System.out.println("[ALL]"+System.getProperty("line.separator")+info);
         rtnVal.setProperty("Info", info);
         
-        loader.close();
+        H5JMetrics.endLoad(loadEvent, inputFile.getAbsolutePath(), channelCount,
+                (long) rtnVal.getWidth() * rtnVal.getHeight() * rtnVal.getStackSize(), loader.getBytesRead());
         
 		return rtnVal;
 	}
 
+    /**
+     * A hyperstack over the planes as decoded, left in compact storage.
+     */
+    private ImagePlus getCompactImagePlus(File inputFile, H5JLoader loader, CancellationToken token) throws Exception {
+        Object loadEvent = H5JMetrics.beginLoad();
+        org.janelia.it.jacs.shared.ffmpeg.ImageStack h5jImageStack = loader.extractAllChannels();
+        token.check();
+        long assemblyStart = H5JMetrics.mark(timings);
+        if (h5jImageStack.getNumFrames() == 0) {
+            h5jImageStack.release();
+            throw new Exception("No channels found in " + inputFile);
+        }
+        CompactVirtualStack stack = new CompactVirtualStack(h5jImageStack);
+        int channelCount = stack.getNumChannels();
+        ImagePlus image = new ImagePlus(inputFile.getName(), stack);
+        image.setDimensions(channelCount, stack.getNumSlices(), 1);
+        image.setOpenAsHyperStack(true);
+
+        Calibration calibration = new Calibration(image);
+        calibration.fps = profile.getFrameRate();
+        double[] spc = h5jImageStack.getSpacings();
+        calibration.pixelWidth = spc[0];
+        calibration.pixelHeight = spc[1];
+        calibration.pixelDepth = spc[2];
+        String unit = h5jImageStack.getUnit();
+        calibration.setUnit(unit == null || unit.isEmpty() ? "pixels" : unit);
+        image.setCalibration(calibration);
+
+        ImagePlus rtnVal = new CompositeImage(image, CompositeImage.COMPOSITE);
+        for (int c = 0; c < channelCount; c++) {
+            int max = stack.getChannelMax(c);
+            rtnVal.setC(c + 1);
+            rtnVal.setDisplayRange(0, max > 0 ? max : (stack.getBitDepth() > 8 ? 4095 : 255));
+        }
+        rtnVal.setC(1);
+        rtnVal.setZ(1);
+
+        rtnVal.setProperty("Info", loader.getMetadata().getInfo());
+        H5JMetrics.record(timings, LoadTimings.Phase.ASSEMBLY, assemblyStart);
+        H5JMetrics.endLoad(loadEvent, inputFile.getAbsolutePath(), channelCount,
+                (long) rtnVal.getWidth() * rtnVal.getHeight() * rtnVal.getStackSize(), loader.getBytesRead());
+        return rtnVal;
+    }
+
+    private H5JLoader createLoader(File inputFile, CancellationToken token, LoadProgress progress) {
+		// Need here, to pull the values IN from the input file, per H5J
+		// read mechanism.
+		H5JLoader loader = new H5JLoader(inputFile.getAbsolutePath());
+		loader.setProfile(profile);
+		loader.setTimings(timings);
+		loader.setCancellation(token);
+		loader.setProgress(progress);
+		if (decoderPool != null) {
+			loader.setDecoderPool(decoderPool);
+		}
+		if (profile.getStorage() == PlaneStorage.Mode.HEAP
+				&& profile.exceedsMemoryBudget(estimateDecodedBytes(loader))) {
+			loader.setStorageMode(PlaneStorage.Mode.COMPACT);
+		}
+		// Every load path reads every channel in turn: read each while
+		// the one before it decodes, and then the next file, if known.
+		loader.prefetchChannels();
+		if (nextFile != null && profile.getPrefetchBudget() > 0) {
+			ChannelPrefetcher.shared().prefetch(nextFile);
+		}
+		return loader;
+    }
+
+    /**
+     * What the volume takes decoded, from the sizes H5JWriter records, and
+     * taking samples as 16-bit since the depth is not recorded.
+     *
+     * @return bytes, or 0 if the file does not say.
+     */
+    private long estimateDecodedBytes(H5JLoader loader) {
+        H5JMetadata metadata = loader.getMetadata();
+        long width = metadata.getLong(H5JMetadata.CHANNELS_PATH, H5JMetadata.WIDTH, -1);
+        long height = metadata.getLong(H5JMetadata.CHANNELS_PATH, H5JMetadata.HEIGHT, -1);
+        long frames = metadata.getLong(H5JMetadata.CHANNELS_PATH, H5JMetadata.FRAMES, -1);
+        if (width <= 0 || height <= 0 || frames <= 0) {
+            return 0;
+        }
+        return width * height * frames * metadata.getChannelCount() * 2;
+    }
+
+    /**
+     * Progress goes to the listener given, or else to ImageJ's progress bar.
+     * Outside batch mode, pressing Esc cancels the load, whichever it is.
+     */
+    private LoadProgress startProgress(final CancellationToken token) {
+        final boolean interactive = !Interpreter.isBatchMode();
+        final LoadProgress.Listener listener;
+        if (progressListener != null) {
+            listener = progressListener;
+        } else if (interactive) {
+            listener = new LoadProgress.Listener() {
+                @Override
+                public void progress(double fraction) {
+                    IJ.showStatus("Loading H5J...");
+                    IJ.showProgress(fraction);
+                }
+
+                @Override
+                public void finished(boolean completed) {
+                    // 1 takes ImageJ's bar down, however the load ended.
+                    IJ.showProgress(1.0);
+                    IJ.showStatus(completed ? "" : "H5J load stopped.");
+                }
+            };
+        } else {
+            return null;
+        }
+        if (interactive) {
+            IJ.resetEscape();
+        }
+        LoadProgress progress = new LoadProgress(new LoadProgress.Listener() {
+            @Override
+            public void progress(double fraction) {
+                if (interactive && IJ.escapePressed()) {
+                    token.cancel();
+                }
+                listener.progress(fraction);
+            }
+
+            @Override
+            public void finished(boolean completed) {
+                listener.finished(completed);
+            }
+        });
+        progress.start();
+        return progress;
+    }
+
+    private void stopProgress(LoadProgress progress, boolean completed) {
+        if (progress != null) {
+            progress.finish(completed);
+        }
+    }
+
+    /**
+     * Wait for a pool's work, checking now and then for cancellation; once
+     * cancelled, queued work is dropped and only what is running finishes.
+     */
+    private void awaitPool(ExecutorService pool, CancellationToken token) throws InterruptedException {
+        pool.shutdown();
+        long waited = 0;
+        while (!pool.awaitTermination(CANCEL_POLL_MS, TimeUnit.MILLISECONDS)) {
+            waited += CANCEL_POLL_MS;
+            if (token.isCancelled()) {
+                pool.shutdownNow();
+                pool.awaitTermination(profile.getPoolTimeoutSeconds(), TimeUnit.SECONDS);
+                return;
+            }
+            if (waited >= TimeUnit.SECONDS.toMillis(profile.getPoolTimeoutSeconds())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Load as a hyperstack, on a thread of its own.
+     *
+     * @see #getMultiChannelImagePlusAsync(File, Consumer, Executor)
+     */
+    public CompletableFuture<ImagePlus> getMultiChannelImagePlusAsync(File inputFile, Consumer<ImagePlus> onOpen) {
+        return getMultiChannelImagePlusAsync(inputFile, onOpen, runnable -> {
+            Thread thread = new Thread(runnable, "h5j-load " + inputFile.getName());
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    /**
+     * Load as a hyperstack, without waiting for it.  The hyperstack is made
+     * as soon as the first channel's stream is opened, and given to onOpen
+     * (eg. ImagePlus::show) while still black; planes are then written into
+     * it as they are decoded, channel by channel and slice by slice.
+     * Cancelling the future, or closing the image's window, cancels the
+     * load.
+     *
+     * @param inputFile what to load.
+     * @param onOpen called on the loading thread with the unfilled
+     *               hyperstack; may be null.
+     * @param executor runs the load.
+     * @return completes with the filled hyperstack.
+     */
+    public CompletableFuture<ImagePlus> getMultiChannelImagePlusAsync(
+            final File inputFile, final Consumer<ImagePlus> onOpen, Executor executor) {
+        final CancellationToken token = cancellation != null ? cancellation : new CancellationToken();
+        final CompletableFuture<ImagePlus> future = new CompletableFuture<ImagePlus>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                token.cancel();
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        executor.execute(() -> {
+            try {
+                future.complete(loadProgressively(inputFile, onOpen, token));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    private ImagePlus loadProgressively(File inputFile, Consumer<ImagePlus> onOpen, CancellationToken token) throws Exception {
+        LoadProgress progress = startProgress(token);
+        boolean completed = false;
+        try (H5JLoader loader = createLoader(inputFile, token, progress)) {
+            Object loadEvent = H5JMetrics.beginLoad();
+            List<String> channels = loader.channelNames();
+            HyperstackAcceptor acceptor = new HyperstackAcceptor(
+                    inputFile.getName(), channels.size(), loader.extractHeader(), onOpen, token);
+            acceptor.setFrameRate(profile.getFrameRate());
+            for (int c = 0; c < channels.size(); c++) {
+                token.check();
+                acceptor.setChannel(c);
+                loader.extract(channels.get(c), c, acceptor);
+                acceptor.channelDone();
+            }
+            ImagePlus rtnVal = acceptor.getImage();
+            if (rtnVal == null) {
+                throw new Exception("No channels found in " + inputFile);
+            }
+            rtnVal.setProperty("Info", loader.getMetadata().getInfo());
+            H5JMetrics.endLoad(loadEvent, inputFile.getAbsolutePath(), channels.size(),
+                    (long) rtnVal.getWidth() * rtnVal.getHeight() * rtnVal.getStackSize(), loader.getBytesRead());
+            completed = true;
+            return rtnVal;
+        } finally {
+            stopProgress(progress, completed);
+        }
+    }
+
     private void applyProcessorToStack(final Map<IPKey, ImageProcessor> imageProcessors, IPKey key, ImagePlus rtnVal, int channelNum) {
         ImageProcessor cp = imageProcessors.get(key);
         int i = key.getZ();
@@ -280,8 +658,7 @@ public class FijiAdapter {
             double[] max
     ) {
         int z = key.getZ();
-        Frame frame = h5jImageStack.frame(z);
-        final byte[] nextBytes = frame.imageBytes.get(0);
+        final byte[] nextBytes = h5jImageStack.image(z, 0);
         final int unpaddedWidth = fileInfo.width - h5jImageStack.getPaddingRight();
         final int unpaddedHeight = fileInfo.height - h5jImageStack.getPaddingBottom();
         byte[] outputBytes = null;
@@ -289,7 +666,7 @@ public class FijiAdapter {
             outputBytes = nextBytes;
         }
         else {
-            ExecutorService copyPool = Executors.newFixedThreadPool(STD_THREAD_POOL_SIZE);
+            ExecutorService copyPool = Executors.newFixedThreadPool(profile.getAssemblyThreads());
             final byte[] targetBytes = new byte[unpaddedWidth * unpaddedHeight];
             outputBytes = targetBytes; 
             for (int i = 0; i < unpaddedHeight; i++) {
@@ -305,7 +682,7 @@ public class FijiAdapter {
             }
             copyPool.shutdown();
             try {
-                copyPool.awaitTermination(POOL_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+                copyPool.awaitTermination(profile.getPoolTimeoutSeconds(), TimeUnit.SECONDS);
             } catch (Exception ex) {
                 throw new RuntimeException(ex);
             }
@@ -327,8 +704,7 @@ public class FijiAdapter {
             double[] max
     ) {
         int z = key.getZ();
-        Frame frame = h5jImageStack.frame(z);
-        final byte[] nextBytes = frame.imageBytes.get(0);
+        final byte[] nextBytes = h5jImageStack.image(z, 0);
         final int unpaddedWidth = fileInfo.width - h5jImageStack.getPaddingRight();
         final int unpaddedHeight = fileInfo.height - h5jImageStack.getPaddingBottom();
         byte[] outputBytes = null;
@@ -336,7 +712,7 @@ public class FijiAdapter {
             outputBytes = nextBytes;
         }
         else {
-            ExecutorService copyPool = Executors.newFixedThreadPool(STD_THREAD_POOL_SIZE);
+            ExecutorService copyPool = Executors.newFixedThreadPool(profile.getAssemblyThreads());
             final byte[] targetBytes = new byte[unpaddedWidth * unpaddedHeight * 2];
             outputBytes = targetBytes; 
             for (int i = 0; i < unpaddedHeight; i++) {
@@ -352,7 +728,7 @@ public class FijiAdapter {
             }
             copyPool.shutdown();
             try {
-                copyPool.awaitTermination(POOL_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+                copyPool.awaitTermination(profile.getPoolTimeoutSeconds(), TimeUnit.SECONDS);
             } catch (Exception ex) {
                 throw new RuntimeException(ex);
             }
@@ -382,7 +758,7 @@ public class FijiAdapter {
 		calibration.yOrigin = 0;
 		calibration.zOrigin = 0;
 		calibration.loop = false;
-		calibration.fps = 20;
+		calibration.fps = profile.getFrameRate();
 
 		// Here are assumed values.  If this information is available,
 		// settings should be adjusted here.
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.fiji.adapter;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacpp.BytePointer;
+import org.janelia.it.jacs.shared.ffmpeg.DecoderPool;
+import org.janelia.it.jacs.shared.ffmpeg.FFMPGByteAcceptor;
+import org.janelia.it.jacs.shared.ffmpeg.H5JLoader;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+import org.janelia.it.jacs.shared.ffmpeg.LoadProfile;
+import org.janelia.it.jacs.shared.ffmpeg.StreamHeader;
+
+/**
+ * A series of H5J files, one per timepoint, as a single C x Z x T virtual
+ * hyperstack.  Only the first file is looked at up front, for the channel
+ * count, size and calibration that every file must share.  A timepoint's
+ * channels are decoded when one of its planes is first asked for, and kept
+ * in a cache of a few timepoints; the timepoints next to the one last
+ * asked for are decoded in the background, so that stepping through time
+ * rarely waits.
+ *
+ * Planes are in ImageJ's order: channel fastest, then slice, then frame.
+ */
+public class H5JTimeSeries extends VirtualStack {
+    public static final String H5J_EXTENSION = ".h5j";
+    public static final int DEFAULT_CACHE_TIMEPOINTS = LoadProfile.DEFAULT_SERIES_CACHE;
+    public static final int DEFAULT_PREFETCH = 1;
+
+    private static final long PREFETCH_IDLE_SECONDS = 30;
+
+    private final List<File> files;
+    private final List<String> channelNames;
+    private final int channels;
+    private final int slices;
+    private final int paddedWidth;
+    private final int width;
+    private final int height;
+    private final int bytesPerPixel;
+    private final double[] spacings;
+    private final String unit;
+
+    private final LoadProfile profile = LoadProfile.getDefault();
+    private int cacheTimepoints;
+    private int prefetch = DEFAULT_PREFETCH;
+    private volatile int currentTimepoint = -1;
+
+    // (timepoint, channel) to its planes, least recently used first.
+    private final LinkedHashMap<Long, Object[]> cache = new LinkedHashMap<Long, Object[]>(16, 0.75f, true);
+    private final Map<Long, CompletableFuture<Object[]>> decoding = new ConcurrentHashMap<Long, CompletableFuture<Object[]>>();
+    private final ThreadPoolExecutor prefetcher;
+
+    /**
+     * @param files one per timepoint, in order.
+     * @throws Exception if the first cannot be read.
+     */
+    public H5JTimeSeries(List<File> files) throws Exception {
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No H5J files given.");
+        }
+        this.files = new ArrayList<File>(files);
+
+        try (H5JLoader loader = new H5JLoader(files.get(0).getAbsolutePath())) {
+            channelNames = loader.channelNames();
+            ImageStack header = loader.extractHeader();
+            spacings = header.getSpacings();
+            unit = header.getUnit() == null || header.getUnit().isEmpty() ? "pixels" : header.getUnit();
+
+            // Only the first channel's stream header, for size and depth.
+            StreamHeader stream = StreamHeader.probe(loader.readChannel(channelNames.get(0)));
+            paddedWidth = stream.getWidth();
+            bytesPerPixel = stream.getBytesPerPixel();
+            width = paddedWidth - Math.max(0, header.getPaddingRight());
+            height = stream.getHeight() - Math.max(0, header.getPaddingBottom());
+            slices = stream.getFrames();
+        }
+        channels = channelNames.size();
+        cacheTimepoints = profile.getSeriesCache();
+        long timepointBytes = (long) channels * slices * width * height * bytesPerPixel;
+        if (profile.exceedsMemoryBudget(timepointBytes * cacheTimepoints)) {
+            cacheTimepoints = (int) Math.max(1, profile.getMemoryBudget() / timepointBytes);
+        }
+
+        prefetcher = new ThreadPoolExecutor(1, 1, PREFETCH_IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), runnable -> {
+                    Thread thread = new Thread(runnable, "h5j-prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        prefetcher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Every .h5j file of a folder, or every file matching a name pattern
+     * such as /data/tile_*.h5j, sorted by name.
+     *
+     * @param folderOrPattern a folder, or a path whose last part is a glob.
+     * @return the files, in timepoint order; empty if none match.
+     */
+    public static List<File> listFiles(String folderOrPattern) {
+        File source = new File(folderOrPattern);
+        File folder;
+        PathMatcher matcher;
+        if (source.isDirectory()) {
+            folder = source;
+            matcher = FileSystems.getDefault().getPathMatcher("glob:*" + H5J_EXTENSION);
+        } else {
+            folder = source.getAbsoluteFile().getParentFile();
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + source.getName());
+        }
+        List<File> files = new ArrayList<File>();
+        File[] candidates = folder == null ? null : folder.listFiles();
+        if (candidates == null) {
+            return files;
+        }
+        Arrays.sort(candidates);
+        for (File candidate : candidates) {
+            if (candidate.isFile() && matcher.matches(Paths.get(candidate.getName()))) {
+                files.add(candidate);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @param cacheTimepoints timepoints kept decoded, including those
+     *                        prefetched; at least 1.  By default, the
+     *                        LoadProfile's, or fewer if that many would be
+     *                        over its memory budget.
+     */
+    public void setCacheTimepoints(int cacheTimepoints) {
+        this.cacheTimepoints = Math.max(1, cacheTimepoints);
+    }
+
+    /**
+     * @param prefetch timepoints either side of the current one to decode
+     *                 in the background; 0 for none.
+     */
+    public void setPrefetch(int prefetch) {
+        this.prefetch = Math.max(0, prefetch);
+    }
+
+    /**
+     * @param title of the image.
+     * @return a hyperstack over this series.
+     */
+    public ImagePlus createImagePlus(String title) {
+        ImagePlus image = new ImagePlus(title, this);
+        image.setDimensions(channels, slices, files.size());
+        image.setOpenAsHyperStack(true);
+        Calibration calibration = image.getCalibration();
+        calibration.fps = profile.getFrameRate();
+        if (spacings != null) {
+            calibration.pixelWidth = spacings[0];
+            calibration.pixelHeight = spacings[1];
+            calibration.pixelDepth = spacings[2];
+            calibration.setUnit(unit);
+        }
+        CompositeImage composite = new CompositeImage(image, channels > 1 ? CompositeImage.COMPOSITE : CompositeImage.GRAYSCALE);
+        for (int c = 0; c < channels; c++) {
+            composite.setC(c + 1);
+            composite.setDisplayRange(0, bytesPerPixel == 1 ? 255 : 4095);
+        }
+        composite.setC(1);
+        return composite;
+    }
+
+    public int getNumChannels() {
+        return channels;
+    }
+
+    public int getNumSlices() {
+        return slices;
+    }
+
+    public int getNumTimepoints() {
+        return files.size();
+    }
+
+    @Override
+    public int getSize() {
+        return channels * slices * files.size();
+    }
+
+    @Override
+    public int size() {
+        return getSize();
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return bytesPerPixel * 8;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return files.get(timepoint(n)).getName();
+    }
+
+    @Override
+    public String getFileName(int n) {
+        return files.get(timepoint(n)).getName();
+    }
+
+    @Override
+    public String getDirectory() {
+        return files.get(0).getAbsoluteFile().getParent();
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        checkIndex(n);
+        int c = (n - 1) % channels;
+        int z = ((n - 1) / channels) % slices;
+        int t = timepoint(n);
+        Object plane = null;
+        try {
+            plane = planes(t, c)[z];
+        } catch (Exception ex) {
+            IJ.log("H5J series: could not decode " + files.get(t).getName() + ": " + ex.getMessage());
+        }
+        if (t != currentTimepoint) {
+            currentTimepoint = t;
+            schedulePrefetch(t);
+        }
+        if (bytesPerPixel == 1) {
+            return new ByteProcessor(width, height, plane == null ? new byte[width * height] : (byte[]) plane);
+        }
+        return new ShortProcessor(width, height, plane == null ? new short[width * height] : (short[]) plane, null);
+    }
+
+    @Override
+    public void addSlice(String name) {
+        throw new UnsupportedOperationException("H5J series are read-only.");
+    }
+
+    @Override
+    public void deleteSlice(int n) {
+        throw new UnsupportedOperationException("H5J series are read-only.");
+    }
+
+    /**
+     * Drop every decoded timepoint, and stop prefetching.
+     */
+    public void close() {
+        prefetcher.shutdownNow();
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private int timepoint(int n) {
+        return (n - 1) / (channels * slices);
+    }
+
+    private void checkIndex(int n) {
+        if (n < 1 || n > getSize()) {
+            throw new IllegalArgumentException("Plane " + n + " out of range 1-" + getSize());
+        }
+    }
+
+    /**
+     * The planes of one channel of one timepoint, decoded now unless cached
+     * or already being decoded.
+     */
+    Object[] planes(int t, int c) throws Exception {
+        Long key = (long) t * channels + c;
+        synchronized (cache) {
+            Object[] cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        CompletableFuture<Object[]> future = new CompletableFuture<Object[]>();
+        CompletableFuture<Object[]> running = decoding.putIfAbsent(key, future);
+        if (running != null) {
+            try {
+                return running.get();
+            } catch (ExecutionException ee) {
+                throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+            }
+        }
+        try {
+            Object[] planes = decode(t, c);
+            synchronized (cache) {
+                cache.put(key, planes);
+                trim(cacheTimepoints * channels);
+            }
+            future.complete(planes);
+            return planes;
+        } catch (Exception ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            decoding.remove(key);
+        }
+    }
+
+    private void trim(int maxEntries) {
+        for (Iterator<Long> iter = cache.keySet().iterator(); cache.size() > maxEntries && iter.hasNext(); ) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    private void schedulePrefetch(int t) {
+        if (prefetcher.isShutdown()) {
+            return;
+        }
+        // Nearest first, forwards before backwards, and no further than
+        // the cache can hold beside the current timepoint.
+        int distance = Math.min(prefetch, (cacheTimepoints - 1) / 2);
+        for (int d = 1; d <= distance; d++) {
+            for (int next : new int[] { t + d, t - d }) {
+                if (next < 0 || next >= files.size()) {
+                    continue;
+                }
+                final int timepoint = next;
+                prefetcher.execute(() -> {
+                    // Stale by the time it runs: the user has moved on.
+                    if (Math.abs(timepoint - currentTimepoint) > prefetch) {
+                        return;
+                    }
+                    for (int c = 0; c < channels; c++) {
+                        try {
+                            planes(timepoint, c);
+                        } catch (Exception ex) {
+                            // Reported if and when the timepoint is shown.
+                            return;
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private Object[] decode(int t, int c) throws Exception {
+        File file = files.get(t);
+        try (H5JLoader loader = new H5JLoader(file.getAbsolutePath())) {
+            List<String> names = loader.channelNames();
+            if (names.size() != channels) {
+                throw new IllegalStateException(file.getName() + " has " + names.size()
+                        + " channels, not " + channels + " like the first file.");
+            }
+            loader.setDecoderPool(DecoderPool.shared());
+            PlaneArrayAcceptor acceptor = new PlaneArrayAcceptor(file.getName());
+            loader.extract(names.get(c), -1, acceptor);
+            return acceptor.planes;
+        }
+    }
+
+    /**
+     * Collects one channel's planes as unpadded pixel arrays: byte[] for
+     * 8-bit data, short[] (scaled back to 12 bits) for 16-bit data.
+     */
+    private class PlaneArrayAcceptor implements FFMPGByteAcceptor {
+        private final String name;
+        private final Object[] planes = new Object[slices];
+        private int z;
+
+        PlaneArrayAcceptor(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void setPixelBytes(int pixelBytes) {
+            if (pixelBytes != bytesPerPixel) {
+                throw new IllegalStateException(name + " has " + pixelBytes + " bytes per pixel, not "
+                        + bytesPerPixel + " like the first file.");
+            }
+        }
+
+        @Override
+        public void setStreamInfo(int streamWidth, int streamHeight, int frames) {
+            if (streamWidth != paddedWidth) {
+                throw new IllegalStateException(name + " is " + streamWidth + " wide, not "
+                        + paddedWidth + " like the first file.");
+            }
+        }
+
+        @Override
+        public void setFrameNum(int frameNum) {
+            this.z = frameNum;
+        }
+
+        @Override
+        public void accept(BytePointer data, int linesize, int planeWidth, int planeHeight) {
+            byte[] plane = new byte[linesize * planeHeight];
+            data.get(plane);
+            accept(plane, linesize, planeWidth, planeHeight);
+        }
+
+        @Override
+        public void accept(byte[] data, int linesize, int planeWidth, int planeHeight) {
+            if (z >= slices) {
+                return;
+            }
+            if (bytesPerPixel == 1) {
+                byte[] target = new byte[width * height];
+                for (int y = 0; y < height; y++) {
+                    System.arraycopy(data, y * linesize, target, y * width, width);
+                }
+                planes[z] = target;
+            } else {
+                // Big-endian 16-bit, scaled as by FijiAdapter.
+                short[] target = new short[width * height];
+                for (int y = 0; y < height; y++) {
+                    int src = y * linesize;
+                    int dest = y * width;
+                    for (int x = 0; x < width; x++, src += 2) {
+                        target[dest + x] = (short) ((((data[src] & 0xff) << 8) | (data[src + 1] & 0xff)) / 16);
+                    }
+                }
+                planes[z] = target;
+            }
+        }
+    }
+}
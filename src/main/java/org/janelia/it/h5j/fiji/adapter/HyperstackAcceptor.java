@@ -0,0 +1,256 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.fiji.adapter;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import ij.measure.Calibration;
+import java.util.function.Consumer;
+import org.bytedeco.javacpp.BytePointer;
+import org.janelia.it.jacs.shared.ffmpeg.CancellationToken;
+import org.janelia.it.jacs.shared.ffmpeg.FFMPGByteAcceptor;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+import org.janelia.it.jacs.shared.ffmpeg.LoadProfile;
+
+/**
+ * Writes decoded planes straight into a hyperstack, channel by channel.  The
+ * hyperstack is made, and handed on, as soon as the first channel's stream
+ * is opened, so that it may be shown while the rest is decoded; a shown
+ * window is redrawn now and then as planes arrive.  Closing that window
+ * cancels the load.
+ *
+ * Planes, and so redraws, arrive on whichever thread the loader converts
+ * them on, as FFMPGByteAcceptor says; updateAndDraw() only asks AWT to
+ * repaint, which is safe from any thread.
+ */
+class HyperstackAcceptor implements FFMPGByteAcceptor {
+    private static final long REDRAW_INTERVAL_NANOS = 250000000L;
+
+    private final String title;
+    private final int channelCount;
+    private final ImageStack header;
+    private final Consumer<ImagePlus> onOpen;
+    private final CancellationToken token;
+    private final double[] max;
+
+    private ImagePlus image;
+    private int width;
+    private int height;
+    private int slices;
+    private int paddedWidth;
+    private int pixelBytes;
+    private int channel;
+    private int z;
+    private boolean shown;
+    private long lastRedraw;
+    private double frameRate = LoadProfile.DEFAULT_FRAME_RATE;
+
+    /**
+     * @param title of the image.
+     * @param channelCount channels in the file.
+     * @param header padding, voxel size and unit.
+     * @param onOpen given the image once it is made, before any plane is in.
+     * @param token cancelled if the image's window is closed.
+     */
+    HyperstackAcceptor(String title, int channelCount, ImageStack header,
+                       Consumer<ImagePlus> onOpen, CancellationToken token) {
+        this.title = title;
+        this.channelCount = channelCount;
+        this.header = header;
+        this.onOpen = onOpen;
+        this.token = token;
+        this.max = new double[channelCount];
+    }
+
+    /**
+     * @param frameRate for the image's calibration; set before the first
+     *                  plane.
+     */
+    void setFrameRate(double frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * @param channel 0-based channel the next planes belong to.
+     */
+    void setChannel(int channel) {
+        this.channel = channel;
+        max[channel] = 0;
+    }
+
+    @Override
+    public void setPixelBytes(int pixelBytes) {
+        if (image != null && pixelBytes != this.pixelBytes) {
+            throw new IllegalStateException("Channel " + channel + " has " + pixelBytes
+                    + " bytes per pixel, not " + this.pixelBytes + " like the first.");
+        }
+        this.pixelBytes = pixelBytes;
+    }
+
+    @Override
+    public void setStreamInfo(int paddedWidth, int paddedHeight, int frames) {
+        if (image != null) {
+            return;
+        }
+        this.paddedWidth = paddedWidth;
+        this.width = paddedWidth - Math.max(0, header.getPaddingRight());
+        this.height = paddedHeight - Math.max(0, header.getPaddingBottom());
+        this.slices = frames;
+        if (pixelBytes != 1 && pixelBytes != 2) {
+            throw new IllegalStateException("Unexpected value for bytes-per-pixel: " + pixelBytes + ", value of 1 or 2 acceptable.");
+        }
+        if (frames <= 0) {
+            // Rather than a blank image, with every plane dropped.
+            throw new IllegalStateException("Cannot tell how many planes " + title + " has.");
+        }
+
+        ImagePlus created = NewImage.createImage(title, width, height, channelCount * slices,
+                8 * pixelBytes, NewImage.FILL_BLACK);
+        image = new CompositeImage(created, CompositeImage.COMPOSITE);
+        image.setDimensions(channelCount, slices, 1);
+        image.setOpenAsHyperStack(true);
+        image.setCalibration(createCalibration());
+        for (int c = 0; c < channelCount; c++) {
+            image.setC(c + 1);
+            image.setDisplayRange(0, pixelBytes == 1 ? 255 : 4095);
+        }
+        image.setC(1);
+        image.setZ(1);
+        if (onOpen != null) {
+            onOpen.accept(image);
+        }
+        shown = image.getWindow() != null;
+    }
+
+    @Override
+    public void setFrameNum(int frameNum) {
+        this.z = frameNum;
+    }
+
+    @Override
+    public void accept(BytePointer data, int linesize, int width, int height) {
+        byte[] plane = new byte[linesize * height];
+        data.get(plane);
+        accept(plane, linesize, width, height);
+    }
+
+    @Override
+    public void accept(byte[] data, int linesize, int planeWidth, int planeHeight) {
+        if (image == null || z >= slices) {
+            return;
+        }
+        Object pixels = image.getStack().getPixels(image.getStackIndex(channel + 1, z + 1, 1));
+        double planeMax;
+        if (pixelBytes == 1) {
+            planeMax = copyBytes(data, linesize, (byte[]) pixels);
+        } else {
+            planeMax = copyShorts(data, linesize, (short[]) pixels);
+        }
+        if (planeMax > max[channel]) {
+            max[channel] = planeMax;
+        }
+        if (shown) {
+            long now = System.nanoTime();
+            if (now - lastRedraw >= REDRAW_INTERVAL_NANOS) {
+                lastRedraw = now;
+                redraw();
+            }
+        }
+    }
+
+    /**
+     * Unpad one 8-bit plane.
+     *
+     * @return its brightest value.
+     */
+    private int copyBytes(byte[] data, int linesize, byte[] target) {
+        int planeMax = 0;
+        for (int y = 0; y < height; y++) {
+            int src = y * linesize;
+            int dest = y * width;
+            System.arraycopy(data, src, target, dest, width);
+            for (int x = 0; x < width; x++) {
+                int value = target[dest + x] & 0xff;
+                if (value > planeMax) {
+                    planeMax = value;
+                }
+            }
+        }
+        return planeMax;
+    }
+
+    /**
+     * Unpad one big-endian 16-bit plane, scaling it back to 12 bits.
+     *
+     * @return its brightest value.
+     */
+    private int copyShorts(byte[] data, int linesize, short[] target) {
+        int planeMax = 0;
+        for (int y = 0; y < height; y++) {
+            int src = y * linesize;
+            int dest = y * width;
+            for (int x = 0; x < width; x++) {
+                int value = (((data[src] & 0xff) << 8) | (data[src + 1] & 0xff)) / 16;
+                target[dest + x] = (short) value;
+                if (value > planeMax) {
+                    planeMax = value;
+                }
+                src += 2;
+            }
+        }
+        return planeMax;
+    }
+
+    /**
+     * The current channel is complete: set its display range.
+     */
+    void channelDone() {
+        if (image == null) {
+            return;
+        }
+        if (max[channel] > 0) {
+            int c = image.getC(), zz = image.getZ(), t = image.getT();
+            image.setPositionWithoutUpdate(channel + 1, zz, t);
+            image.setDisplayRange(0, max[channel]);
+            image.setPositionWithoutUpdate(c, zz, t);
+        }
+        if (shown) {
+            redraw();
+        }
+    }
+
+    /**
+     * @return the hyperstack, or null if no stream was ever opened.
+     */
+    ImagePlus getImage() {
+        return image;
+    }
+
+    private void redraw() {
+        if (image.getWindow() == null) {
+            // Closed before it was filled; nobody wants the rest.
+            token.cancel();
+            return;
+        }
+        image.updateAndDraw();
+    }
+
+    private Calibration createCalibration() {
+        Calibration calibration = new Calibration(image);
+        calibration.fps = frameRate;
+        double[] spc = header.getSpacings();
+        if (spc != null) {
+            calibration.pixelWidth = spc[0];
+            calibration.pixelHeight = spc[1];
+            calibration.pixelDepth = spc[2];
+            String unit = header.getUnit();
+            calibration.setUnit(unit == null || unit.isEmpty() ? "pixels" : unit);
+        }
+        return calibration;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.fiji.adapter;
+
+import ij.process.LUT;
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.janelia.it.jacs.shared.ffmpeg.CancellationToken;
+import org.janelia.it.jacs.shared.ffmpeg.Frame;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+
+/**
+ * Renders a multi-channel H5J stack as RGB, in one pass per slice: each
+ * channel's value is windowed by its display range, looked up in its LUT,
+ * and the channels are summed, saturating, as an ImageJ composite shows
+ * them.  The result goes straight into the ColorProcessor pixel arrays.
+ * Slices are rendered in parallel.
+ *
+ * Any number of channels may be given, 8-bit or 16-bit (12-bit data, as
+ * the H5J encoder stores it).  Channels without settings of their own get
+ * ImageJ's composite colors, red, green, blue, gray, cyan, magenta,
+ * yellow, and the full range of the data.
+ */
+public class RgbComposite {
+    private static final Color[] DEFAULT_COLORS = new Color[] {
+        Color.red, Color.green, Color.blue, Color.gray, Color.cyan, Color.magenta, Color.yellow
+    };
+    private static final int MAX_8BIT = 255;
+    private static final int MAX_12BIT = 4095;
+
+    /**
+     * How to show one channel: a LUT, and the display range mapped across it.
+     */
+    public static class Channel {
+        private final LUT lut;
+        private final double min;
+        private final double max;
+
+        public Channel(LUT lut, double min, double max) {
+            this.lut = lut;
+            this.min = min;
+            this.max = max;
+        }
+
+        public Channel(Color color, double min, double max) {
+            this(LUT.createLutFromColor(color), min, max);
+        }
+
+        public LUT getLut() {
+            return lut;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+
+    private final List<Channel> channels = new ArrayList<Channel>();
+    private int threadCount = 0;
+
+    /**
+     * @param channel 0-based channel.
+     * @param settings how to show it; null for the default.
+     */
+    public void setChannel(int channel, Channel settings) {
+        while (channels.size() <= channel) {
+            channels.add(null);
+        }
+        channels.set(channel, settings);
+    }
+
+    /**
+     * @param threadCount slices rendered at once; 0 (default) for one per
+     *                    processor.
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Render every slice, without padding.
+     *
+     * @param source decoded channels, one component each.
+     * @param token checked between slices; may be null.
+     * @return one RGB slice per frame of the source.
+     * @throws java.util.concurrent.CancellationException if cancelled.
+     */
+    public ij.ImageStack render(final ImageStack source, final CancellationToken token) throws Exception {
+        final int width = source.width() - Math.max(0, source.getPaddingRight());
+        final int height = source.height() - Math.max(0, source.getPaddingBottom());
+        final int slices = source.getNumFrames();
+        final int[][] tables = createTables(source.getNumComponents(), source.getBytesPerPixel());
+        final int[][] pixels = new int[slices][];
+
+        int threads = threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors();
+        threads = Math.max(1, Math.min(threads, slices));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> rendered = new ArrayList<Future<?>>();
+            for (int z = 0; z < slices; z++) {
+                final int slice = z;
+                rendered.add(pool.submit(new Runnable() {
+                    public void run() {
+                        if (token != null) {
+                            token.check();
+                        }
+                        pixels[slice] = renderSlice(source.frame(slice), source.width(),
+                                source.getBytesPerPixel(), width, height, tables);
+                    }
+                }));
+            }
+            for (Future<?> future : rendered) {
+                try {
+                    future.get();
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) ee.getCause();
+                    }
+                    throw ee;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        ij.ImageStack stack = new ij.ImageStack(width, height);
+        for (int z = 0; z < slices; z++) {
+            stack.addSlice(null, pixels[z]);
+        }
+        return stack;
+    }
+
+    /**
+     * For each channel, the RGB it adds for each value the data may hold.
+     */
+    int[][] createTables(int channelCount, int bytesPerPixel) {
+        int maxValue = bytesPerPixel == 1 ? MAX_8BIT : MAX_12BIT;
+        int[][] tables = new int[channelCount][];
+        byte[] reds = new byte[256];
+        byte[] greens = new byte[256];
+        byte[] blues = new byte[256];
+        for (int c = 0; c < channelCount; c++) {
+            Channel settings = c < channels.size() ? channels.get(c) : null;
+            if (settings == null) {
+                settings = new Channel(DEFAULT_COLORS[c % DEFAULT_COLORS.length], 0, maxValue);
+            }
+            LUT lut = settings.getLut();
+            lut.getReds(reds);
+            lut.getGreens(greens);
+            lut.getBlues(blues);
+            double min = settings.getMin();
+            double scale = 256.0 / (settings.getMax() - min + 1);
+            int[] table = new int[maxValue + 1];
+            for (int v = 0; v <= maxValue; v++) {
+                int index = (int) ((v - min) * scale);
+                index = index < 0 ? 0 : index > 255 ? 255 : index;
+                table[v] = ((reds[index] & 0xff) << 16) | ((greens[index] & 0xff) << 8) | (blues[index] & 0xff);
+            }
+            tables[c] = table;
+        }
+        return tables;
+    }
+
+    /**
+     * Window, color and sum every channel of one frame, a pixel at a time.
+     *
+     * @param paddedWidth line length of the source planes, in pixels.
+     */
+    static int[] renderSlice(Frame frame, int paddedWidth, int bytesPerPixel,
+                             int width, int height, int[][] tables) {
+        int channelCount = Math.min(frame.getNumComponents(), tables.length);
+        byte[][] planes = new byte[channelCount][];
+        for (int c = 0; c < channelCount; c++) {
+            planes[c] = frame.getComponent(c);
+        }
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            int src = y * paddedWidth;
+            int dest = y * width;
+            for (int x = 0; x < width; x++) {
+                int r = 0, g = 0, b = 0;
+                for (int c = 0; c < channelCount; c++) {
+                    byte[] plane = planes[c];
+                    int value;
+                    if (bytesPerPixel == 1) {
+                        value = plane[src + x] & 0xff;
+                    } else {
+                        int k = (src + x) << 1;
+                        value = (((plane[k] & 0xff) << 8) | (plane[k + 1] & 0xff)) >>> 4;
+                    }
+                    int rgb = tables[c][value];
+                    r += (rgb >> 16) & 0xff;
+                    g += (rgb >> 8) & 0xff;
+                    b += rgb & 0xff;
+                }
+                pixels[dest + x] = (r > 255 ? 255 : r) << 16 | (g > 255 ? 255 : g) << 8 | (b > 255 ? 255 : b);
+            }
+        }
+        return pixels;
+    }
+}
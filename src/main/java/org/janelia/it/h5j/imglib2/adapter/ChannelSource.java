@@ -0,0 +1,225 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.imglib2.adapter;
+
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.List;
+
+import org.janelia.it.jacs.shared.ffmpeg.FFMpegLoader;
+import org.janelia.it.jacs.shared.ffmpeg.Frame;
+import org.janelia.it.jacs.shared.ffmpeg.H5JLoader;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+import org.janelia.it.jacs.shared.ffmpeg.PacketIndex;
+
+/**
+ * Decodes arbitrary Z slabs of the channels of one H5J file.  Only the
+ * header and the packet layout of the first channel are read up front;
+ * compressed channel streams are read when first needed and held softly, so
+ * that they may be dropped under memory pressure and re-read.
+ *
+ * Slabs may be decoded concurrently from any number of threads.
+ */
+class ChannelSource {
+
+    private final String path;
+    private final List<String> channelNames;
+    private final int paddedWidth;
+    private final int paddedHeight;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int bytesPerPixel;
+    private final double[] spacings;
+    private final String unit;
+    private final SoftReference<byte[]>[] compressed;
+    private final PacketIndex[] indexes;
+
+    @SuppressWarnings("unchecked")
+    ChannelSource(File inputFile) throws Exception {
+        path = inputFile.getAbsolutePath();
+        H5JLoader loader = new H5JLoader(path);
+        try {
+            channelNames = loader.channelNames();
+            ImageStack header = loader.extractHeader();
+            spacings = header.getSpacings();
+            unit = header.getUnit().isEmpty() ? "pixels" : header.getUnit();
+
+            compressed = (SoftReference<byte[]>[]) new SoftReference<?>[channelNames.size()];
+            indexes = new PacketIndex[channelNames.size()];
+            byte[] firstChannel = loader.readChannel(channelNames.get(0));
+            compressed[0] = new SoftReference<byte[]>(firstChannel);
+
+            FFMpegLoader movie = new FFMpegLoader(firstChannel);
+            try {
+                movie.start();
+                paddedWidth = movie.getImageWidth();
+                paddedHeight = movie.getImageHeight();
+                bytesPerPixel = movie.getImage().getBytesPerPixel();
+                indexes[0] = movie.scanPackets();
+            } finally {
+                movie.close();
+            }
+            depth = indexes[0].getNumPlanes();
+            width = paddedWidth - Math.max(0, header.getPaddingRight());
+            height = paddedHeight - Math.max(0, header.getPaddingBottom());
+        } finally {
+            loader.close();
+        }
+    }
+
+    int getNumChannels() {
+        return channelNames.size();
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    double[] getSpacings() {
+        return spacings.clone();
+    }
+
+    String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return GOP length of the first channel, in planes.
+     */
+    int getGopLength() {
+        return indexes[0].getGopLength();
+    }
+
+    /**
+     * Decode planes [fromZ, toZ) of a channel into a cell array, cropped of
+     * padding: byte[] for 8-bit data, short[] for 16-bit data.
+     */
+    void readSlab(int channel, int fromZ, int toZ, Object dest) throws Exception {
+        PacketIndex index = index(channel);
+        byte[] data = channelBytes(channel);
+        int lastPlane = Math.min(toZ, index.getNumPlanes());
+        Frame[] frames = new Frame[0];
+        byte[] previous = null;
+        if (fromZ < lastPlane) {
+            frames = decode(data, index, index.getStartPacket(fromZ), fromZ, lastPlane);
+            if (hasInteriorGaps(frames)) {
+                // The key frame was not a clean entry point; go from the top.
+                frames = decode(data, index, 0, fromZ, lastPlane);
+            }
+            if (frames[0] == null && fromZ > 0) {
+                // Nothing but frames dropped from the end of the stream:
+                // these repeat the plane before them.
+                Frame[] before = decode(data, index, index.getStartPacket(fromZ - 1), fromZ - 1, fromZ);
+                previous = before[0] == null ? null : before[0].getComponent(0);
+            }
+        }
+
+        final int planeSize = width * height;
+        for (int z = fromZ; z < toZ; z++) {
+            int i = z - fromZ;
+            byte[] plane = i < frames.length && frames[i] != null ? frames[i].getComponent(0) : null;
+            if (plane == null) {
+                // Dropped frames are filled as FFMpegLoader.grab() does.
+                plane = previous;
+            }
+            if (plane != null) {
+                copyPlane(plane, dest, i * planeSize);
+            }
+            previous = plane;
+        }
+    }
+
+    private Frame[] decode(byte[] data, PacketIndex index, int firstPacket, int fromZ, int toZ) throws Exception {
+        FFMpegLoader movie = new FFMpegLoader(data);
+        try {
+            movie.start();
+            return movie.grabRange(index, firstPacket, fromZ, toZ);
+        } finally {
+            movie.close();
+        }
+    }
+
+    /**
+     * @return whether a plane is missing before one that was decoded.
+     *         Missing planes at the end are frames the stream dropped, and
+     *         would be missing from the top too.
+     */
+    private boolean hasInteriorGaps(Frame[] frames) {
+        boolean gap = false;
+        for (Frame frame : frames) {
+            if (frame == null) {
+                gap = true;
+            } else if (gap) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void copyPlane(byte[] plane, Object dest, int destOffset) {
+        if (bytesPerPixel == 1) {
+            byte[] target = (byte[]) dest;
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(plane, y * paddedWidth, target, destOffset + y * width, width);
+            }
+        } else {
+            // Big-endian 16-bit, scaled as by FijiAdapter.
+            short[] target = (short[]) dest;
+            for (int y = 0; y < height; y++) {
+                int src = 2 * y * paddedWidth;
+                int dst = destOffset + y * width;
+                for (int x = 0; x < width; x++, src += 2) {
+                    target[dst + x] = (short) ((((plane[src] & 0xff) << 8) | (plane[src + 1] & 0xff)) / 16);
+                }
+            }
+        }
+    }
+
+    private byte[] channelBytes(int channel) throws Exception {
+        synchronized (compressed) {
+            byte[] data = compressed[channel] == null ? null : compressed[channel].get();
+            if (data == null) {
+                H5JLoader loader = new H5JLoader(path);
+                try {
+                    data = loader.readChannel(channelNames.get(channel));
+                } finally {
+                    loader.close();
+                }
+                compressed[channel] = new SoftReference<byte[]>(data);
+            }
+            return data;
+        }
+    }
+
+    private PacketIndex index(int channel) throws Exception {
+        synchronized (indexes) {
+            if (indexes[channel] == null) {
+                FFMpegLoader movie = new FFMpegLoader(channelBytes(channel));
+                try {
+                    movie.start();
+                    indexes[channel] = movie.scanPackets();
+                } finally {
+                    movie.close();
+                }
+            }
+            return indexes[channel];
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.imglib2.adapter;
+
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.type.NativeType;
+
+/**
+ * Fills one Z slab cell by decoding it from its channel's stream.  Cells
+ * are either XYZ, of a fixed channel, or XYZC with a channel extent of one.
+ */
+class H5JCellLoader<T extends NativeType<T>> implements CellLoader<T> {
+
+    private final ChannelSource source;
+    private final int channel;
+
+    /**
+     * @param source decoder for the file.
+     * @param channel the channel of every cell, or -1 to take the channel
+     *                from the fourth dimension of each cell.
+     */
+    H5JCellLoader(ChannelSource source, int channel) {
+        this.source = source;
+        this.channel = channel;
+    }
+
+    @Override
+    public void load(SingleCellArrayImg<T, ?> cell) throws Exception {
+        int c = channel >= 0 ? channel : (int) cell.min(3);
+        int fromZ = (int) cell.min(2);
+        int toZ = (int) cell.max(2) + 1;
+        source.readSlab(c, fromZ, toZ, cell.getStorageArray());
+    }
+}
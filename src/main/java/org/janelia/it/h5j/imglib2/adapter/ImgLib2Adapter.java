@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.imglib2.adapter;
+
+import java.io.File;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * This will present H5J data as lazily loaded ImgLib2 images.  Nothing is
+ * decoded up front: each cell is a Z slab, sized to whole GOPs of the
+ * stream, decoded on first access and kept in a bounded cache.  Cells of
+ * different slabs or channels load in parallel on the threads that ask for
+ * them.
+ */
+public class ImgLib2Adapter {
+    public static final int DEFAULT_MAX_CACHED_CELLS = 64;
+    public static final int DEFAULT_MIN_SLAB_DEPTH = 8;
+
+    private int maxCachedCells = DEFAULT_MAX_CACHED_CELLS;
+    private int minSlabDepth = DEFAULT_MIN_SLAB_DEPTH;
+
+    /**
+     * @param maxCachedCells how many decoded slabs to hold strongly; beyond
+     *                       that, slabs are held softly and may be dropped.
+     */
+    public void setMaxCachedCells(int maxCachedCells) {
+        this.maxCachedCells = maxCachedCells;
+    }
+
+    /**
+     * @param minSlabDepth smallest Z depth of a cell; rounded up to a whole
+     *                     number of GOPs.
+     */
+    public void setMinSlabDepth(int minSlabDepth) {
+        this.minSlabDepth = minSlabDepth;
+    }
+
+    /**
+     * All channels of the file, as one XYZC image.
+     *
+     * @param inputFile what to read from.
+     * @return calibrated, lazily loaded image.
+     * @throws Exception if the file header cannot be read.
+     */
+    public <T extends RealType<T> & NativeType<T>> ImgPlus<T> getImgPlus(File inputFile) throws Exception {
+        ChannelSource source = new ChannelSource(inputFile);
+        long[] dimensions = new long[] {
+            source.getWidth(), source.getHeight(), source.getDepth(), source.getNumChannels()
+        };
+        int[] cellDimensions = new int[] {
+            source.getWidth(), source.getHeight(), slabDepth(source), 1
+        };
+        CachedCellImg<T, ?> img = createImg(source, -1, dimensions, cellDimensions);
+        return new ImgPlus<T>(img, inputFile.getName(), axes(source, true));
+    }
+
+    /**
+     * One channel of the file, as an XYZ image.
+     *
+     * @param inputFile what to read from.
+     * @param channel 0-based channel number.
+     * @return calibrated, lazily loaded image.
+     * @throws Exception if the file header cannot be read.
+     */
+    public <T extends RealType<T> & NativeType<T>> ImgPlus<T> getChannelImgPlus(File inputFile, int channel) throws Exception {
+        ChannelSource source = new ChannelSource(inputFile);
+        if (channel < 0 || channel >= source.getNumChannels()) {
+            throw new IllegalArgumentException("Channel " + channel + " not in [0," + source.getNumChannels() + ")");
+        }
+        long[] dimensions = new long[] {
+            source.getWidth(), source.getHeight(), source.getDepth()
+        };
+        int[] cellDimensions = new int[] {
+            source.getWidth(), source.getHeight(), slabDepth(source)
+        };
+        CachedCellImg<T, ?> img = createImg(source, channel, dimensions, cellDimensions);
+        return new ImgPlus<T>(img, inputFile.getName() + " C" + (channel + 1), axes(source, false));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends RealType<T> & NativeType<T>> CachedCellImg<T, ?> createImg(
+            ChannelSource source, int channel, long[] dimensions, int[] cellDimensions) {
+        T type = (T) (source.getBytesPerPixel() == 1 ? new UnsignedByteType() : new UnsignedShortType());
+        ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+                .cellDimensions(cellDimensions)
+                .cacheType(CacheType.BOUNDED)
+                .maxCacheSize(maxCachedCells);
+        return new ReadOnlyCachedCellImgFactory(options)
+                .create(dimensions, type, new H5JCellLoader<T>(source, channel));
+    }
+
+    /**
+     * Slabs are whole GOPs, so that each may be decoded starting from its
+     * own key frame.
+     */
+    private int slabDepth(ChannelSource source) {
+        int gop = source.getGopLength();
+        int gops = Math.max(1, (minSlabDepth + gop - 1) / gop);
+        return Math.max(1, Math.min(source.getDepth(), gop * gops));
+    }
+
+    private CalibratedAxis[] axes(ChannelSource source, boolean withChannels) {
+        double[] spc = source.getSpacings();
+        String unit = source.getUnit();
+        CalibratedAxis x = new DefaultLinearAxis(Axes.X, unit, spc[0]);
+        CalibratedAxis y = new DefaultLinearAxis(Axes.Y, unit, spc[1]);
+        CalibratedAxis z = new DefaultLinearAxis(Axes.Z, unit, spc[2]);
+        if (withChannels) {
+            return new CalibratedAxis[] { x, y, z, new DefaultLinearAxis(Axes.CHANNEL) };
+        }
+        return new CalibratedAxis[] { x, y, z };
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.n5.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.janelia.it.jacs.shared.ffmpeg.FFMPGByteAcceptor;
+import org.janelia.it.jacs.shared.ffmpeg.H5JLoader;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+import org.janelia.it.jacs.shared.ffmpeg.StreamHeader;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
+
+/**
+ * This will convert an H5J file into a chunked, multiscale N5 or Zarr
+ * container in a local directory, streaming planes from the decoder.  Only
+ * one slab (a chunk deep) per resolution level is held at a time; chunks are
+ * compressed and written in parallel while decoding carries on.
+ *
+ * The layout is c{channel}/s{scale}, each scale 2x coarser than the one
+ * before in X, Y and Z.  Samples are as FijiAdapter shows them: 8-bit as
+ * is, 16-bit scaled down by 16.
+ */
+public class N5Exporter {
+    public static final int POOL_TIMEOUT_IN_SECONDS = 1200;
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+    public static final int MAX_SCALES = 8;
+
+    public static enum Format {
+        N5, ZARR
+    }
+
+    private Format format = Format.N5;
+    private int[] blockSize = new int[] { DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_SIZE };
+    private int numScales = 0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Compression compression = new GzipCompression();
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * @param blockSize chunk size in X, Y and Z.
+     */
+    public void setBlockSize(int[] blockSize) {
+        this.blockSize = blockSize.clone();
+    }
+
+    /**
+     * @param numScales number of resolution levels, including full
+     *                  resolution; 0 to go on until one chunk holds it all.
+     */
+    public void setNumScales(int numScales) {
+        this.numScales = numScales;
+    }
+
+    /**
+     * @param threads how many chunks to compress and write at once.
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Convert a whole file.
+     *
+     * @param inputFile H5J file to read.
+     * @param outputDir container to create or add to.
+     * @throws Exception if reading, decoding or writing fails.
+     */
+    public void export(File inputFile, File outputDir) throws Exception {
+        H5JLoader loader = new H5JLoader(inputFile.getAbsolutePath());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<String> channelNames = loader.channelNames();
+            ImageStack header = loader.extractHeader();
+            int[] size = probeSize(loader, channelNames.get(0));
+            int width = size[0] - Math.max(0, header.getPaddingRight());
+            int height = size[1] - Math.max(0, header.getPaddingBottom());
+            int depth = size[2];
+            DataType dataType = size[3] == 1 ? DataType.UINT8 : DataType.UINT16;
+
+            N5Writer writer = format == Format.ZARR
+                    ? new N5ZarrWriter(outputDir.getAbsolutePath())
+                    : new N5FSWriter(outputDir.getAbsolutePath());
+            long[][] dimensions = scaleDimensions(width, height, depth);
+            String unit = header.getUnit().isEmpty() ? "pixels" : header.getUnit();
+            writer.setAttribute("/", "pixelResolution", resolution(header.getSpacings(), unit, 0));
+
+            // Bound the chunks waiting to be written, and so the memory.
+            Semaphore inFlight = new Semaphore(threads * 2);
+            List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+            for (int c = 0; c < channelNames.size(); c++) {
+                ScaleLevel top = createLevels(writer, "c" + c, dimensions, dataType, header, unit, pool, inFlight, errors);
+                PlaneAcceptor acceptor = new PlaneAcceptor(top, width, height, depth, size[3]);
+                loader.extract(channelNames.get(c), c, acceptor);
+                acceptor.finish();
+                // Wait for this channel's chunks before moving on.
+                inFlight.acquire(threads * 2);
+                inFlight.release(threads * 2);
+                if (!errors.isEmpty()) {
+                    throw new IOException("Failed writing chunks of channel " + c, errors.get(0));
+                }
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(POOL_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+            loader.close();
+        }
+    }
+
+    /**
+     * @return padded width, padded height, depth and bytes per pixel.
+     */
+    private int[] probeSize(H5JLoader loader, String channelName) throws Exception {
+        StreamHeader stream = StreamHeader.probe(loader.readChannel(channelName));
+        return new int[] {
+            stream.getWidth(), stream.getHeight(), stream.getFrames(), stream.getBytesPerPixel()
+        };
+    }
+
+    private long[][] scaleDimensions(int width, int height, int depth) {
+        List<long[]> scales = new ArrayList<long[]>();
+        long[] dims = new long[] { width, height, depth };
+        scales.add(dims);
+        while (scales.size() < (numScales > 0 ? numScales : MAX_SCALES)) {
+            if (numScales <= 0 && dims[0] <= blockSize[0] && dims[1] <= blockSize[1] && dims[2] <= blockSize[2]) {
+                break;
+            }
+            dims = new long[] { (dims[0] + 1) / 2, (dims[1] + 1) / 2, (dims[2] + 1) / 2 };
+            scales.add(dims);
+        }
+        return scales.toArray(new long[scales.size()][]);
+    }
+
+    private ScaleLevel createLevels(N5Writer writer, String group, long[][] dimensions, DataType dataType,
+                                    ImageStack header, String unit, ExecutorService pool,
+                                    Semaphore inFlight, List<Exception> errors) throws IOException {
+        writer.createGroup(group);
+        ScaleLevel next = null;
+        for (int s = dimensions.length - 1; s >= 0; s--) {
+            String path = group + "/s" + s;
+            DatasetAttributes attributes = new DatasetAttributes(dimensions[s], blockSize, dataType, compression);
+            writer.createDataset(path, attributes);
+            long factor = 1L << s;
+            writer.setAttribute(path, "downsamplingFactors", new long[] { factor, factor, factor });
+            writer.setAttribute(path, "pixelResolution", resolution(header.getSpacings(), unit, s));
+            next = new ScaleLevel(writer, path, attributes, pool, inFlight, errors, next);
+        }
+        return next;
+    }
+
+    private Map<String, Object> resolution(double[] spacings, String unit, int scale) {
+        double factor = 1L << scale;
+        Map<String, Object> resolution = new LinkedHashMap<String, Object>();
+        resolution.put("dimensions", new double[] { spacings[0] * factor, spacings[1] * factor, spacings[2] * factor });
+        resolution.put("unit", unit);
+        return resolution;
+    }
+
+    /**
+     * Takes decoded planes, strips their padding and feeds them to the
+     * full-resolution level.
+     */
+    private static class PlaneAcceptor implements FFMPGByteAcceptor {
+        private final ScaleLevel top;
+        private final int width;
+        private final int height;
+        private final int depth;
+        private final int bytesPerPixel;
+        private int planes;
+
+        PlaneAcceptor(ScaleLevel top, int width, int height, int depth, int bytesPerPixel) {
+            this.top = top;
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
+        @Override
+        public void accept(BytePointer data, int linesize, int width, int height) {
+            byte[] bytes = new byte[linesize * height];
+            data.position(0).get(bytes);
+            accept(bytes, linesize, width, height);
+        }
+
+        @Override
+        public void accept(byte[] data, int linesize, int frameWidth, int frameHeight) {
+            if (planes >= depth) {
+                return;
+            }
+            short[] plane = new short[width * height];
+            for (int y = 0; y < height; y++) {
+                int src = y * linesize;
+                int dst = y * width;
+                if (bytesPerPixel == 1) {
+                    for (int x = 0; x < width; x++) {
+                        plane[dst + x] = (short) (data[src + x] & 0xff);
+                    }
+                } else {
+                    for (int x = 0; x < width; x++, src += 2) {
+                        plane[dst + x] = (short) ((((data[src] & 0xff) << 8) | (data[src + 1] & 0xff)) / 16);
+                    }
+                }
+            }
+            try {
+                top.addPlane(plane);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ie);
+            }
+            planes++;
+        }
+
+        void finish() throws InterruptedException {
+            top.finish();
+        }
+
+        @Override
+        public void setFrameNum(int frameNum) {
+            // unused
+        }
+
+        @Override
+        public void setPixelBytes(int pixelBytes) {
+            // known from the probe
+        }
+    }
+}
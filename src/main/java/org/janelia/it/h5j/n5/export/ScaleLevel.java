@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.n5.export;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+/**
+ * One resolution level of one channel being exported.  Planes arrive in Z
+ * order and are gathered into a slab one chunk deep; each full slab is cut
+ * into chunks, which are compressed and written on the pool.  Every second
+ * plane, the last two are averaged 2x2x2 and passed on to the next coarser
+ * level, so that the whole pyramid is built in the one pass.
+ *
+ * Planes are held as short[], which covers both 8-bit and (scaled) 16-bit
+ * samples.
+ */
+class ScaleLevel {
+
+    private final N5Writer writer;
+    private final String datasetPath;
+    private final DatasetAttributes attributes;
+    private final ExecutorService pool;
+    private final Semaphore inFlight;
+    private final List<Exception> errors;
+    private final ScaleLevel next;
+
+    private final int width;
+    private final int height;
+    private final int[] blockSize;
+    private final short[] slab;
+    private int planesInSlab;
+    private long slabNum;
+    private short[] pendingPlane;
+
+    ScaleLevel(N5Writer writer, String datasetPath, DatasetAttributes attributes,
+               ExecutorService pool, Semaphore inFlight, List<Exception> errors, ScaleLevel next) {
+        this.writer = writer;
+        this.datasetPath = datasetPath;
+        this.attributes = attributes;
+        this.pool = pool;
+        this.inFlight = inFlight;
+        this.errors = errors;
+        this.next = next;
+        this.width = (int) attributes.getDimensions()[0];
+        this.height = (int) attributes.getDimensions()[1];
+        this.blockSize = attributes.getBlockSize();
+        this.slab = new short[width * height * blockSize[2]];
+    }
+
+    /**
+     * @param plane width x height samples, x fastest.
+     */
+    void addPlane(short[] plane) throws InterruptedException {
+        System.arraycopy(plane, 0, slab, planesInSlab * width * height, width * height);
+        planesInSlab++;
+        if (planesInSlab == blockSize[2]) {
+            flushSlab();
+        }
+        if (next != null) {
+            if (pendingPlane == null) {
+                pendingPlane = plane;
+            } else {
+                next.addPlane(downsample(pendingPlane, plane));
+                pendingPlane = null;
+            }
+        }
+    }
+
+    /**
+     * Write out whatever is left at the end of the channel, at this level
+     * and all coarser ones.
+     */
+    void finish() throws InterruptedException {
+        if (planesInSlab > 0) {
+            flushSlab();
+        }
+        if (next != null) {
+            if (pendingPlane != null) {
+                next.addPlane(downsample(pendingPlane, pendingPlane));
+                pendingPlane = null;
+            }
+            next.finish();
+        }
+    }
+
+    private void flushSlab() throws InterruptedException {
+        final int depth = planesInSlab;
+        for (int y0 = 0; y0 < height; y0 += blockSize[1]) {
+            for (int x0 = 0; x0 < width; x0 += blockSize[0]) {
+                final int[] size = new int[] {
+                    Math.min(blockSize[0], width - x0), Math.min(blockSize[1], height - y0), depth
+                };
+                final long[] gridPosition = new long[] { x0 / blockSize[0], y0 / blockSize[1], slabNum };
+                final DataBlock<?> block = cutBlock(x0, y0, size, gridPosition);
+                inFlight.acquire();
+                pool.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            writer.writeBlock(datasetPath, attributes, block);
+                        } catch (IOException | RuntimeException ex) {
+                            errors.add(ex);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+        }
+        slabNum++;
+        planesInSlab = 0;
+    }
+
+    private DataBlock<?> cutBlock(int x0, int y0, int[] size, long[] gridPosition) {
+        int n = size[0] * size[1] * size[2];
+        if (attributes.getDataType() == DataType.UINT8) {
+            byte[] data = new byte[n];
+            int i = 0;
+            for (int z = 0; z < size[2]; z++) {
+                for (int y = 0; y < size[1]; y++) {
+                    int src = (z * height + y0 + y) * width + x0;
+                    for (int x = 0; x < size[0]; x++) {
+                        data[i++] = (byte) slab[src + x];
+                    }
+                }
+            }
+            return new ByteArrayDataBlock(size, gridPosition, data);
+        } else {
+            short[] data = new short[n];
+            int i = 0;
+            for (int z = 0; z < size[2]; z++) {
+                for (int y = 0; y < size[1]; y++) {
+                    System.arraycopy(slab, (z * height + y0 + y) * width + x0, data, i, size[0]);
+                    i += size[0];
+                }
+            }
+            return new ShortArrayDataBlock(size, gridPosition, data);
+        }
+    }
+
+    /**
+     * Average two planes of this level into one plane of the next.  At odd
+     * edges, the samples that exist are averaged.
+     */
+    private short[] downsample(short[] a, short[] b) {
+        int nextWidth = next.width;
+        int nextHeight = next.height;
+        short[] result = new short[nextWidth * nextHeight];
+        for (int y = 0; y < nextHeight; y++) {
+            int y1 = 2 * y;
+            int y2 = Math.min(y1 + 1, height - 1);
+            for (int x = 0; x < nextWidth; x++) {
+                int x1 = 2 * x;
+                int x2 = Math.min(x1 + 1, width - 1);
+                int sum = (a[y1 * width + x1] & 0xffff) + (a[y1 * width + x2] & 0xffff)
+                        + (a[y2 * width + x1] & 0xffff) + (a[y2 * width + x2] & 0xffff)
+                        + (b[y1 * width + x1] & 0xffff) + (b[y1 * width + x2] & 0xffff)
+                        + (b[y2 * width + x1] & 0xffff) + (b[y2 * width + x2] & 0xffff);
+                result[y * nextWidth + x] = (short) ((sum + 4) / 8);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.scifio;
+
+import org.janelia.it.jacs.shared.ffmpeg.FFMpegLoader;
+import org.janelia.it.jacs.shared.ffmpeg.Frame;
+
+/**
+ * A decoder kept open on one channel, positioned after the last plane it
+ * gave.  Reading planes in order decodes each once; asking for an earlier
+ * plane starts the stream again.  Frames the stream is short of are filled
+ * with the last one decoded, as FFMpegLoader.grab() does.
+ */
+class ChannelCursor implements AutoCloseable {
+    private final byte[] data;
+    private FFMpegLoader movie;
+    private int next;
+    private byte[] last;
+    private boolean ended;
+
+    /**
+     * @param data the channel's compressed stream.
+     */
+    ChannelCursor(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * @param z 0-based plane.
+     * @return the plane, padded, as FFMpegLoader gives it.
+     */
+    byte[] plane(int z) throws Exception {
+        if (movie != null && z < next - 1) {
+            close();
+        }
+        if (movie == null) {
+            movie = new FFMpegLoader(data);
+            movie.setFastOpen(true);
+            movie.start();
+            next = 0;
+            last = null;
+            ended = false;
+        }
+        while (next <= z) {
+            Frame frame = ended ? null : movie.grabFrame();
+            if (frame == null) {
+                ended = true;
+                if (last == null) {
+                    throw new Exception("No frames decoded from channel.");
+                }
+            } else {
+                last = frame.getComponent(0);
+            }
+            next++;
+        }
+        return last;
+    }
+
+    @Override
+    public void close() {
+        if (movie != null) {
+            try {
+                movie.release();
+            } catch (Exception ex) {
+                throw new IllegalStateException("Could not free the channel's frames.", ex);
+            } finally {
+                movie.close();
+                movie = null;
+            }
+        }
+    }
+}
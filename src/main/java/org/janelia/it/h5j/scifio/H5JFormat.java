@@ -0,0 +1,284 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.h5j.scifio;
+
+import io.scif.AbstractChecker;
+import io.scif.AbstractFormat;
+import io.scif.AbstractMetadata;
+import io.scif.AbstractParser;
+import io.scif.ByteArrayPlane;
+import io.scif.ByteArrayReader;
+import io.scif.Format;
+import io.scif.FormatException;
+import io.scif.ImageMetadata;
+import io.scif.config.SCIFIOConfig;
+import io.scif.util.FormatTools;
+import java.io.IOException;
+import java.util.List;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imglib2.Interval;
+import org.janelia.it.jacs.shared.ffmpeg.H5JLoader;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+import org.janelia.it.jacs.shared.ffmpeg.StreamHeader;
+import org.scijava.io.handle.DataHandle;
+import org.scijava.io.location.FileLocation;
+import org.scijava.io.location.Location;
+import org.scijava.plugin.Plugin;
+
+/**
+ * SCIFIO format for H5J files, so that ImageJ2 and other SCIFIO clients can
+ * read them a plane at a time.  Metadata comes from the HDF5 attributes and
+ * the first channel's stream header; nothing is decoded, nor FFmpeg loaded,
+ * until a plane is opened.  openPlane() decodes only the channel asked for, through a
+ * decoder kept open per channel, so that reading a channel's planes in
+ * order decodes each plane once.
+ *
+ * Axes are X, Y, Z, Channel; 16-bit data is given as 12-bit values, big
+ * endian, as FijiAdapter shows it.
+ */
+@Plugin(type = Format.class, name = H5JFormat.FORMAT_NAME)
+public class H5JFormat extends AbstractFormat {
+    public static final String FORMAT_NAME = "Janelia H5J";
+    public static final String SUFFIX = "h5j";
+
+    // An HDF5 file starts with this signature.
+    private static final byte[] HDF5_SIGNATURE = new byte[] {
+        (byte) 0x89, 'H', 'D', 'F', '\r', '\n', 0x1a, '\n'
+    };
+
+    @Override
+    public String getFormatName() {
+        return FORMAT_NAME;
+    }
+
+    @Override
+    protected String[] makeSuffixArray() {
+        return new String[] { SUFFIX };
+    }
+
+    public static class Metadata extends AbstractMetadata {
+        private String path;
+        private List<String> channelNames;
+        private int paddedWidth;
+        private int width;
+        private int height;
+        private int depth;
+        private int bytesPerPixel;
+        private double[] spacings;
+        private String unit;
+
+        public String getPath() {
+            return path;
+        }
+
+        public List<String> getChannelNames() {
+            return channelNames;
+        }
+
+        public int getPaddedWidth() {
+            return paddedWidth;
+        }
+
+        public int getBytesPerPixel() {
+            return bytesPerPixel;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        @Override
+        public void populateImageMetadata() {
+            createImageMetadata(1);
+            ImageMetadata meta = get(0);
+            meta.setPlanarAxisCount(2);
+            addAxis(meta, Axes.X, width, 0);
+            addAxis(meta, Axes.Y, height, 1);
+            addAxis(meta, Axes.Z, depth, 2);
+            meta.addAxis(new DefaultLinearAxis(Axes.CHANNEL), channelNames.size());
+            meta.setPixelType(bytesPerPixel == 1 ? FormatTools.UINT8 : FormatTools.UINT16);
+            meta.setBitsPerPixel(bytesPerPixel == 1 ? 8 : 12);
+            meta.setLittleEndian(false);
+            meta.setOrderCertain(true);
+            meta.setIndexed(false);
+        }
+
+        private void addAxis(ImageMetadata meta, AxisType type, int length, int spacing) {
+            if (spacings != null) {
+                meta.addAxis(new DefaultLinearAxis(type, unit, spacings[spacing]), length);
+            } else {
+                meta.addAxis(new DefaultLinearAxis(type), length);
+            }
+        }
+    }
+
+    public static class Checker extends AbstractChecker {
+
+        @Override
+        public boolean suffixSufficient() {
+            // Any HDF5 file may be named .h5j; look for the signature too.
+            return false;
+        }
+
+        @Override
+        public boolean isFormat(DataHandle<Location> stream) throws IOException {
+            byte[] head = new byte[HDF5_SIGNATURE.length];
+            if (stream.read(head) != head.length) {
+                return false;
+            }
+            for (int i = 0; i < head.length; i++) {
+                if (head[i] != HDF5_SIGNATURE[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public static class Parser extends AbstractParser<Metadata> {
+
+        @Override
+        protected void typedParse(DataHandle<Location> stream, Metadata meta, SCIFIOConfig config)
+                throws IOException, FormatException {
+            Location location = stream.get();
+            if (!(location instanceof FileLocation)) {
+                throw new FormatException("H5J can only be read from a file, not " + location);
+            }
+            meta.path = ((FileLocation) location).getFile().getAbsolutePath();
+            try (H5JLoader loader = new H5JLoader(meta.path)) {
+                meta.channelNames = loader.channelNames();
+                if (meta.channelNames.isEmpty()) {
+                    throw new FormatException("No channels in " + meta.path);
+                }
+                ImageStack header = loader.extractHeader();
+                meta.spacings = header.getSpacings();
+                meta.unit = header.getUnit() == null || header.getUnit().isEmpty() ? null : header.getUnit();
+
+                // The stream header alone gives the bit depth, and whatever
+                // the attributes do not.
+                StreamHeader channel = StreamHeader.probe(loader.readChannel(meta.channelNames.get(0)));
+                meta.paddedWidth = channel.getWidth();
+                meta.bytesPerPixel = channel.getBytesPerPixel();
+                long frames = loader.getChannelsAttribute("frames");
+                meta.depth = frames > 0 ? (int) frames : channel.getFrames();
+                meta.width = meta.paddedWidth - Math.max(0, header.getPaddingRight());
+                meta.height = channel.getHeight() - Math.max(0, header.getPaddingBottom());
+            } catch (FormatException | IOException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new FormatException("Could not read H5J header of " + meta.path, ex);
+            }
+            if (meta.depth <= 0) {
+                throw new FormatException("Plane count unknown for " + meta.path);
+            }
+            meta.getTable().put("channels", meta.channelNames.size());
+        }
+    }
+
+    public static class Reader extends ByteArrayReader<Metadata> {
+        private H5JLoader loader;
+        private ChannelCursor[] cursors;
+
+        @Override
+        protected String[] createDomainArray() {
+            return new String[] { FormatTools.LM_DOMAIN };
+        }
+
+        @Override
+        public ByteArrayPlane openPlane(int imageIndex, long planeIndex, ByteArrayPlane plane,
+                                        Interval bounds, SCIFIOConfig config) throws FormatException, IOException {
+            Metadata meta = getMetadata();
+            int depth = meta.getDepth();
+            int channels = meta.getChannelNames().size();
+            if (imageIndex != 0 || planeIndex < 0 || planeIndex >= (long) depth * channels) {
+                throw new FormatException("No plane " + planeIndex + " of image " + imageIndex);
+            }
+            int z = (int) (planeIndex % depth);
+            int channel = (int) (planeIndex / depth);
+
+            byte[] source;
+            try {
+                ChannelCursor cursor = cursor(channel);
+                synchronized (cursor) {
+                    source = cursor.plane(z);
+                }
+            } catch (FormatException | IOException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new FormatException("Could not decode plane " + z + " of channel " + channel, ex);
+            }
+            copy(source, meta, bounds, plane.getData());
+            return plane;
+        }
+
+        private synchronized ChannelCursor cursor(int channel) throws Exception {
+            Metadata meta = getMetadata();
+            if (cursors == null) {
+                cursors = new ChannelCursor[meta.getChannelNames().size()];
+            }
+            if (cursors[channel] == null) {
+                if (loader == null) {
+                    loader = new H5JLoader(meta.getPath());
+                }
+                cursors[channel] = new ChannelCursor(loader.readChannel(meta.getChannelNames().get(channel)));
+            }
+            return cursors[channel];
+        }
+
+        /**
+         * Copy the bounded region of a padded plane.  16-bit samples are
+         * scaled back to 12 bits, and stay big-endian.
+         */
+        private static void copy(byte[] source, Metadata meta, Interval bounds, byte[] dest) {
+            int x0 = (int) bounds.min(0);
+            int y0 = (int) bounds.min(1);
+            int w = (int) bounds.dimension(0);
+            int h = (int) bounds.dimension(1);
+            int bpp = meta.getBytesPerPixel();
+            int linesize = meta.getPaddedWidth() * bpp;
+            for (int y = 0; y < h; y++) {
+                int src = (y0 + y) * linesize + x0 * bpp;
+                int dst = y * w * bpp;
+                if (bpp == 1) {
+                    System.arraycopy(source, src, dest, dst, w);
+                } else {
+                    for (int x = 0; x < w; x++, src += 2, dst += 2) {
+                        int value = (((source[src] & 0xff) << 8) | (source[src + 1] & 0xff)) / 16;
+                        dest[dst] = (byte) (value >> 8);
+                        dest[dst + 1] = (byte) value;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close(boolean fileOnly) throws IOException {
+            try {
+                if (cursors != null) {
+                    for (ChannelCursor cursor : cursors) {
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                    }
+                    cursors = null;
+                }
+                if (loader != null) {
+                    loader.close();
+                    loader = null;
+                }
+            } catch (IOException ioe) {
+                throw ioe;
+            } catch (Exception ex) {
+                throw new IOException(ex);
+            } finally {
+                super.close(fileOnly);
+            }
+        }
+    }
+}
@@ -7,25 +7,88 @@
 
 package org.janelia.it.jacs.shared.ffmpeg;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
 
 /**
  * This acceptor will keep all bytes in memory.
+ *
+ * By default each page is kept as a byte array of its own, line padding
+ * and all.  Gathering DIRECT or MAPPED instead copies each page, without
+ * its line padding, onto the end of one contiguous buffer outside the heap
+ * (native memory, or a memory-mapped temporary file), whose getBuffer() and
+ * getPointer() views can be handed to OpenGL or a volume renderer as they
+ * are.  The buffer is sized from the stream's declared frame count, and
+ * grows if more pages arrive.
+ *
+ * This class was once kept at source version 1.6, for export in its own
+ * jar file.  It now relies on NativeResources and on FFMPGByteAcceptor's
+ * Java 8 default methods, so it needs the rest of this package and Java 8.
+ *
  * @author fosterl
  */
 public class ByteGatherAcceptor implements FFMPGByteAcceptor {
 
-    // NOTE: this code is required to remain at source version 1.6,
-    // for export in its own jar file.
+    /**
+     * Where accepted pages are kept.
+     */
+    public static enum Gathering {
+        /** One byte array per page, as accepted. */
+        PAGES,
+        /** One contiguous native buffer, unpadded. */
+        DIRECT,
+        /** One contiguous memory-mapped temporary file, unpadded; 2GB at most. */
+        MAPPED
+    }
+
+    private static final double GROWTH_FACTOR = 1.5;
+
     private List<byte[]> pages = new ArrayList<byte[]>();
     private long totalSize = 0;
     private int width;
     private int height;
     private int pixelBytes;
 
+    private final Gathering gathering;
+    private final File directory;
+    private int pageCount;
+    private int cropWidth;
+    private int cropHeight;
+    private long expectedBytes;
+    private long capacity;
+    private BytePointer gathered;
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+
     public ByteGatherAcceptor() {
+        this(Gathering.PAGES, null);
+    }
+
+    /**
+     * @param gathering how to keep the pages.
+     */
+    public ByteGatherAcceptor(Gathering gathering) {
+        this(gathering, null);
+    }
+
+    /**
+     * @param gathering how to keep the pages.
+     * @param directory where a MAPPED file is created; null for the
+     *                  default temporary directory.
+     */
+    public ByteGatherAcceptor(Gathering gathering, File directory) {
+        this.gathering = gathering;
+        this.directory = directory;
         setPixelBytes(3);
     }
     
@@ -42,12 +105,25 @@ public class ByteGatherAcceptor implements FFMPGByteAcceptor {
     public void accept(final BytePointer data, final int linesize, final int width, int height) {
         setWidth(width);
         setHeight(height);
+        if (isContiguous()) {
+            int rowBytes = getRowBytes(width, linesize);
+            int rows = getRows(height);
+            BytePointer target = reserve((long) rowBytes * rows);
+            BytePointer source = new BytePointer(data);
+            for (int y = 0; y < rows; y++) {
+                source.position((long) y * linesize);
+                Pointer.memcpy(target, source, rowBytes);
+                target.position(target.position() + rowBytes);
+            }
+            return;
+        }
         // Write pixel data
         byte[] page = new byte[linesize * height];
         pagewisePageCapture(width, height, linesize, data, page);
 
 //        byte[] bytes = data.getStringBytes();
         totalSize += page.length;
+        pageCount++;
         pages.add( page );
     }
 
@@ -64,8 +140,19 @@ public class ByteGatherAcceptor implements FFMPGByteAcceptor {
     public void accept(final byte[] page, final int linesize, final int width, int height) {
         setWidth(width);
         setHeight(height);
+        if (isContiguous()) {
+            int rowBytes = getRowBytes(width, linesize);
+            int rows = getRows(height);
+            BytePointer target = reserve((long) rowBytes * rows);
+            for (int y = 0; y < rows; y++) {
+                target.put(page, y * linesize, rowBytes);
+                target.position(target.position() + rowBytes);
+            }
+            return;
+        }
         // Write pixel data
         totalSize += page.length;
+        pageCount++;
         pages.add( page );
     }
 
@@ -82,8 +169,36 @@ public class ByteGatherAcceptor implements FFMPGByteAcceptor {
         this.pixelBytes = pixelBytes;
     }
 
+    /**
+     * Size the contiguous buffer to hold the whole stream, so that it need
+     * not grow.
+     */
+    @Override
+    public void setStreamInfo(int width, int height, int frames) {
+        if (frames > 0) {
+            expectedBytes = (long) frames * getRowBytes(width, width * pixelBytes) * getRows(height);
+        }
+    }
+
+    /**
+     * Keep only the top left width x height of each page gathered
+     * contiguously, eg. to drop the padding added to make an H5J channel
+     * encodable.  Call before the first page.
+     *
+     * @param width pixels to keep on each line; 0 for all.
+     * @param height lines to keep on each page; 0 for all.
+     */
+    public void setCrop(int width, int height) {
+        this.cropWidth = width;
+        this.cropHeight = height;
+    }
+
+    public Gathering getGathering() {
+        return gathering;
+    }
+
     public boolean isPopulated() {
-        return pages.size() > 0;
+        return pageCount > 0;
     }
     
     /**
@@ -94,17 +209,97 @@ public class ByteGatherAcceptor implements FFMPGByteAcceptor {
         if (! isPopulated()) {
             throw new IllegalStateException("Must first accept some bytes.");
         }
+        if (isContiguous()) {
+            throw new IllegalStateException("Pages were gathered contiguously; use getBuffer() or getPointer().");
+        }
         return pages;
     }
+
+    /**
+     * All pages gathered, one after another, unpadded.  The view is good
+     * until a page arrives that grows the buffer, or release().
+     *
+     * @return a direct buffer from 0 to getTotalSize().
+     */
+    public ByteBuffer getBuffer() {
+        checkGathered();
+        if (totalSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Gathered " + totalSize + " bytes, too many for one ByteBuffer; use getPointer().");
+        }
+        ByteBuffer buffer = gathering == Gathering.MAPPED
+                ? mapped.duplicate()
+                : new BytePointer(gathered).position(0).limit(totalSize).asByteBuffer();
+        buffer.limit((int) totalSize);
+        buffer.position(0);
+        return buffer.slice();
+    }
+
+    /**
+     * All pages gathered, as native memory.  The view is good until a page
+     * arrives that grows the buffer, or release().
+     *
+     * @return pointer positioned at 0, limited at getTotalSize().
+     */
+    public BytePointer getPointer() {
+        checkGathered();
+        return new BytePointer(gathered).position(0).limit(totalSize);
+    }
+
+    /**
+     * Free a contiguous buffer, deleting any file behind it; the pages and
+     * any views of them are unusable afterwards.
+     */
+    public void release() throws IOException {
+        if (gathered != null && gathering == Gathering.DIRECT) {
+            gathered.deallocate();
+        }
+        if (capacity > 0) {
+            NativeResources.freed(NativeResources.Kind.PLANE_STORAGE, capacity);
+        }
+        gathered = null;
+        mapped = null;
+        capacity = 0;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+        if (file != null) {
+            // A mapping is only dropped once collected.
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            file = null;
+        }
+        pages.clear();
+        pageCount = 0;
+        totalSize = 0;
+    }
     
     public int getNumPages() {
-        return getBytes().size();
+        if (! isPopulated()) {
+            throw new IllegalStateException("Must first accept some bytes.");
+        }
+        return pageCount;
     }
     
+    /**
+     * @return bytes gathered; without line padding when contiguous.
+     */
     public long getTotalSize() {
         return totalSize;
     }
 
+    /**
+     * @return bytes in each line gathered contiguously.
+     */
+    public int getRowBytes() {
+        return getRowBytes(width, width * pixelBytes);
+    }
+
     /**
      * @return the width
      */
@@ -148,6 +343,87 @@ public class ByteGatherAcceptor implements FFMPGByteAcceptor {
         return pixelBytes;
     }
 
+    private boolean isContiguous() {
+        return gathering != Gathering.PAGES;
+    }
+
+    private void checkGathered() {
+        if (! isContiguous()) {
+            throw new IllegalStateException("Pages were gathered separately; use getBytes().");
+        }
+        if (! isPopulated()) {
+            throw new IllegalStateException("Must first accept some bytes.");
+        }
+    }
+
+    private int getRowBytes(int width, int linesize) {
+        int kept = cropWidth > 0 ? Math.min(cropWidth, width) : width;
+        return Math.min(kept * pixelBytes, linesize);
+    }
+
+    private int getRows(int height) {
+        return cropHeight > 0 ? Math.min(cropHeight, height) : height;
+    }
+
+    /**
+     * Make room for one more page, and count it.
+     *
+     * @return where to write the page.
+     */
+    private BytePointer reserve(long pageBytes) {
+        long offset = totalSize;
+        ensureCapacity(offset + pageBytes);
+        totalSize += pageBytes;
+        pageCount++;
+        return new BytePointer(gathered).position(offset).limit(offset + pageBytes);
+    }
+
+    private void ensureCapacity(long required) {
+        if (required <= capacity) {
+            return;
+        }
+        // Native allocation needs the JavaCPP runtime, which is otherwise
+        // only brought in by the first decode.
+        FFMpegNatives.ensureLoaded();
+        long newCapacity = gathered == null
+                ? Math.max(required, expectedBytes)
+                : Math.max(required, (long) (capacity * GROWTH_FACTOR));
+        if (gathering == Gathering.MAPPED) {
+            newCapacity = Math.min(newCapacity, Integer.MAX_VALUE);
+            if (required > newCapacity) {
+                throw new IllegalStateException("Mapped gathering is limited to " + Integer.MAX_VALUE + " bytes; gather DIRECT instead.");
+            }
+            try {
+                if (channel == null) {
+                    file = File.createTempFile("h5j-gather", ".raw", directory);
+                    file.deleteOnExit();
+                    raf = new RandomAccessFile(file, "rw");
+                    channel = raf.getChannel();
+                }
+                // Earlier pages are already in the file: map it afresh, larger.
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+            } catch (IOException ioe) {
+                throw new RuntimeException("Failed to map gathering file " + file, ioe);
+            }
+            gathered = new BytePointer(mapped);
+        } else {
+            BytePointer newData = new BytePointer(newCapacity);
+            if (newData.isNull()) {
+                throw new OutOfMemoryError("Could not allocate " + newCapacity + " bytes to gather pages.");
+            }
+            if (gathered != null) {
+                Pointer.memcpy(newData, gathered, totalSize);
+                gathered.deallocate();
+            }
+            gathered = newData;
+        }
+        NativeResources.allocated(NativeResources.Kind.PLANE_STORAGE, newCapacity);
+        if (capacity > 0) {
+            NativeResources.freed(NativeResources.Kind.PLANE_STORAGE, capacity);
+        }
+        capacity = newCapacity;
+    }
+
     private void linewisePageCapture(final int width, int height, final int linesize, final BytePointer data, byte[] page) {
         byte[] bytes = new byte[width * pixelBytes];
         for (int y = 0; y < height; y++) {
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets a load be abandoned, from any thread, or once a deadline passes.  The
+ * loaders check it between packets and planes, and on cancellation free
+ * what they hold and throw CancellationException.
+ */
+public class CancellationToken {
+    private volatile boolean _cancelled = false;
+    private volatile boolean _has_deadline = false;
+    private volatile long _deadline_nanos = 0;
+
+    /**
+     * @param timeout how long from now the load may run.
+     * @param unit of the timeout.
+     * @return a token that cancels itself after the timeout.
+     */
+    public static CancellationToken withTimeout(long timeout, TimeUnit unit) {
+        CancellationToken token = new CancellationToken();
+        token.setDeadline(timeout, unit);
+        return token;
+    }
+
+    public void cancel() {
+        _cancelled = true;
+    }
+
+    /**
+     * @param timeout how long from now the load may run.
+     * @param unit of the timeout.
+     */
+    public void setDeadline(long timeout, TimeUnit unit) {
+        _deadline_nanos = System.nanoTime() + unit.toNanos(timeout);
+        _has_deadline = true;
+    }
+
+    /**
+     * @return whether cancel() was called, or the deadline has passed.
+     */
+    public boolean isCancelled() {
+        return _cancelled || deadlinePassed();
+    }
+
+    /**
+     * @throws CancellationException if cancelled or past the deadline.
+     */
+    public void check() {
+        if (_cancelled) {
+            throw new CancellationException("H5J load cancelled.");
+        }
+        if (deadlinePassed()) {
+            throw new CancellationException("H5J load deadline passed.");
+        }
+    }
+
+    private boolean deadlinePassed() {
+        return _has_deadline && System.nanoTime() - _deadline_nanos >= 0;
+    }
+}
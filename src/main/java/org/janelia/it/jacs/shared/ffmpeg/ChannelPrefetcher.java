@@ -0,0 +1,400 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads channels' compressed streams ahead of their decoding, on one
+ * background thread, so that the disk is busy while the CPU decodes rather
+ * than in turn with it.  At most a budget of bytes is held, read or being
+ * read: a channel is read only once there is room for it, or nothing else
+ * is held, and its bytes are let go once taken.  A channel that finds no
+ * room within BUDGET_WAIT_SECONDS is let go unread, so that what is queued
+ * behind it, and the reader thread, are never held up for good.
+ *
+ * Channels are read in the order H5JWriter wrote them, Channel_0 first.
+ * Each is one contiguous dataset, allocated as it was written, so that is
+ * their order on disk too; JHDF5 does not give dataset offsets directly.
+ *
+ * H5JLoader.prefetchChannels() queues a loader's channels, and prefetch(File)
+ * those of a file expected next, as in a batch.  H5JLoader.readChannel()
+ * takes what has been read, waits for what is being read, and reads for
+ * itself what has not been started, so a slow or stale prefetch never
+ * holds a load up.
+ */
+public class ChannelPrefetcher {
+    private static final long IDLE_SECONDS = 30;
+    private static final long BUDGET_WAIT_SECONDS = 60;
+    private static final Pattern CHANNEL_NUMBER = Pattern.compile("(\\d+)$");
+
+    private static ChannelPrefetcher shared = null;
+
+    private final long budget;
+    private final long budgetWaitMillis;
+    private final ThreadPoolExecutor reader;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private long held = 0;
+    private long bytesPrefetched = 0;
+
+    /**
+     * Where channels are read from: a loader, in practice.
+     */
+    interface Source {
+        long size(String channel) throws Exception;
+
+        byte[] read(String channel) throws Exception;
+    }
+
+    private static enum State { QUEUED, READING, DONE }
+
+    private static class Entry {
+        final String path;
+        final String channel;
+        Object owner;
+        State state = State.QUEUED;
+        long size = 0;
+        byte[] data = null;
+
+        Entry(String path, String channel, Object owner) {
+            this.path = path;
+            this.channel = channel;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * @return one prefetcher for the whole JVM, of the default profile's
+     *         budget, or the default budget if prefetch is off there.
+     */
+    public static synchronized ChannelPrefetcher shared() {
+        if (shared == null) {
+            long budget = LoadProfile.getDefault().getPrefetchBudget();
+            shared = new ChannelPrefetcher(budget > 0 ? budget : LoadProfile.DEFAULT_PREFETCH_BUDGET);
+        }
+        return shared;
+    }
+
+    /**
+     * @param budget most compressed bytes to hold at once.
+     */
+    public ChannelPrefetcher(long budget) {
+        this(budget, TimeUnit.SECONDS.toMillis(BUDGET_WAIT_SECONDS));
+    }
+
+    /**
+     * @param budget most compressed bytes to hold at once.
+     * @param budgetWaitMillis longest a channel waits for room before it is
+     *                         let go unread.
+     */
+    ChannelPrefetcher(long budget, long budgetWaitMillis) {
+        this.budget = Math.max(1, budget);
+        this.budgetWaitMillis = budgetWaitMillis;
+        this.reader = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), runnable -> {
+                    Thread thread = new Thread(runnable, "h5j-channel-prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.reader.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue every channel of an open file, through its loader, to be read
+     * in the background.  Channels already queued by prefetch(File) are
+     * taken over by the loader instead.
+     *
+     * @param loader reading the file; its close() lets go of whatever is
+     *               left.
+     */
+    public void prefetch(final H5JLoader loader) {
+        enqueue(loader.getFilename(), loader.channelNames(), loader, sourceOf(loader));
+    }
+
+    /**
+     * Queue every channel of a file not yet opened, eg. the next of a
+     * batch, to be read once the channels queued before it have been.  What
+     * is left unclaimed of a file queued earlier is let go.
+     *
+     * The file is opened once to list its channels, and again for each
+     * channel's read, so that it is never held open while a channel waits
+     * for room.
+     *
+     * @param file an H5J file.
+     */
+    public void prefetch(File file) {
+        final String path = file.getAbsolutePath();
+        dropUnclaimed(path);
+        reader.execute(() -> {
+            List<String> channels;
+            Map<String, Long> sizes = new HashMap<String, Long>();
+            try (H5JLoader loader = new H5JLoader(path)) {
+                loader.setPrefetcher(null);
+                channels = loader.channelNames();
+                for (String channel : channels) {
+                    sizes.put(channel, loader.getChannelBytes(channel));
+                }
+            } catch (Exception ex) {
+                // Left for the load itself to read, and report.
+                return;
+            }
+            enqueue(path, channels, null, sourceOf(path, sizes));
+        });
+    }
+
+    /**
+     * @param filename the file, as given to H5JLoader.
+     * @param channel its name.
+     * @return the channel's bytes, if read or being read here, after which
+     *         they are no longer held; null if they are not, or the read
+     *         failed, for the caller to read them itself.
+     */
+    public byte[] take(String filename, String channel) {
+        String key = key(new File(filename).getAbsolutePath(), channel);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            try {
+                while (entry.state == State.READING) {
+                    wait();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (entries.get(key) == entry) {
+                entries.remove(key);
+                held -= entry.size;
+                notifyAll();
+            }
+            return entry.data;
+        }
+    }
+
+    /**
+     * Let go of everything queued for or taken over by a loader, once any
+     * read of it under way has finished.
+     */
+    public synchronized void release(Object owner) {
+        try {
+            while (isReading(owner)) {
+                wait();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.owner == owner && entry.state != State.READING) {
+                held -= entry.size;
+                it.remove();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return compressed bytes held: read and not yet taken, or being read.
+     */
+    public synchronized long getHeldBytes() {
+        return held;
+    }
+
+    /**
+     * @return compressed bytes read here, ever.
+     */
+    public synchronized long getBytesPrefetched() {
+        return bytesPrefetched;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return channel names in the order they were written, which is by
+     *         their trailing number, not alphabetical.
+     */
+    static List<String> inWrittenOrder(List<String> channels) {
+        List<String> ordered = new ArrayList<String>(channels);
+        Collections.sort(ordered, Comparator.comparingLong(ChannelPrefetcher::channelNumber)
+                .thenComparing(Comparator.naturalOrder()));
+        return ordered;
+    }
+
+    void enqueue(String filename, List<String> channels, Object owner, final Source source) {
+        String path = new File(filename).getAbsolutePath();
+        for (final Entry entry : register(path, channels, owner)) {
+            reader.execute(() -> fetch(entry, source));
+        }
+    }
+
+    /**
+     * Add entries for the channels not already here; claim for the owner
+     * those that are, if unclaimed.
+     *
+     * @return the entries added, in written order.
+     */
+    private synchronized List<Entry> register(String path, List<String> channels, Object owner) {
+        List<Entry> added = new ArrayList<Entry>();
+        for (String channel : inWrittenOrder(channels)) {
+            String key = key(path, channel);
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(path, channel, owner);
+                entries.put(key, entry);
+                added.add(entry);
+            } else if (entry.owner == null) {
+                entry.owner = owner;
+            }
+        }
+        return added;
+    }
+
+    private void fetch(Entry entry, Source source) {
+        String key = key(entry.path, entry.channel);
+        synchronized (this) {
+            if (entries.get(key) != entry) {
+                return;
+            }
+        }
+        long size;
+        try {
+            size = source.size(entry.channel);
+        } catch (Exception ex) {
+            size = 0;
+        }
+        synchronized (this) {
+            try {
+                long deadline = System.currentTimeMillis() + budgetWaitMillis;
+                while (entries.get(key) == entry && held > 0 && held + size > budget) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        // Let go: its load reads it, if there is one.
+                        entries.remove(key, entry);
+                        return;
+                    }
+                    wait(left);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                entries.remove(key, entry);
+                return;
+            }
+            if (entries.get(key) != entry) {
+                // Taken, or let go, before it was started.
+                return;
+            }
+            entry.state = State.READING;
+            entry.size = size;
+            held += size;
+        }
+        byte[] data = null;
+        try {
+            data = source.read(entry.channel);
+        } catch (Exception ex) {
+            // The load reads it again, and reports what went wrong.
+        }
+        synchronized (this) {
+            held -= entry.size;
+            entry.state = State.DONE;
+            if (data == null) {
+                entries.remove(key, entry);
+                entry.size = 0;
+            } else {
+                entry.data = data;
+                entry.size = data.length;
+                held += entry.size;
+                bytesPrefetched += data.length;
+            }
+            notifyAll();
+        }
+    }
+
+    private synchronized void dropUnclaimed(String path) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.owner == null && !entry.path.equals(path) && entry.state != State.READING) {
+                held -= entry.size;
+                it.remove();
+            }
+        }
+        notifyAll();
+    }
+
+    private boolean isReading(Object owner) {
+        for (Entry entry : entries.values()) {
+            if (entry.owner == owner && entry.state == State.READING) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Source sourceOf(final H5JLoader loader) {
+        return new Source() {
+            @Override
+            public long size(String channel) {
+                return loader.getChannelBytes(channel);
+            }
+
+            @Override
+            public byte[] read(String channel) {
+                return loader.readChannelUncached(channel);
+            }
+        };
+    }
+
+    /**
+     * @param sizes each channel's bytes, as listed before queueing.
+     * @return a source opening the file afresh for each read.
+     */
+    private static Source sourceOf(final String path, final Map<String, Long> sizes) {
+        return new Source() {
+            @Override
+            public long size(String channel) {
+                Long size = sizes.get(channel);
+                return size == null ? 0 : size;
+            }
+
+            @Override
+            public byte[] read(String channel) throws Exception {
+                try (H5JLoader loader = new H5JLoader(path)) {
+                    loader.setPrefetcher(null);
+                    return loader.readChannelUncached(channel);
+                }
+            }
+        };
+    }
+
+    private static long channelNumber(String channel) {
+        Matcher matcher = CHANNEL_NUMBER.matcher(channel);
+        try {
+            return matcher.find() ? Long.parseLong(matcher.group(1)) : Long.MAX_VALUE;
+        } catch (NumberFormatException nfe) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static String key(String path, String channel) {
+        return path + File.pathSeparator + channel;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Keeps planes small on the heap.  Most planes of a neuron volume are
+ * background: a plane whose samples are all the same (all zero, most
+ * often) is kept as that one sample, and the rest are LZ4-compressed,
+ * and decompressed again on every read.  A plane LZ4 cannot shrink is
+ * kept as it is.
+ *
+ * Samples are taken to be one or two bytes; a constant 16-bit plane is
+ * found as a repeating pair of bytes.
+ */
+public class CompactPlaneStorage implements PlaneStorage {
+
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LZ4Compressor compressor = LZ4.fastCompressor();
+    private final LZ4FastDecompressor decompressor = LZ4.fastDecompressor();
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private int planeSize;
+    private long heldBytes;
+    private int blankPlanes;
+    private int constantPlanes;
+
+    @Override
+    public int store(byte[] plane) {
+        // Compress before taking the lock, so that channels decoded in
+        // parallel compress in parallel.
+        Entry entry = compact(plane);
+        lock.writeLock().lock();
+        try {
+            if (planeSize == 0) {
+                planeSize = plane.length;
+            } else if (plane.length != planeSize) {
+                throw new IllegalArgumentException("Plane of " + plane.length + " bytes differs from plane size " + planeSize);
+            }
+            entries.add(entry);
+            heldBytes += entry.bytes.length;
+            if (entry.kind == Entry.CONSTANT) {
+                constantPlanes++;
+                if (entry.bytes[0] == 0 && entry.bytes[entry.bytes.length - 1] == 0) {
+                    blankPlanes++;
+                }
+            }
+            return entries.size() - 1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void read(int slot, byte[] dest) {
+        Entry entry;
+        int size;
+        lock.readLock().lock();
+        try {
+            checkSlot(slot);
+            entry = entries.get(slot);
+            size = planeSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+        switch (entry.kind) {
+            case Entry.CONSTANT:
+                fill(entry.bytes, dest, size);
+                break;
+            case Entry.COMPRESSED:
+                decompressor.decompress(entry.bytes, 0, dest, 0, size);
+                break;
+            default:
+                System.arraycopy(entry.bytes, 0, dest, 0, size);
+        }
+    }
+
+    /**
+     * Planes are not held as they are read, so the view is of a fresh copy.
+     */
+    @Override
+    public ByteBuffer view(int slot) {
+        byte[] plane = new byte[planeSize];
+        read(slot, plane);
+        return ByteBuffer.wrap(plane).asReadOnlyBuffer();
+    }
+
+    /**
+     * @param slot as returned by store().
+     * @return the plane's single repeated sample, one or two bytes, if it
+     *         is constant; otherwise null.
+     */
+    public byte[] getConstant(int slot) {
+        lock.readLock().lock();
+        try {
+            checkSlot(slot);
+            Entry entry = entries.get(slot);
+            return entry.kind == Entry.CONSTANT ? entry.bytes.clone() : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getPlaneSize() {
+        return planeSize;
+    }
+
+    @Override
+    public int getPlaneCount() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes held for all planes, compressed.
+     */
+    @Override
+    public long getReservedBytes() {
+        return heldBytes;
+    }
+
+    /**
+     * @return planes stored with every sample zero.
+     */
+    public int getBlankPlaneCount() {
+        return blankPlanes;
+    }
+
+    /**
+     * @return planes stored with every sample the same, blank ones included.
+     */
+    public int getConstantPlaneCount() {
+        return constantPlanes;
+    }
+
+    @Override
+    public void release() {
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            heldBytes = 0;
+            blankPlanes = 0;
+            constantPlanes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Entry compact(byte[] plane) {
+        if (isConstant(plane)) {
+            return new Entry(Entry.CONSTANT, Arrays.copyOf(plane, Math.min(2, plane.length)));
+        }
+        int maxLength = compressor.maxCompressedLength(plane.length);
+        byte[] scratch = SCRATCH.get();
+        if (scratch == null || scratch.length < maxLength) {
+            scratch = new byte[maxLength];
+            SCRATCH.set(scratch);
+        }
+        int length = compressor.compress(plane, 0, plane.length, scratch, 0, maxLength);
+        if (length >= plane.length) {
+            return new Entry(Entry.RAW, plane.clone());
+        }
+        return new Entry(Entry.COMPRESSED, Arrays.copyOf(scratch, length));
+    }
+
+    /**
+     * @return true if the plane is one byte, or one pair of bytes, repeated.
+     */
+    private static boolean isConstant(byte[] plane) {
+        if (plane.length < 2) {
+            return true;
+        }
+        byte even = plane[0];
+        byte odd = plane[1];
+        for (int i = 2; i < plane.length; i += 2) {
+            if (plane[i] != even) {
+                return false;
+            }
+        }
+        for (int i = 3; i < plane.length; i += 2) {
+            if (plane[i] != odd) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void fill(byte[] constant, byte[] dest, int size) {
+        if (constant.length == 1 || constant[0] == constant[1]) {
+            Arrays.fill(dest, 0, size, constant[0]);
+            return;
+        }
+        for (int i = 0; i < size; i += 2) {
+            dest[i] = constant[0];
+        }
+        for (int i = 1; i < size; i += 2) {
+            dest[i] = constant[1];
+        }
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= entries.size()) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " not in [0," + entries.size() + ")");
+        }
+    }
+
+    private static class Entry {
+        static final int CONSTANT = 0;
+        static final int COMPRESSED = 1;
+        static final int RAW = 2;
+
+        private final int kind;
+        private final byte[] bytes;
+
+        Entry(int kind, byte[] bytes) {
+            this.kind = kind;
+            this.bytes = bytes;
+        }
+    }
+}
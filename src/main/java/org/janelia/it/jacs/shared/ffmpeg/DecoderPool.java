@@ -0,0 +1,253 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+import org.bytedeco.javacpp.PointerPointer;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+import static org.bytedeco.ffmpeg.global.swscale.*;
+
+/**
+ * Opened decoders, with their scalers and converted-picture frames, kept for
+ * reuse by later streams of the same codec, size, pixel format and codec
+ * headers.  Every channel of an H5J file, and usually every file of a batch,
+ * is such a stream, so only the first pays for codec and scaler set-up.
+ *
+ * A decoder is flushed (avcodec_flush_buffers) before it is handed out
+ * again.  At most maxIdle decoders are kept; any more are freed on release.
+ */
+public class DecoderPool {
+    public static final int DEFAULT_MAX_IDLE = 8;
+
+    private static final DecoderPool SHARED = new DecoderPool(LoadProfile.getDefault().getDecoderPoolSize());
+
+    private final int _max_idle;
+    private final Map<Key, Deque<Decoder>> _idle = new HashMap<Key, Deque<Decoder>>();
+    private int _idle_count = 0;
+    private long _created = 0;
+    private long _reused = 0;
+
+    /**
+     * @return a pool for the whole process, keeping as many decoders as the
+     *         default LoadProfile says.
+     */
+    public static DecoderPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param maxIdle most decoders to keep between uses.
+     */
+    public DecoderPool(int maxIdle) {
+        this._max_idle = maxIdle;
+    }
+
+    /**
+     * A decoder, and what converts its output, as lent to one loader.
+     */
+    static class Decoder {
+        private final Key _key;
+        AVCodecContext codec;
+        /** Made by the loader on first use; null until then. */
+        SwsContext scaler;
+        int scalerFormat = AV_PIX_FMT_NONE;
+        int scalerFlags = 0;
+        /** Made by the loader on first use; null until then. */
+        AVFrame pictureRgb;
+        /** Buffer bytes of pictureRgb, as counted in NativeResources. */
+        long pictureRgbBytes;
+        /** Made by FramePipeline workers, one each, and left for the next. */
+        final Deque<FramePipeline.Converter> converters = new ArrayDeque<FramePipeline.Converter>();
+
+        private Decoder(Key key, AVCodecContext codec) {
+            this._key = key;
+            this.codec = codec;
+        }
+
+        private void free() {
+            if (codec != null) {
+                avcodec_free_context(codec);
+                codec = null;
+                NativeResources.freed(NativeResources.Kind.CODEC_CONTEXT, 0);
+            }
+            freeConverters();
+            for (FramePipeline.Converter converter : converters) {
+                converter.free();
+            }
+            converters.clear();
+        }
+
+        /**
+         * Free the scaler and converted picture, eg. when made for another
+         * output format.
+         */
+        void freeConverters() {
+            if (scaler != null) {
+                sws_freeContext(scaler);
+                scaler = null;
+                scalerFormat = AV_PIX_FMT_NONE;
+                NativeResources.freed(NativeResources.Kind.SCALER, 0);
+            }
+            if (pictureRgb != null) {
+                av_frame_free(pictureRgb);
+                pictureRgb = null;
+                NativeResources.freed(NativeResources.Kind.FRAME, pictureRgbBytes);
+                pictureRgbBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * An opened decoder for the stream, from the pool if one fits.
+     *
+     * @param par the stream's parameters, with pixel format known.
+     * @param threads decoder thread count.
+     * @return decoder, to be given back through release().
+     */
+    Decoder acquire(AVCodecParameters par, int threads) throws Exception {
+        Key key = new Key(par, threads);
+        synchronized (this) {
+            Deque<Decoder> idle = _idle.get(key);
+            if (idle != null && !idle.isEmpty()) {
+                Decoder decoder = idle.pop();
+                _idle_count--;
+                _reused++;
+                avcodec_flush_buffers(decoder.codec);
+                return decoder;
+            }
+            _created++;
+        }
+
+        AVCodec codec = avcodec_find_decoder(par.codec_id());
+        if (codec == null) throw new Exception("Unexpected decorder: " + par.codec_id());
+        AVCodecContext context = avcodec_alloc_context3(codec);
+        NativeResources.allocated(NativeResources.Kind.CODEC_CONTEXT, 0);
+        if (avcodec_parameters_to_context(context, par) < 0) {
+            avcodec_free_context(context);
+            NativeResources.freed(NativeResources.Kind.CODEC_CONTEXT, 0);
+            throw new Exception("avcodec_parameters_to_context failed.");
+        }
+        context.thread_count(threads);
+        int ret;
+        if ((ret = avcodec_open2(context, codec, (PointerPointer) null)) < 0) {
+            avcodec_free_context(context);
+            NativeResources.freed(NativeResources.Kind.CODEC_CONTEXT, 0);
+            throw new Exception("avcodec_open2() error " + ret + ": Could not open video codec.");
+        }
+        return new Decoder(key, context);
+    }
+
+    /**
+     * Take a decoder back, to be lent again or freed.
+     */
+    void release(Decoder decoder) {
+        synchronized (this) {
+            if (_idle_count < _max_idle) {
+                Deque<Decoder> idle = _idle.get(decoder._key);
+                if (idle == null) {
+                    idle = new ArrayDeque<Decoder>();
+                    _idle.put(decoder._key, idle);
+                }
+                idle.push(decoder);
+                _idle_count++;
+                return;
+            }
+        }
+        decoder.free();
+    }
+
+    /**
+     * Free every idle decoder.
+     */
+    public void clear() {
+        synchronized (this) {
+            for (Iterator<Deque<Decoder>> iter = _idle.values().iterator(); iter.hasNext(); ) {
+                for (Decoder decoder : iter.next()) {
+                    decoder.free();
+                }
+                iter.remove();
+            }
+            _idle_count = 0;
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        return _idle_count;
+    }
+
+    /**
+     * @return decoders opened, because none fitted.
+     */
+    public synchronized long getCreatedCount() {
+        return _created;
+    }
+
+    /**
+     * @return decoders lent again.
+     */
+    public synchronized long getReusedCount() {
+        return _reused;
+    }
+
+    /**
+     * What a decoder must match to be reused: codec, size, pixel format,
+     * thread count and codec headers (HEVC parameter sets).
+     */
+    private static class Key {
+        private final int _codec_id;
+        private final int _width;
+        private final int _height;
+        private final int _format;
+        private final int _threads;
+        private final byte[] _extradata;
+
+        Key(AVCodecParameters par, int threads) {
+            this._codec_id = par.codec_id();
+            this._width = par.width();
+            this._height = par.height();
+            this._format = par.format();
+            this._threads = threads;
+            this._extradata = new byte[Math.max(0, par.extradata_size())];
+            if (_extradata.length > 0) {
+                par.extradata().get(_extradata);
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return _codec_id == key._codec_id && _width == key._width && _height == key._height
+                    && _format == key._format && _threads == key._threads
+                    && Arrays.equals(_extradata, key._extradata);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = _codec_id;
+            hash = 31 * hash + _width;
+            hash = 31 * hash + _height;
+            hash = 31 * hash + _format;
+            hash = 31 * hash + _threads;
+            return 31 * hash + Arrays.hashCode(_extradata);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.Pointer;
+
+/**
+ * Keeps all planes in one contiguous native buffer, outside the Java heap.
+ * The buffer is sized from the expected plane count and grows if more
+ * planes arrive; it is freed immediately on release().
+ */
+public class DirectPlaneStorage implements PlaneStorage {
+
+    static
+    {
+        // Native allocation needs the JavaCPP runtime, which is otherwise
+        // only brought in by the first decode.
+        Loader.load(avutil.class);
+    }
+
+    private static final double GROWTH_FACTOR = 1.5;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int expectedPlanes;
+    private BytePointer data;
+    private long capacity;
+    private int planeSize;
+    private int planeCount;
+
+    /**
+     * @param expectedPlanes how many planes to reserve room for up front.
+     */
+    public DirectPlaneStorage(int expectedPlanes) {
+        this.expectedPlanes = Math.max(1, expectedPlanes);
+    }
+
+    @Override
+    public int store(byte[] plane) {
+        lock.writeLock().lock();
+        try {
+            if (planeSize == 0) {
+                planeSize = plane.length;
+            } else if (plane.length != planeSize) {
+                throw new IllegalArgumentException("Plane of " + plane.length + " bytes differs from plane size " + planeSize);
+            }
+            long offset = (long) planeCount * planeSize;
+            ensureCapacity(offset + planeSize);
+            new BytePointer(data).position(offset).put(plane);
+            return planeCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void read(int slot, byte[] dest) {
+        lock.readLock().lock();
+        try {
+            checkSlot(slot);
+            new BytePointer(data).position((long) slot * planeSize).get(dest, 0, planeSize);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ByteBuffer view(int slot) {
+        lock.readLock().lock();
+        try {
+            checkSlot(slot);
+            long offset = (long) slot * planeSize;
+            return new BytePointer(data).position(offset).limit(offset + planeSize)
+                    .asByteBuffer().asReadOnlyBuffer();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getPlaneSize() {
+        return planeSize;
+    }
+
+    @Override
+    public int getPlaneCount() {
+        return planeCount;
+    }
+
+    @Override
+    public long getReservedBytes() {
+        return capacity;
+    }
+
+    @Override
+    public void release() {
+        lock.writeLock().lock();
+        try {
+            if (data != null) {
+                data.deallocate();
+                data = null;
+                NativeResources.freed(NativeResources.Kind.PLANE_STORAGE, capacity);
+            }
+            capacity = 0;
+            planeCount = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void ensureCapacity(long required) {
+        if (required <= capacity) {
+            return;
+        }
+        long newCapacity = data == null
+                ? Math.max(required, (long) expectedPlanes * planeSize)
+                : Math.max(required, (long) (capacity * GROWTH_FACTOR));
+        BytePointer newData = new BytePointer(newCapacity);
+        if (newData.isNull()) {
+            throw new OutOfMemoryError("Could not allocate " + newCapacity + " bytes of native plane storage.");
+        }
+        NativeResources.allocated(NativeResources.Kind.PLANE_STORAGE, newCapacity);
+        if (data != null) {
+            Pointer.memcpy(newData, data, (long) planeCount * planeSize);
+            data.deallocate();
+            NativeResources.freed(NativeResources.Kind.PLANE_STORAGE, capacity);
+        }
+        data = newData;
+        capacity = newCapacity;
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= planeCount) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " not in [0," + planeCount + ")");
+        }
+    }
+}
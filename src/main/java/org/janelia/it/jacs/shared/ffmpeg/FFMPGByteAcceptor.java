@@ -10,6 +10,14 @@ import org.bytedeco.javacpp.BytePointer;
 
 /**
  * Implement this to accept bytes coming out of FFMpegLoader
+ *
+ * setPixelBytes() and setStreamInfo() are called on the thread calling
+ * grab(), before any frame.  setFrameNum() and accept() are called a frame
+ * at a time, in frame order, but with convert threads (see
+ * FFMpegLoader.setConvertThreads) from whichever conversion thread finished
+ * the frame, not the grabbing one.  Calls never overlap, and each sees what
+ * the ones before it did, so an acceptor needs no locking of its own; it
+ * must not wait on the grabbing thread, nor expect to be on an event thread.
  * @author fosterl
  */
 public interface FFMPGByteAcceptor {
@@ -17,4 +25,14 @@ public interface FFMPGByteAcceptor {
     void accept(byte[] data, int linesize, int width, int height);
     void setFrameNum(int frameNum);
     void setPixelBytes(int pixelBytes);
+
+    /**
+     * Called once, before the first frame, when the stream is opened.
+     *
+     * @param width frame width, including padding.
+     * @param height frame height, including padding.
+     * @param frames frames the stream declares; 0 if unknown.
+     */
+    default void setStreamInfo(int width, int height, int frames) {
+    }
 }
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.Arrays;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avformat.Seek_Pointer_long_int;
+import org.bytedeco.ffmpeg.avformat.Write_packet_Pointer_BytePointer_int;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+
+import static org.bytedeco.ffmpeg.avformat.AVFormatContext.AVFMT_FLAG_CUSTOM_IO;
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+import static org.bytedeco.ffmpeg.global.swscale.*;
+
+/**
+ * Growable, seekable in-memory sink for the muxer.  The mp4 muxer seeks
+ * back to patch box sizes, so a plain stream will not do.
+ */
+class WriteOutput extends Write_packet_Pointer_BytePointer_int {
+    private byte[] _buffer = new byte[1 << 20];
+    private int _position = 0;
+    private int _length = 0;
+
+    @Override
+    public int call(Pointer opaque, BytePointer buffer, int buffer_size) {
+        if (_position + buffer_size > _buffer.length) {
+            _buffer = Arrays.copyOf(_buffer, Math.max(_position + buffer_size, _buffer.length + (_buffer.length >> 1)));
+        }
+        buffer.position(0).get(_buffer, _position, buffer_size);
+        _position += buffer_size;
+        _length = Math.max(_length, _position);
+        return buffer_size;
+    }
+
+    long seek(long offset, int whence) {
+        switch (whence & ~AVSEEK_FORCE) {
+            case AVSEEK_SIZE:
+                return _length;
+            case 0: // SEEK_SET
+                break;
+            case 1: // SEEK_CUR
+                offset += _position;
+                break;
+            case 2: // SEEK_END
+                offset += _length;
+                break;
+            default:
+                return -1;
+        }
+        if (offset < 0 || offset > Integer.MAX_VALUE) {
+            return -1;
+        }
+        _position = (int) offset;
+        return offset;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(_buffer, _length);
+    }
+};
+
+/**
+ * This will encode a stack of gray planes, as one channel of an H5J file, into
+ * an in-memory mp4 movie.  It is the inverse of FFMpegLoader: 8-bit planes go
+ * in as yuv444p, 16-bit planes as 12-bit yuv444p12le, with the samples scaled
+ * up by 16 so that the reader's scaling down by 16 gives them back.
+ *
+ * Planes are padded right and bottom up to a multiple of PAD_MULTIPLE, by
+ * repeating the last column and row; the caller records the padding.
+ */
+public class FFMpegEncoder
+{
+    public static final String DEFAULT_ENCODER = "libx265";
+    public static final String DEFAULT_PRESET = "medium";
+    public static final int DEFAULT_CRF = 15;
+    public static final int DEFAULT_FRAME_RATE = 25;
+    public static final int PAD_MULTIPLE = 8;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+    private static final int MAX_12BIT = 4095;
+
+    private final int _width;
+    private final int _height;
+    private final int _padded_width;
+    private final int _padded_height;
+    private final int _bytes_per_pixel;
+
+    private String _encoder_name = DEFAULT_ENCODER;
+    private String _preset = DEFAULT_PRESET;
+    private int _crf = DEFAULT_CRF;
+    private int _thread_count = 0;
+
+    private AVFormatContext _format_context;
+    private AVStream _video_stream;
+    private AVCodecContext _video_codec;
+    private AVFrame picture;
+    private AVPacket pkt;
+    private SwsContext img_convert_ctx;
+    private BytePointer _src_buffer;
+    private byte[] _plane;
+    private WriteOutput _output;
+    private Seek_Pointer_long_int _seeker;
+    private long _frame_num = 0;
+
+    /**
+     * @param width unpadded plane width.
+     * @param height unpadded plane height.
+     * @param bytesPerPixel 1 (byte[] planes) or 2 (short[] planes).
+     */
+    public FFMpegEncoder(int width, int height, int bytesPerPixel)
+    {
+        if (bytesPerPixel != 1 && bytesPerPixel != 2) {
+            throw new IllegalArgumentException("Unexpected value for bytes-per-pixel: " + bytesPerPixel + ", value of 1 or 2 acceptable.");
+        }
+        FFMpegNatives.ensureLoaded();
+        this._width = width;
+        this._height = height;
+        this._padded_width = padded(width);
+        this._padded_height = padded(height);
+        this._bytes_per_pixel = bytesPerPixel;
+    }
+
+    public static int padded(int size) {
+        return (size + PAD_MULTIPLE - 1) / PAD_MULTIPLE * PAD_MULTIPLE;
+    }
+
+    public int getPaddedWidth() {
+        return _padded_width;
+    }
+
+    public int getPaddedHeight() {
+        return _padded_height;
+    }
+
+    /**
+     * @param name FFmpeg encoder, libx265 by default.
+     */
+    public void setEncoderName(String name) {
+        this._encoder_name = name;
+    }
+
+    /**
+     * @param preset encoder speed/size trade-off, eg. "fast" or "slow".
+     */
+    public void setPreset(String preset) {
+        this._preset = preset;
+    }
+
+    /**
+     * @param crf constant rate factor; lower is better quality.
+     */
+    public void setCrf(int crf) {
+        this._crf = crf;
+    }
+
+    /**
+     * @param threads encoder threads; 0 lets the encoder decide.
+     */
+    public void setThreadCount(int threads) {
+        this._thread_count = threads;
+    }
+
+    public void start() throws Exception {
+        AVCodec codec = avcodec_find_encoder_by_name(_encoder_name);
+        if (codec == null) {
+            throw new Exception("avcodec_find_encoder_by_name() error: Encoder " + _encoder_name + " not found.");
+        }
+        int pix_fmt = _bytes_per_pixel == 1 ? AV_PIX_FMT_YUV444P : AV_PIX_FMT_YUV444P12LE;
+        int src_fmt = _bytes_per_pixel == 1 ? AV_PIX_FMT_GRAY8 : AV_PIX_FMT_GRAY16LE;
+
+        _format_context = new AVFormatContext(null);
+        int ret = avformat_alloc_output_context2(_format_context, null, "mp4", null);
+        if (ret < 0) {
+            throw new Exception("avformat_alloc_output_context2() error " + ret + ": Could not create mp4 muxer.");
+        }
+        _output = new WriteOutput();
+        _seeker = new Seek_Pointer_long_int() {
+            @Override
+            public long call(Pointer opaque, long offset, int whence) {
+                return _output.seek(offset, whence);
+            }
+        };
+        BytePointer io_buffer = new BytePointer(av_malloc(IO_BUFFER_SIZE));
+        _format_context.pb(avio_alloc_context(io_buffer, IO_BUFFER_SIZE, 1, null, null, _output, _seeker));
+        _format_context.flags(_format_context.flags() | AVFMT_FLAG_CUSTOM_IO);
+
+        _video_codec = avcodec_alloc_context3(codec);
+        _video_codec.width(_padded_width);
+        _video_codec.height(_padded_height);
+        _video_codec.pix_fmt(pix_fmt);
+        _video_codec.time_base(av_make_q(1, DEFAULT_FRAME_RATE));
+        _video_codec.framerate(av_make_q(DEFAULT_FRAME_RATE, 1));
+        _video_codec.thread_count(_thread_count);
+        if ((_format_context.oformat().flags() & AVFMT_GLOBALHEADER) != 0) {
+            _video_codec.flags(_video_codec.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);
+        }
+        AVDictionary options = new AVDictionary(null);
+        av_dict_set(options, "crf", String.valueOf(_crf), 0);
+        av_dict_set(options, "preset", _preset, 0);
+        av_dict_set(options, "x265-params", "log-level=error", 0);
+        synchronized (org.bytedeco.ffmpeg.global.avcodec.class) {
+            ret = avcodec_open2(_video_codec, codec, options);
+        }
+        av_dict_free(options);
+        if (ret < 0) {
+            throw new Exception("avcodec_open2() error " + ret + ": Could not open " + _encoder_name + ".");
+        }
+
+        _video_stream = avformat_new_stream(_format_context, null);
+        avcodec_parameters_from_context(_video_stream.codecpar(), _video_codec);
+        _video_stream.time_base(_video_codec.time_base());
+        // With an edit list for the B-frame delay, the demuxer discards the
+        // last plane on reading.
+        AVDictionary muxer_options = new AVDictionary(null);
+        av_dict_set(muxer_options, "use_editlist", "0", 0);
+        ret = avformat_write_header(_format_context, muxer_options);
+        av_dict_free(muxer_options);
+        if (ret < 0) {
+            throw new Exception("avformat_write_header() error " + ret + ": Could not write mp4 header.");
+        }
+
+        picture = av_frame_alloc();
+        picture.format(pix_fmt);
+        picture.width(_padded_width);
+        picture.height(_padded_height);
+        if ((ret = av_frame_get_buffer(picture, 32)) < 0) {
+            throw new Exception("av_frame_get_buffer() error " + ret + ": Could not allocate frame.");
+        }
+        pkt = av_packet_alloc();
+
+        img_convert_ctx = sws_getContext(_padded_width, _padded_height, src_fmt,
+                _padded_width, _padded_height, pix_fmt,
+                SWS_BICUBIC | SWS_ACCURATE_RND, null, null, (DoublePointer) null);
+        if (img_convert_ctx == null) {
+            throw new Exception("sws_getContext() error: Cannot initialize the conversion context.");
+        }
+        _plane = new byte[_padded_width * _padded_height * _bytes_per_pixel];
+        _src_buffer = new BytePointer(av_malloc(_plane.length));
+    }
+
+    /**
+     * Encode the next plane.
+     *
+     * @param pixels width x height samples, as byte[] for 8-bit, or short[]
+     *               for 16-bit, which must be 12-bit data.
+     * @throws IllegalArgumentException for a 16-bit sample above 4095,
+     *                                  which H5J cannot hold.
+     */
+    public void encode(Object pixels) throws Exception {
+        if (_bytes_per_pixel == 1) {
+            padPlane((byte[]) pixels);
+        } else {
+            padPlane((short[]) pixels);
+        }
+        _src_buffer.position(0).put(_plane, 0, _plane.length);
+
+        int ret = av_frame_make_writable(picture);
+        if (ret < 0) {
+            throw new Exception("av_frame_make_writable() error " + ret + ".");
+        }
+        PointerPointer<BytePointer> src = new PointerPointer<BytePointer>(1).put(0, _src_buffer);
+        IntPointer srcStride = new IntPointer(1).put(0, _padded_width * _bytes_per_pixel);
+        sws_scale(img_convert_ctx, src, srcStride, 0, _padded_height, picture.data(), picture.linesize());
+        src.deallocate();
+        srcStride.deallocate();
+
+        picture.pts(_frame_num++);
+        send(picture);
+    }
+
+    /**
+     * Flush the encoder and close off the movie.
+     *
+     * @return the whole mp4 file.
+     */
+    public byte[] finish() throws Exception {
+        send(null);
+        int ret = av_write_trailer(_format_context);
+        if (ret < 0) {
+            throw new Exception("av_write_trailer() error " + ret + ".");
+        }
+        return _output.toByteArray();
+    }
+
+    public void close() {
+        if (pkt != null) {
+            av_packet_free(pkt);
+            pkt = null;
+        }
+        if (picture != null) {
+            av_frame_free(picture);
+            picture = null;
+        }
+        if (_video_codec != null) {
+            avcodec_free_context(_video_codec);
+            _video_codec = null;
+        }
+        if (_format_context != null && !_format_context.isNull()) {
+            AVIOContext pb = _format_context.pb();
+            if (pb != null) {
+                av_free(pb.buffer());
+                avio_context_free(pb);
+            }
+            avformat_free_context(_format_context);
+            _format_context = null;
+        }
+        if (img_convert_ctx != null) {
+            sws_freeContext(img_convert_ctx);
+            img_convert_ctx = null;
+        }
+        if (_src_buffer != null) {
+            av_free(_src_buffer);
+            _src_buffer = null;
+        }
+        // JavaCPP has only a few native slots per callback class; give them
+        // back now, not whenever these are collected.
+        if (_output != null) {
+            _output.deallocate();
+            _output = null;
+        }
+        if (_seeker != null) {
+            _seeker.deallocate();
+            _seeker = null;
+        }
+        _plane = null;
+    }
+
+    private void send(AVFrame frame) throws Exception {
+        int ret = avcodec_send_frame(_video_codec, frame);
+        if (ret < 0) {
+            throw new Exception("avcodec_send_frame() error " + ret + ": Could not encode frame " + _frame_num + ".");
+        }
+        while ((ret = avcodec_receive_packet(_video_codec, pkt)) >= 0) {
+            av_packet_rescale_ts(pkt, _video_codec.time_base(), _video_stream.time_base());
+            pkt.stream_index(_video_stream.index());
+            ret = av_interleaved_write_frame(_format_context, pkt);
+            if (ret < 0) {
+                throw new Exception("av_interleaved_write_frame() error " + ret + ".");
+            }
+        }
+        if (ret != AVERROR_EAGAIN() && ret != AVERROR_EOF) {
+            throw new Exception("avcodec_receive_packet() error " + ret + ".");
+        }
+    }
+
+    private void padPlane(byte[] pixels) {
+        for (int y = 0; y < _padded_height; y++) {
+            int src = Math.min(y, _height - 1) * _width;
+            int dst = y * _padded_width;
+            System.arraycopy(pixels, src, _plane, dst, _width);
+            Arrays.fill(_plane, dst + _width, dst + _padded_width, pixels[src + _width - 1]);
+        }
+    }
+
+    private void padPlane(short[] pixels) {
+        for (int y = 0; y < _padded_height; y++) {
+            int src = Math.min(y, _height - 1) * _width;
+            int dst = y * _padded_width * 2;
+            for (int x = 0; x < _padded_width; x++, dst += 2) {
+                int value = pixels[src + Math.min(x, _width - 1)] & 0xffff;
+                if (value > MAX_12BIT) {
+                    throw new IllegalArgumentException("Sample " + value + " at x=" + Math.min(x, _width - 1)
+                            + ", y=" + Math.min(y, _height - 1) + " of plane " + _frame_num
+                            + " is over 12 bits; H5J keeps 16-bit data as 12-bit.");
+                }
+                value *= 16;
+                _plane[dst] = (byte) value;
+                _plane[dst + 1] = (byte) (value >> 8);
+            }
+        }
+    }
+}
@@ -6,14 +6,19 @@
  */
 package org.janelia.it.jacs.shared.ffmpeg;
 
+import java.util.Arrays;
+
 import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.DoublePointer;
 import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.javacpp.PointerPointer;
 import org.bytedeco.ffmpeg.avcodec.AVCodec;
 import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
 import org.bytedeco.ffmpeg.avcodec.AVPacket;
 import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVInputFormat;
 import org.bytedeco.ffmpeg.avformat.AVStream;
 import org.bytedeco.ffmpeg.avformat.Read_packet_Pointer_BytePointer_int;
 import org.bytedeco.ffmpeg.avformat.Seek_Pointer_long_int;
@@ -24,12 +29,9 @@ import org.bytedeco.ffmpeg.avutil.AVPixFmtDescriptor;
 import org.bytedeco.ffmpeg.avutil.AVRational;
 import org.bytedeco.ffmpeg.swscale.SwsContext;
 
-import ij.IJ;
-import ij.macro.Interpreter;
 
 import static org.bytedeco.ffmpeg.avformat.AVFormatContext.AVFMT_FLAG_CUSTOM_IO;
 import static org.bytedeco.ffmpeg.global.avcodec.*;
-import static org.bytedeco.ffmpeg.global.avdevice.avdevice_register_all;
 import static org.bytedeco.ffmpeg.global.avformat.*;
 import static org.bytedeco.ffmpeg.global.avutil.*;
 import static org.bytedeco.ffmpeg.global.swscale.*;
@@ -44,6 +46,13 @@ class ReadInput extends Read_packet_Pointer_BytePointer_int {
         _read_bytes = true;
     }
 
+    /**
+     * Give the whole buffer again on the next call, for a fresh open.
+     */
+    public void rewind() {
+        _read_bytes = true;
+    }
+
     @Override
     public int call(Pointer opaque, BytePointer buffer, int buffer_size) {
     	//System.out.println("read call "+opaque+" "+buffer+" "+buffer_size);
@@ -60,14 +69,17 @@ class ReadInput extends Read_packet_Pointer_BytePointer_int {
     }
 };
 
-public class FFMpegLoader
+public class FFMpegLoader implements AutoCloseable
 {
-    static
-    {
-        // Register all formats and codecs
-        avdevice_register_all();
-        avformat_network_init();
-    }
+    // Smallest probe FFmpeg allows; with the format given, only the
+    // stream's own header is read.
+    private static final int FAST_PROBE_SIZE = 32;
+
+    // FFmpeg's log level is process-wide: fast opens overlapping on any
+    // threads share one quiet spell, after which the level is put back.
+    private static final Object LOG_LEVEL_LOCK = new Object();
+    private static int _quiet_opens = 0;
+    private static int _saved_log_level = AV_LOG_INFO;
 
     public static enum ImageMode {
         COLOR, GRAY, RAW
@@ -94,69 +106,185 @@ public class FFMpegLoader
     private boolean _flush = false;
     
     private BytePointer _buffer = null;
+    private AVIOContext _avio = null;
+    private int _avio_buffer_size = 0;
+    private boolean _format_context_counted = false;
+    private long _picture_rgb_bytes = 0;
+    private ReadInput _read_input = null;
+    private Seek_Pointer_long_int _seeker = null;
     
     private int channel_num = 1;
     private int channel_count = 0;
 
+    private PlaneStorage.Mode _storage_mode = PlaneStorage.Mode.HEAP;
+    // While grab() moves each frame into off-heap storage, one heap plane
+    // can be reused for every frame.
+    private boolean _reuse_plane = false;
+    private byte[] _plane = null;
+
+    private int _thread_count = 0;
+    private LoadTimings _timings = null;
+    private long _frames_decoded = 0;
+    private long _frames_duplicated = 0;
+    private CancellationToken _cancellation = null;
+    private LoadProgress _progress = null;
+    private boolean _fast_open = false;
+    private StreamHint _stream_hint = null;
+    private DecoderPool _decoder_pool = null;
+    private DecoderPool.Decoder _pooled_decoder = null;
+    private int _scaler_format = AV_PIX_FMT_NONE;
+    private LoadProfile.Scaler _scaler = LoadProfile.getDefault().getScaler();
+    private int _convert_threads = LoadProfile.getDefault().getConvertThreads();
+    private int _delivered = 0;
+    private byte[] _last_plane = null;
+    // The stream, when given in memory, to count its frames if it does not
+    // declare them.
+    private byte[] _input_bytes = null;
+
     public FFMpegLoader(String filename)
     {
+        FFMpegNatives.ensureLoaded();
         this._filename = filename;
         _format_context = new AVFormatContext(null);
     }
 
     public FFMpegLoader(byte[] ibytes)
     {
+        FFMpegNatives.ensureLoaded();
         this._filename = "";
-        int BUFFER_SIZE=ibytes.length;
-        // allocate buffer
-        _buffer = new BytePointer(av_malloc(BUFFER_SIZE));
-        // create format context
-        _format_context = avformat_alloc_context();
+        this._input_bytes = ibytes;
         
-        Seek_Pointer_long_int seeker = new Seek_Pointer_long_int() {
+        _seeker = new Seek_Pointer_long_int() {
             @Override
             public long call(Pointer pointer, long offset, int whence) {
                 return ibytes.length;
             }
         };
         
-        _format_context.pb(avio_alloc_context(_buffer, BUFFER_SIZE, 0, null, new ReadInput(ibytes), null, seeker));
+        // The callbacks are held here, so that they are not collected while
+        // FFmpeg still calls them, and are freed in close().
+        _read_input = new ReadInput(ibytes);
+        NativeResources.allocated(NativeResources.Kind.CALLBACK, 0);
+        NativeResources.allocated(NativeResources.Kind.CALLBACK, 0);
+        createMemoryInput();
+    }
+
+    /**
+     * A format context reading the bytes given, through an I/O context of
+     * our own.
+     */
+    private void createMemoryInput() {
+        int BUFFER_SIZE=_input_bytes.length;
+        // allocate buffer
+        _buffer = new BytePointer(av_malloc(BUFFER_SIZE));
+        // create format context
+        _format_context = avformat_alloc_context();
+        _format_context_counted = true;
+        NativeResources.allocated(NativeResources.Kind.FORMAT_CONTEXT, 0);
+        // Also held here: a failed avformat_open_input() frees the format
+        // context, but never a caller's I/O context.
+        _avio = avio_alloc_context(_buffer, BUFFER_SIZE, 0, null, _read_input, null, _seeker);
+        _avio_buffer_size = BUFFER_SIZE;
+        NativeResources.allocated(NativeResources.Kind.AVIO_CONTEXT, BUFFER_SIZE);
+        _format_context.pb(_avio);
         _format_context.flags(_format_context.flags() | AVFMT_FLAG_CUSTOM_IO);
     }
 
+    private void freeMemoryInput() {
+        // FFmpeg may have replaced the buffer given; free the current one.
+        av_free(_avio.buffer());
+        avio_context_free(_avio);
+        _avio = null;
+        _buffer = null;
+        NativeResources.freed(NativeResources.Kind.AVIO_CONTEXT, _avio_buffer_size);
+    }
+
     public ImageStack getImage()
     {
         return _image;
     }
 
-    public void close() throws Exception {
+    /**
+     * Free everything native the loader holds, but not the decoded image;
+     * see release() for that.  Safe to call more than once, and after a
+     * failed start().
+     */
+    @Override
+    public void close() {
         if (pkt != null && pkt2 != null) {
             if (pkt2.size() > 0) {
             	av_packet_unref(pkt);
             }
             pkt = pkt2 = null;
         }
+        freePicture();
+
+        // Give a pooled decoder back, with what was made for it.
+        if (_pooled_decoder != null) {
+            _pooled_decoder.scaler = img_convert_ctx;
+            _pooled_decoder.scalerFormat = img_convert_ctx == null ? AV_PIX_FMT_NONE : _scaler_format;
+            _pooled_decoder.scalerFlags = scalerFlags();
+            _pooled_decoder.pictureRgb = picture_rgb;
+            _pooled_decoder.pictureRgbBytes = _picture_rgb_bytes;
+            _decoder_pool.release(_pooled_decoder);
+            _pooled_decoder = null;
+            _video_codec = null;
+            img_convert_ctx = null;
+            picture_rgb = null;
+        }
 
         // Close the video codec
         if (_video_codec != null) {
         	avcodec_free_context(_video_codec);
             _video_codec = null;
+            NativeResources.freed(NativeResources.Kind.CODEC_CONTEXT, 0);
         }
 
-        // Close the video file
-        if (_format_context != null && !_format_context.isNull()) {
-        	av_free(_format_context.pb().buffer());
-        	avio_context_free(_format_context.pb());
-        	avformat_free_context(_format_context);
+        // Close the video file.  If avformat_open_input() failed, FFmpeg
+        // has freed the format context already.
+        if (_format_context != null) {
+            if (!_format_context.isNull()) {
+                if (_avio == null) {
+                    avformat_close_input(_format_context);
+                } else {
+                    avformat_free_context(_format_context);
+                }
+            }
+            if (_format_context_counted) {
+                NativeResources.freed(NativeResources.Kind.FORMAT_CONTEXT, 0);
+                _format_context_counted = false;
+            }
             _format_context = null;
         }
+        if (_avio != null) {
+            freeMemoryInput();
+        }
+
+        // JavaCPP has only a few native slots per callback class; give them
+        // back now, not whenever these are collected.
+        if (_read_input != null) {
+            _read_input.deallocate();
+            _read_input = null;
+            NativeResources.freed(NativeResources.Kind.CALLBACK, 0);
+        }
+        if (_seeker != null) {
+            _seeker.deallocate();
+            _seeker = null;
+            NativeResources.freed(NativeResources.Kind.CALLBACK, 0);
+        }
 
         if (img_convert_ctx != null) {
             sws_freeContext(img_convert_ctx);
             img_convert_ctx = null;
+            NativeResources.freed(NativeResources.Kind.SCALER, 0);
         }
         
-        av_frame_free(picture_rgb);
+        if (picture_rgb != null) {
+            av_frame_free(picture_rgb);
+            picture_rgb = null;
+            NativeResources.freed(NativeResources.Kind.FRAME, _picture_rgb_bytes);
+        }
+        _picture_rgb_bytes = 0;
 
         got_frame = null;
         _frame_grabbed = false;
@@ -177,6 +305,27 @@ public class FFMpegLoader
 //        release();
     }
 
+    /**
+     * @return number of frames the stream declares, 0 if unknown; valid
+     *         after start().
+     */
+    public long getDeclaredFrameCount() {
+        return _video_stream == null ? 0 : _video_stream.nb_frames();
+    }
+
+    /**
+     * @return number of frames in the stream: as declared, or else, for a
+     *         stream in memory, as counted from its sample table or its
+     *         packets; 0 if it cannot be told.  Valid after start().
+     */
+    public long getFrameCount() throws Exception {
+        long frames = getDeclaredFrameCount();
+        if (frames <= 0 && _input_bytes != null) {
+            frames = StreamHeader.probe(_input_bytes).getFrames();
+        }
+        return Math.max(0, frames);
+    }
+
     public int getImageWidth() {
         return _image == null ? -1 : _image.width();
     }
@@ -200,6 +349,173 @@ public class FFMpegLoader
         this.channel_count = chcount;
     }
 
+    /**
+     * Where the decoded planes are kept; takes effect on the next start().
+     *
+     * @param mode HEAP (default), DIRECT, MAPPED or COMPACT
+     */
+    public void setStorageMode(PlaneStorage.Mode mode) {
+        this._storage_mode = mode;
+    }
+
+    /**
+     * Decoder threads; takes effect on the next start().
+     *
+     * @param threads 0 (default) for the default LoadProfile's codec
+     *                threads.
+     */
+    public void setThreadCount(int threads) {
+        this._thread_count = threads;
+    }
+
+    /**
+     * libswscale algorithm converting decoded frames; takes effect on the
+     * next start().
+     *
+     * @param scaler default from the default LoadProfile.
+     */
+    public void setScaler(LoadProfile.Scaler scaler) {
+        this._scaler = scaler;
+    }
+
+    /**
+     * Threads that convert and copy decoded frames during grab(), while
+     * this one goes on decoding; see FramePipeline.  An acceptor given to
+     * grab() is then called from those threads, one frame at a time.
+     *
+     * @param threads 0 to convert each frame on the decoding thread, as
+     *                grabFrame() does; default from the default LoadProfile.
+     */
+    public void setConvertThreads(int threads) {
+        this._convert_threads = threads;
+    }
+
+    /**
+     * @param timings where to record the time spent in each phase; null
+     *                (default) to record nothing.
+     */
+    public void setTimings(LoadTimings timings) {
+        this._timings = timings;
+    }
+
+    /**
+     * @return frames the decoder gave, over every grab.
+     */
+    public long getFramesDecoded() {
+        return _frames_decoded;
+    }
+
+    /**
+     * @return planes filled in by repeating the last decoded one, because
+     *         the decoder gave fewer frames than the stream declared.
+     */
+    public long getFramesDuplicated() {
+        return _frames_duplicated;
+    }
+
+    /**
+     * @param cancellation checked between packets; on cancel, start() and
+     *                     grab() throw CancellationException, after which
+     *                     close() and release() should be called as usual.
+     *                     Null (default) for loads that cannot be cancelled.
+     */
+    public void setCancellation(CancellationToken cancellation) {
+        this._cancellation = cancellation;
+    }
+
+    /**
+     * @param progress where to report the fraction of channels done; null
+     *                 (default) to report nothing.
+     */
+    public void setProgress(LoadProgress progress) {
+        this._progress = progress;
+    }
+
+    /**
+     * Fast open: no av_dump_format, FFmpeg logging silenced while start()
+     * runs (for the whole process, as FFmpeg has one log level) and, given
+     * a stream hint, no probing.
+     *
+     * @param fastOpen false (default) to open as FFmpeg would by itself.
+     */
+    public void setFastOpen(boolean fastOpen) {
+        this._fast_open = fastOpen;
+    }
+
+    /**
+     * In fast-open mode, open as an mp4 of this stream, skipping format
+     * probing and avformat_find_stream_info; a stream that turns out not to
+     * match is opened again, and probed as usual.
+     *
+     * @param hint from getStreamHint() of another channel of the same file;
+     *             null (default) to probe.
+     */
+    public void setStreamHint(StreamHint hint) {
+        this._stream_hint = hint;
+    }
+
+    /**
+     * @param pool where to borrow an opened decoder, scaler and converted
+     *             picture from, and give them back to on close(); null
+     *             (default) to make and free them here.
+     */
+    public void setDecoderPool(DecoderPool pool) {
+        this._decoder_pool = pool;
+    }
+
+    /**
+     * @return what was found about the stream; valid after start().
+     */
+    public StreamHint getStreamHint() {
+        if (_video_codec == null) {
+            return null;
+        }
+        return new StreamHint(_video_codec.codec_id(), _video_codec.width(), _video_codec.height(), _video_codec.pix_fmt());
+    }
+
+    private void checkCancelled() {
+        if (_cancellation != null) {
+            _cancellation.check();
+        }
+    }
+
+    private void reportProgress(long frames) {
+        if (_progress != null) {
+            _progress.set(_frame_num == Long.MAX_VALUE || _frame_num == 0
+                    ? (double) channel_count / channel_num
+                    : (double) (channel_count * _frame_num + frames) / (channel_num * _frame_num));
+        }
+    }
+
+    private long mark() {
+        return H5JMetrics.mark(_timings);
+    }
+
+    private void record(LoadTimings.Phase phase, long start) {
+        H5JMetrics.record(_timings, phase, start);
+    }
+
+    private void countDecoded() {
+        _frame_count++;
+        _frames_decoded++;
+        if (H5JMetrics.enabled()) {
+            H5JMetrics.get().addFramesDecoded(1);
+        }
+    }
+
+    private void countDropped(long frames) {
+        if (H5JMetrics.enabled()) {
+            H5JMetrics.get().addFramesDropped(frames);
+        }
+    }
+
+    private void countDuplicated() {
+        _frames_duplicated++;
+        if (H5JMetrics.enabled()) {
+            H5JMetrics.get().addFramesDuplicated(1);
+        }
+    }
+
     public int getPixelFormat()
     {
         int result = AV_PIX_FMT_NONE;
@@ -228,6 +544,23 @@ public class FFMpegLoader
         return result;
     }
 
+    private int scalerFlags()
+    {
+        switch (_scaler)
+        {
+            case FAST_BILINEAR:
+                return SWS_FAST_BILINEAR;
+            case BILINEAR:
+                return SWS_BILINEAR;
+            case POINT:
+                return SWS_POINT;
+            case AREA:
+                return SWS_AREA;
+            default:
+                return SWS_BICUBIC;
+        }
+    }
+
     public double getFrameRate() {
         if (_video_stream == null) {
             return 0;
@@ -294,6 +627,36 @@ public class FFMpegLoader
     }
 
     public void startUnsafe() throws Exception {
+        if (!_fast_open) {
+            openStream();
+            return;
+        }
+        quietLogging();
+        try {
+            openStream();
+        } finally {
+            restoreLogging();
+        }
+    }
+
+    private static void quietLogging() {
+        synchronized (LOG_LEVEL_LOCK) {
+            if (_quiet_opens++ == 0) {
+                _saved_log_level = av_log_get_level();
+                av_log_set_level(AV_LOG_QUIET);
+            }
+        }
+    }
+
+    private static void restoreLogging() {
+        synchronized (LOG_LEVEL_LOCK) {
+            if (--_quiet_opens == 0) {
+                av_log_set_level(_saved_log_level);
+            }
+        }
+    }
+
+    private void openStream() throws Exception {
         int ret;
         img_convert_ctx = null;
         _video_codec = null;
@@ -301,32 +664,53 @@ public class FFMpegLoader
         pkt2 = new AVPacket();
         got_frame = new int[1];
         _image = new ImageStack();
+        _image.setStorageMode(_storage_mode);
         _frame_grabbed = false;
         _time_stamp = 0;
         frameNumber = 0;
         
-        int thread = Runtime.getRuntime().availableProcessors();
+        int thread = _thread_count > 0 ? _thread_count : LoadProfile.getDefault().resolveCodecThreads();
 
         pkt2.size(0);
 
         // Open video file
         AVDictionary options = new AVDictionary(null);
+        AVInputFormat inputFormat = null;
+        boolean hinted = _fast_open && _stream_hint != null;
+        if (hinted) {
+            inputFormat = av_find_input_format(StreamHint.INPUT_FORMAT);
+            av_dict_set(options, "probesize", Integer.toString(FAST_PROBE_SIZE), 0);
+            av_dict_set(options, "analyzeduration", "0", 0);
+        }
 
-        if ((ret = avformat_open_input(_format_context, _filename, null, options)) < 0) {
-            av_dict_set(options, "pixel_format", null, 0);
-            if ((ret = avformat_open_input(_format_context, _filename, null, options)) < 0) {
-                throw new Exception("avformat_open_input() error " + ret + ": Could not open input \"" + _filename + "\". (Has setFormat() been called?)");
-            }
+        checkCancelled();
+        long start = mark();
+        openInput(inputFormat, options);
+        record(LoadTimings.Phase.OPEN_INPUT, start);
+
+        boolean hintApplied = hinted && applyStreamHint();
+        if (hinted && !hintApplied) {
+            // Not the stream hinted at: open it again without the short
+            // probe, so that it is probed as it would be without a hint.
+            start = mark();
+            reopenInput();
+            record(LoadTimings.Phase.OPEN_INPUT, start);
         }
-        av_dict_free(options);
 
-        // Retrieve stream information
-        if ((ret = avformat_find_stream_info(_format_context, (PointerPointer) null)) < 0) {
-            throw new Exception("avformat_find_stream_info() error " + ret + ": Could not find stream information.");
+        // Retrieve stream information, unless the hint already gives it.
+        if (!hintApplied) {
+            start = mark();
+            if ((ret = avformat_find_stream_info(_format_context, (PointerPointer) null)) < 0) {
+                throw new Exception("avformat_find_stream_info() error " + ret + ": Could not find stream information.");
+            }
+            record(LoadTimings.Phase.FIND_STREAM_INFO, start);
         }
+        checkCancelled();
 
-        // Dump information about file onto standard error
-        av_dump_format(_format_context, 0, _filename, 0);
+        if (!_fast_open) {
+            // Dump information about file onto standard error
+            av_dump_format(_format_context, 0, _filename, 0);
+        }
         //av_log_set_level(AV_LOG_TRACE);
 
         // Find the first video and audio stream
@@ -336,16 +720,23 @@ public class FFMpegLoader
             AVStream st = _format_context.streams(i);
             if (_video_stream == null && st.codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
                 _video_stream = st;
-                AVCodec decoder = avcodec_find_decoder(_video_stream.codecpar().codec_id());
-                if (decoder == null) throw new Exception("Unexpected decorder: " + _video_stream.codecpar().codec_id());
-                _video_codec = avcodec_alloc_context3(decoder);
-                if (avcodec_parameters_to_context(_video_codec, _video_stream.codecpar()) < 0)
-                	throw new Exception("avcodec_parameters_to_context failed.");
-                _video_codec.thread_count(thread);
+                if (_decoder_pool != null) {
+                    // Opened already, and possibly with its scaler made.
+                    _pooled_decoder = _decoder_pool.acquire(_video_stream.codecpar(), thread);
+                    _video_codec = _pooled_decoder.codec;
+                } else {
+                    AVCodec decoder = avcodec_find_decoder(_video_stream.codecpar().codec_id());
+                    if (decoder == null) throw new Exception("Unexpected decorder: " + _video_stream.codecpar().codec_id());
+                    _video_codec = avcodec_alloc_context3(decoder);
+                    NativeResources.allocated(NativeResources.Kind.CODEC_CONTEXT, 0);
+                    if (avcodec_parameters_to_context(_video_codec, _video_stream.codecpar()) < 0)
+                    	throw new Exception("avcodec_parameters_to_context failed.");
+                    _video_codec.thread_count(thread);
                 
-                // Open video codec
-                if ((ret = avcodec_open2(_video_codec, decoder, (PointerPointer) null)) < 0) {
-                    throw new Exception("avcodec_open2() error " + ret + ": Could not open video codec.");
+                    // Open video codec
+                    if ((ret = avcodec_open2(_video_codec, decoder, (PointerPointer) null)) < 0) {
+                        throw new Exception("avcodec_open2() error " + ret + ": Could not open video codec.");
+                    }
                 }
 
                 // Hack to correct wrong frame rates that seem to be generated by some codecs
@@ -358,6 +749,9 @@ public class FFMpegLoader
         if (_video_stream == null) {
             throw new Exception("Did not find a video stream inside \"" + _filename + "\".");
         }
+        _image.setExpectedPlanes((int) _video_stream.nb_frames());
+        _image.setWidth(_video_codec.width());
+        _image.setHeight(_video_codec.height());
 
         int pix_fmt = _video_codec.pix_fmt();
         
@@ -373,18 +767,94 @@ public class FFMpegLoader
         	_image.setBytesPerPixel(2);
         }
         
-        img_convert_ctx = sws_getContext(
-                _video_codec.width(), _video_codec.height(), _video_codec.pix_fmt(),
-                _video_codec.width(), _video_codec.height(), getPixelFormat(), SWS_BICUBIC,
-                null, null, (DoublePointer) null);
-        if (img_convert_ctx == null) {
-            throw new Exception("sws_getContext() error: Cannot initialize the conversion context.");
+        if (_pooled_decoder != null && _pooled_decoder.scaler != null
+                && _pooled_decoder.scalerFormat == getPixelFormat()
+                && _pooled_decoder.scalerFlags == scalerFlags()) {
+            img_convert_ctx = _pooled_decoder.scaler;
+            picture_rgb = _pooled_decoder.pictureRgb;
+            _picture_rgb_bytes = _pooled_decoder.pictureRgbBytes;
+            _pooled_decoder.scaler = null;
+            _pooled_decoder.pictureRgb = null;
+            _pooled_decoder.pictureRgbBytes = 0;
+        } else if (_pooled_decoder != null) {
+            _pooled_decoder.freeConverters();
         }
+        // Otherwise made on the first frame converted on this thread; with
+        // convert threads, grab() uses FramePipeline's instead.
+        _scaler_format = getPixelFormat();
+
+        // Ready for grabFrame() on its own, as well as for grab().
+        _frame_count = 0;
+        _frame_num = _video_stream.nb_frames() > 0 ? _video_stream.nb_frames() : Long.MAX_VALUE;
+        _flush = false;
         
-        if (!Interpreter.isBatchMode()) {
-        	IJ.showStatus("Loading H5J...");
-        	IJ.showProgress( (double)channel_count / channel_num );
+        reportProgress(0);
+    }
+
+    /**
+     * Open the input, without the pixel format if that fails.  Frees the
+     * options.
+     */
+    private void openInput(AVInputFormat inputFormat, AVDictionary options) throws Exception {
+        int ret;
+        try {
+            if ((ret = avformat_open_input(_format_context, _filename, inputFormat, options)) < 0) {
+                av_dict_set(options, "pixel_format", null, 0);
+                if ((ret = avformat_open_input(_format_context, _filename, inputFormat, options)) < 0) {
+                    throw new Exception("avformat_open_input() error " + ret + ": Could not open input \"" + _filename + "\". (Has setFormat() been called?)");
+                }
+            }
+        } finally {
+            av_dict_free(options);
+        }
+        if (!_format_context_counted) {
+            // Opened by name: avformat_open_input() made the context.
+            _format_context_counted = true;
+            NativeResources.allocated(NativeResources.Kind.FORMAT_CONTEXT, 0);
+        }
+    }
+
+    /**
+     * Close the input, and open it again from the start, with no format
+     * given and no options.
+     */
+    private void reopenInput() throws Exception {
+        avformat_close_input(_format_context);
+        NativeResources.freed(NativeResources.Kind.FORMAT_CONTEXT, 0);
+        _format_context_counted = false;
+        if (_avio != null) {
+            // That I/O context has read to the end; read from a new one.
+            freeMemoryInput();
+            _read_input.rewind();
+            createMemoryInput();
+        } else {
+            _format_context = new AVFormatContext(null);
+        }
+        openInput(null, new AVDictionary(null));
+    }
+
+    /**
+     * Fill in what the demuxer alone does not give (the pixel format) from
+     * the stream hint.
+     *
+     * @return false if the stream is not the one hinted, and so must be
+     *         probed.
+     */
+    private boolean applyStreamHint() {
+        for (int i = 0; i < _format_context.nb_streams(); i++) {
+            AVCodecParameters par = _format_context.streams(i).codecpar();
+            if (par.codec_type() != AVMEDIA_TYPE_VIDEO) {
+                continue;
+            }
+            if (!_stream_hint.matches(par.codec_id(), par.width(), par.height())) {
+                return false;
+            }
+            if (par.format() < 0) {
+                par.format(_stream_hint.getPixelFormat());
+            }
+            return par.format() == _stream_hint.getPixelFormat();
         }
+        return false;
     }
 
     public void stop() throws Exception {
@@ -394,10 +864,31 @@ public class FFMpegLoader
     private void allocateFrame(Frame f) throws Exception {
         // Allocate video frame and an AVFrame structure for the RGB image
     	
+        allocatePicture();
+        allocatePlane(f);
+    }
+
+    private void allocatePicture() throws Exception {
+        freePicture();
         if ((picture = av_frame_alloc()) == null) {
             throw new Exception("avcodec_alloc_frame() error: Could not allocate raw picture frame.");
         }
+        NativeResources.allocated(NativeResources.Kind.FRAME, 0);
+    }
+
+    /**
+     * Free the decoded picture, with the buffers it references; does
+     * nothing if there is none.
+     */
+    private void freePicture() {
+        if (picture != null) {
+            av_frame_free(picture);
+            picture = null;
+            NativeResources.freed(NativeResources.Kind.FRAME, 0);
+        }
+    }
 
+    private void allocatePlane(Frame f) {
         int width = getImageWidth() > 0 ? getImageWidth() : _video_codec.width();
         int height = getImageHeight() > 0 ? getImageHeight() : _video_codec.height();
 
@@ -409,22 +900,44 @@ public class FFMpegLoader
         // Assign to the frame so the memory can be deleted later
         //f.picture = picture;
         //f.picture_rgb = picture_rgb;
-        f.imageBytes.add( new byte[width * height * _image.getBytesPerPixel()] );
+        int planeSize = width * height * _image.getBytesPerPixel();
+        if (_reuse_plane && _image.getStorageMode() != PlaneStorage.Mode.HEAP) {
+            if (_plane == null || _plane.length != planeSize) {
+                _plane = new byte[planeSize];
+            }
+            f.imageBytes.add( _plane );
+        } else {
+            f.imageBytes.add( new byte[planeSize] );
+        }
     }
 
     private void extractBytes(Frame frameOutput, BytePointer imageBytesInput) {
-        int width = _video_codec.width();
-        int height = _video_codec.height();
         int linesize = _image.getBytesPerPixel() == 1 ? 
         					picture_rgb.linesize().get(0)/3 :
         					picture_rgb.linesize().get(0)/2;
-        int padding = linesize -_video_codec.width();
+        extractBytes(imageBytesInput, linesize, _video_codec.width(), _video_codec.height(),
+                _image.getBytesPerPixel(), frameOutput.imageBytes.get(0));
+    }
+
+    /**
+     * Copy one converted picture into an unpadded plane: the first of the
+     * three BGR24 bytes for 8-bit, or the GRAY16BE pair for 16-bit.
+     *
+     * @param imageBytesInput converted picture.
+     * @param linesize picture line length, in pixels.
+     * @param width plane width.
+     * @param height plane height.
+     * @param bytesPerPixel 1 or 2.
+     * @param outputBytes width * height * bytesPerPixel plane to fill.
+     */
+    static void extractBytes(BytePointer imageBytesInput, int linesize, int width, int height,
+                             int bytesPerPixel, byte[] outputBytes) {
+        int padding = linesize - width;
         if (padding < 0) {
             padding = 0;
         }
 
-        if (_image.getBytesPerPixel() == 1) {
-        	byte[] outputBytes = frameOutput.imageBytes.get(0);
+        if (bytesPerPixel == 1) {
         	byte[] inputBytes = new byte[linesize * height * 3];
         	imageBytesInput.get(inputBytes);
 
@@ -439,20 +952,19 @@ public class FFMpegLoader
         		inputOffset += padding;
         	}
         } else {
-        	byte[] outputBytes = frameOutput.imageBytes.get(0);
-        	byte[] inputBytes = new byte[linesize * height * _image.getBytesPerPixel()];
+        	byte[] inputBytes = new byte[linesize * height * bytesPerPixel];
         	imageBytesInput.get(inputBytes);
 
         	int inputOffset = 0;
         	int outputOffset = 0;
-        	int colnum = width*_image.getBytesPerPixel();
+        	int colnum = width*bytesPerPixel;
         	for (int rows = 0; rows < height; rows++) {
         		for (int cols = 0; cols < colnum; cols++) {
         			outputBytes[ outputOffset ] = inputBytes[inputOffset];
         			inputOffset ++;
         			outputOffset ++;
         		}
-        		inputOffset += padding*_image.getBytesPerPixel();
+        		inputOffset += padding*bytesPerPixel;
         	}
         }
     }
@@ -474,54 +986,214 @@ public class FFMpegLoader
     		picture_rgb.format(getPixelFormat());
     		picture_rgb.nb_samples(0);
     		av_frame_get_buffer(picture_rgb, 0);
+    		_picture_rgb_bytes = av_image_get_buffer_size(getPixelFormat(), getImageWidth(), getImageHeight(), 1);
+    		NativeResources.allocated(NativeResources.Kind.FRAME, _picture_rgb_bytes);
     	}
+        if (img_convert_ctx == null) {
+            img_convert_ctx = sws_getContext(
+                    _video_codec.width(), _video_codec.height(), _video_codec.pix_fmt(),
+                    _video_codec.width(), _video_codec.height(), getPixelFormat(), scalerFlags(),
+                    null, null, (DoublePointer) null);
+            if (img_convert_ctx == null) {
+                throw new Exception("sws_getContext() error: Cannot initialize the conversion context.");
+            }
+            NativeResources.allocated(NativeResources.Kind.SCALER, 0);
+        }
         
         // Convert the image from its native format to RGB or GRAY
+        long start = mark();
         sws_scale(img_convert_ctx, picture.data(), picture.linesize(), 0,
                 _video_codec.height(), picture_rgb.data(), picture_rgb.linesize());
+        record(LoadTimings.Phase.SWS_SCALE, start);
 
+        start = mark();
         extractBytes(frame, picture_rgb.data(0));
+        record(LoadTimings.Phase.EXTRACT_BYTES, start);
         
-        av_frame_free(picture);
-        //av_frame_free(picture_rgb);
+        freePicture();
     }
 
     public void grab() throws Exception {
-        Frame f;
-        boolean done = false;
+        grab(null);
+    }
+
+    /**
+     * Decode every frame, handing each to the acceptor as soon as it is
+     * decoded rather than keeping it in the ImageStack, so that consumers
+     * may stream a channel without holding it all in memory.  Frames are
+     * given as unpadded planes of width * bytes-per-pixel per line.
+     *
+     * @param acceptor receives each frame, from a conversion thread when
+     *                 there are convert threads; null to keep frames in
+     *                 getImage().
+     * @throws Exception if start() has not been called, or decoding fails.
+     */
+    public void grab(FFMPGByteAcceptor acceptor) throws Exception {
         _frame_count = 0;
         _frame_num = _video_stream.nb_frames() > 0 ? _video_stream.nb_frames() : Long.MAX_VALUE;
         _flush = false;
+        _delivered = 0;
+        _last_plane = null;
+        _reuse_plane = acceptor == null;
+        // Counted when not declared, so that acceptors can size for them
+        // and a dropped last frame is still made up.
+        long frames = getFrameCount();
+        if (acceptor != null) {
+            acceptor.setPixelBytes(_image.getBytesPerPixel());
+            acceptor.setStreamInfo(getImageWidth(), getImageHeight(), (int) frames);
+        }
 
-        while (!done) {
-            f = grabFrame();
-            if (f != null) {
-                // Uncomment to debug each frame as it is grabbed
-                // SaveFrame(f, i++);
-                _image.add(f);
+        try {
+            // A frame left from setTimestamp() is already converted.
+            if (_convert_threads > 0 && !_frame_grabbed) {
+                grabPipelined(acceptor);
             } else {
-                done = true;
+                grabSequential(acceptor);
             }
-            
-            if (!Interpreter.isBatchMode()) {
-            	IJ.showStatus("Loading H5J...");
-            	IJ.showProgress( (double)(channel_count*_frame_num + _frame_count) / (channel_num*_frame_num) );
+        } finally {
+            _reuse_plane = false;
+            _plane = null;
+        }
+        int delivered = _delivered;
+        byte[] lastPlane = _last_plane;
+        _last_plane = null;
+        if (frames > delivered) {
+            countDropped(frames - delivered);
+        }
+
+        if ( acceptor != null ) {
+            if ( lastPlane != null ) {
+                // Counted in the metrics, not reported frame by frame.
+                while (delivered < frames) {
+                    acceptor.setFrameNum(delivered++);
+                    acceptor.accept(lastPlane, getImageWidth() * _image.getBytesPerPixel(), getImageWidth(), getImageHeight());
+                    countDuplicated();
+                }
             }
+            return;
         }
         
-        if ( _video_stream.nb_frames() > 0 && _image.getNumFrames() < _video_stream.nb_frames()) {
+        if ( frames > 0 && _image.getNumFrames() > 0 && _image.getNumFrames() < frames) {
         	int count = _image.getNumFrames();
         	Frame lastframe = _image.frame(count-1);
-        	while (count < _video_stream.nb_frames()) {
+        	while (count < frames) {
         		System.err.println("The last frame was dropped. Duplicating the second frame before the last... (Channel "+channel_count+")");
-        		_image.add(lastframe);
+        		// A frame of its own: merge() appends the other channels to
+        		// each frame, and must not reach the same one twice.
+        		_image.add(lastframe.duplicate());
+        		countDuplicated();
         		count++;
         	}
         	_frame_count = count;
-        	if (!Interpreter.isBatchMode()) {
-            	IJ.showStatus("Loading H5J...");
-            	IJ.showProgress( (double)(channel_count*_frame_num + _frame_count) / (channel_num*_frame_num) );
+        	reportProgress(_frame_count);
+        }
+    }
+
+    private void grabSequential(FFMPGByteAcceptor acceptor) throws Exception {
+        Frame f;
+        while ((f = grabFrame()) != null) {
+            deliver(acceptor, f);
+            reportProgress(_frame_count);
+        }
+        reportProgress(_frame_count);
+    }
+
+    /**
+     * Decode on this thread, while FramePipeline's workers convert and copy
+     * the frames decoded before.
+     */
+    private void grabPipelined(final FFMPGByteAcceptor acceptor) throws Exception {
+        if (_format_context == null || _format_context.isNull()) {
+            throw new Exception("Could not grab: No AVFormatContext. (Has start() been called?)");
+        }
+        boolean recycle = acceptor == null && _image.getStorageMode() != PlaneStorage.Mode.HEAP;
+        try (FramePipeline pipeline = new FramePipeline(_convert_threads,
+                _video_codec.width(), _video_codec.height(), _video_codec.pix_fmt(), getPixelFormat(),
+                scalerFlags(), _image.getBytesPerPixel(), _timings, recycle,
+                _pooled_decoder == null ? null : _pooled_decoder.converters, (plane, keyFrame) -> {
+                    Frame f = new Frame();
+                    f.keyFrame = keyFrame;
+                    f.imageBytes.add(plane);
+                    deliver(acceptor, f);
+                })) {
+            while (true) {
+                AVFrame decoded = pipeline.acquire();
+                if (!decodeInto(decoded)) {
+                    pipeline.unused(decoded);
+                    break;
+                }
+                noteTimestamp(decoded);
+                countDecoded();
+                pipeline.submit(decoded, decoded.key_frame() != 0);
+                reportProgress(_frame_count);
             }
+            pipeline.finish();
+        }
+    }
+
+    /**
+     * Hand a frame to the acceptor, or else keep it in the stack.
+     */
+    private void deliver(FFMPGByteAcceptor acceptor, Frame f) {
+        if (acceptor != null) {
+            _last_plane = f.getComponent(0);
+            acceptor.setFrameNum(_delivered++);
+            acceptor.accept(_last_plane, getImageWidth() * _image.getBytesPerPixel(), getImageWidth(), getImageHeight());
+        } else {
+            // Uncomment to debug each frame as it is grabbed
+            // SaveFrame(f, i++);
+            _image.add(f);
+            _delivered++;
+        }
+    }
+
+    private void noteTimestamp(AVFrame decoded) {
+        long pts = decoded.best_effort_timestamp();
+        AVRational time_base = _video_stream.time_base();
+        _time_stamp = 1000000L * pts * time_base.num() / time_base.den();
+        // best guess, AVCodecContext.frame_number = number of decoded frames...
+        frameNumber = (int) (_time_stamp * getFrameRate() / 1000000L);
+    }
+
+    /**
+     * Decode the next frame into target, feeding packets as grabFrame()
+     * does.
+     *
+     * @return false once the stream is done, or decoding fails.
+     */
+    private boolean decodeInto(AVFrame target) throws Exception {
+        int ret;
+        if (_flush) {
+            checkCancelled();
+            long start = mark();
+            ret = avcodec_receive_frame(_video_codec, target);
+            record(LoadTimings.Phase.DECODE, start);
+            return ret >= 0;
+        }
+        while (true) {
+            checkCancelled();
+            if (_frame_count >= _frame_num || av_read_frame(_format_context, pkt) < 0) {
+                pkt.stream_index(_video_stream.index());
+                pkt.flags(AV_PKT_FLAG_KEY);
+                pkt.data(null);
+                pkt.size(0);
+                _flush = true;
+            }
+            if (pkt.stream_index() == _video_stream.index()) {
+                long start = mark();
+                if (avcodec_send_packet(_video_codec, pkt) < 0)
+                    throw new Exception("avcodec_send_packet failed");
+                ret = avcodec_receive_frame(_video_codec, target);
+                record(LoadTimings.Phase.DECODE, start);
+                if (ret >= 0) {
+                    av_packet_unref(pkt);
+                    return true;
+                } else if (ret != AVERROR_EAGAIN()) {
+                    av_packet_unref(pkt);
+                    return false;
+                }
+            }
+            av_packet_unref(pkt);
         }
     }
 
@@ -543,6 +1215,7 @@ public class FFMpegLoader
         boolean done = false;
         if (!_flush) {
         	 while (!done) {
+             	checkCancelled();
              	if (_frame_count >= _frame_num || av_read_frame(_format_context, pkt) < 0) {
                     if (_video_stream != null) {
                     	pkt.stream_index(_video_stream.index());
@@ -555,10 +1228,12 @@ public class FFMpegLoader
                  }
        	        //System.out.println("f:  "+_frame_count+"   pkt:  "+pkt.size());
              	if (pkt.stream_index() == _video_stream.index()) {
+             	    long start = mark();
              		if (avcodec_send_packet(_video_codec, pkt) < 0)
              			throw new Exception("avcodec_send_packet failed");
              	    allocateFrame(frame);
              	    ret = avcodec_receive_frame(_video_codec, picture);
+             	    record(LoadTimings.Phase.DECODE, start);
              	    if (ret >= 0) {
              	    	long pts = picture.best_effort_timestamp();
              	    	AVRational time_base = _video_stream.time_base();
@@ -569,22 +1244,27 @@ public class FFMpegLoader
              	    	//frame.image = picture_rgb;
              	    	//frame.opaque = picture;
              	    	processImage(frame);
-             	    	_frame_count++;
+             	    	countDecoded();
              	    	done = true;
              	    } else if (ret == AVERROR_EAGAIN()) {
-             	    	av_frame_free(picture);
-             	        //av_frame_free(picture_rgb);
+             	    	freePicture();
              	    	frame.release();
              	    }
-             	    else 
+             	    else {
+             	    	freePicture();
+             	    	av_packet_unref(pkt);
              	    	return null;
+             	    }
              	}
              	av_packet_unref(pkt);
             }
         } else {
         	//System.out.println("f:  "+_frame_count+"   flush");
+        	checkCancelled();
+        	long start = mark();
         	allocateFrame(frame);
      	    ret = avcodec_receive_frame(_video_codec, picture);
+     	    record(LoadTimings.Phase.DECODE, start);
      	    if (ret >= 0) {
      	    	long pts = picture.best_effort_timestamp();
      	    	AVRational time_base = _video_stream.time_base();
@@ -595,23 +1275,132 @@ public class FFMpegLoader
      	    	//frame.image = picture_rgb;
      	    	//frame.opaque = picture;
      	    	processImage(frame);
-     	    	_frame_count++;
+     	    	countDecoded();
      	    	done = true;
-     	    } else 
+     	    } else {
+     	    	freePicture();
      	    	return null;
+     	    }
         }
        
 
         return frame;
     }
 
+    /**
+     * Demux the whole stream, without decoding, to find where each plane and
+     * key frame lies.  Consumes the input: a fresh loader is needed to decode.
+     *
+     * @return index of the stream's packets.
+     * @throws Exception if start() has not been called.
+     */
+    public PacketIndex scanPackets() throws Exception {
+        if (_format_context == null || _format_context.isNull()) {
+            throw new Exception("Could not scan: No AVFormatContext. (Has start() been called?)");
+        }
+        int capacity = _video_stream.nb_frames() > 0 ? (int) _video_stream.nb_frames() : 64;
+        long[] pts = new long[capacity];
+        boolean[] key = new boolean[capacity];
+        int count = 0;
+        while (av_read_frame(_format_context, pkt) >= 0) {
+            if (pkt.stream_index() == _video_stream.index()) {
+                if (count == pts.length) {
+                    pts = Arrays.copyOf(pts, count * 2);
+                    key = Arrays.copyOf(key, count * 2);
+                }
+                pts[count] = pkt.pts() != AV_NOPTS_VALUE ? pkt.pts() : pkt.dts();
+                key[count] = (pkt.flags() & AV_PKT_FLAG_KEY) != 0;
+                count++;
+            }
+            av_packet_unref(pkt);
+        }
+        return new PacketIndex(Arrays.copyOf(pts, count), Arrays.copyOf(key, count), AV_NOPTS_VALUE);
+    }
+
+    /**
+     * Decode only the planes [fromPlane, toPlane), sending packets to the
+     * decoder from firstPacket onwards; earlier packets are demuxed and
+     * dropped.  Planes that could not be produced are left null, which
+     * happens when firstPacket is not a clean entry point for the range.
+     * Frames are placed by their timestamps, or, for an index without
+     * them, by the order the decoder gives them.
+     *
+     * @param index from scanPackets() on the same stream.
+     * @param firstPacket packet number to start decoding from, normally
+     *                    index.getStartPacket(fromPlane).
+     * @param fromPlane first plane wanted.
+     * @param toPlane one past the last plane wanted.
+     * @return the planes, in order.
+     * @throws Exception if start() has not been called, or decoding fails.
+     */
+    public Frame[] grabRange(PacketIndex index, int firstPacket, int fromPlane, int toPlane) throws Exception {
+        if (_format_context == null || _format_context.isNull()) {
+            throw new Exception("Could not grab: No AVFormatContext. (Has start() been called?)");
+        }
+        Frame[] frames = new Frame[toPlane - fromPlane];
+        int missing = frames.length;
+        int packetNum = 0;
+        int decoded = 0;
+        boolean eof = false;
+        while (missing > 0) {
+            if (!eof) {
+                if (av_read_frame(_format_context, pkt) < 0) {
+                    pkt.stream_index(_video_stream.index());
+                    pkt.data(null);
+                    pkt.size(0);
+                    eof = true;
+                    if (avcodec_send_packet(_video_codec, pkt) < 0)
+                        throw new Exception("avcodec_send_packet failed");
+                } else {
+                    if (pkt.stream_index() == _video_stream.index()) {
+                        if (packetNum >= firstPacket && avcodec_send_packet(_video_codec, pkt) < 0)
+                            throw new Exception("avcodec_send_packet failed");
+                        packetNum++;
+                    }
+                    av_packet_unref(pkt);
+                    if (packetNum <= firstPacket) {
+                        continue;
+                    }
+                }
+            }
+            int ret;
+            while (true) {
+                allocatePicture();
+                ret = avcodec_receive_frame(_video_codec, picture);
+                if (ret < 0) {
+                    freePicture();
+                    break;
+                }
+                int plane = index.isTimestamped() ? index.planeOf(picture.best_effort_timestamp()) : decoded;
+                decoded++;
+                if (plane >= fromPlane && plane < toPlane && frames[plane - fromPlane] == null) {
+                    Frame frame = new Frame();
+                    allocatePlane(frame);
+                    frame.keyFrame = picture.key_frame() != 0;
+                    processImage(frame);
+                    frames[plane - fromPlane] = frame;
+                    missing--;
+                } else {
+                    freePicture();
+                }
+            }
+            if (ret != AVERROR_EAGAIN()) {
+                // End of stream, or the decoder gave up.
+                break;
+            }
+        }
+        return frames;
+    }
+
     public void saveFrame(int iFrame, FFMPGByteAcceptor acceptor)
             throws Exception {
         int width = _image.width();
         int height = _image.height();
         byte[] data = _image.image(iFrame, 0);
 //                .interleave(iFrame, 0, 1);
-        int linesize = _image.linesize(iFrame);
+        int linesize = width * _image.getBytesPerPixel();
+        acceptor.setFrameNum(iFrame);
+        acceptor.setPixelBytes(_image.getBytesPerPixel());
         acceptor.accept(data, linesize, width, height);
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.ffmpeg.global.swscale;
+import org.bytedeco.javacpp.Loader;
+
+/**
+ * Loads the FFmpeg libraries H5J needs, once, on first use: avutil,
+ * avcodec, avformat and swscale (and what those link to), but not
+ * avdevice, avfilter or the network stack.  Since FFmpeg 4 nothing needs
+ * registering, so loading is all there is to initialization.
+ *
+ * Reading attributes or stream headers never loads FFmpeg; the first
+ * FFMpegLoader or FFMpegEncoder does.  prewarm() loads it in the
+ * background beforehand, eg. while a file chooser is open.
+ */
+public final class FFMpegNatives {
+    private static final Object LOCK = new Object();
+    private static volatile boolean loaded = false;
+    private static volatile long loadNanos = 0;
+    private static CompletableFuture<Void> prewarming = null;
+
+    private FFMpegNatives() {
+    }
+
+    /**
+     * Load the libraries, if not already loaded; waits for a load under way.
+     */
+    public static void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (LOCK) {
+            if (loaded) {
+                return;
+            }
+            long start = System.nanoTime();
+            Loader.load(avutil.class);
+            Loader.load(swscale.class);
+            Loader.load(avcodec.class);
+            Loader.load(avformat.class);
+            loadNanos = System.nanoTime() - start;
+            loaded = true;
+        }
+    }
+
+    /**
+     * Start loading the libraries on a background thread, so that the
+     * first decode does not wait for them.  Safe to call any number of
+     * times.
+     *
+     * @return completes once the libraries are loaded.
+     */
+    public static CompletableFuture<Void> prewarm() {
+        synchronized (LOCK) {
+            if (loaded) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (prewarming == null) {
+                prewarming = new CompletableFuture<Void>();
+                Thread thread = new Thread(() -> {
+                    try {
+                        ensureLoaded();
+                        prewarming.complete(null);
+                    } catch (Throwable t) {
+                        prewarming.completeExceptionally(t);
+                    }
+                }, "h5j-ffmpeg-prewarm");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            return prewarming;
+        }
+    }
+
+    /**
+     * @return whether the libraries have been loaded.
+     */
+    public static boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return how long loading took, in nanoseconds; 0 if not loaded yet.
+     */
+    public static long getLoadNanos() {
+        return loadNanos;
+    }
+}
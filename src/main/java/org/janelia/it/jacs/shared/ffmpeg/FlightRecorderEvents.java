@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flight Recorder events for loads and channels.  Built at run time through
+ * jdk.jfr.EventFactory, by reflection, since the plugin is still built for
+ * and run on Java 8 runtimes that have no jdk.jfr; there, and if anything
+ * about JFR cannot be set up, every method does nothing.
+ */
+class FlightRecorderEvents {
+    static final String CATEGORY = "H5J";
+
+    /** Whole file: file, channels, voxels, bytesRead. */
+    static final EventType LOAD = new EventType("org.janelia.h5j.Load", "H5J Load",
+            new Class<?>[] { String.class, int.class, long.class, long.class },
+            new String[] { "file", "channels", "voxels", "bytesRead" });
+
+    /** One channel: channel, framesDecoded, framesDuplicated, bytesRead. */
+    static final EventType CHANNEL = new EventType("org.janelia.h5j.Channel", "H5J Channel",
+            new Class<?>[] { String.class, long.class, long.class, long.class },
+            new String[] { "channel", "framesDecoded", "framesDuplicated", "bytesRead" });
+
+    static class EventType {
+        private Object _factory;
+        private Method _new_event;
+        private Method _begin;
+        private Method _end;
+        private Method _should_commit;
+        private Method _set;
+        private Method _commit;
+
+        EventType(String name, String label, Class<?>[] types, String[] fields) {
+            try {
+                ClassLoader loader = ClassLoader.getSystemClassLoader();
+                Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement", true, loader);
+                Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor", true, loader);
+                Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory", true, loader);
+                Class<?> event = Class.forName("jdk.jfr.Event", true, loader);
+                Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+
+                List<Object> annotations = new ArrayList<Object>();
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name", true, loader), name));
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label", true, loader), label));
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category", true, loader), new String[] { CATEGORY }));
+                List<Object> descriptors = new ArrayList<Object>();
+                Constructor<?> descriptor = valueDescriptor.getConstructor(Class.class, String.class);
+                for (int i = 0; i < fields.length; i++) {
+                    descriptors.add(descriptor.newInstance(types[i], fields[i]));
+                }
+                _factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, descriptors);
+                _new_event = eventFactory.getMethod("newEvent");
+                _begin = event.getMethod("begin");
+                _end = event.getMethod("end");
+                _should_commit = event.getMethod("shouldCommit");
+                _set = event.getMethod("set", int.class, Object.class);
+                _commit = event.getMethod("commit");
+            } catch (Throwable t) {
+                // No JFR here.
+                _factory = null;
+            }
+        }
+
+        /**
+         * @return a started event, or null if there is no JFR.
+         */
+        Object begin() {
+            if (_factory == null) {
+                return null;
+            }
+            try {
+                Object event = _new_event.invoke(_factory);
+                _begin.invoke(event);
+                return event;
+            } catch (Throwable t) {
+                return null;
+            }
+        }
+
+        /**
+         * @param event as returned by begin(); may be null.
+         * @param values one per field, in order.
+         */
+        void commit(Object event, Object... values) {
+            if (event == null) {
+                return;
+            }
+            try {
+                _end.invoke(event);
+                if ((Boolean) _should_commit.invoke(event)) {
+                    for (int i = 0; i < values.length; i++) {
+                        _set.invoke(event, i, values[i]);
+                    }
+                    _commit.invoke(event);
+                }
+            } catch (Throwable t) {
+                // Losing an event is no reason to fail a load.
+            }
+        }
+    }
+}
@@ -20,6 +20,97 @@ public class Frame {
     //public Object opaque;
     public AVFrame picture = null, picture_rgb = null;
     public ArrayList<byte[]> imageBytes = new ArrayList<byte[]>();
+    // Components moved into a PlaneStorage leave a null in imageBytes, and
+    // are found here at the same index instead.
+    private ArrayList<StoredPlane> storedPlanes;
+
+    /**
+     * @return number of components (channels) in this frame.
+     */
+    public int getNumComponents() {
+        return imageBytes.size();
+    }
+
+    /**
+     * Return the bytes of one component, wherever they are stored.  For a
+     * component held in a PlaneStorage, this is a fresh copy.
+     *
+     * @param component component index
+     * @return the bytes representing the component's plane
+     */
+    public byte[] getComponent(int component) {
+        byte[] bytes = imageBytes.get(component);
+        if (bytes == null) {
+            StoredPlane plane = storedPlanes.get(component);
+            bytes = new byte[plane.storage.getPlaneSize()];
+            plane.storage.read(plane.slot, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * @param component component index
+     * @return true if the component is held in a PlaneStorage.
+     */
+    public boolean isStored(int component) {
+        return imageBytes.get(component) == null;
+    }
+
+    /**
+     * Move a heap component into the given storage.
+     */
+    void store(int component, PlaneStorage storage) {
+        byte[] bytes = imageBytes.get(component);
+        if (bytes == null) {
+            return;
+        }
+        setStored(component, storage, storage.store(bytes));
+    }
+
+    /**
+     * Append a component that is already held in some storage.
+     */
+    void addStored(PlaneStorage storage, int slot) {
+        imageBytes.add(null);
+        setStored(imageBytes.size() - 1, storage, slot);
+    }
+
+    PlaneStorage getStorage(int component) {
+        return storedPlanes.get(component).storage;
+    }
+
+    int getSlot(int component) {
+        return storedPlanes.get(component).slot;
+    }
+
+    /**
+     * A second frame with the same planes, eg. to stand in for a frame the
+     * decoder dropped.  Planes are shared, not copied; a stack releases
+     * its storages once, however many frames refer to them.
+     */
+    Frame duplicate() {
+        Frame copy = new Frame();
+        copy.keyFrame = keyFrame;
+        for (int c = 0; c < getNumComponents(); c++) {
+            if (isStored(c)) {
+                copy.addStored(getStorage(c), getSlot(c));
+            } else {
+                copy.imageBytes.add(imageBytes.get(c));
+            }
+        }
+        return copy;
+    }
+
+    private void setStored(int component, PlaneStorage storage, int slot) {
+        if (storedPlanes == null) {
+            storedPlanes = new ArrayList<StoredPlane>();
+        }
+        while (storedPlanes.size() <= component) {
+            storedPlanes.add(null);
+        }
+        storedPlanes.set(component, new StoredPlane(storage, slot));
+        imageBytes.set(component, null);
+    }
 
     public void release() throws Exception {
         // Free the RGB image
@@ -37,6 +128,19 @@ public class Frame {
         //image = null;
         //opaque = null;
         imageBytes.clear();
+        if (storedPlanes != null) {
+            storedPlanes.clear();
+        }
+    }
+
+    private static class StoredPlane {
+        private final PlaneStorage storage;
+        private final int slot;
+
+        StoredPlane(PlaneStorage storage, int slot) {
+            this.storage = storage;
+            this.slot = slot;
+        }
     }
 
 }
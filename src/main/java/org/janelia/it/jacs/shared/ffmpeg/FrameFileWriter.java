@@ -0,0 +1,316 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bytedeco.javacpp.BytePointer;
+
+/**
+ * Writes each frame handed to it to a file of its own, as PGM, PPM, raw
+ * samples or TIFF.  A frame is unpadded and encoded, header and all, into
+ * one buffer on the decoding thread, and that buffer written by one
+ * FileChannel write on a small pool of writer threads.  The pool's queue
+ * is bounded: once it is full the decoding thread writes for itself, so
+ * memory stays bounded and the export runs at the speed of the disk.
+ *
+ * Frames are one sample per pixel unless setComponents() says otherwise;
+ * 16-bit samples are written big-endian, as they come from the decoder.
+ * Call close() to wait for the last writes and learn of any failure.
+ */
+public class FrameFileWriter implements FFMPGByteAcceptor, AutoCloseable {
+
+    /**
+     * What files are written.
+     */
+    public static enum Format {
+        /** Binary portable graymap; one sample per pixel. */
+        PGM("pgm"),
+        /** Binary portable pixmap; gray frames are written as gray RGB. */
+        PPM("ppm"),
+        /** The samples alone, unpadded, with no header. */
+        RAW("raw"),
+        /** Baseline uncompressed big-endian TIFF, one strip. */
+        TIFF("tif");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private static final long CLOSE_TIMEOUT_MINUTES = 60;
+    private static final int TIFF_IFD_OFFSET = 8;
+    private static final int TIFF_ENTRY_SIZE = 12;
+
+    private final Format format;
+    private final File directory;
+    private final String namePattern;
+    private final ThreadPoolExecutor writers;
+    private final ConcurrentLinkedQueue<byte[]> spareBuffers = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger framesWritten = new AtomicInteger();
+    private volatile IOException failure;
+    private int frameNum;
+    private int sampleBytes = 1;
+    private int components = 1;
+    private int channel;
+
+    /**
+     * Write to the working directory, as image00000.ppm and so on.
+     */
+    public FrameFileWriter(Format format) {
+        this(format, new File("."), "image%05d." + format.getExtension(), 1);
+    }
+
+    /**
+     * @param format of the files.
+     * @param directory where to write them; made if missing.
+     * @param namePattern String.format() pattern for each file's name,
+     *                    given the frame number and the channel, eg.
+     *                    "c%2$d_z%1$04d.tif".
+     * @param threads writer threads; 1 keeps files in frame order on disk.
+     */
+    public FrameFileWriter(Format format, File directory, String namePattern, int threads) {
+        this.format = format;
+        this.directory = directory;
+        this.namePattern = namePattern;
+        int writerThreads = Math.max(1, threads);
+        this.writers = new ThreadPoolExecutor(writerThreads, writerThreads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(writerThreads * 2), runnable -> {
+                    Thread thread = new Thread(runnable, "h5j-frame-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * @param components samples per pixel: 1 (default) for a decoded
+     *                   plane, 3 for frames interleaved by
+     *                   ImageStack.interleave().
+     */
+    public void setComponents(int components) {
+        this.components = components;
+    }
+
+    /**
+     * @param channel substituted for %2$d in the name pattern.
+     */
+    public void setChannel(int channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void setFrameNum(int frameNum) {
+        this.frameNum = frameNum;
+    }
+
+    /**
+     * @param pixelBytes bytes per sample: 1, or 2 for 16-bit data.
+     */
+    @Override
+    public void setPixelBytes(int pixelBytes) {
+        this.sampleBytes = pixelBytes;
+    }
+
+    @Override
+    public void accept(BytePointer data, int linesize, int width, int height) {
+        byte[] plane = new byte[linesize * height];
+        data.get(plane);
+        accept(plane, linesize, width, height);
+    }
+
+    @Override
+    public void accept(byte[] data, int linesize, int width, int height) {
+        if (failure != null) {
+            return;
+        }
+        final File file = new File(directory, String.format(namePattern, frameNum, channel));
+        final byte[] buffer = encode(data, linesize, width, height);
+        final int length = fileLength(width, height);
+        writers.execute(() -> {
+            try {
+                write(file, buffer, length);
+                framesWritten.incrementAndGet();
+            } catch (IOException ioe) {
+                failure = ioe;
+            } finally {
+                spareBuffers.offer(buffer);
+            }
+        });
+    }
+
+    /**
+     * @return frames written so far.
+     */
+    public int getFramesWritten() {
+        return framesWritten.get();
+    }
+
+    /**
+     * Wait for every frame accepted to be written.
+     *
+     * @throws IOException the first write that failed.
+     */
+    @Override
+    public void close() throws IOException {
+        writers.shutdown();
+        try {
+            if (!writers.awaitTermination(CLOSE_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                throw new IOException("Frames still being written after " + CLOSE_TIMEOUT_MINUTES + " minutes.");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for frames to be written.", ie);
+        } finally {
+            spareBuffers.clear();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void write(File file, byte[] buffer, int length) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Could not create " + parent);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * The whole file, in a buffer recycled from an earlier frame where one
+     * is free.
+     */
+    private byte[] encode(byte[] data, int linesize, int width, int height) {
+        int length = fileLength(width, height);
+        byte[] buffer = spareBuffers.poll();
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[length];
+        }
+        byte[] header = header(width, height);
+        System.arraycopy(header, 0, buffer, 0, header.length);
+        int rowBytes = width * components * sampleBytes;
+        int dest = header.length;
+        if (format == Format.PPM && components == 1) {
+            // Gray to gray RGB: each sample three times.
+            for (int y = 0; y < height; y++) {
+                int src = y * linesize;
+                for (int x = 0; x < width; x++) {
+                    for (int k = 0; k < 3; k++) {
+                        System.arraycopy(data, src, buffer, dest, sampleBytes);
+                        dest += sampleBytes;
+                    }
+                    src += sampleBytes;
+                }
+            }
+        } else {
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(data, y * linesize, buffer, dest, rowBytes);
+                dest += rowBytes;
+            }
+        }
+        return buffer;
+    }
+
+    private int fileLength(int width, int height) {
+        int samples = format == Format.PPM ? 3 : components;
+        return headerLength(width, height) + width * height * samples * sampleBytes;
+    }
+
+    private int headerLength(int width, int height) {
+        return format == Format.TIFF ? tiffHeaderLength() : header(width, height).length;
+    }
+
+    private byte[] header(int width, int height) {
+        int maxValue = sampleBytes == 1 ? 255 : 65535;
+        switch (format) {
+            case PGM:
+                return ("P5\n" + width + " " + height + "\n" + maxValue + "\n").getBytes(StandardCharsets.US_ASCII);
+            case PPM:
+                return ("P6\n" + width + " " + height + "\n" + maxValue + "\n").getBytes(StandardCharsets.US_ASCII);
+            case TIFF:
+                return tiffHeader(width, height);
+            default:
+                return new byte[0];
+        }
+    }
+
+    private int tiffEntries() {
+        return components == 1 ? 9 : 10;
+    }
+
+    /**
+     * Header, one IFD, and the BitsPerSample array for RGB; pixels follow.
+     */
+    private int tiffHeaderLength() {
+        int length = TIFF_IFD_OFFSET + 2 + tiffEntries() * TIFF_ENTRY_SIZE + 4;
+        return components == 1 ? length : length + 2 * components;
+    }
+
+    private byte[] tiffHeader(int width, int height) {
+        int length = tiffHeaderLength();
+        int ifdEnd = TIFF_IFD_OFFSET + 2 + tiffEntries() * TIFF_ENTRY_SIZE + 4;
+        ByteBuffer header = ByteBuffer.allocate(length).order(ByteOrder.BIG_ENDIAN);
+        header.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(TIFF_IFD_OFFSET);
+        header.putShort((short) tiffEntries());
+        tiffEntry(header, 256, 4, width);                          // ImageWidth
+        tiffEntry(header, 257, 4, height);                         // ImageLength
+        if (components == 1) {
+            tiffEntry(header, 258, 3, sampleBytes * 8);            // BitsPerSample
+        } else {
+            header.putShort((short) 258).putShort((short) 3).putInt(components).putInt(ifdEnd);
+        }
+        tiffEntry(header, 259, 3, 1);                              // Compression: none
+        tiffEntry(header, 262, 3, components == 1 ? 1 : 2);        // BlackIsZero, or RGB
+        tiffEntry(header, 273, 4, length);                         // StripOffsets
+        tiffEntry(header, 277, 3, components);                     // SamplesPerPixel
+        tiffEntry(header, 278, 4, height);                         // RowsPerStrip
+        tiffEntry(header, 279, 4, width * height * components * sampleBytes); // StripByteCounts
+        if (components != 1) {
+            tiffEntry(header, 284, 3, 1);                          // PlanarConfiguration: chunky
+        }
+        header.putInt(0);                                          // No next IFD
+        for (int c = 0; c < components && components != 1; c++) {
+            header.putShort((short) (sampleBytes * 8));
+        }
+        return header.array();
+    }
+
+    /**
+     * One IFD entry of a single SHORT (type 3) or LONG (type 4) value.
+     */
+    private static void tiffEntry(ByteBuffer header, int tag, int type, int value) {
+        header.putShort((short) tag).putShort((short) type).putInt(1);
+        if (type == 3) {
+            header.putShort((short) value).putShort((short) 0);
+        } else {
+            header.putInt(value);
+        }
+    }
+}
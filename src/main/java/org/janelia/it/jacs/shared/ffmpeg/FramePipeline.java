@@ -0,0 +1,454 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+import static org.bytedeco.ffmpeg.global.swscale.*;
+
+/**
+ * The stages after decoding, for one channel: the decoding thread fills
+ * AVFrames taken from a small ring, and hands each on; workers, each with
+ * a Converter of its own, convert it, give the AVFrame back to the ring,
+ * and copy the result into an unpadded plane.  Planes are delivered one at
+ * a time, in the order the decoder gave their frames, which is
+ * presentation (pts) order, however the workers finish.  Delivery is on
+ * whichever worker thread finishes the next plane due.
+ *
+ * Workers run on threads shared by every pipeline, and take their
+ * Converters from those the caller keeps, eg. with a pooled decoder, so
+ * that a batch of channels sets up its scalers once.
+ *
+ * At most ring-size frames are between acquire() and delivery, so a slow
+ * consumer holds the decoder back rather than letting planes pile up.
+ */
+class FramePipeline implements AutoCloseable {
+    private static final long POLL_MS = 100;
+    private static final long SHUTDOWN_SECONDS = 60;
+
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "h5j-convert");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Receives each plane, in frame order, one at a time.
+     */
+    interface Sink {
+        void deliver(byte[] plane, boolean keyFrame) throws Exception;
+    }
+
+    private static class Item {
+        final long sequence;
+        final AVFrame frame;
+        final boolean keyFrame;
+        byte[] plane;
+
+        Item(long sequence, AVFrame frame, boolean keyFrame) {
+            this.sequence = sequence;
+            this.frame = frame;
+            this.keyFrame = keyFrame;
+        }
+    }
+
+    private static final Item STOP = new Item(-1, null, false);
+
+    /**
+     * A scaler, and the frame it converts into, for one worker at a time.
+     */
+    static class Converter {
+        private final int targetFormat;
+        private final int scalerFlags;
+        private SwsContext scaler;
+        private AVFrame target;
+        private long targetBytes;
+
+        private Converter(int targetFormat, int scalerFlags) {
+            this.targetFormat = targetFormat;
+            this.scalerFlags = scalerFlags;
+        }
+
+        boolean fits(int targetFormat, int scalerFlags) {
+            return this.targetFormat == targetFormat && this.scalerFlags == scalerFlags;
+        }
+
+        void free() {
+            if (target != null) {
+                av_frame_free(target);
+                target = null;
+                NativeResources.freed(NativeResources.Kind.FRAME, targetBytes);
+                targetBytes = 0;
+            }
+            if (scaler != null) {
+                sws_freeContext(scaler);
+                scaler = null;
+                NativeResources.freed(NativeResources.Kind.SCALER, 0);
+            }
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int sourceFormat;
+    private final int targetFormat;
+    private final int scalerFlags;
+    private final int bytesPerPixel;
+    private final LoadTimings timings;
+    private final boolean recyclePlanes;
+    private final Sink sink;
+    private final Deque<Converter> converters;
+    private final int workers;
+    private final int ringSize;
+    private final CountDownLatch stoppedWorkers;
+
+    private final List<AVFrame> ring = new ArrayList<AVFrame>();
+    private final BlockingQueue<AVFrame> freeFrames;
+    private final Semaphore inFlight;
+    private final BlockingQueue<Item> work = new LinkedBlockingQueue<Item>();
+    private final BlockingQueue<byte[]> sparePlanes = new LinkedBlockingQueue<byte[]>();
+
+    // Guarded by this.
+    private final Map<Long, Item> pending = new HashMap<Long, Item>();
+    private long nextSequence = 0;
+    private long nextDelivery = 0;
+    private volatile Throwable failure = null;
+    private boolean finished = false;
+    private boolean stopped = false;
+
+    /**
+     * @param workers conversion threads; at least 1.
+     * @param width stream width.
+     * @param height stream height.
+     * @param sourceFormat pixel format the decoder gives.
+     * @param targetFormat what to convert to: BGR24 for 8-bit data, of
+     *                     which the first byte of each pixel is kept, or
+     *                     GRAY16BE.
+     * @param scalerFlags SWS_* algorithm.
+     * @param bytesPerPixel 1 or 2.
+     * @param timings where conversion and copy times are added; may be null.
+     * @param recyclePlanes reuse a plane once the sink has returned, as it
+     *                      copies planes rather than keeping them.
+     * @param converters Converters made before for this size and source
+     *                   format, to take from and give back to once close()
+     *                   has returned; null to make them and free them.
+     * @param sink where planes go.
+     */
+    FramePipeline(int workers, int width, int height, int sourceFormat, int targetFormat, int scalerFlags,
+                  int bytesPerPixel, LoadTimings timings, boolean recyclePlanes, Deque<Converter> converters,
+                  Sink sink) throws Exception {
+        this.workers = Math.max(1, workers);
+        this.width = width;
+        this.height = height;
+        this.sourceFormat = sourceFormat;
+        this.targetFormat = targetFormat;
+        this.scalerFlags = scalerFlags;
+        this.bytesPerPixel = bytesPerPixel;
+        this.timings = timings;
+        this.recyclePlanes = recyclePlanes;
+        this.sink = sink;
+        this.converters = converters;
+
+        this.ringSize = 2 * this.workers;
+        this.freeFrames = new ArrayBlockingQueue<AVFrame>(ringSize);
+        this.inFlight = new Semaphore(ringSize);
+        try {
+            for (int i = 0; i < ringSize; i++) {
+                AVFrame frame = av_frame_alloc();
+                if (frame == null) {
+                    throw new Exception("av_frame_alloc() error: Could not allocate a pipeline frame.");
+                }
+                NativeResources.allocated(NativeResources.Kind.FRAME, 0);
+                ring.add(frame);
+                freeFrames.add(frame);
+            }
+        } catch (Exception ex) {
+            freeRing();
+            throw ex;
+        }
+        this.stoppedWorkers = new CountDownLatch(this.workers);
+        for (int i = 0; i < this.workers; i++) {
+            WORKERS.execute(this::work);
+        }
+    }
+
+    /**
+     * A frame for the decoder to fill; waits while ring-size frames are
+     * already on their way.
+     *
+     * @throws Exception what a worker or the sink failed with.
+     */
+    AVFrame acquire() throws Exception {
+        while (!inFlight.tryAcquire(POLL_MS, TimeUnit.MILLISECONDS)) {
+            rethrow();
+        }
+        rethrow();
+        return freeFrames.take();
+    }
+
+    /**
+     * Give back a frame the decoder did not fill.
+     */
+    void unused(AVFrame frame) {
+        av_frame_unref(frame);
+        freeFrames.add(frame);
+        inFlight.release();
+    }
+
+    /**
+     * Hand a decoded frame on, to be converted and delivered after those
+     * submitted before it.
+     */
+    void submit(AVFrame frame, boolean keyFrame) {
+        Item item;
+        synchronized (this) {
+            item = new Item(nextSequence++, frame, keyFrame);
+        }
+        work.add(item);
+    }
+
+    /**
+     * Wait for every frame submitted to be delivered.
+     *
+     * @throws Exception what a worker or the sink failed with.
+     */
+    void finish() throws Exception {
+        while (!inFlight.tryAcquire(ringSize, POLL_MS, TimeUnit.MILLISECONDS)) {
+            rethrow();
+        }
+        inFlight.release(ringSize);
+        rethrow();
+        synchronized (this) {
+            finished = true;
+        }
+    }
+
+    /**
+     * Stop the workers, and free the ring.  Frames not yet delivered, as
+     * when decoding failed, are dropped.  Safe to call more than once.
+     *
+     * @throws IllegalStateException if the workers do not stop, or this
+     * thread is interrupted waiting for them; the ring is then left to them.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            if (!finished) {
+                fail(new CancellationException("Frame pipeline closed before it finished."));
+            }
+        }
+        for (int i = 0; i < workers; i++) {
+            work.add(STOP);
+        }
+        try {
+            if (!stoppedWorkers.await(SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Frame conversion still running after " + SHUTDOWN_SECONDS + " seconds.");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for frame conversion to stop.", ie);
+        }
+        freeRing();
+        sparePlanes.clear();
+    }
+
+    private void work() {
+        try {
+            Converter converter = null;
+            try {
+                converter = takeConverter();
+            } catch (Throwable t) {
+                fail(t);
+            }
+            work(converter);
+        } finally {
+            stoppedWorkers.countDown();
+        }
+    }
+
+    private void work(Converter converter) {
+        while (true) {
+            Item item;
+            try {
+                item = work.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (item == STOP) {
+                break;
+            }
+            try {
+                if (failure == null) {
+                    convert(item, converter.scaler, converter.target);
+                } else {
+                    recycle(item.frame);
+                }
+            } catch (Throwable t) {
+                fail(t);
+            }
+            converted(item);
+        }
+
+        if (converter != null) {
+            giveBack(converter);
+        }
+    }
+
+    /**
+     * A Converter for this pipeline's formats, kept or newly made; one kept
+     * for other formats is freed.
+     */
+    private Converter takeConverter() throws Exception {
+        if (converters != null) {
+            synchronized (converters) {
+                Converter kept;
+                while ((kept = converters.poll()) != null) {
+                    if (kept.fits(targetFormat, scalerFlags)) {
+                        return kept;
+                    }
+                    kept.free();
+                }
+            }
+        }
+        Converter converter = new Converter(targetFormat, scalerFlags);
+        try {
+            converter.scaler = sws_getContext(width, height, sourceFormat, width, height, targetFormat, scalerFlags,
+                    null, null, (DoublePointer) null);
+            if (converter.scaler == null) {
+                throw new Exception("sws_getContext() error: Cannot initialize the conversion context.");
+            }
+            NativeResources.allocated(NativeResources.Kind.SCALER, 0);
+            AVFrame target = av_frame_alloc();
+            if (target == null) {
+                throw new Exception("av_frame_alloc() error: Could not allocate a conversion frame.");
+            }
+            target.width(width);
+            target.height(height);
+            target.format(targetFormat);
+            if (av_frame_get_buffer(target, 0) < 0) {
+                av_frame_free(target);
+                throw new Exception("av_frame_get_buffer() error: Could not allocate a conversion buffer.");
+            }
+            converter.target = target;
+            converter.targetBytes = av_image_get_buffer_size(targetFormat, width, height, 1);
+            NativeResources.allocated(NativeResources.Kind.FRAME, converter.targetBytes);
+        } catch (Exception ex) {
+            converter.free();
+            throw ex;
+        }
+        return converter;
+    }
+
+    private void giveBack(Converter converter) {
+        if (converters == null) {
+            converter.free();
+            return;
+        }
+        synchronized (converters) {
+            converters.push(converter);
+        }
+    }
+
+    private void convert(Item item, SwsContext scaler, AVFrame target) {
+        long start = H5JMetrics.mark(timings);
+        try {
+            sws_scale(scaler, item.frame.data(), item.frame.linesize(), 0, height, target.data(), target.linesize());
+        } finally {
+            // The decoded picture is done with: let the decoder have its
+            // buffers back, and the ring its frame.
+            recycle(item.frame);
+        }
+        H5JMetrics.record(timings, LoadTimings.Phase.SWS_SCALE, start);
+
+        start = H5JMetrics.mark(timings);
+        int linesize = target.linesize(0) / (bytesPerPixel == 1 ? 3 : 2);
+        byte[] plane = recyclePlanes ? sparePlanes.poll() : null;
+        if (plane == null) {
+            plane = new byte[width * height * bytesPerPixel];
+        }
+        FFMpegLoader.extractBytes(target.data(0), linesize, width, height, bytesPerPixel, plane);
+        item.plane = plane;
+        H5JMetrics.record(timings, LoadTimings.Phase.EXTRACT_BYTES, start);
+    }
+
+    private void recycle(AVFrame frame) {
+        av_frame_unref(frame);
+        freeFrames.add(frame);
+    }
+
+    /**
+     * Deliver every plane now in order, whichever worker that falls to.
+     */
+    private synchronized void converted(Item item) {
+        pending.put(item.sequence, item);
+        Item next;
+        while ((next = pending.remove(nextDelivery)) != null) {
+            nextDelivery++;
+            try {
+                if (failure == null && next.plane != null) {
+                    sink.deliver(next.plane, next.keyFrame);
+                    if (recyclePlanes) {
+                        sparePlanes.add(next.plane);
+                    }
+                }
+            } catch (Throwable t) {
+                fail(t);
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    private void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+    }
+
+    private void rethrow() throws Exception {
+        Throwable t = failure;
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new Exception(t);
+        }
+    }
+
+    private void freeRing() {
+        for (AVFrame frame : ring) {
+            av_frame_free(frame);
+            NativeResources.freed(NativeResources.Kind.FRAME, 0);
+        }
+        ring.clear();
+        freeFrames.clear();
+    }
+}
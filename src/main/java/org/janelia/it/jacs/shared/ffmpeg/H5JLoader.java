@@ -9,43 +9,188 @@ package org.janelia.it.jacs.shared.ffmpeg;
 
 import ch.systemsx.cisd.hdf5.*;
 
-import java.util.Arrays;
+import java.io.IOException;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.stream.Collectors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.LongAdder;
 
-public class H5JLoader
+public class H5JLoader implements AutoCloseable
 {
-	private static final String VX_SIZE_ATTRIB = "voxel_size";
-	private static final String UNIT_ATTRIB = "unit";
-    private static final String PAD_RIGHT_ATTRIB = "pad_right";
-    private static final String PAD_BOTTOM_ATTRIB = "pad_bottom";
-    private static final String CHANNELS_QUERY_PATH = "/Channels";
+    private static final String CHANNELS_QUERY_PATH = H5JMetadata.CHANNELS_PATH;
 
     private String _filename;
     private IHDF5Reader _reader;
     private ImageStack _image;
+    private PlaneStorage.Mode _storage_mode = PlaneStorage.Mode.HEAP;
+    private int _thread_count = 0;
+    private LoadTimings _timings = null;
+    private final LongAdder _bytes_read = new LongAdder();
+    private CancellationToken _cancellation = null;
+    private LoadProgress _progress = null;
+    private boolean _fast_open = false;
+    private volatile StreamHint _stream_hint = null;
+    private DecoderPool _decoder_pool = null;
+    private LoadProfile.Scaler _scaler = LoadProfile.Scaler.BICUBIC;
+    private int _convert_threads = LoadProfile.DEFAULT_CONVERT_THREADS;
+    private H5JMetadata _metadata = null;
+    private ChannelPrefetcher _prefetcher = null;
     
     public H5JLoader(String filename) {
         this._filename = filename;
         IHDF5ReaderConfigurator conf = HDF5Factory.configureForReading(filename);
         conf.performNumericConversions();
         _reader = conf.reader();
+        setProfile(LoadProfile.getDefault());
     }
 
-    public void close() throws Exception {
-        _reader.close();
+    /**
+     * Take codec threads, storage mode, fast open, scaler, conversion
+     * threads, decoder sharing and prefetch from a profile; the default
+     * profile is taken on construction.  Setters called afterwards override
+     * it.
+     *
+     * @param profile settings to load with.
+     */
+    public void setProfile(LoadProfile profile) {
+        this._thread_count = profile.getCodecThreads();
+        this._storage_mode = profile.getStorage();
+        this._fast_open = profile.isFastOpen();
+        this._scaler = profile.getScaler();
+        this._convert_threads = profile.getConvertThreads();
+        this._decoder_pool = profile.isSharedDecoders() ? DecoderPool.shared() : null;
+        this._prefetcher = profile.getPrefetchBudget() > 0 ? ChannelPrefetcher.shared() : null;
+    }
+
+    /**
+     * Close the file.  Stacks already extracted stay valid; safe to call
+     * more than once.
+     */
+    @Override
+    public void close() throws IOException {
+        if (_prefetcher != null) {
+            _prefetcher.release(this);
+        }
+        if (_reader != null) {
+            _reader.close();
+            _reader = null;
+        }
+    }
+
+    /**
+     * @return the file, as given on construction.
+     */
+    public String getFilename() {
+        return _filename;
     }
 
     public int numberOfChannels() {
-        return _reader.object().getAllGroupMembers(CHANNELS_QUERY_PATH).size();
+        return getMetadata().getChannelCount();
+    }
+
+    public List<String> channelNames() { return getMetadata().getChannelNames(); }
+
+    /**
+     * Where extracted planes are kept.  Off-heap modes let large volumes be
+     * held with a small Java heap; COMPACT lets several mostly-background
+     * volumes be held on it at once.
+     *
+     * @param mode HEAP, DIRECT, MAPPED or COMPACT; the profile's by default
+     */
+    public void setStorageMode(PlaneStorage.Mode mode) {
+        this._storage_mode = mode;
+    }
+
+    public PlaneStorage.Mode getStorageMode() {
+        return _storage_mode;
+    }
+
+    /**
+     * @param threads decoder threads per channel; 0 for one per processor.
+     *                The default is the profile's.
+     */
+    public void setThreadCount(int threads) {
+        this._thread_count = threads;
+    }
+
+    /**
+     * @param timings where to record the time spent reading and decoding;
+     *                null (default) to record nothing.
+     */
+    public void setTimings(LoadTimings timings) {
+        this._timings = timings;
+    }
+
+    /**
+     * @param cancellation checked before each channel and between its
+     *                     packets; on cancel, extraction frees what it holds
+     *                     and throws CancellationException.  Null (default)
+     *                     for loads that cannot be cancelled.
+     */
+    public void setCancellation(CancellationToken cancellation) {
+        this._cancellation = cancellation;
+    }
+
+    /**
+     * @param progress where to report the fraction of channels decoded;
+     *                 null (default) to report nothing.
+     */
+    public void setProgress(LoadProgress progress) {
+        this._progress = progress;
+    }
+
+    /**
+     * Fast open: the first channel is probed, and the others are opened
+     * from what that found, without probing; FFmpeg's stream dump and
+     * logging are suppressed.
+     *
+     * @param fastOpen false to probe every channel; the profile's by default.
+     */
+    public void setFastOpen(boolean fastOpen) {
+        this._fast_open = fastOpen;
+    }
+
+    /**
+     * @param pool decoders to borrow for each channel, eg.
+     *             DecoderPool.shared(); null to open a decoder per
+     *             channel.  The shared pool if the profile says so.
+     */
+    public void setDecoderPool(DecoderPool pool) {
+        this._decoder_pool = pool;
+    }
+
+    /**
+     * Where channels are read ahead of their decoding from; the shared one
+     * unless the profile's prefetch budget is 0.
+     *
+     * @param prefetcher null to read each channel only when it is decoded.
+     */
+    public void setPrefetcher(ChannelPrefetcher prefetcher) {
+        this._prefetcher = prefetcher;
+    }
+
+    /**
+     * Start reading every channel in the background, in the order they lie
+     * on disk, so that each is read while the one before it decodes.  Call
+     * before extracting channels in turn; does nothing with no prefetcher.
+     */
+    public void prefetchChannels() {
+        if (_prefetcher != null) {
+            _prefetcher.prefetch(this);
+        }
     }
 
-    public List<String> channelNames() { return _reader.object().getAllGroupMembers(CHANNELS_QUERY_PATH); }
+    /**
+     * @return compressed bytes read so far, over every channel.
+     */
+    public long getBytesRead() {
+        return _bytes_read.sum();
+    }
 
     public ImageStack extractAllChannels() {
         if (_image == null) {
             _image = new ImageStack();
+            _image.setStorageMode(_storage_mode);
         }
 
         List<String> channels = channelNames();
@@ -58,6 +203,11 @@ public class H5JLoader
                 ImageStack frames = extract(channel_id, ch_count);
                 _image.merge( frames );
                 extractAttributes(_image);
+            } catch (CancellationException ce)
+            {
+                releaseQuietly(_image);
+                _image = null;
+                throw ce;
             } catch (Exception e)
             {
                 e.printStackTrace();
@@ -68,218 +218,186 @@ public class H5JLoader
         return _image;
     }
 
-    public ImageStack extract(String channelID) throws Exception {
+    /**
+     * Read the compressed stream of one channel, without decoding it.
+     *
+     * @param channelID name of the channel, as given by channelNames().
+     * @return the channel's encoded bytes.
+     */
+    public byte[] readChannel(String channelID) {
+        if (_cancellation != null) {
+            _cancellation.check();
+        }
+        long start = H5JMetrics.mark(_timings);
+        byte[] data = _prefetcher == null ? null : _prefetcher.take(_filename, channelID);
+        if (data == null) {
+            data = readChannelUncached(channelID);
+        }
+        H5JMetrics.record(_timings, LoadTimings.Phase.READ_ARRAY, start);
+        _bytes_read.add(data.length);
+        if (H5JMetrics.enabled()) {
+            H5JMetrics.get().addBytesRead(data.length);
+        }
+        return data;
+    }
+
+    byte[] readChannelUncached(String channelID) {
         IHDF5OpaqueReader channel = _reader.opaque();
-        byte[] data = channel.readArray(CHANNELS_QUERY_PATH + "/" + channelID);
+        return channel.readArray(CHANNELS_QUERY_PATH + "/" + channelID);
+    }
 
-        FFMpegLoader movie = new FFMpegLoader(data);
-        movie.start();
-        movie.grab();
-        ImageStack stack = movie.getImage();
+    /**
+     * @param channelID name of the channel, as given by channelNames().
+     * @return size of its compressed stream, in bytes.
+     */
+    long getChannelBytes(String channelID) {
+        return _reader.object().getDataSetInformation(CHANNELS_QUERY_PATH + "/" + channelID).getSize();
+    }
 
-        extractAttributes(stack);
+    /**
+     * An empty stack carrying only what the file's attributes say about the
+     * volume (padding, voxel size, unit); nothing is decoded.
+     *
+     * @return stack with no frames.
+     */
+    public ImageStack extractHeader() {
+        ImageStack header = new ImageStack();
+        extractAttributes(header);
+        return header;
+    }
 
-        movie.close();
+    /**
+     * A whole-number attribute of /Channels, such as width, height or
+     * frames, as H5JWriter records them; nothing is decoded.
+     *
+     * @param name attribute name.
+     * @return its value, or -1 if the file does not have it.
+     */
+    public long getChannelsAttribute(String name) {
+        return getMetadata().getLong(H5JMetadata.CHANNELS_PATH, name, -1);
+    }
 
-        return stack;
+    public ImageStack extract(String channelID) throws Exception {
+        return extract(channelID, -1, null);
     }
     
     public ImageStack extract(String channelID, int chcount) throws Exception {
-        IHDF5OpaqueReader channel = _reader.opaque();
-        byte[] data = channel.readArray(CHANNELS_QUERY_PATH + "/" + channelID);
-
-        FFMpegLoader movie = new FFMpegLoader(data);
-        movie.setChannelNum(numberOfChannels());
-        movie.setChannelCount(chcount);
-        movie.start();
-        movie.grab();
-        ImageStack stack = movie.getImage();
-
-        extractAttributes(stack);
+        return extract(channelID, chcount, null);
+    }
 
-        movie.close();
+    /**
+     * Decode one channel, handing each plane to the acceptor as soon as it
+     * is decoded; nothing is accumulated.
+     *
+     * @param channelID name of the channel, as given by channelNames().
+     * @param chcount 0-based position of the channel, for progress; -1 to
+     *                show progress as if it were the only channel.
+     * @param acceptor receives each plane; null to keep them in the stack.
+     * @return an empty stack describing the channel (size, padding, etc), or
+     *         with no acceptor, the channel's planes.
+     */
+    public ImageStack extract(String channelID, int chcount, FFMPGByteAcceptor acceptor) throws Exception {
+        Object event = H5JMetrics.beginChannel();
+        FFMpegLoader movie = null;
+        long bytesRead = 0;
+        boolean handedOff = false;
+        try {
+            byte[] data = readChannel(channelID);
+            bytesRead = data.length;
+            movie = createMovie(data);
+            if (chcount >= 0) {
+                movie.setChannelNum(numberOfChannels());
+                movie.setChannelCount(chcount);
+            }
+            movie.start();
+            if (_fast_open && _stream_hint == null) {
+                _stream_hint = movie.getStreamHint();
+            }
+            movie.grab(acceptor);
+            ImageStack stack = movie.getImage();
+            extractAttributes(stack);
+            handedOff = true;
+            return stack;
+        } finally {
+            // However the channel failed, what was decoded of it is freed,
+            // and the channel is still recorded.
+            if (movie != null) {
+                if (!handedOff) {
+                    releaseQuietly(movie.getImage());
+                }
+                movie.close();
+            }
+            H5JMetrics.endChannel(event, channelID, movie == null ? 0 : movie.getFramesDecoded(),
+                    movie == null ? 0 : movie.getFramesDuplicated(), bytesRead);
+        }
+    }
 
-        return stack;
+    private FFMpegLoader createMovie(byte[] data) {
+        FFMpegLoader movie = new FFMpegLoader(data);
+        movie.setStorageMode(_storage_mode);
+        movie.setThreadCount(_thread_count);
+        movie.setTimings(_timings);
+        movie.setCancellation(_cancellation);
+        movie.setProgress(_progress);
+        movie.setFastOpen(_fast_open);
+        movie.setStreamHint(_stream_hint);
+        movie.setDecoderPool(_decoder_pool);
+        movie.setScaler(_scaler);
+        movie.setConvertThreads(_convert_threads);
+        return movie;
     }
 
-    private void extractAttributes(ImageStack image) {
-        if (image == null) {
-            image = new ImageStack();
+    private static void releaseQuietly(ImageStack stack) {
+        if (stack == null) {
+            return;
         }
-        IHDF5Reader ihdf5reader = _reader;
-        if (ihdf5reader.object().hasAttribute(CHANNELS_QUERY_PATH, PAD_BOTTOM_ATTRIB)) {
-            IHDF5LongReader ihdf5LongReader = ihdf5reader.int64();
-            final int paddingBottom = (int) ihdf5LongReader.getAttr(CHANNELS_QUERY_PATH, PAD_BOTTOM_ATTRIB);
-            image.setPaddingBottom(paddingBottom);
-        } else {
-            image.setPaddingBottom(-1);
+        try {
+            stack.release();
+        } catch (Exception ex) {
+            ex.printStackTrace();
         }
-        if (ihdf5reader.object().hasAttribute(CHANNELS_QUERY_PATH, PAD_RIGHT_ATTRIB)) {
-            IHDF5LongReader ihdf5LongReader = ihdf5reader.int64();
-            final int paddingRight = (int) ihdf5LongReader.getAttr(CHANNELS_QUERY_PATH, PAD_RIGHT_ATTRIB);
-            image.setPaddingRight(paddingRight);
-        } else {
-            image.setPaddingRight(-1);
-        }
-        
-        double[] vxsize = null;
-        if (ihdf5reader.object().hasAttribute("/", VX_SIZE_ATTRIB)) {
-            IHDF5DoubleReader ihdf5DoubleReader = ihdf5reader.float64();
-            vxsize = ihdf5DoubleReader.getArrayAttr("/", VX_SIZE_ATTRIB);
+    }
+
+    private void extractAttributes(ImageStack image) {
+        if (image != null) {
+            getMetadata().applyTo(image);
         }
-        if (vxsize != null && vxsize.length == 3)
-        	image.setSpacings(vxsize[0], vxsize[1], vxsize[2]);
-        
-        if (ihdf5reader.object().hasAttribute("/", UNIT_ATTRIB)) {
-            IHDF5StringReader ihdf5StringReader = ihdf5reader.string();
-            final String unit = ihdf5StringReader.getAttr("/", UNIT_ATTRIB);
-            image.setUnit(unit);
+    }
+
+    /**
+     * The file's channel names and the attributes of the root and of
+     * /Channels, read once, on first call, and kept for the loader's life.
+     *
+     * @return what the file says about itself.
+     */
+    public synchronized H5JMetadata getMetadata() {
+        if (_metadata == null) {
+            _metadata = H5JMetadata.read(_reader);
         }
+        return _metadata;
     }
-    
+
+    /**
+     * @param path "/" or "/Channels", from the metadata; any other object
+     *             is read afresh.
+     * @return "name: value" for each of its attributes, a line each.
+     */
     public String getAllAttributeString(String path) {
-    	String attrs = "";
-        List<String> names = _reader.object().getAllAttributeNames(path);
-        for (String n : names) {
-        	attrs = attrs + getAttributeString(_reader, path, n) + System.getProperty("line.separator");
+        if (H5JMetadata.ROOT_PATH.equals(path) || H5JMetadata.CHANNELS_PATH.equals(path)) {
+            return getMetadata().getAttributeString(path);
         }
-        return attrs;
+        return H5JMetadata.render(H5JMetadata.readAttributes(_reader, path));
     }
-    
+
     public String getAttributeString(
 			final IHDF5Reader reader,
 			final String object,
 			final String attribute )
 	{
-    	String rtnVal = "";
-    	
-		if ( !reader.exists( object ) )
-			return rtnVal;
-
-		if ( !reader.object().hasAttribute( object, attribute ) )
-			return rtnVal;
-
-		final HDF5DataTypeInformation attributeInfo = reader.object().getAttributeInformation( object, attribute );
-		final Class< ? > type = attributeInfo.tryGetJavaType();
-		if ( type.isAssignableFrom( long[].class ) )
-			if ( attributeInfo.isSigned() ) {
-				rtnVal = Arrays.stream(reader.int64().getArrayAttr( object, attribute ))
-				        .mapToObj(String::valueOf)
-				        .collect(Collectors.joining(", "));
-				return attribute + ": " + "[ " + rtnVal + " ]";
-			}
-			else {
-				rtnVal = Arrays.stream(reader.uint64().getArrayAttr( object, attribute ))
-				        .mapToObj(String::valueOf)
-				        .collect(Collectors.joining(", "));
-				return attribute + ": " + "[ " + rtnVal + " ]";
-			}
-		if ( type.isAssignableFrom( int[].class ) )
-			if ( attributeInfo.isSigned() ) {
-				rtnVal = Arrays.stream(reader.int32().getArrayAttr( object, attribute ))
-		        .mapToObj(String::valueOf)
-		        .collect(Collectors.joining(", "));
-				return attribute + ": " + "[ " + rtnVal + " ]";
-			}
-			else {
-				rtnVal = Arrays.stream(reader.uint32().getArrayAttr( object, attribute ))
-				        .mapToObj(String::valueOf)
-				        .collect(Collectors.joining(", "));
-				return attribute + ": " + "[ " + rtnVal + " ]";
-			}
-		if ( type.isAssignableFrom( short[].class ) )
-			if ( attributeInfo.isSigned() ) {
-				short[] s = reader.int16().getArrayAttr( object, attribute );
-				int[] ia = new int[s.length];
-				for (int i = 0; i < s.length; i++) ia[i] = s[i];
-				rtnVal = Arrays.stream(ia)
-				        .mapToObj(String::valueOf)
-				        .collect(Collectors.joining(", "));
-				return attribute + ": " + "[ " + rtnVal + " ]";
-			}
-			else {
-				short[] s = reader.int16().getArrayAttr( object, attribute );
-				int[] ia = new int[s.length];
-				for (int i = 0; i < s.length; i++) ia[i] = s[i];
-				rtnVal = Arrays.stream(ia)
-				        .mapToObj(String::valueOf)
-				        .collect(Collectors.joining(", "));
-				return attribute + ": " + "[ " + rtnVal + " ]";
-			}
-		if ( type.isAssignableFrom( byte[].class ) )
-		{
-			if ( attributeInfo.isSigned() ) {
-				byte[] s = reader.int8().getArrayAttr( object, attribute );
-				int[] ia = new int[s.length];
-				for (int i = 0; i < s.length; i++) ia[i] = s[i];
-				rtnVal = Arrays.stream(ia)
-				        .mapToObj(String::valueOf)
-				        .collect(Collectors.joining(", "));
-				return attribute + ": " + "[ " + rtnVal + " ]";
-			}
-			else {
-				byte[] s = reader.uint8().getArrayAttr( object, attribute );
-				int[] ia = new int[s.length];
-				for (int i = 0; i < s.length; i++) ia[i] = s[i];
-				rtnVal = Arrays.stream(ia)
-				        .mapToObj(String::valueOf)
-				        .collect(Collectors.joining(", "));
-				return attribute + ": " + "[ " + rtnVal + " ]";
-			}
-		}
-		else if ( type.isAssignableFrom( double[].class ) ) {
-			rtnVal = Arrays.stream(reader.float64().getArrayAttr( object, attribute ))
-			        .mapToObj(String::valueOf)
-			        .collect(Collectors.joining(", "));
-			return attribute + ": " + "[ " + rtnVal + " ]";
-		}
-		else if ( type.isAssignableFrom( float[].class ) ) {
-			float[] s = reader.float32().getArrayAttr( object, attribute );
-			double[] ia = new double[s.length];
-			for (int i = 0; i < s.length; i++) ia[i] = s[i];
-			rtnVal = Arrays.stream(ia)
-			        .mapToObj(String::valueOf)
-			        .collect(Collectors.joining(", "));
-			return attribute + ": " + "[ " + rtnVal + " ]";
-		}
-		else if ( type.isAssignableFrom( String[].class ) )
-			return attribute + ": "+ "[ " + String.join(", ", reader.string().getArrayAttr( object, attribute )) + " ]";
-		if ( type.isAssignableFrom( long.class ) )
-		{
-			if ( attributeInfo.isSigned() )
-				return attribute + ": " + String.valueOf(reader.int64().getAttr( object, attribute ));
-			else
-				return attribute + ": " + String.valueOf(reader.uint64().getAttr( object, attribute ));
-		}
-		else if ( type.isAssignableFrom( int.class ) )
-		{
-			if ( attributeInfo.isSigned() )
-				return attribute + ": " + String.valueOf(reader.int32().getAttr( object, attribute ));
-			else
-				return attribute + ": " + String.valueOf(reader.uint32().getAttr( object, attribute ));
-		}
-		else if ( type.isAssignableFrom( short.class ) )
-		{
-			if ( attributeInfo.isSigned() )
-				return attribute + ": " + String.valueOf(reader.int16().getAttr( object, attribute ));
-			else
-				return attribute + ": " + String.valueOf(reader.uint16().getAttr( object, attribute ));
-		}
-		else if ( type.isAssignableFrom( byte.class ) )
-		{
-			if ( attributeInfo.isSigned() )
-				return attribute + ": " + String.valueOf(reader.int8().getAttr( object, attribute ));
-			else
-				return attribute + ": " + String.valueOf(reader.uint8().getAttr( object, attribute ));
-		}
-		else if ( type.isAssignableFrom( double.class ) )
-			return attribute + ": " + String.valueOf(reader.float64().getAttr( object, attribute ));
-		else if ( type.isAssignableFrom( float.class ) )
-			return attribute + ": " + String.valueOf(reader.float32().getAttr( object, attribute ));
-		else if ( type.isAssignableFrom( String.class ) )
-			return attribute + ": " + reader.string().getAttr( object, attribute );
-
-		return rtnVal;
+		if ( !reader.exists( object ) || !reader.object().hasAttribute( object, attribute ) )
+			return "";
+		H5JMetadata.Attribute read = H5JMetadata.readAttribute( reader, object, attribute );
+		return read == null ? "" : read.toString();
 	}
 
 
@@ -288,7 +406,7 @@ public class H5JLoader
         int width = _image.width();
         int height = _image.height();
         byte[] data = _image.interleave(iFrame, 0, 3);
-        int linesize = _image.linesize(iFrame);
+        int linesize = width * 3 * Math.max(1, _image.getBytesPerPixel());
         acceptor.accept(data, linesize, width, height);
     }
     
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import ch.systemsx.cisd.hdf5.HDF5DataTypeInformation;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What an H5J file says about itself: its channel names, and every
+ * attribute of the root and of /Channels, each read once and typed.
+ * Integers are held as Long or long[] (unsigned ones widened, so they read
+ * as positive), reals as Double, Float, double[] or float[], and text as
+ * String or String[].  Nothing is rendered as text until asked for.
+ *
+ * Immutable; H5JLoader reads one per file on first use.
+ */
+public final class H5JMetadata {
+    public static final String ROOT_PATH = "/";
+    public static final String CHANNELS_PATH = "/Channels";
+
+    public static final String VOXEL_SIZE = "voxel_size";
+    public static final String UNIT = "unit";
+    public static final String PAD_RIGHT = "pad_right";
+    public static final String PAD_BOTTOM = "pad_bottom";
+    public static final String WIDTH = "width";
+    public static final String HEIGHT = "height";
+    public static final String FRAMES = "frames";
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final List<String> channelNames;
+    private final Map<String, Attribute> rootAttributes;
+    private final Map<String, Attribute> channelsAttributes;
+    private volatile String info;
+
+    /**
+     * @param channelNames members of /Channels, in file order.
+     * @param rootAttributes attributes of the root, in file order.
+     * @param channelsAttributes attributes of /Channels, in file order.
+     */
+    public H5JMetadata(List<String> channelNames, List<Attribute> rootAttributes, List<Attribute> channelsAttributes) {
+        this.channelNames = Collections.unmodifiableList(new ArrayList<String>(channelNames));
+        this.rootAttributes = index(rootAttributes);
+        this.channelsAttributes = index(channelsAttributes);
+    }
+
+    /**
+     * One pass over the channel group and the attributes of the root and
+     * of /Channels.
+     *
+     * @param reader an open H5J file.
+     * @return what it says about itself.
+     */
+    public static H5JMetadata read(IHDF5Reader reader) {
+        List<String> names = reader.exists(CHANNELS_PATH)
+                ? reader.object().getAllGroupMembers(CHANNELS_PATH)
+                : Collections.<String>emptyList();
+        return new H5JMetadata(names, readAttributes(reader, ROOT_PATH), readAttributes(reader, CHANNELS_PATH));
+    }
+
+    /**
+     * @param reader an open HDF5 file.
+     * @param path object whose attributes to read.
+     * @return its attributes of types that can be read, in file order;
+     *         empty if there is no such object.
+     */
+    public static List<Attribute> readAttributes(IHDF5Reader reader, String path) {
+        List<Attribute> attributes = new ArrayList<Attribute>();
+        if (!reader.exists(path)) {
+            return attributes;
+        }
+        for (String name : reader.object().getAllAttributeNames(path)) {
+            Attribute attribute = readAttribute(reader, path, name);
+            if (attribute != null) {
+                attributes.add(attribute);
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Read one attribute, once, as the type it is stored as.
+     *
+     * @return the attribute, or null if it is not of a numeric or string
+     *         type.
+     */
+    public static Attribute readAttribute(IHDF5Reader reader, String path, String name) {
+        HDF5DataTypeInformation information = reader.object().getAttributeInformation(path, name);
+        Class<?> type = information.tryGetJavaType();
+        boolean signed = information.isSigned();
+        Object value;
+        if (type == null) {
+            return null;
+        } else if (type == long[].class) {
+            value = signed ? reader.int64().getArrayAttr(path, name) : reader.uint64().getArrayAttr(path, name);
+        } else if (type == int[].class) {
+            value = widen(signed ? reader.int32().getArrayAttr(path, name) : reader.uint32().getArrayAttr(path, name),
+                    signed ? 0 : 0xffffffffL);
+        } else if (type == short[].class) {
+            value = widen(signed ? reader.int16().getArrayAttr(path, name) : reader.uint16().getArrayAttr(path, name),
+                    signed ? 0 : 0xffffL);
+        } else if (type == byte[].class) {
+            value = widen(signed ? reader.int8().getArrayAttr(path, name) : reader.uint8().getArrayAttr(path, name),
+                    signed ? 0 : 0xffL);
+        } else if (type == double[].class) {
+            value = reader.float64().getArrayAttr(path, name);
+        } else if (type == float[].class) {
+            value = reader.float32().getArrayAttr(path, name);
+        } else if (type == String[].class) {
+            value = reader.string().getArrayAttr(path, name);
+        } else if (type == long.class) {
+            value = signed ? reader.int64().getAttr(path, name) : reader.uint64().getAttr(path, name);
+        } else if (type == int.class) {
+            value = signed ? (long) reader.int32().getAttr(path, name) : reader.uint32().getAttr(path, name) & 0xffffffffL;
+        } else if (type == short.class) {
+            value = signed ? (long) reader.int16().getAttr(path, name) : reader.uint16().getAttr(path, name) & 0xffffL;
+        } else if (type == byte.class) {
+            value = signed ? (long) reader.int8().getAttr(path, name) : reader.uint8().getAttr(path, name) & 0xffL;
+        } else if (type == double.class) {
+            value = reader.float64().getAttr(path, name);
+        } else if (type == float.class) {
+            value = reader.float32().getAttr(path, name);
+        } else if (type == String.class) {
+            value = reader.string().getAttr(path, name);
+        } else {
+            return null;
+        }
+        return new Attribute(name, value);
+    }
+
+    /**
+     * @return names of the channels, in file order.
+     */
+    public List<String> getChannelNames() {
+        return channelNames;
+    }
+
+    public int getChannelCount() {
+        return channelNames.size();
+    }
+
+    /**
+     * @param path ROOT_PATH or CHANNELS_PATH.
+     * @return that object's attributes, in file order.
+     */
+    public Collection<Attribute> getAttributes(String path) {
+        return Collections.unmodifiableCollection(attributesOf(path).values());
+    }
+
+    /**
+     * @param path ROOT_PATH or CHANNELS_PATH.
+     * @param name of the attribute.
+     * @return the attribute, or null if there is none of that name.
+     */
+    public Attribute getAttribute(String path, String name) {
+        return attributesOf(path).get(name);
+    }
+
+    /**
+     * A whole-number attribute, such as the width, height or frames that
+     * H5JWriter records on /Channels.
+     *
+     * @param path ROOT_PATH or CHANNELS_PATH.
+     * @param name of the attribute.
+     * @param missing value if there is no such attribute, or it is not a
+     *                single number.
+     */
+    public long getLong(String path, String name, long missing) {
+        Attribute attribute = getAttribute(path, name);
+        return attribute == null || !attribute.isNumber() ? missing : attribute.toLong();
+    }
+
+    /**
+     * @return pixels of padding at the right of each plane; -1 if not
+     *         recorded.
+     */
+    public int getPaddingRight() {
+        return (int) getLong(CHANNELS_PATH, PAD_RIGHT, -1);
+    }
+
+    /**
+     * @return rows of padding at the bottom of each plane; -1 if not
+     *         recorded.
+     */
+    public int getPaddingBottom() {
+        return (int) getLong(CHANNELS_PATH, PAD_BOTTOM, -1);
+    }
+
+    /**
+     * @return x, y and z voxel size, or null if not recorded as three
+     *         numbers.
+     */
+    public double[] getVoxelSize() {
+        Attribute attribute = getAttribute(ROOT_PATH, VOXEL_SIZE);
+        double[] size = attribute == null ? null : attribute.toDoubleArray();
+        return size != null && size.length == 3 ? size : null;
+    }
+
+    /**
+     * @return unit of the voxel size, or null if not recorded.
+     */
+    public String getUnit() {
+        Attribute attribute = getAttribute(ROOT_PATH, UNIT);
+        return attribute != null && attribute.getValue() instanceof String ? (String) attribute.getValue() : null;
+    }
+
+    /**
+     * Set padding, voxel size and unit on a stack, as the file records
+     * them.
+     */
+    public void applyTo(ImageStack image) {
+        image.setPaddingBottom(getPaddingBottom());
+        image.setPaddingRight(getPaddingRight());
+        double[] voxelSize = getVoxelSize();
+        if (voxelSize != null) {
+            image.setSpacings(voxelSize[0], voxelSize[1], voxelSize[2]);
+        }
+        String unit = getUnit();
+        if (unit != null) {
+            image.setUnit(unit);
+        }
+    }
+
+    /**
+     * @param path ROOT_PATH or CHANNELS_PATH.
+     * @return "name: value" for each of its attributes, a line each.
+     */
+    public String getAttributeString(String path) {
+        return render(attributesOf(path).values());
+    }
+
+    /**
+     * @return the root's attributes and then those of /Channels, a line
+     *         each, as given to the "Info" property of loaded images.
+     *         Rendered on first call.
+     */
+    public String getInfo() {
+        String rendered = info;
+        if (rendered == null) {
+            rendered = getAttributeString(ROOT_PATH) + getAttributeString(CHANNELS_PATH);
+            info = rendered;
+        }
+        return rendered;
+    }
+
+    /**
+     * @return "name: value" for each attribute, a line each.
+     */
+    public static String render(Collection<Attribute> attributes) {
+        StringBuilder text = new StringBuilder();
+        for (Attribute attribute : attributes) {
+            attribute.appendTo(text);
+            text.append(LINE_SEPARATOR);
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "H5JMetadata[" + channelNames.size() + " channels, "
+                + (rootAttributes.size() + channelsAttributes.size()) + " attributes]";
+    }
+
+    private Map<String, Attribute> attributesOf(String path) {
+        if (ROOT_PATH.equals(path)) {
+            return rootAttributes;
+        } else if (CHANNELS_PATH.equals(path)) {
+            return channelsAttributes;
+        }
+        throw new IllegalArgumentException("Only " + ROOT_PATH + " and " + CHANNELS_PATH + " are held, not " + path);
+    }
+
+    private static Map<String, Attribute> index(List<Attribute> attributes) {
+        Map<String, Attribute> byName = new LinkedHashMap<String, Attribute>();
+        for (Attribute attribute : attributes) {
+            byName.put(attribute.getName(), attribute);
+        }
+        return Collections.unmodifiableMap(byName);
+    }
+
+    private static long[] widen(int[] values, long mask) {
+        long[] wide = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            wide[i] = mask == 0 ? values[i] : values[i] & mask;
+        }
+        return wide;
+    }
+
+    private static long[] widen(short[] values, long mask) {
+        long[] wide = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            wide[i] = mask == 0 ? values[i] : values[i] & mask;
+        }
+        return wide;
+    }
+
+    private static long[] widen(byte[] values, long mask) {
+        long[] wide = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            wide[i] = mask == 0 ? values[i] : values[i] & mask;
+        }
+        return wide;
+    }
+
+    /**
+     * One attribute, by name, with its value as read.
+     */
+    public static final class Attribute {
+        private final String name;
+        private final Object value;
+
+        /**
+         * @param name of the attribute.
+         * @param value Long, Double, Float, String, or an array of long,
+         *              double, float or String.
+         */
+        public Attribute(String name, Object value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the value; arrays are shared, so not to be changed.
+         */
+        public Object getValue() {
+            return value;
+        }
+
+        /**
+         * @return whether the value is a single number.
+         */
+        public boolean isNumber() {
+            return value instanceof Number;
+        }
+
+        /**
+         * @return the value as a whole number.
+         * @throws IllegalStateException if it is not a single number.
+         */
+        public long toLong() {
+            if (!isNumber()) {
+                throw new IllegalStateException(name + " is not a single number");
+            }
+            return ((Number) value).longValue();
+        }
+
+        /**
+         * @return the value as reals, a single number as one; null if it
+         *         is text.
+         */
+        public double[] toDoubleArray() {
+            if (value instanceof Number) {
+                return new double[] { ((Number) value).doubleValue() };
+            } else if (value instanceof double[]) {
+                return ((double[]) value).clone();
+            } else if (value instanceof long[]) {
+                long[] values = (long[]) value;
+                double[] reals = new double[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    reals[i] = values[i];
+                }
+                return reals;
+            } else if (value instanceof float[]) {
+                float[] values = (float[]) value;
+                double[] reals = new double[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    reals[i] = values[i];
+                }
+                return reals;
+            }
+            return null;
+        }
+
+        /**
+         * @return "name: value", arrays as "[ a, b, c ]".
+         */
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            appendTo(text);
+            return text.toString();
+        }
+
+        void appendTo(StringBuilder text) {
+            text.append(name).append(": ");
+            if (value instanceof long[]) {
+                long[] values = (long[]) value;
+                text.append("[ ");
+                for (int i = 0; i < values.length; i++) {
+                    text.append(i == 0 ? "" : ", ").append(values[i]);
+                }
+                text.append(" ]");
+            } else if (value instanceof double[]) {
+                double[] values = (double[]) value;
+                text.append("[ ");
+                for (int i = 0; i < values.length; i++) {
+                    text.append(i == 0 ? "" : ", ").append(values[i]);
+                }
+                text.append(" ]");
+            } else if (value instanceof float[]) {
+                float[] values = (float[]) value;
+                text.append("[ ");
+                for (int i = 0; i < values.length; i++) {
+                    text.append(i == 0 ? "" : ", ").append(values[i]);
+                }
+                text.append(" ]");
+            } else if (value instanceof String[]) {
+                text.append("[ ").append(String.join(", ", (String[]) value)).append(" ]");
+            } else {
+                text.append(value);
+            }
+        }
+    }
+}
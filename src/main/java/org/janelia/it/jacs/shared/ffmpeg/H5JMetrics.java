@@ -0,0 +1,279 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide counters and per-phase latency histograms of H5J loads,
+ * exposed over JMX.  Off unless the h5j.metrics system property is true, or
+ * it is switched on through JMX or setEnabled(); while off, the loaders only
+ * test one volatile flag.
+ *
+ * Flight Recorder events, per load and per channel, are sent whenever JFR
+ * is present; JFR itself decides whether they are recorded.
+ */
+public final class H5JMetrics implements H5JMetricsMXBean {
+    public static final String ENABLED_PROPERTY = "h5j.metrics";
+    public static final String OBJECT_NAME = "org.janelia.it.h5j:type=H5JMetrics";
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+    private static final H5JMetrics INSTANCE = new H5JMetrics();
+
+    static {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (Exception ex) {
+            // Metrics still work in-process without JMX.
+        }
+    }
+
+    /**
+     * One phase's latency, as JMX shows it.
+     */
+    public static final class PhaseStats {
+        private final long count;
+        private final double totalMillis;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+
+        PhaseStats(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.totalMillis = histogram.getTotalNanos() / NANOS_PER_MILLI;
+            this.p50Millis = histogram.getPercentileNanos(0.5) / NANOS_PER_MILLI;
+            this.p99Millis = histogram.getPercentileNanos(0.99) / NANOS_PER_MILLI;
+            this.maxMillis = histogram.getMaxNanos() / NANOS_PER_MILLI;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getTotalMillis() {
+            return totalMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+    }
+
+    private final LatencyHistogram[] _phases = new LatencyHistogram[LoadTimings.Phase.values().length];
+    private final LongAdder _loads = new LongAdder();
+    private final LongAdder _channels = new LongAdder();
+    private final LongAdder _bytes_read = new LongAdder();
+    private final LongAdder _frames_decoded = new LongAdder();
+    private final LongAdder _frames_dropped = new LongAdder();
+    private final LongAdder _frames_duplicated = new LongAdder();
+    private final LongAdder _native_bytes = new LongAdder();
+
+    private H5JMetrics() {
+        for (int i = 0; i < _phases.length; i++) {
+            _phases[i] = new LatencyHistogram();
+        }
+    }
+
+    public static H5JMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return whether to count; loaders test this before doing any work for
+     *         the metrics.
+     */
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Start timing a phase.
+     *
+     * @param timings per-load timings, or null.
+     * @return start time, or 0 if nothing is recording.
+     */
+    public static long mark(LoadTimings timings) {
+        return timings != null || enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Finish timing a phase begun with mark().
+     */
+    public static void record(LoadTimings timings, LoadTimings.Phase phase, long start) {
+        if (timings == null && !enabled) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        if (timings != null) {
+            timings.add(phase, nanos);
+        }
+        if (enabled) {
+            INSTANCE._phases[phase.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * @return a Flight Recorder event for a whole load, to pass to endLoad().
+     */
+    public static Object beginLoad() {
+        if (enabled) {
+            INSTANCE._loads.increment();
+        }
+        return FlightRecorderEvents.LOAD.begin();
+    }
+
+    public static void endLoad(Object event, String file, int channels, long voxels, long bytesRead) {
+        FlightRecorderEvents.LOAD.commit(event, file, channels, voxels, bytesRead);
+    }
+
+    /**
+     * @return a Flight Recorder event for one channel, to pass to endChannel().
+     */
+    public static Object beginChannel() {
+        if (enabled) {
+            INSTANCE._channels.increment();
+        }
+        return FlightRecorderEvents.CHANNEL.begin();
+    }
+
+    public static void endChannel(Object event, String channel, long framesDecoded, long framesDuplicated, long bytesRead) {
+        FlightRecorderEvents.CHANNEL.commit(event, channel, framesDecoded, framesDuplicated, bytesRead);
+    }
+
+    public void addBytesRead(long bytes) {
+        _bytes_read.add(bytes);
+    }
+
+    public void addFramesDecoded(long frames) {
+        _frames_decoded.add(frames);
+    }
+
+    /**
+     * @param frames declared frames that the decoder did not give.
+     */
+    public void addFramesDropped(long frames) {
+        _frames_dropped.add(frames);
+    }
+
+    /**
+     * @param frames planes filled in by duplicating the last, for dropped
+     *               frames; none are when no frame was decoded at all.
+     */
+    public void addFramesDuplicated(long frames) {
+        _frames_duplicated.add(frames);
+    }
+
+    public void addNativeBytesAllocated(long bytes) {
+        _native_bytes.add(bytes);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    @Override
+    public long getLoads() {
+        return _loads.sum();
+    }
+
+    @Override
+    public long getChannels() {
+        return _channels.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return _bytes_read.sum();
+    }
+
+    @Override
+    public long getFramesDecoded() {
+        return _frames_decoded.sum();
+    }
+
+    @Override
+    public long getFramesDropped() {
+        return _frames_dropped.sum();
+    }
+
+    @Override
+    public long getFramesDuplicated() {
+        return _frames_duplicated.sum();
+    }
+
+    @Override
+    public long getNativeBytesAllocated() {
+        return _native_bytes.sum();
+    }
+
+    @Override
+    public long getNativeLiveBytes() {
+        return NativeResources.getLiveBytes();
+    }
+
+    @Override
+    public long getNativeLiveHandles() {
+        return NativeResources.getLiveHandles();
+    }
+
+    @Override
+    public Map<String, Long> getNativeLiveHandlesByKind() {
+        return NativeResources.getLiveHandlesByKind();
+    }
+
+    @Override
+    public Map<String, PhaseStats> getPhases() {
+        Map<String, PhaseStats> phases = new LinkedHashMap<String, PhaseStats>();
+        for (LoadTimings.Phase phase : LoadTimings.Phase.values()) {
+            phases.put(phase.name(), new PhaseStats(_phases[phase.ordinal()]));
+        }
+        return phases;
+    }
+
+    public LatencyHistogram getHistogram(LoadTimings.Phase phase) {
+        return _phases[phase.ordinal()];
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : _phases) {
+            histogram.reset();
+        }
+        _loads.reset();
+        _channels.reset();
+        _bytes_read.reset();
+        _frames_decoded.reset();
+        _frames_dropped.reset();
+        _frames_duplicated.reset();
+        _native_bytes.reset();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.Map;
+
+/**
+ * Management interface of H5JMetrics, registered as
+ * org.janelia.it.h5j:type=H5JMetrics.
+ */
+public interface H5JMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getLoads();
+
+    long getChannels();
+
+    long getBytesRead();
+
+    long getFramesDecoded();
+
+    /** Frames the stream declared but the decoder did not give. */
+    long getFramesDropped();
+
+    /** Planes filled in by repeating the last one, for dropped frames. */
+    long getFramesDuplicated();
+
+    long getNativeBytesAllocated();
+
+    /** Native bytes allocated by loaders and not yet freed; see NativeResources. */
+    long getNativeLiveBytes();
+
+    /** Native handles allocated by loaders and not yet freed. */
+    long getNativeLiveHandles();
+
+    /** Live native handles, by kind. */
+    Map<String, Long> getNativeLiveHandlesByKind();
+
+    /** Latency per phase, by phase name. */
+    Map<String, H5JMetrics.PhaseStats> getPhases();
+
+    void reset();
+}
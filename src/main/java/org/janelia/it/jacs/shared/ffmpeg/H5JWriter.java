@@ -0,0 +1,217 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import ch.systemsx.cisd.hdf5.*;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.macro.Interpreter;
+import ij.measure.Calibration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This will write H5J files, as H5JLoader reads them: one HEVC movie per
+ * channel, in /Channels/Channel_N, with the padding and volume size as
+ * attributes of /Channels, and voxel size and unit as attributes of the
+ * root.  Channels are encoded in parallel, straight from the planes given;
+ * nothing uncompressed goes to disk.
+ */
+public class H5JWriter
+{
+    public static final int POOL_TIMEOUT_IN_SECONDS = 1200;
+
+    private static final String VX_SIZE_ATTRIB = "voxel_size";
+    private static final String UNIT_ATTRIB = "unit";
+    private static final String PAD_RIGHT_ATTRIB = "pad_right";
+    private static final String PAD_BOTTOM_ATTRIB = "pad_bottom";
+    private static final String WIDTH_ATTRIB = "width";
+    private static final String HEIGHT_ATTRIB = "height";
+    private static final String FRAMES_ATTRIB = "frames";
+    private static final String CHANNELS_QUERY_PATH = "/Channels";
+    private static final String CHANNEL_PREFIX = "Channel_";
+    private static final String OPAQUE_TAG = "mp4";
+
+    /**
+     * Hands out the planes to encode; called from the encoding threads, one
+     * thread per channel.
+     */
+    public static interface PlaneSupplier {
+        /**
+         * @param channel 0-based channel.
+         * @param z 0-based plane.
+         * @return width x height samples: byte[] for 8-bit, short[] for 16-bit.
+         */
+        Object plane(int channel, int z);
+    }
+
+    private String _filename;
+    private double[] _spacings;
+    private String _unit;
+    private String _encoder_name = FFMpegEncoder.DEFAULT_ENCODER;
+    private String _preset = FFMpegEncoder.DEFAULT_PRESET;
+    private int _crf = FFMpegEncoder.DEFAULT_CRF;
+    private int _threads = Runtime.getRuntime().availableProcessors();
+
+    public H5JWriter(String filename) {
+        this._filename = filename;
+    }
+
+    public void setSpacings(double x, double y, double z) {
+        this._spacings = new double[] { x, y, z };
+    }
+
+    public void setUnit(String unit) {
+        this._unit = unit;
+    }
+
+    public void setEncoderName(String name) {
+        this._encoder_name = name;
+    }
+
+    public void setPreset(String preset) {
+        this._preset = preset;
+    }
+
+    public void setCrf(int crf) {
+        this._crf = crf;
+    }
+
+    /**
+     * @param threads total threads to spend, shared out among the channels.
+     */
+    public void setThreads(int threads) {
+        this._threads = Math.max(1, threads);
+    }
+
+    /**
+     * Write a single time point of an image.  8 and 16-bit images are written
+     * channel for channel; RGB images as three 8-bit channels.  Calibration
+     * goes into voxel_size and unit.  16-bit images must hold 12-bit data:
+     * a sample above 4095 fails the write, rather than being clipped.
+     *
+     * @param imp image to save.
+     */
+    public void write(final ImagePlus imp) throws Exception {
+        if (imp.getNFrames() > 1) {
+            throw new IllegalArgumentException("H5J holds a single time point; " + imp.getTitle() + " has " + imp.getNFrames() + ".");
+        }
+        Calibration calibration = imp.getCalibration();
+        setSpacings(calibration.pixelWidth, calibration.pixelHeight, calibration.pixelDepth);
+        setUnit(calibration.getUnit());
+
+        final ij.ImageStack stack = imp.getStack();
+        final int depth = imp.getNSlices();
+        switch (imp.getBitDepth()) {
+            case 8:
+            case 16:
+                write(imp.getWidth(), imp.getHeight(), depth, imp.getNChannels(), imp.getBitDepth() / 8,
+                        (channel, z) -> stack.getPixels(imp.getStackIndex(channel + 1, z + 1, 1)));
+                break;
+            case 24:
+                write(imp.getWidth(), imp.getHeight(), depth, 3, 1, (channel, z) -> {
+                    int[] rgb = (int[]) stack.getPixels(imp.getStackIndex(1, z + 1, 1));
+                    byte[] plane = new byte[rgb.length];
+                    int shift = (2 - channel) * 8;
+                    for (int i = 0; i < rgb.length; i++) {
+                        plane[i] = (byte) (rgb[i] >> shift);
+                    }
+                    return plane;
+                });
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected bit depth " + imp.getBitDepth() + ", 8, 16 or RGB acceptable.");
+        }
+    }
+
+    /**
+     * Write raw planes.
+     *
+     * @param width plane width, unpadded.
+     * @param height plane height, unpadded.
+     * @param depth planes per channel.
+     * @param channels channel count.
+     * @param bytesPerPixel 1 or 2.
+     * @param planes gives each plane of each channel.
+     */
+    public void write(final int width, final int height, final int depth, final int channels,
+                      final int bytesPerPixel, final PlaneSupplier planes) throws Exception {
+        final int threadsPerChannel = Math.max(1, _threads / channels);
+        ExecutorService encodePool = Executors.newFixedThreadPool(Math.min(channels, _threads));
+        List<Future<byte[]>> movies = new ArrayList<>();
+        try {
+            for (int c = 0; c < channels; c++) {
+                final int channel = c;
+                movies.add(encodePool.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        return encodeChannel(width, height, depth, bytesPerPixel, threadsPerChannel, channel, planes);
+                    }
+                }));
+            }
+
+            IHDF5Writer writer = HDF5Factory.configure(_filename).overwrite().writer();
+            try {
+                writer.object().createGroup(CHANNELS_QUERY_PATH);
+                // Written in order as each is ready; the rest carry on encoding.
+                for (int c = 0; c < channels; c++) {
+                    byte[] movie = movies.get(c).get();
+                    writer.opaque().writeArray(CHANNELS_QUERY_PATH + "/" + CHANNEL_PREFIX + c, OPAQUE_TAG, movie);
+                    if (!Interpreter.isBatchMode()) {
+                        IJ.showProgress(c + 1, channels);
+                    }
+                }
+                int paddedWidth = FFMpegEncoder.padded(width);
+                int paddedHeight = FFMpegEncoder.padded(height);
+                writer.int64().setAttr(CHANNELS_QUERY_PATH, WIDTH_ATTRIB, paddedWidth);
+                writer.int64().setAttr(CHANNELS_QUERY_PATH, HEIGHT_ATTRIB, paddedHeight);
+                writer.int64().setAttr(CHANNELS_QUERY_PATH, FRAMES_ATTRIB, depth);
+                writer.int64().setAttr(CHANNELS_QUERY_PATH, PAD_RIGHT_ATTRIB, paddedWidth - width);
+                writer.int64().setAttr(CHANNELS_QUERY_PATH, PAD_BOTTOM_ATTRIB, paddedHeight - height);
+                if (_spacings != null) {
+                    writer.float64().setArrayAttr("/", VX_SIZE_ATTRIB, _spacings);
+                }
+                if (_unit != null && !_unit.isEmpty()) {
+                    writer.string().setAttr("/", UNIT_ATTRIB, _unit);
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (ExecutionException ee) {
+            throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+        } finally {
+            encodePool.shutdownNow();
+            encodePool.awaitTermination(POOL_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private byte[] encodeChannel(int width, int height, int depth, int bytesPerPixel, int threads,
+                                 int channel, PlaneSupplier planes) throws Exception {
+        FFMpegEncoder encoder = new FFMpegEncoder(width, height, bytesPerPixel);
+        try {
+            encoder.setEncoderName(_encoder_name);
+            encoder.setPreset(_preset);
+            encoder.setCrf(_crf);
+            encoder.setThreadCount(threads);
+            encoder.start();
+            for (int z = 0; z < depth; z++) {
+                encoder.encode(planes.plane(channel, z));
+            }
+            return encoder.finish();
+        } finally {
+            encoder.close();
+        }
+    }
+}
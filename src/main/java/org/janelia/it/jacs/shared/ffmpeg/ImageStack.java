@@ -7,7 +7,7 @@
 package org.janelia.it.jacs.shared.ffmpeg;
 
 import java.util.ArrayList;
-import org.bytedeco.javacpp.BytePointer;
+import java.util.List;
 
 /**
  * A stack of video frames read from FFmpeg
@@ -95,7 +95,7 @@ public class ImageStack
     public int getNumComponents()
     {
         if ( _image.size() > 0 )
-            return _image.get(0).imageBytes.size();
+            return _image.get(0).getNumComponents();
         else
             return 0;
     }
@@ -137,34 +137,96 @@ public class ImageStack
     	this._unit = unit;
     }
 
+    /**
+     * Where planes added to this stack are kept.  Must be set before the
+     * first frame is added.
+     *
+     * @param mode - HEAP (default), DIRECT, MAPPED or COMPACT
+     */
+    public void setStorageMode(PlaneStorage.Mode mode)
+    {
+        this._storage_mode = mode == null ? PlaneStorage.Mode.HEAP : mode;
+    }
+
+    public PlaneStorage.Mode getStorageMode()
+    {
+        return _storage_mode;
+    }
+
+    /**
+     * Use a specific storage for planes added to this stack, rather than one
+     * created from the storage mode.  The stack releases it on release().
+     *
+     * @param storage - where to put planes; null to keep them on the heap
+     */
+    public void setStorage(PlaneStorage storage)
+    {
+        this._storage = storage;
+        if (storage != null && !_storages.contains(storage)) {
+            _storages.add(storage);
+        }
+    }
+
+    /**
+     * Hint for how many planes will be added, so that storage may be
+     * reserved once rather than grown.
+     *
+     * @param planes - expected number of planes
+     */
+    public void setExpectedPlanes(int planes)
+    {
+        this._expected_planes = planes;
+    }
+
+    /**
+     * @return bytes reserved by the storages of this stack: outside the heap,
+     *         or compressed on it
+     */
+    public long getStorageBytes()
+    {
+        long total = 0;
+        for (PlaneStorage storage : _storages) {
+            total += storage.getReservedBytes();
+        }
+        return total;
+    }
+
     /**
      * Return a byte arryay of the pixels of the ith frame/image in the stack
      * @param i - image index
      * @param component - component index
      * @return the bytes representing the image
      */
-    public byte[] image(int i, int component) { return _image.get(i).imageBytes.get(component); }
+    public byte[] image(int i, int component) { return _image.get(i).getComponent(component); }
 
     /**
-     * Return a byte array of the pixels of the ith frame/image in the stack
+     * Return a byte array of the pixels of the ith frame/image in the stack,
+     * the components of each pixel side by side.  Built in one pass over
+     * the pixels; components the frame does not have are left zero.
      * @param idx - image index
      * @param component - component index
      * @param count - number of components to use
      * @return the bytes representing the image
      */
     public byte[] interleave(int idx, int component, int count) {
-        byte[] result = new byte[_width * _height * count];
+        int sample = _bytes_per_pixel > 0 ? _bytes_per_pixel : 1;
+        int pixels = _width * _height;
+        byte[] result = new byte[pixels * count * sample];
         Frame f = _image.get(idx);
+        byte[][] planes = new byte[count][];
         for ( int j = 0; j < count; j++ ) {
-            if ( component+j > f.imageBytes.size() ) {
-                for ( int i = 0; i < _width * _height; i++ )
-                    result[count*i + j] = 0;
-            } else {
-                byte[] bytes = f.imageBytes.get(component + j);
-                for ( int i = 0; i < _width * _height; i++ )
-                {
-                    result[count * i + j] = bytes[i];
+            if ( component + j < f.getNumComponents() )
+                planes[j] = f.getComponent(component + j);
+        }
+        int k = 0;
+        for ( int i = 0; i < pixels * sample; i += sample ) {
+            for ( int j = 0; j < count; j++ ) {
+                byte[] bytes = planes[j];
+                if ( bytes != null ) {
+                    for ( int b = 0; b < sample; b++ )
+                        result[k + b] = bytes[i + b];
                 }
+                k += sample;
             }
         }
         return result;
@@ -188,10 +250,20 @@ public class ImageStack
      * Add a Frame to the end of the stack
      * @param f - The Frame to add
      */
-    public void add(Frame f) { _image.add(f); }
+    public void add(Frame f) {
+        PlaneStorage storage = storage();
+        if (storage != null) {
+            for (int c = 0; c < f.getNumComponents(); c++) {
+                f.store(c, storage);
+            }
+        }
+        _image.add(f);
+    }
 
     /**
-     * Merge the channels from another ImageStack to the end of this one
+     * Merge the channels from another ImageStack to the end of this one.
+     * Its frames and planes pass to this stack, and it is left empty, so
+     * releasing it afterwards frees nothing this stack holds.
      * @param other - The other ImageStack to add
      */
     public void merge(ImageStack other) {
@@ -205,11 +277,29 @@ public class ImageStack
                 add(other.frame(i));
             }
         } else {
+            PlaneStorage storage = storage();
             for (int i = 0; i < other.getNumFrames(); i++)
             {
-                frame(i).imageBytes.add(other.frame(i).imageBytes.get(0));
+                Frame source = other.frame(i);
+                Frame target = frame(i);
+                if (source.isStored(0)) {
+                    target.addStored(source.getStorage(0), source.getSlot(0));
+                } else {
+                    target.imageBytes.add(source.imageBytes.get(0));
+                    if (storage != null) {
+                        target.store(target.getNumComponents() - 1, storage);
+                    }
+                }
             }
         }
+        for (PlaneStorage storage : other._storages) {
+            if (!_storages.contains(storage)) {
+                _storages.add(storage);
+            }
+        }
+        other._image.clear();
+        other._storages.clear();
+        other._storage = null;
     }
 
     /**
@@ -225,9 +315,29 @@ public class ImageStack
 
         _image.clear();
 
+        for (PlaneStorage storage : _storages) {
+            storage.release();
+        }
+        _storages.clear();
+        _storage = null;
+
         _height = 0;
         _width = 0;
     }
+
+    private PlaneStorage storage()
+    {
+        if (_storage == null && _storage_mode != PlaneStorage.Mode.HEAP) {
+            if (_storage_mode == PlaneStorage.Mode.DIRECT) {
+                setStorage(new DirectPlaneStorage(_expected_planes));
+            } else if (_storage_mode == PlaneStorage.Mode.COMPACT) {
+                setStorage(new CompactPlaneStorage());
+            } else {
+                setStorage(new MappedPlaneStorage());
+            }
+        }
+        return _storage;
+    }
     
     public void setInfo(String info) { this._info = info; }
     public String getInfo() { return this._info; }
@@ -248,5 +358,10 @@ public class ImageStack
 
     private ArrayList<Frame> _image = new ArrayList<Frame>();
 
+    private PlaneStorage.Mode _storage_mode = PlaneStorage.Mode.HEAP;
+    private PlaneStorage _storage;
+    private int _expected_planes;
+    private List<PlaneStorage> _storages = new ArrayList<PlaneStorage>();
+
 }
 
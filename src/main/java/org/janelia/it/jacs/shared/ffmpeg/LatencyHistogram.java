@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations, in power-of-two nanosecond buckets.
+ * Percentiles are given as the upper bound of their bucket, so are within
+ * a factor of two; plenty to tell a 1 ms phase from a 100 ms one.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] _buckets = new LongAdder[BUCKETS];
+    private final LongAdder _count = new LongAdder();
+    private final LongAdder _total = new LongAdder();
+    private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            _buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        // Bucket i holds [2^i, 2^(i+1)); 0 goes in with 1.
+        _buckets[nanos == 0 ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(nanos)].increment();
+        _count.increment();
+        _total.add(nanos);
+        _max.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return _count.sum();
+    }
+
+    public long getTotalNanos() {
+        return _total.sum();
+    }
+
+    public long getMaxNanos() {
+        return _max.get();
+    }
+
+    /**
+     * @param fraction eg. 0.99 for the 99th percentile.
+     * @return upper bound of the bucket holding that percentile, in nanos.
+     */
+    public long getPercentileNanos(double fraction) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += _buckets[i].sum();
+            if (seen >= rank) {
+                return i >= 62 ? Long.MAX_VALUE : Math.min((1L << (i + 1)) - 1, getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    public void reset() {
+        for (LongAdder bucket : _buckets) {
+            bucket.reset();
+        }
+        _count.reset();
+        _total.reset();
+        _max.reset();
+    }
+}
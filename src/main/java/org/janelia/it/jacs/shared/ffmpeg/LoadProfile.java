@@ -0,0 +1,471 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The knobs that tune a load to the machine it runs on: decoder threads,
+ * assembly parallelism, cache sizes, the scaler, where planes are kept, and
+ * how much memory a load may take.  Every load path starts from
+ * getDefault(), so one deployment can be tuned without touching code.
+ *
+ * The default profile is read, once, from a properties file named by the
+ * system property h5j.profile, if given, and then from system properties
+ * of the same names prefixed with "h5j.", eg. -Dh5j.codec.threads=16.
+ * Macro options name them with underscores, eg. codec_threads=16.
+ */
+public class LoadProfile {
+    public static final String PROPERTY_PREFIX = "h5j.";
+    public static final String FILE_PROPERTY = PROPERTY_PREFIX + "profile";
+
+    public static final String CODEC_THREADS = "codec.threads";
+    public static final String ASSEMBLY_THREADS = "assembly.threads";
+    public static final String POOL_TIMEOUT = "pool.timeout";
+    public static final String SHARED_DECODERS = "decoder.pool";
+    public static final String DECODER_POOL_SIZE = "decoder.pool.size";
+    public static final String SERIES_CACHE = "series.cache";
+    public static final String SCALER = "scaler";
+    public static final String STORAGE = "storage";
+    public static final String FAST_OPEN = "fast.open";
+    public static final String MEMORY_BUDGET = "memory.budget";
+    public static final String FRAME_RATE = "frame.rate";
+    public static final String PREFETCH_BUDGET = "prefetch.budget";
+    public static final String CONVERT_THREADS = "convert.threads";
+
+    /** Every setting, by its name in files and (prefixed) system properties. */
+    public static final List<String> KEYS = Collections.unmodifiableList(Arrays.asList(
+            CODEC_THREADS, ASSEMBLY_THREADS, POOL_TIMEOUT, SHARED_DECODERS, DECODER_POOL_SIZE,
+            SERIES_CACHE, SCALER, STORAGE, FAST_OPEN, MEMORY_BUDGET, FRAME_RATE, PREFETCH_BUDGET,
+            CONVERT_THREADS));
+
+    public static final int DEFAULT_ASSEMBLY_THREADS = 8;
+    public static final int DEFAULT_POOL_TIMEOUT_SECONDS = 1200;
+    public static final int DEFAULT_DECODER_POOL_SIZE = 8;
+    public static final int DEFAULT_SERIES_CACHE = 4;
+    public static final double DEFAULT_FRAME_RATE = 20;
+    public static final long DEFAULT_PREFETCH_BUDGET = 256L << 20;
+    public static final int DEFAULT_CONVERT_THREADS = 2;
+
+    /**
+     * libswscale algorithms.  Decoded planes are converted, not resized, so
+     * this matters mostly for speed.
+     */
+    public static enum Scaler {
+        FAST_BILINEAR, BILINEAR, BICUBIC, POINT, AREA
+    }
+
+    private static volatile LoadProfile defaultProfile = null;
+
+    private int codecThreads = 0;
+    private int assemblyThreads = DEFAULT_ASSEMBLY_THREADS;
+    private int poolTimeoutSeconds = DEFAULT_POOL_TIMEOUT_SECONDS;
+    private boolean sharedDecoders = false;
+    private int decoderPoolSize = DEFAULT_DECODER_POOL_SIZE;
+    private int seriesCache = DEFAULT_SERIES_CACHE;
+    private Scaler scaler = Scaler.BICUBIC;
+    private PlaneStorage.Mode storage = PlaneStorage.Mode.HEAP;
+    private boolean fastOpen = false;
+    private long memoryBudget = 0;
+    private double frameRate = DEFAULT_FRAME_RATE;
+    private long prefetchBudget = DEFAULT_PREFETCH_BUDGET;
+    private int convertThreads = DEFAULT_CONVERT_THREADS;
+
+    /**
+     * The profile every load starts from.  Change it through setDefault(),
+     * or on a copy().
+     *
+     * @return read from the profile file and system properties, on first
+     *         use.
+     */
+    public static LoadProfile getDefault() {
+        LoadProfile profile = defaultProfile;
+        if (profile == null) {
+            synchronized (LoadProfile.class) {
+                if (defaultProfile == null) {
+                    defaultProfile = fromSystemProperties();
+                }
+                profile = defaultProfile;
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * @param profile for loads started from now on; null to read the
+     *                system properties again on next use.
+     */
+    public static void setDefault(LoadProfile profile) {
+        synchronized (LoadProfile.class) {
+            defaultProfile = profile;
+        }
+    }
+
+    /**
+     * The profile file named by h5j.profile, if any, then the h5j.*
+     * system properties.  A file that cannot be read, or a value that
+     * cannot be parsed, is reported and otherwise ignored, so that a bad
+     * setting never stops a load.
+     */
+    public static LoadProfile fromSystemProperties() {
+        LoadProfile profile = new LoadProfile();
+        String path = System.getProperty(FILE_PROPERTY);
+        if (path != null && !path.trim().isEmpty()) {
+            try {
+                profile.apply(readProperties(new File(path.trim())));
+            } catch (IOException | IllegalArgumentException ex) {
+                System.err.println("Ignoring H5J load profile " + path + ": " + ex.getMessage());
+            }
+        }
+        for (String key : KEYS) {
+            String value = System.getProperty(PROPERTY_PREFIX + key);
+            if (value != null) {
+                try {
+                    profile.set(key, value);
+                } catch (IllegalArgumentException iae) {
+                    System.err.println("Ignoring -D" + PROPERTY_PREFIX + key + ": " + iae.getMessage());
+                }
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * @param file properties, named as in KEYS, with or without the h5j.
+     *             prefix.
+     * @return the defaults, overridden by the file.
+     * @throws IOException if the file cannot be read.
+     * @throws IllegalArgumentException if a value cannot be parsed.
+     */
+    public static LoadProfile load(File file) throws IOException {
+        return new LoadProfile().apply(readProperties(file));
+    }
+
+    private static Map<String, String> readProperties(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        Map<String, String> settings = new HashMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            String key = name.startsWith(PROPERTY_PREFIX) ? name.substring(PROPERTY_PREFIX.length()) : name;
+            settings.put(key, properties.getProperty(name));
+        }
+        return settings;
+    }
+
+    /**
+     * @param settings values by key, as in KEYS; other keys are ignored.
+     * @return this profile.
+     * @throws IllegalArgumentException if a value cannot be parsed.
+     */
+    public LoadProfile apply(Map<String, String> settings) {
+        for (String key : KEYS) {
+            String value = settings.get(key);
+            if (value != null) {
+                set(key, value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @param key as in KEYS.
+     * @return its name as a macro option: dots become underscores.
+     */
+    public static String macroKey(String key) {
+        return key.replace('.', '_');
+    }
+
+    /**
+     * @param key as in KEYS.
+     * @param value numbers; memory sizes may end in k, m or g; booleans as
+     *              true or false; enums by name, in any case.
+     * @throws IllegalArgumentException for unknown keys or bad values.
+     */
+    public void set(String key, String value) {
+        if (!KEYS.contains(key)) {
+            throw new IllegalArgumentException("No load profile setting " + key);
+        }
+        String text = value.trim();
+        try {
+            switch (key) {
+                case CODEC_THREADS:
+                    setCodecThreads(Integer.parseInt(text));
+                    break;
+                case ASSEMBLY_THREADS:
+                    setAssemblyThreads(Integer.parseInt(text));
+                    break;
+                case POOL_TIMEOUT:
+                    setPoolTimeoutSeconds(Integer.parseInt(text));
+                    break;
+                case SHARED_DECODERS:
+                    setSharedDecoders(parseBoolean(text));
+                    break;
+                case DECODER_POOL_SIZE:
+                    setDecoderPoolSize(Integer.parseInt(text));
+                    break;
+                case SERIES_CACHE:
+                    setSeriesCache(Integer.parseInt(text));
+                    break;
+                case SCALER:
+                    setScaler(Scaler.valueOf(text.toUpperCase(Locale.ROOT)));
+                    break;
+                case STORAGE:
+                    setStorage(PlaneStorage.Mode.valueOf(text.toUpperCase(Locale.ROOT)));
+                    break;
+                case FAST_OPEN:
+                    setFastOpen(parseBoolean(text));
+                    break;
+                case MEMORY_BUDGET:
+                    setMemoryBudget(parseBytes(text));
+                    break;
+                case FRAME_RATE:
+                    setFrameRate(Double.parseDouble(text));
+                    break;
+                case PREFETCH_BUDGET:
+                    setPrefetchBudget(parseBytes(text));
+                    break;
+                case CONVERT_THREADS:
+                    setConvertThreads(Integer.parseInt(text));
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Cannot set " + key + " to '" + value + "'", ex);
+        }
+    }
+
+    private static boolean parseBoolean(String text) {
+        if (text.equalsIgnoreCase("true")) {
+            return true;
+        } else if (text.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException("Not true or false");
+    }
+
+    private static long parseBytes(String text) {
+        long multiplier = 1;
+        char unit = Character.toLowerCase(text.charAt(text.length() - 1));
+        if (unit == 'k' || unit == 'm' || unit == 'g') {
+            multiplier = unit == 'k' ? 1L << 10 : unit == 'm' ? 1L << 20 : 1L << 30;
+            text = text.substring(0, text.length() - 1).trim();
+        }
+        return Long.parseLong(text) * multiplier;
+    }
+
+    /**
+     * @return a profile of the same settings, to change without affecting
+     *         this one.
+     */
+    public LoadProfile copy() {
+        LoadProfile copy = new LoadProfile();
+        copy.codecThreads = codecThreads;
+        copy.assemblyThreads = assemblyThreads;
+        copy.poolTimeoutSeconds = poolTimeoutSeconds;
+        copy.sharedDecoders = sharedDecoders;
+        copy.decoderPoolSize = decoderPoolSize;
+        copy.seriesCache = seriesCache;
+        copy.scaler = scaler;
+        copy.storage = storage;
+        copy.fastOpen = fastOpen;
+        copy.memoryBudget = memoryBudget;
+        copy.frameRate = frameRate;
+        copy.prefetchBudget = prefetchBudget;
+        copy.convertThreads = convertThreads;
+        return copy;
+    }
+
+    /**
+     * @return decoder threads per channel; 0 for one per processor.
+     */
+    public int getCodecThreads() {
+        return codecThreads;
+    }
+
+    /**
+     * @return getCodecThreads(), or the processor count in place of 0.
+     */
+    public int resolveCodecThreads() {
+        return codecThreads > 0 ? codecThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public void setCodecThreads(int codecThreads) {
+        this.codecThreads = Math.max(0, codecThreads);
+    }
+
+    /**
+     * @return threads turning decoded planes into images: copying them out
+     *         of the stack, and rendering RGB.
+     */
+    public int getAssemblyThreads() {
+        return assemblyThreads;
+    }
+
+    /**
+     * @param assemblyThreads 0 for one per processor.
+     */
+    public void setAssemblyThreads(int assemblyThreads) {
+        this.assemblyThreads = assemblyThreads > 0 ? assemblyThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return how long to wait for a pool of assembly work.
+     */
+    public int getPoolTimeoutSeconds() {
+        return poolTimeoutSeconds;
+    }
+
+    public void setPoolTimeoutSeconds(int poolTimeoutSeconds) {
+        this.poolTimeoutSeconds = Math.max(1, poolTimeoutSeconds);
+    }
+
+    /**
+     * @return whether loads borrow decoders from DecoderPool.shared().
+     */
+    public boolean isSharedDecoders() {
+        return sharedDecoders;
+    }
+
+    public void setSharedDecoders(boolean sharedDecoders) {
+        this.sharedDecoders = sharedDecoders;
+    }
+
+    /**
+     * @return idle decoders DecoderPool.shared() keeps; read when it is
+     *         first used.
+     */
+    public int getDecoderPoolSize() {
+        return decoderPoolSize;
+    }
+
+    public void setDecoderPoolSize(int decoderPoolSize) {
+        this.decoderPoolSize = Math.max(0, decoderPoolSize);
+    }
+
+    /**
+     * @return timepoints a time series keeps decoded.
+     */
+    public int getSeriesCache() {
+        return seriesCache;
+    }
+
+    public void setSeriesCache(int seriesCache) {
+        this.seriesCache = Math.max(1, seriesCache);
+    }
+
+    public Scaler getScaler() {
+        return scaler;
+    }
+
+    public void setScaler(Scaler scaler) {
+        this.scaler = scaler;
+    }
+
+    /**
+     * @return where decoded planes are kept; COMPACT has FijiAdapter show
+     *         a virtual stack over them.
+     */
+    public PlaneStorage.Mode getStorage() {
+        return storage;
+    }
+
+    public void setStorage(PlaneStorage.Mode storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * @return whether to probe only the first channel; see
+     *         H5JLoader.setFastOpen().
+     */
+    public boolean isFastOpen() {
+        return fastOpen;
+    }
+
+    public void setFastOpen(boolean fastOpen) {
+        this.fastOpen = fastOpen;
+    }
+
+    /**
+     * @return bytes a load may hold decoded; 0 for no limit.  A volume
+     *         that would not fit is kept in COMPACT storage instead, and a
+     *         time series caches fewer timepoints.
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = Math.max(0, memoryBudget);
+    }
+
+    /**
+     * @param decodedBytes what a load would hold, fully decoded.
+     * @return whether that is over the memory budget.
+     */
+    public boolean exceedsMemoryBudget(long decodedBytes) {
+        return memoryBudget > 0 && decodedBytes > memoryBudget;
+    }
+
+    /**
+     * @return frame rate given to the calibration of loaded images.
+     */
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+    public void setFrameRate(double frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * @return compressed bytes that may be read ahead of decoding; 0 reads
+     *         each channel only when it is decoded.
+     */
+    public long getPrefetchBudget() {
+        return prefetchBudget;
+    }
+
+    public void setPrefetchBudget(long prefetchBudget) {
+        this.prefetchBudget = Math.max(0, prefetchBudget);
+    }
+
+    /**
+     * @return threads per channel converting and copying decoded frames,
+     *         while the decoder goes on; 0 does both on the decoding thread.
+     */
+    public int getConvertThreads() {
+        return convertThreads;
+    }
+
+    public void setConvertThreads(int convertThreads) {
+        this.convertThreads = Math.max(0, convertThreads);
+    }
+
+    @Override
+    public String toString() {
+        return "LoadProfile[" + CODEC_THREADS + "=" + codecThreads + ", " + ASSEMBLY_THREADS + "=" + assemblyThreads
+                + ", " + POOL_TIMEOUT + "=" + poolTimeoutSeconds + ", " + SHARED_DECODERS + "=" + sharedDecoders
+                + ", " + DECODER_POOL_SIZE + "=" + decoderPoolSize + ", " + SERIES_CACHE + "=" + seriesCache
+                + ", " + SCALER + "=" + scaler + ", " + STORAGE + "=" + storage + ", " + FAST_OPEN + "=" + fastOpen
+                + ", " + MEMORY_BUDGET + "=" + memoryBudget + ", " + FRAME_RATE + "=" + frameRate
+                + ", " + PREFETCH_BUDGET + "=" + prefetchBudget
+                + ", " + CONVERT_THREADS + "=" + convertThreads + "]";
+    }
+}
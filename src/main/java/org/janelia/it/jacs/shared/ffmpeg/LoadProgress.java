@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a load.  Loaders only store the fraction done, which costs a
+ * volatile write per plane; the listener is called from a timer at a fixed
+ * rate, and only when the fraction has changed.
+ */
+public class LoadProgress {
+    public static final long DEFAULT_INTERVAL_MS = 100;
+
+    public static interface Listener {
+        /**
+         * @param fraction of the load done, 0 to 1.
+         */
+        void progress(double fraction);
+
+        /**
+         * Called once, after the last progress(), when the load ends.
+         *
+         * @param completed true if the load succeeded; false if it was
+         *                  cancelled or failed, in which case the last
+         *                  fraction reported is as far as it got.
+         */
+        default void finished(boolean completed) {
+        }
+    }
+
+    private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "h5j-progress");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Listener _listener;
+    private final long _interval_ms;
+    private volatile double _fraction = 0;
+    private double _reported = -1;
+    private ScheduledFuture<?> _sampling;
+
+    public LoadProgress(Listener listener) {
+        this(listener, DEFAULT_INTERVAL_MS);
+    }
+
+    /**
+     * @param listener told of progress.
+     * @param intervalMs how often to sample.
+     */
+    public LoadProgress(Listener listener, long intervalMs) {
+        this._listener = listener;
+        this._interval_ms = intervalMs;
+    }
+
+    /**
+     * @param fraction of the load done, 0 to 1.
+     */
+    public void set(double fraction) {
+        _fraction = fraction;
+    }
+
+    public double get() {
+        return _fraction;
+    }
+
+    /**
+     * Begin sampling.
+     */
+    public synchronized void start() {
+        if (_sampling == null) {
+            _sampling = SAMPLER.scheduleAtFixedRate(this::sample, 0, _interval_ms, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop sampling, after telling the listener the final fraction.
+     */
+    public synchronized void stop() {
+        if (_sampling != null) {
+            _sampling.cancel(false);
+            _sampling = null;
+        }
+        sample();
+    }
+
+    /**
+     * Stop sampling at the end of a load, and tell the listener how it
+     * ended.  A completed load is reported at 1 first.
+     *
+     * @param completed false if the load was cancelled or failed.
+     */
+    public synchronized void finish(boolean completed) {
+        if (completed) {
+            set(1.0);
+        }
+        stop();
+        _listener.finished(completed);
+    }
+
+    private synchronized void sample() {
+        double fraction = _fraction;
+        if (fraction != _reported) {
+            _reported = fraction;
+            _listener.progress(fraction);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time spent in each phase of loading, summed over every thread and channel
+ * that records into it.  Loaders only look at the clock when given one of
+ * these, so leaving it unset costs nothing.
+ */
+public class LoadTimings {
+
+    public static enum Phase {
+        /** HDF5 read of a channel's compressed bytes. */
+        READ_ARRAY,
+        /** avformat_open_input. */
+        OPEN_INPUT,
+        /** avformat_find_stream_info. */
+        FIND_STREAM_INFO,
+        /** avcodec_send_packet / avcodec_receive_frame. */
+        DECODE,
+        /** sws_scale to BGR24 or GRAY16BE. */
+        SWS_SCALE,
+        /** Copy of the converted picture into a plane. */
+        EXTRACT_BYTES,
+        /** Building the ImagePlus from the decoded planes. */
+        ASSEMBLY
+    }
+
+    private final LongAdder[] _nanos = new LongAdder[Phase.values().length];
+    private final LongAdder[] _counts = new LongAdder[Phase.values().length];
+
+    public LoadTimings() {
+        for (int i = 0; i < _nanos.length; i++) {
+            _nanos[i] = new LongAdder();
+            _counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param phase what was timed.
+     * @param startNanos System.nanoTime() at the start of it.
+     */
+    public void record(Phase phase, long startNanos) {
+        _nanos[phase.ordinal()].add(System.nanoTime() - startNanos);
+        _counts[phase.ordinal()].increment();
+    }
+
+    /**
+     * @param phase what was timed.
+     * @param nanos how long it took.
+     */
+    public void add(Phase phase, long nanos) {
+        _nanos[phase.ordinal()].add(nanos);
+        _counts[phase.ordinal()].increment();
+    }
+
+    public long getNanos(Phase phase) {
+        return _nanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * @return how many times the phase was recorded.
+     */
+    public long getCount(Phase phase) {
+        return _counts[phase.ordinal()].sum();
+    }
+
+    public void reset() {
+        for (int i = 0; i < _nanos.length; i++) {
+            _nanos[i].reset();
+            _counts[i].reset();
+        }
+    }
+}
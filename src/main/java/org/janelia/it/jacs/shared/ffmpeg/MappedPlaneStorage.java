@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps planes in a memory-mapped temporary file, so a stack may be larger
+ * than physical memory and costs the heap almost nothing.  The file is
+ * mapped in segments, since a single mapping is limited to 2GB.  The file is
+ * deleted on release().
+ */
+public class MappedPlaneStorage implements PlaneStorage {
+
+    private static final long SEGMENT_TARGET_BYTES = 256L * 1024 * 1024;
+
+    private final File directory;
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private int planesPerSegment;
+    private int planeSize;
+    private volatile int planeCount;
+
+    /**
+     * Map planes into a temporary file in the default temp directory.
+     */
+    public MappedPlaneStorage() {
+        this(null);
+    }
+
+    /**
+     * @param directory where to create the backing file; null for default.
+     */
+    public MappedPlaneStorage(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized int store(byte[] plane) {
+        try {
+            if (planeSize == 0) {
+                open(plane.length);
+            } else if (plane.length != planeSize) {
+                throw new IllegalArgumentException("Plane of " + plane.length + " bytes differs from plane size " + planeSize);
+            }
+            int slot = planeCount;
+            int segment = slot / planesPerSegment;
+            if (segment == segments.size()) {
+                long segmentBytes = (long) planesPerSegment * planeSize;
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, segment * segmentBytes, segmentBytes));
+                NativeResources.allocated(NativeResources.Kind.PLANE_STORAGE, segmentBytes);
+            }
+            ByteBuffer target = segments.get(segment).duplicate();
+            target.position((slot % planesPerSegment) * planeSize);
+            target.put(plane);
+            planeCount = slot + 1;
+            return slot;
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to map plane storage file " + file, ioe);
+        }
+    }
+
+    @Override
+    public void read(int slot, byte[] dest) {
+        view(slot).get(dest, 0, planeSize);
+    }
+
+    @Override
+    public ByteBuffer view(int slot) {
+        if (slot < 0 || slot >= planeCount) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " not in [0," + planeCount + ")");
+        }
+        ByteBuffer segment;
+        synchronized (this) {
+            segment = segments.get(slot / planesPerSegment);
+        }
+        ByteBuffer view = segment.asReadOnlyBuffer();
+        int offset = (slot % planesPerSegment) * planeSize;
+        view.limit(offset + planeSize);
+        view.position(offset);
+        return view.slice();
+    }
+
+    @Override
+    public int getPlaneSize() {
+        return planeSize;
+    }
+
+    @Override
+    public int getPlaneCount() {
+        return planeCount;
+    }
+
+    @Override
+    public synchronized long getReservedBytes() {
+        return (long) segments.size() * planesPerSegment * planeSize;
+    }
+
+    @Override
+    public synchronized void release() throws Exception {
+        for (int i = 0; i < segments.size(); i++) {
+            NativeResources.freed(NativeResources.Kind.PLANE_STORAGE, (long) planesPerSegment * planeSize);
+        }
+        segments.clear();
+        planeCount = 0;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+        if (file != null) {
+            // Mappings are only dropped once collected; some platforms refuse
+            // to delete a file that is still mapped.
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            file = null;
+        }
+    }
+
+    private void open(int planeSize) throws IOException {
+        this.planeSize = planeSize;
+        this.planesPerSegment = (int) Math.max(1, Math.min(SEGMENT_TARGET_BYTES, Integer.MAX_VALUE) / planeSize);
+        file = File.createTempFile("h5j-planes", ".raw", directory);
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+}
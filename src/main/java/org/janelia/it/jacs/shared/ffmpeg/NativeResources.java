@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live native allocations of the loaders: FFmpeg contexts, frames and
+ * buffers, and off-heap plane storage.  Every allocation is counted when
+ * made and uncounted when freed, so that what is left after loads are
+ * closed is what leaked.  Always on; it is a couple of atomic adds per
+ * allocation, and allocations are per channel or per frame, not per pixel.
+ */
+public final class NativeResources {
+
+    public static enum Kind {
+        /** avio_alloc_context and its buffer. */
+        AVIO_CONTEXT,
+        /** avformat_alloc_context / avformat_open_input. */
+        FORMAT_CONTEXT,
+        /** avcodec_alloc_context3. */
+        CODEC_CONTEXT,
+        /** sws_getContext. */
+        SCALER,
+        /** av_frame_alloc, with any buffer of its own. */
+        FRAME,
+        /** JavaCPP callback thunks, of which there are few. */
+        CALLBACK,
+        /** Direct or mapped plane storage. */
+        PLANE_STORAGE
+    }
+
+    private static final AtomicLong[] HANDLES = new AtomicLong[Kind.values().length];
+    private static final AtomicLong[] BYTES = new AtomicLong[Kind.values().length];
+    private static final AtomicLong[] ALLOCATED = new AtomicLong[Kind.values().length];
+
+    static {
+        for (int i = 0; i < HANDLES.length; i++) {
+            HANDLES[i] = new AtomicLong();
+            BYTES[i] = new AtomicLong();
+            ALLOCATED[i] = new AtomicLong();
+        }
+    }
+
+    private NativeResources() {
+    }
+
+    /**
+     * @param kind what was allocated.
+     * @param bytes its size, if known and worth counting; else 0.
+     */
+    public static void allocated(Kind kind, long bytes) {
+        HANDLES[kind.ordinal()].incrementAndGet();
+        ALLOCATED[kind.ordinal()].incrementAndGet();
+        if (bytes != 0) {
+            BYTES[kind.ordinal()].addAndGet(bytes);
+        }
+        if (bytes > 0 && H5JMetrics.enabled()) {
+            H5JMetrics.get().addNativeBytesAllocated(bytes);
+        }
+    }
+
+    /**
+     * @param kind what was freed.
+     * @param bytes as given to allocated().
+     */
+    public static void freed(Kind kind, long bytes) {
+        HANDLES[kind.ordinal()].decrementAndGet();
+        if (bytes != 0) {
+            BYTES[kind.ordinal()].addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * @return native bytes allocated and not yet freed, over every kind.
+     */
+    public static long getLiveBytes() {
+        long total = 0;
+        for (AtomicLong bytes : BYTES) {
+            total += bytes.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return handles allocated and not yet freed, over every kind.
+     */
+    public static long getLiveHandles() {
+        long total = 0;
+        for (AtomicLong handles : HANDLES) {
+            total += handles.get();
+        }
+        return total;
+    }
+
+    public static long getLiveHandles(Kind kind) {
+        return HANDLES[kind.ordinal()].get();
+    }
+
+    public static long getLiveBytes(Kind kind) {
+        return BYTES[kind.ordinal()].get();
+    }
+
+    /**
+     * @return handles of the kind allocated so far, freed or not; what
+     *         reuse, as by DecoderPool, saves shows here.
+     */
+    public static long getAllocatedHandles(Kind kind) {
+        return ALLOCATED[kind.ordinal()].get();
+    }
+
+    /**
+     * @return live handles, by kind.
+     */
+    public static Map<String, Long> getLiveHandlesByKind() {
+        Map<String, Long> handles = new LinkedHashMap<String, Long>();
+        for (Kind kind : Kind.values()) {
+            handles.put(kind.name(), HANDLES[kind.ordinal()].get());
+        }
+        return handles;
+    }
+}
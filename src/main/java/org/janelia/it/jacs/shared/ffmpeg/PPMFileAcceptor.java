@@ -7,15 +7,20 @@
 
 package org.janelia.it.jacs.shared.ffmpeg;
 
+import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import org.bytedeco.javacpp.BytePointer;
 
 /**
+ * Writes frames to image00000.ppm and so on, in the working directory.
+ * FrameFileWriter does the same, and more, off the decoding thread.
+ *
  * @author fosterl
  */
 public class PPMFileAcceptor implements FFMPGByteAcceptor {
+    private static final int BUFFER_SIZE = 1 << 16;
     private int frameNum;
     private int pixelBytes;
     public PPMFileAcceptor() {
@@ -34,7 +39,7 @@ public class PPMFileAcceptor implements FFMPGByteAcceptor {
         // Open file
         OutputStream stream = null;
         try {
-            stream = new FileOutputStream(String.format(FILENAME_FORMAT,frameNum));
+            stream = new BufferedOutputStream(new FileOutputStream(String.format(FILENAME_FORMAT,frameNum)), BUFFER_SIZE);
             
             // Write header
             stream.write(("P6\n" + width + " " + height + "\n255\n").getBytes());
@@ -60,7 +65,7 @@ public class PPMFileAcceptor implements FFMPGByteAcceptor {
         // Open file
         OutputStream stream = null;
         try {
-            stream = new FileOutputStream(String.format(FILENAME_FORMAT,frameNum));
+            stream = new BufferedOutputStream(new FileOutputStream(String.format(FILENAME_FORMAT,frameNum)), BUFFER_SIZE);
 
             // Write header
             stream.write(("P6\n" + width + " " + height + "\n255\n").getBytes());
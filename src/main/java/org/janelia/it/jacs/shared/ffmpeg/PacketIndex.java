@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.Arrays;
+
+/**
+ * Where each plane of a video stream lives among its packets, found by
+ * demuxing the stream without decoding it.  Planes are numbered in
+ * presentation order; packets in decode order.  Used to decode a range of
+ * planes starting at the nearest preceding key frame, instead of from the
+ * top of the stream.
+ */
+public class PacketIndex {
+
+    private final boolean timestamped;
+    private final long[] sortedPts;
+    private final int[] keyPlanes;
+    private final int[] keyPackets;
+    private final int packetCount;
+
+    /**
+     * @param pts presentation timestamp of each packet, in decode order;
+     *            AV_NOPTS_VALUE entries make the index fall back to decoding
+     *            everything from the first packet.
+     * @param key whether each packet holds a key frame.
+     * @param noPts the value meaning "no timestamp".
+     */
+    public PacketIndex(long[] pts, boolean[] key, long noPts) {
+        packetCount = pts.length;
+        boolean usable = true;
+        for (long p : pts) {
+            if (p == noPts) {
+                usable = false;
+                break;
+            }
+        }
+        timestamped = usable;
+        if (!usable) {
+            // Plane order cannot be known without timestamps: decode only
+            // from the first packet, and number planes as they come out.
+            sortedPts = new long[0];
+            keyPlanes = new int[] { 0 };
+            keyPackets = new int[] { 0 };
+            return;
+        }
+        sortedPts = pts.clone();
+        Arrays.sort(sortedPts);
+
+        int keys = 0;
+        for (int i = 0; i < packetCount; i++) {
+            if (key[i] || i == 0) {
+                keys++;
+            }
+        }
+        int[] planes = new int[keys];
+        int[] packets = new int[keys];
+        int k = 0;
+        for (int i = 0; i < packetCount; i++) {
+            if (key[i] || i == 0) {
+                planes[k] = planeOf(pts[i]);
+                packets[k] = i;
+                k++;
+            }
+        }
+        keyPlanes = planes;
+        keyPackets = packets;
+    }
+
+    /**
+     * @return number of planes (video packets) in the stream.
+     */
+    public int getNumPlanes() {
+        return packetCount;
+    }
+
+    /**
+     * @return plane numbers of the key frames, in decode order.
+     */
+    public int[] getKeyPlanes() {
+        return keyPlanes.clone();
+    }
+
+    /**
+     * The most common distance between successive key frames; the natural
+     * Z depth of an independently decodable slab.
+     *
+     * @return GOP length in planes; the whole stack if there is one key frame.
+     */
+    public int getGopLength() {
+        if (keyPlanes.length < 2) {
+            return Math.max(1, packetCount);
+        }
+        int[] lengths = new int[keyPlanes.length - 1];
+        for (int i = 1; i < keyPlanes.length; i++) {
+            lengths[i - 1] = Math.abs(keyPlanes[i] - keyPlanes[i - 1]);
+        }
+        Arrays.sort(lengths);
+        int best = lengths[0];
+        int bestRun = 0;
+        int run = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            run = (i > 0 && lengths[i] == lengths[i - 1]) ? run + 1 : 1;
+            if (run > bestRun) {
+                bestRun = run;
+                best = lengths[i];
+            }
+        }
+        return Math.max(1, best);
+    }
+
+    /**
+     * @return whether every packet has a timestamp, so that planeOf() can
+     *         place decoded frames; if not, a decoder started from packet
+     *         0 gives plane n as its n-th frame out.
+     */
+    public boolean isTimestamped() {
+        return timestamped;
+    }
+
+    /**
+     * @param pts presentation timestamp of a decoded frame.
+     * @return its plane number, or -1 if no packet carries that timestamp,
+     *         or the index is not timestamped.
+     */
+    public int planeOf(long pts) {
+        int plane = Arrays.binarySearch(sortedPts, pts);
+        return plane < 0 ? -1 : plane;
+    }
+
+    /**
+     * The packet from which decoding must start so that the given plane is
+     * produced: that of the last key frame at or before the plane.
+     *
+     * @param plane plane number.
+     * @return packet number in decode order.
+     */
+    public int getStartPacket(int plane) {
+        int packet = 0;
+        int bestPlane = -1;
+        for (int k = 0; k < keyPlanes.length; k++) {
+            if (keyPlanes[k] <= plane && keyPlanes[k] > bestPlane) {
+                bestPlane = keyPlanes[k];
+                packet = keyPackets[k];
+            }
+        }
+        return packet;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Backing store for the decoded planes of an ImageStack.  By default planes
+ * live on the Java heap as one byte[] per component of each Frame; an
+ * implementation of this interface lets them live elsewhere (off-heap,
+ * memory-mapped, compressed, ...) while the ImageStack accessors keep working.
+ *
+ * All planes in one storage have the same size, fixed by the first store.
+ * Reads may happen concurrently with each other and with store().
+ */
+public interface PlaneStorage {
+
+    /**
+     * Where an ImageStack keeps its planes.
+     */
+    public static enum Mode {
+        /** One byte[] per plane on the Java heap (the original behavior). */
+        HEAP,
+        /** One contiguous native buffer, outside the Java heap. */
+        DIRECT,
+        /** A memory-mapped temporary file, for volumes larger than RAM. */
+        MAPPED,
+        /** On the heap, constant planes as one sample and the rest LZ4-compressed. */
+        COMPACT
+    }
+
+    /**
+     * Copy a plane into the storage.
+     *
+     * @param plane the plane bytes; not retained by the storage.
+     * @return the slot at which the plane may be read back.
+     */
+    int store(byte[] plane);
+
+    /**
+     * Copy a stored plane out of the storage.
+     *
+     * @param slot as returned by store().
+     * @param dest receives the plane; must hold at least getPlaneSize() bytes.
+     */
+    void read(int slot, byte[] dest);
+
+    /**
+     * A read-only view of a stored plane, without copying it.  The view is
+     * only valid until the storage is released, or grows on a later store().
+     *
+     * @param slot as returned by store().
+     * @return buffer positioned at the start of the plane.
+     */
+    ByteBuffer view(int slot);
+
+    /**
+     * @return size in bytes of each plane, or 0 if nothing stored yet.
+     */
+    int getPlaneSize();
+
+    /**
+     * @return number of planes stored.
+     */
+    int getPlaneCount();
+
+    /**
+     * @return bytes currently reserved by this storage.
+     */
+    long getReservedBytes();
+
+    /**
+     * Free everything held by this storage.  Slots are invalid afterwards.
+     */
+    void release() throws Exception;
+}
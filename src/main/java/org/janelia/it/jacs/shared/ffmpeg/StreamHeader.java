@@ -0,0 +1,176 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Size, bit depth and plane count of one channel's stream.  These are read
+ * from the MP4 boxes of the stream itself where it is HEVC, as H5JWriter
+ * writes it, so that FFmpeg is not loaded just to learn them; any other
+ * stream is opened with FFmpeg instead.
+ */
+public class StreamHeader {
+    private static final int BOX_HEADER = 8;
+    // Fields of a VisualSampleEntry, from the start of its body.
+    private static final int ENTRY_WIDTH = 24;
+    private static final int ENTRY_CHILDREN = 78;
+    // bitDepthLumaMinus8, from the start of the hvcC body.
+    private static final int HVCC_BIT_DEPTH = 17;
+
+    private final int _width;
+    private final int _height;
+    private final int _bytes_per_pixel;
+    private final int _frames;
+
+    public StreamHeader(int width, int height, int bytesPerPixel, int frames) {
+        this._width = width;
+        this._height = height;
+        this._bytes_per_pixel = bytesPerPixel;
+        this._frames = frames;
+    }
+
+    /**
+     * @param data a channel's compressed stream.
+     * @return its header, read from the MP4 boxes, or else by FFmpeg.
+     */
+    public static StreamHeader probe(byte[] data) throws Exception {
+        StreamHeader header = parse(data);
+        if (header != null) {
+            return header;
+        }
+        try (FFMpegLoader movie = new FFMpegLoader(data)) {
+            movie.setFastOpen(true);
+            movie.start();
+            long frames = movie.getDeclaredFrameCount();
+            if (frames <= 0) {
+                frames = movie.scanPackets().getNumPlanes();
+            }
+            header = new StreamHeader(movie.getImageWidth(), movie.getImageHeight(),
+                    movie.getImage().getBytesPerPixel(), (int) frames);
+            movie.release();
+            return header;
+        }
+    }
+
+    /**
+     * @param data a channel's compressed stream.
+     * @return its header, or null if it is not an MP4 holding HEVC.
+     */
+    public static StreamHeader parse(byte[] data) {
+        int[] found = new int[] { -1, -1, -1, -1 };
+        find(data, 0, data.length, found);
+        if (found[0] <= 0 || found[1] <= 0 || found[2] < 0 || found[3] <= 0) {
+            return null;
+        }
+        return new StreamHeader(found[0], found[1], found[2] > 0 ? 2 : 1, found[3]);
+    }
+
+    /**
+     * Walk the boxes in [start, end), into the containers on the way to the
+     * sample table, filling width, height, bit depth less 8, and sample count.
+     */
+    private static void find(byte[] data, int start, int end, int[] found) {
+        int offset = start;
+        while (offset + BOX_HEADER <= end) {
+            long size = readInt(data, offset) & 0xffffffffL;
+            String type = new String(data, offset + 4, 4, StandardCharsets.ISO_8859_1);
+            int header = BOX_HEADER;
+            if (size == 1) {
+                if (offset + 16 > end) {
+                    return;
+                }
+                size = ((long) readInt(data, offset + 8) << 32) | (readInt(data, offset + 12) & 0xffffffffL);
+                header = 16;
+            } else if (size == 0) {
+                size = end - offset;
+            }
+            if (size < header || offset + size > end) {
+                return;
+            }
+            int body = offset + header;
+            int boxEnd = (int) (offset + size);
+            switch (type) {
+                case "moov":
+                case "trak":
+                case "mdia":
+                case "minf":
+                case "stbl":
+                    find(data, body, boxEnd, found);
+                    break;
+                case "stsd":
+                    // Version and flags, entry count, then the entries.
+                    find(data, body + 8, boxEnd, found);
+                    break;
+                case "hev1":
+                case "hvc1":
+                    if (body + ENTRY_CHILDREN <= boxEnd) {
+                        found[0] = readShort(data, body + ENTRY_WIDTH);
+                        found[1] = readShort(data, body + ENTRY_WIDTH + 2);
+                        find(data, body + ENTRY_CHILDREN, boxEnd, found);
+                    }
+                    break;
+                case "hvcC":
+                    if (body + HVCC_BIT_DEPTH < boxEnd) {
+                        found[2] = data[body + HVCC_BIT_DEPTH] & 0x07;
+                    }
+                    break;
+                case "stsz":
+                    // Version and flags, sample size, sample count.
+                    if (body + 12 <= boxEnd) {
+                        found[3] = readInt(data, body + 8);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            offset = boxEnd;
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    /**
+     * @return padded width of the stream's planes.
+     */
+    public int getWidth() {
+        return _width;
+    }
+
+    /**
+     * @return padded height of the stream's planes.
+     */
+    public int getHeight() {
+        return _height;
+    }
+
+    /**
+     * @return 1, or 2 for data deeper than 8 bits.
+     */
+    public int getBytesPerPixel() {
+        return _bytes_per_pixel;
+    }
+
+    /**
+     * @return planes in the stream, as its container declares them.
+     */
+    public int getFrames() {
+        return _frames;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamHeader[" + _width + "x" + _height + "x" + _frames + ", " + _bytes_per_pixel + " bytes/pixel]";
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+package org.janelia.it.jacs.shared.ffmpeg;
+
+/**
+ * What probing one channel's stream found.  The channels of an H5J file
+ * share container, codec and geometry, so the others can be opened with
+ * this instead of being probed again.
+ */
+public class StreamHint {
+    /** Container of every H5J channel, as FFmpeg names the demuxer. */
+    public static final String INPUT_FORMAT = "mov";
+
+    private final int _codec_id;
+    private final int _width;
+    private final int _height;
+    private final int _pixel_format;
+
+    public StreamHint(int codecId, int width, int height, int pixelFormat) {
+        this._codec_id = codecId;
+        this._width = width;
+        this._height = height;
+        this._pixel_format = pixelFormat;
+    }
+
+    public int getCodecId() {
+        return _codec_id;
+    }
+
+    public int getWidth() {
+        return _width;
+    }
+
+    public int getHeight() {
+        return _height;
+    }
+
+    public int getPixelFormat() {
+        return _pixel_format;
+    }
+
+    /**
+     * @return whether a stream of this codec and size is the one probed.
+     */
+    public boolean matches(int codecId, int width, int height) {
+        return codecId == _codec_id && width == _width && height == _height;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamHint[codec=" + _codec_id + ", " + _width + "x" + _height + ", pix_fmt=" + _pixel_format + "]";
+    }
+}
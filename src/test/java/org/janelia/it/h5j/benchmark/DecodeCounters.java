@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Planes and decoded bytes produced, which JMH reports as frames/s and MB/s
+ * next to the operation rate.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class DecodeCounters {
+    private static final double MEGABYTE = 1024.0 * 1024.0;
+
+    public long frames;
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        frames = 0;
+        megabytes = 0;
+    }
+
+    public void add(long planes, long bytes) {
+        frames += planes;
+        megabytes += bytes / MEGABYTE;
+    }
+}
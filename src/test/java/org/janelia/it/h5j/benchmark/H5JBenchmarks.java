@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the decode pipeline benchmarks, with the GC profiler for allocation
+ * rates.  Any JMH option may be given, eg. to use bigger fixtures:
+ *
+ *   mvn test-compile
+ *   java -cp target/test-classes:target/classes:(test classpath) \
+ *       org.janelia.it.h5j.benchmark.H5JBenchmarks -p size=1024x1024x300 -p channels=4
+ *
+ * Fixtures are generated on first use, under target/h5j-fixtures (or the
+ * h5j.fixtures.dir system property).
+ */
+public class H5JBenchmarks {
+    public static final String BENCHMARKS = "org\\.janelia\\.it\\..*Benchmark\\..*";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        if (commandLine.getIncludes().isEmpty()) {
+            builder.include(BENCHMARKS);
+        }
+        Options options = builder
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
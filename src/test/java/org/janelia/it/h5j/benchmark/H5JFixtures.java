@@ -0,0 +1,197 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.it.jacs.shared.ffmpeg.H5JWriter;
+
+/**
+ * Synthetic H5J files for benchmarking, made through the bundled FFmpeg.
+ * Each channel is a dim, noisy background with a different set of bright
+ * neurite-like tubes running through it, so that the encoder sees roughly
+ * the structure and sparsity of real confocal data.  Content is fixed by
+ * size, so files are generated once and reused from the fixtures directory.
+ *
+ * Usage: H5JFixtures WIDTHxHEIGHTxDEPTH channels bitDepth [output.h5j]
+ */
+public class H5JFixtures {
+    public static final String FIXTURES_DIR_PROPERTY = "h5j.fixtures.dir";
+    public static final String DEFAULT_FIXTURES_DIR = "target/h5j-fixtures";
+
+    private static final int BACKGROUND = 12;
+    private static final int NOISE = 6;
+    private static final int TUBES_PER_MEGAVOXEL = 4;
+    private static final int TUBE_LENGTH = 200;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: H5JFixtures WIDTHxHEIGHTxDEPTH channels bitDepth [output.h5j]");
+            System.exit(1);
+        }
+        int[] size = parseSize(args[0]);
+        int channels = Integer.parseInt(args[1]);
+        int bitDepth = Integer.parseInt(args[2]);
+        File file = args.length > 3
+                ? new File(args[3])
+                : fixtureFile(size, channels, bitDepth);
+        generate(file, size[0], size[1], size[2], channels, bitDepth);
+        System.out.println("Wrote " + file.getAbsolutePath() + " (" + file.length() + " bytes)");
+    }
+
+    /**
+     * @param size as WIDTHxHEIGHTxDEPTH, eg. 512x512x200.
+     * @return width, height and depth.
+     */
+    public static int[] parseSize(String size) {
+        String[] parts = size.toLowerCase().split("x");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected WIDTHxHEIGHTxDEPTH, got " + size);
+        }
+        return new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]) };
+    }
+
+    /**
+     * The fixture of this size, generated if not already there.
+     *
+     * @param size as WIDTHxHEIGHTxDEPTH.
+     * @param channels channel count.
+     * @param bitDepth 8 or 16.
+     * @return existing H5J file.
+     */
+    public static File fixture(String size, int channels, int bitDepth) throws Exception {
+        int[] dims = parseSize(size);
+        File file = fixtureFile(dims, channels, bitDepth);
+        synchronized (H5JFixtures.class) {
+            if (!file.exists()) {
+                file.getParentFile().mkdirs();
+                // Generate aside and rename, so that a half-written file is
+                // never picked up by another fork.
+                File partial = File.createTempFile(file.getName(), ".part", file.getParentFile());
+                generate(partial, dims[0], dims[1], dims[2], channels, bitDepth);
+                if (!partial.renameTo(file) && !file.exists()) {
+                    throw new IllegalStateException("Could not create " + file);
+                }
+                partial.delete();
+            }
+        }
+        return file;
+    }
+
+    private static File fixtureFile(int[] size, int channels, int bitDepth) {
+        File dir = new File(System.getProperty(FIXTURES_DIR_PROPERTY, DEFAULT_FIXTURES_DIR));
+        return new File(dir, "synthetic-" + size[0] + "x" + size[1] + "x" + size[2]
+                + "-c" + channels + "-" + bitDepth + "bit.h5j");
+    }
+
+    public static void generate(File file, final int width, final int height, final int depth,
+                                int channels, final int bitDepth) throws Exception {
+        if (bitDepth != 8 && bitDepth != 16) {
+            throw new IllegalArgumentException("Unexpected bit depth " + bitDepth + ", 8 or 16 acceptable.");
+        }
+        final int max = bitDepth == 8 ? 255 : 4095;
+        final List<List<Sphere>> channelSpheres = new ArrayList<>();
+        for (int c = 0; c < channels; c++) {
+            channelSpheres.add(tubes(new Random(31L * c + 7), width, height, depth, max));
+        }
+
+        H5JWriter writer = new H5JWriter(file.getAbsolutePath());
+        writer.setSpacings(0.52, 0.52, 1.0);
+        writer.setUnit("micron");
+        writer.write(width, height, depth, channels, bitDepth / 8, (channel, z) -> {
+            int[] plane = new int[width * height];
+            Random noise = new Random(((long) channel << 32) + z);
+            int background = BACKGROUND * max / 255;
+            int noiseLevel = NOISE * max / 255;
+            for (int i = 0; i < plane.length; i++) {
+                plane[i] = background + noise.nextInt(noiseLevel + 1);
+            }
+            for (Sphere sphere : channelSpheres.get(channel)) {
+                sphere.draw(plane, width, height, z);
+            }
+            if (bitDepth == 8) {
+                byte[] bytes = new byte[plane.length];
+                for (int i = 0; i < plane.length; i++) {
+                    bytes[i] = (byte) Math.min(max, plane[i]);
+                }
+                return bytes;
+            }
+            short[] shorts = new short[plane.length];
+            for (int i = 0; i < plane.length; i++) {
+                shorts[i] = (short) Math.min(max, plane[i]);
+            }
+            return shorts;
+        });
+    }
+
+    /**
+     * Random walks of overlapping spheres, standing in for neurites.
+     */
+    private static List<Sphere> tubes(Random random, int width, int height, int depth, int max) {
+        List<Sphere> spheres = new ArrayList<>();
+        long voxels = (long) width * height * depth;
+        int tubes = (int) Math.max(1, voxels * TUBES_PER_MEGAVOXEL / (1 << 20));
+        for (int t = 0; t < tubes; t++) {
+            double x = random.nextDouble() * width;
+            double y = random.nextDouble() * height;
+            double z = random.nextDouble() * depth;
+            double radius = 1.5 + random.nextDouble() * 3;
+            int intensity = max / 3 + random.nextInt(max - max / 3);
+            double dx = random.nextGaussian(), dy = random.nextGaussian(), dz = random.nextGaussian() * 0.3;
+            for (int step = 0; step < TUBE_LENGTH; step++) {
+                spheres.add(new Sphere(x, y, z, radius, intensity));
+                double norm = Math.sqrt(dx * dx + dy * dy + dz * dz) + 1e-9;
+                x += dx / norm;
+                y += dy / norm;
+                z += dz / norm;
+                dx += random.nextGaussian() * 0.2;
+                dy += random.nextGaussian() * 0.2;
+                dz += random.nextGaussian() * 0.06;
+            }
+        }
+        return spheres;
+    }
+
+    private static class Sphere {
+        private final double x, y, z, radius;
+        private final int intensity;
+
+        Sphere(double x, double y, double z, double radius, int intensity) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.radius = radius;
+            this.intensity = intensity;
+        }
+
+        /** Brightest at the centre line, falling off to the edge. */
+        void draw(int[] plane, int width, int height, int planeZ) {
+            double dz = planeZ - z;
+            double r2 = radius * radius - dz * dz;
+            if (r2 <= 0) {
+                return;
+            }
+            double r = Math.sqrt(r2);
+            int x0 = Math.max(0, (int) (x - r)), x1 = Math.min(width - 1, (int) (x + r));
+            int y0 = Math.max(0, (int) (y - r)), y1 = Math.min(height - 1, (int) (y + r));
+            for (int py = y0; py <= y1; py++) {
+                for (int px = x0; px <= x1; px++) {
+                    double d2 = (px - x) * (px - x) + (py - y) * (py - y) + dz * dz;
+                    if (d2 < radius * radius) {
+                        int value = (int) (intensity * (1 - d2 / (radius * radius)));
+                        int i = py * width + px;
+                        plane[i] = Math.max(plane[i], value);
+                    }
+                }
+            }
+        }
+    }
+}
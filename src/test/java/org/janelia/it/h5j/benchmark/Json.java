@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Just enough JSON for the benchmark result files.
+ */
+class Json {
+
+    static String number(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char ch : value.toCharArray()) {
+            if (ch == '"' || ch == '\\') {
+                quoted.append('\\').append(ch);
+            } else if (ch < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) ch));
+            } else {
+                quoted.append(ch);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Write the results, each already a JSON object, with a description of
+     * the machine they were measured on.
+     */
+    static void writeResults(File output, List<String> results) throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.println("  \"timestamp\": " + System.currentTimeMillis() + ",");
+            out.println("  \"java_version\": " + quote(System.getProperty("java.version")) + ",");
+            out.println("  \"os\": " + quote(System.getProperty("os.name") + " " + System.getProperty("os.arch")) + ",");
+            out.println("  \"processors\": " + runtime.availableProcessors() + ",");
+            out.println("  \"max_heap_bytes\": " + runtime.maxMemory() + ",");
+            out.println("  \"results\": [");
+            for (int i = 0; i < results.size(); i++) {
+                out.println(results.get(i) + (i < results.size() - 1 ? "," : ""));
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.benchmark;
+
+import ij.ImagePlus;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.janelia.it.h5j.fiji.adapter.FijiAdapter;
+import org.janelia.it.jacs.shared.ffmpeg.H5JLoader;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+import org.janelia.it.jacs.shared.ffmpeg.LoadTimings;
+
+/**
+ * End-to-end loads of real H5J files, timed phase by phase, over a sweep of
+ * decoder thread counts and channel parallelism.  For each setting, the
+ * channels are decoded (several at once, for channel parallelism above 1),
+ * and then the whole file is loaded through FijiAdapter, as the reader
+ * does.  Each run is written to a JSON file.
+ *
+ * Phase times are summed over all threads, so with parallel channels they
+ * may add up to more than the wall time.
+ *
+ * Usage: LoadBenchmark [--threads 1,2,4,8] [--channel-parallelism 1,2,4]
+ *                      [--repeat 3] [--output load-benchmark.json] file.h5j...
+ */
+public class LoadBenchmark {
+    private static final double MEGABYTE = 1024.0 * 1024.0;
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private int[] threadCounts = new int[] { 1, 2, 4, Runtime.getRuntime().availableProcessors() };
+    private int[] channelParallelism = new int[] { 1, 2, 4 };
+    private int repeat = 3;
+    private File output = new File("load-benchmark.json");
+    private final List<File> files = new ArrayList<>();
+    private final List<String> results = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        LoadBenchmark benchmark = new LoadBenchmark();
+        benchmark.parseArgs(args);
+        benchmark.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    threadCounts = parseList(args[++i]);
+                    break;
+                case "--channel-parallelism":
+                    channelParallelism = parseList(args[++i]);
+                    break;
+                case "--repeat":
+                    repeat = Integer.parseInt(args[++i]);
+                    break;
+                case "--output":
+                    output = new File(args[++i]);
+                    break;
+                default:
+                    files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: LoadBenchmark [--threads 1,2,4,8] [--channel-parallelism 1,2,4]"
+                    + " [--repeat 3] [--output load-benchmark.json] file.h5j...");
+            System.exit(1);
+        }
+    }
+
+    private static int[] parseList(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    private void run() throws Exception {
+        for (File file : files) {
+            // One untimed load, so that class loading and native library
+            // start-up do not land on the first setting.
+            new FijiAdapter().getMultiChannelImagePlus(file);
+            for (int threads : threadCounts) {
+                for (int parallel : channelParallelism) {
+                    for (int r = 0; r < repeat; r++) {
+                        decode(file, threads, parallel, r);
+                    }
+                }
+                for (int r = 0; r < repeat; r++) {
+                    load(file, threads, r);
+                }
+            }
+        }
+        Json.writeResults(output, results);
+        System.out.println("Wrote " + results.size() + " results to " + output.getAbsolutePath());
+    }
+
+    /**
+     * Decode every channel, without assembling an image.
+     */
+    private void decode(File file, int threads, int parallel, int run) throws Exception {
+        final LoadTimings timings = new LoadTimings();
+        final H5JLoader loader = new H5JLoader(file.getAbsolutePath());
+        loader.setThreadCount(threads);
+        loader.setTimings(timings);
+        ExecutorService pool = Executors.newFixedThreadPool(parallel);
+        long planes = 0;
+        long bytes = 0;
+        long start = System.nanoTime();
+        try {
+            List<String> channels = loader.channelNames();
+            List<Future<long[]>> decoded = new ArrayList<>();
+            for (int c = 0; c < channels.size(); c++) {
+                final String channel = channels.get(c);
+                final int channelNum = c;
+                decoded.add(pool.submit(new Callable<long[]>() {
+                    public long[] call() throws Exception {
+                        ImageStack stack = loader.extract(channel, channelNum);
+                        long n = stack.getNumFrames();
+                        long size = n * stack.width() * stack.height() * stack.getBytesPerPixel();
+                        stack.release();
+                        return new long[] { n, size };
+                    }
+                }));
+            }
+            for (Future<long[]> future : decoded) {
+                long[] counts = future.get();
+                planes += counts[0];
+                bytes += counts[1];
+            }
+        } finally {
+            pool.shutdown();
+            loader.close();
+        }
+        long wall = System.nanoTime() - start;
+        report(file, "decode", threads, parallel, run, wall, planes, bytes, timings);
+    }
+
+    /**
+     * The whole load, as H5j_Reader does it.
+     */
+    private void load(File file, int threads, int run) throws Exception {
+        LoadTimings timings = new LoadTimings();
+        FijiAdapter adapter = new FijiAdapter();
+        adapter.setThreadCount(threads);
+        adapter.setTimings(timings);
+        long start = System.nanoTime();
+        ImagePlus image = adapter.getMultiChannelImagePlus(file);
+        long wall = System.nanoTime() - start;
+        long planes = image.getStackSize();
+        long bytes = planes * image.getWidth() * image.getHeight() * (image.getBitDepth() / 8);
+        report(file, "fiji", threads, 1, run, wall, planes, bytes, timings);
+    }
+
+    private void report(File file, String mode, int threads, int parallel, int run,
+                        long wallNanos, long planes, long bytes, LoadTimings timings) {
+        double wallMs = wallNanos / NANOS_PER_MILLI;
+        double megabytes = bytes / MEGABYTE;
+        StringBuilder json = new StringBuilder();
+        json.append("    {\"file\": ").append(Json.quote(file.getAbsolutePath()))
+            .append(", \"mode\": ").append(Json.quote(mode))
+            .append(", \"threads\": ").append(threads)
+            .append(", \"channel_parallelism\": ").append(parallel)
+            .append(", \"run\": ").append(run)
+            .append(", \"wall_ms\": ").append(Json.number(wallMs))
+            .append(", \"planes\": ").append(planes)
+            .append(", \"megabytes\": ").append(Json.number(megabytes))
+            .append(", \"frames_per_second\": ").append(Json.number(planes * 1000.0 / wallMs))
+            .append(", \"megabytes_per_second\": ").append(Json.number(megabytes * 1000.0 / wallMs))
+            .append(", \"phases\": {");
+        LoadTimings.Phase[] phases = LoadTimings.Phase.values();
+        for (int i = 0; i < phases.length; i++) {
+            json.append(i == 0 ? "" : ", ")
+                .append(Json.quote(phases[i].name().toLowerCase(Locale.ROOT)))
+                .append(": {\"ms\": ").append(Json.number(timings.getNanos(phases[i]) / NANOS_PER_MILLI))
+                .append(", \"count\": ").append(timings.getCount(phases[i])).append("}");
+        }
+        json.append("}}");
+        results.add(json.toString());
+        System.out.println(String.format(Locale.ROOT, "%s %-6s threads=%-3d channels=%-3d run=%d %9.1f ms %8.1f fps %8.1f MB/s",
+                file.getName(), mode, threads, parallel, run, wallMs, planes * 1000.0 / wallMs, megabytes * 1000.0 / wallMs));
+    }
+}
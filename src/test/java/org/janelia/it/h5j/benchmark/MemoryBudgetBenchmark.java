@@ -0,0 +1,316 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.benchmark;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.ThreadMXBean;
+
+import ij.ImagePlus;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.bytedeco.javacpp.Pointer;
+import org.janelia.it.h5j.fiji.adapter.FijiAdapter;
+import org.janelia.it.jacs.shared.ffmpeg.H5JLoader;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+
+/**
+ * Memory used by the load paths, per decoded voxel: bytes allocated (from
+ * the per-thread allocation counters, cross-checked against what the
+ * garbage collector reclaims), peak Java heap, and peak JavaCPP native
+ * bytes (Pointer.totalBytes()).  Each is checked against a budget, and the
+ * run exits non-zero if any is exceeded.
+ *
+ * Budgets are given as metric=value, or case.metric=value for one case, eg.
+ * --budget allocated_bytes_per_voxel=12
+ * --budget getMultiChannelImagePlus-16bit.peak_heap_bytes_per_voxel=6
+ * Metrics: allocated_bytes_per_voxel, peak_heap_bytes_per_voxel,
+ * peak_native_bytes.
+ *
+ * Usage: MemoryBudgetBenchmark [--size 512x512x200] [--channels 4]
+ *            [--bits 8,16] [--budget metric=value]... [--output memory-benchmark.json]
+ *            [file.h5j...]
+ * Without files, synthetic fixtures of the given size are used.
+ *
+ * Run with a fixed heap (-Xms = -Xmx) for comparable peaks.
+ */
+public class MemoryBudgetBenchmark {
+    public static final String ALLOCATED_PER_VOXEL = "allocated_bytes_per_voxel";
+    public static final String PEAK_HEAP_PER_VOXEL = "peak_heap_bytes_per_voxel";
+    public static final String PEAK_NATIVE = "peak_native_bytes";
+
+    private static final long SAMPLE_INTERVAL_MS = 5;
+
+    private String size = "512x512x200";
+    private int channels = 4;
+    private int[] bitDepths = new int[] { 8, 16 };
+    private File output = new File("memory-benchmark.json");
+    private final Map<String, Double> budgets = new HashMap<>();
+    private final List<File> files = new ArrayList<>();
+    private final List<String> results = new ArrayList<>();
+    private final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        MemoryBudgetBenchmark benchmark = new MemoryBudgetBenchmark();
+        benchmark.parseArgs(args);
+        benchmark.run();
+        System.exit(benchmark.failures.isEmpty() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    size = args[++i];
+                    break;
+                case "--channels":
+                    channels = Integer.parseInt(args[++i]);
+                    break;
+                case "--bits":
+                    String[] parts = args[++i].split(",");
+                    bitDepths = new int[parts.length];
+                    for (int b = 0; b < parts.length; b++) {
+                        bitDepths[b] = Integer.parseInt(parts[b].trim());
+                    }
+                    break;
+                case "--budget":
+                    String[] budget = args[++i].split("=");
+                    budgets.put(budget[0].trim(), Double.parseDouble(budget[1].trim()));
+                    break;
+                case "--output":
+                    output = new File(args[++i]);
+                    break;
+                default:
+                    files.add(new File(args[i]));
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        List<File> inputs = new ArrayList<>(files);
+        List<String> labels = new ArrayList<>();
+        if (inputs.isEmpty()) {
+            for (int bits : bitDepths) {
+                inputs.add(H5JFixtures.fixture(size, channels, bits));
+                labels.add(bits + "bit");
+            }
+        } else {
+            for (File file : inputs) {
+                labels.add(file.getName());
+            }
+        }
+        // Warm up, so that class loading and native start-up are not counted.
+        new FijiAdapter().getMultiChannelImagePlus(inputs.get(0));
+
+        for (int i = 0; i < inputs.size(); i++) {
+            final File file = inputs.get(i);
+            measure("extractAllChannels-" + labels.get(i), file, () -> {
+                H5JLoader loader = new H5JLoader(file.getAbsolutePath());
+                try {
+                    ImageStack stack = loader.extractAllChannels();
+                    return new Object[] {
+                        stack, (long) stack.getNumFrames() * stack.getNumComponents() * stack.width() * stack.height()
+                    };
+                } finally {
+                    loader.close();
+                }
+            });
+            measure("getMultiChannelImagePlus-" + labels.get(i), file, () -> {
+                ImagePlus image = new FijiAdapter().getMultiChannelImagePlus(file);
+                return new Object[] {
+                    image, (long) image.getStackSize() * image.getWidth() * image.getHeight()
+                };
+            });
+        }
+        Json.writeResults(output, results);
+        System.out.println("Wrote " + results.size() + " results to " + output.getAbsolutePath());
+        for (String failure : failures) {
+            System.err.println("OVER BUDGET: " + failure);
+        }
+    }
+
+    private static interface Load {
+        /**
+         * @return the loaded result, kept alive until measuring stops, and
+         *         the number of voxels in it.
+         */
+        Object[] load() throws Exception;
+    }
+
+    private void measure(String name, File file, Load load) throws Exception {
+        settle();
+        Sampler sampler = new Sampler();
+        Thread samplerThread = new Thread(sampler, "memory-sampler");
+        samplerThread.setDaemon(true);
+        sampler.start(samplerThread.getId());
+        samplerThread.start();
+
+        Object[] loaded = load.load();
+
+        sampler.stop();
+        samplerThread.join();
+        long voxels = (Long) loaded[1];
+        loaded = null;
+
+        Map<String, Double> metrics = new LinkedHashMap<>();
+        metrics.put(ALLOCATED_PER_VOXEL, (double) sampler.allocatedBytes() / voxels);
+        metrics.put("gc_allocated_bytes_per_voxel", (double) sampler.gcAllocatedBytes() / voxels);
+        metrics.put(PEAK_HEAP_PER_VOXEL, (double) (sampler.peakHeap - sampler.startHeap) / voxels);
+        metrics.put(PEAK_NATIVE, (double) sampler.peakNative);
+
+        StringBuilder json = new StringBuilder();
+        json.append("    {\"case\": ").append(Json.quote(name))
+            .append(", \"file\": ").append(Json.quote(file.getAbsolutePath()))
+            .append(", \"voxels\": ").append(voxels);
+        StringBuilder line = new StringBuilder(name);
+        for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+            json.append(", ").append(Json.quote(metric.getKey())).append(": ").append(Json.number(metric.getValue()));
+            line.append(String.format(Locale.ROOT, " %s=%.2f", metric.getKey(), metric.getValue()));
+            Double budget = budgets.containsKey(name + "." + metric.getKey())
+                    ? budgets.get(name + "." + metric.getKey())
+                    : budgets.get(metric.getKey());
+            if (budget != null && metric.getValue() > budget) {
+                failures.add(String.format(Locale.ROOT, "%s %s=%.2f, budget %.2f", name, metric.getKey(), metric.getValue(), budget));
+            }
+        }
+        json.append("}");
+        results.add(json.toString());
+        System.out.println(line);
+    }
+
+    private static void settle() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Follows allocation, heap and native memory while a load runs.  Thread
+     * counters are polled, as threads of the load's pools may end before
+     * the load does; the garbage collector's reclaimed bytes are summed from
+     * its notifications.
+     */
+    private static class Sampler implements Runnable, NotificationListener {
+        private final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final Map<Long, Long> baseline = new HashMap<>();
+        private final Map<Long, Long> latest = new HashMap<>();
+        private final AtomicLong reclaimed = new AtomicLong();
+        private volatile boolean running;
+        private long samplerId;
+        long startHeap;
+        long endHeap;
+        long peakHeap;
+        long peakNative;
+
+        void start(long samplerId) {
+            this.samplerId = samplerId;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+            }
+            startHeap = peakHeap = usedHeap();
+            peakNative = Pointer.totalBytes();
+            long[] ids = threads.getAllThreadIds();
+            long[] allocated = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                baseline.put(ids[i], allocated[i]);
+            }
+            running = true;
+        }
+
+        void stop() {
+            running = false;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                sample();
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+            sample();
+            endHeap = usedHeap();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                try {
+                    ((NotificationEmitter) gc).removeNotificationListener(this);
+                } catch (Exception ex) {
+                    // not registered
+                }
+            }
+        }
+
+        private void sample() {
+            peakHeap = Math.max(peakHeap, usedHeap());
+            peakNative = Math.max(peakNative, Pointer.totalBytes());
+            long[] ids = threads.getAllThreadIds();
+            long[] allocated = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] != samplerId && allocated[i] >= 0) {
+                    latest.put(ids[i], allocated[i]);
+                }
+            }
+        }
+
+        long allocatedBytes() {
+            long total = 0;
+            for (Map.Entry<Long, Long> thread : latest.entrySet()) {
+                Long before = baseline.get(thread.getKey());
+                total += thread.getValue() - (before == null ? 0 : before);
+            }
+            return total;
+        }
+
+        /**
+         * @return bytes reclaimed during the load, plus growth of the heap.
+         */
+        long gcAllocatedBytes() {
+            return reclaimed.get() + endHeap - startHeap;
+        }
+
+        private static long usedHeap() {
+            MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            return heap.getUsed();
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            long before = 0;
+            long after = 0;
+            for (MemoryUsage usage : info.getGcInfo().getMemoryUsageBeforeGc().values()) {
+                before += usage.getUsed();
+            }
+            for (MemoryUsage usage : info.getGcInfo().getMemoryUsageAfterGc().values()) {
+                after += usage.getUsed();
+            }
+            reclaimed.addAndGet(Math.max(0, before - after));
+        }
+    }
+}
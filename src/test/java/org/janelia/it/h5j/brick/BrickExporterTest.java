@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.brick;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.janelia.it.jacs.shared.ffmpeg.FlatStreams;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+import org.janelia.it.jacs.shared.ffmpeg.StreamHeader;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test that channels are interleaved into padded bricks at every level.
+ * Channels are flat, each of one value throughout.
+ */
+public class BrickExporterTest {
+    private static final int DEPTH = 20;
+    private static final int BRICK = 16;
+
+    @Test
+    public void interleavesPaddedBricks() throws Exception {
+        int[] values = new int[] { 40, 120, 200 };
+        BrickExporter exporter = new BrickExporter();
+        exporter.setBrickSize(BRICK);
+        exporter.setComponents(4);
+        MemoryBrickSink sink = new MemoryBrickSink();
+        BrickLayout layout = exporter.export(encode(values, 1), header(), sink);
+
+        assertEquals("Levels down to one brick", 4, layout.getNumLevels());
+        assertArrayEquals(new int[] { 9, 7, 3 }, layout.getDimensions(3));
+        int expected = 0;
+        for (int level = 0; level < layout.getNumLevels(); level++) {
+            int[] grid = layout.getGridSize(level);
+            expected += grid[0] * grid[1] * grid[2];
+        }
+        assertEquals("Every brick of every level", expected, sink.size());
+
+        Brick edge = sink.get(0, 4, 3, 1);
+        assertArrayEquals(new int[] { 6, 2, 4 }, edge.getSize());
+        assertArrayEquals("Padded to powers of two", new int[] { 8, 2, 4 }, edge.getStoredSize());
+        ByteBuffer data = edge.getData();
+        assertEquals(8 * 2 * 4 * 4, data.remaining());
+        checkVoxel(data, 0, values, 1);
+        checkVoxel(data, (3 * 2 * 8 + 8 + 5) * 4, values, 1);
+        assertEquals("Padding is blank", 0, data.getInt((8 + 6) * 4));
+
+        Brick coarsest = sink.get(3, 0, 0, 0);
+        assertArrayEquals(new int[] { 16, 8, 4 }, coarsest.getStoredSize());
+        checkVoxel(coarsest.getData(), (2 * 16 * 8 + 6 * 16 + 8) * 4, values, 1);
+    }
+
+    @Test
+    public void sixteenBitSamples() throws Exception {
+        int[] values = new int[] { 1000, 3000 };
+        BrickExporter exporter = new BrickExporter();
+        exporter.setBrickSize(BRICK);
+        exporter.setNumLevels(2);
+        exporter.setPadding(BrickLayout.Padding.FULL);
+        MemoryBrickSink sink = new MemoryBrickSink();
+        BrickLayout layout = exporter.export(encode(values, 2), header(), sink);
+        assertEquals(2, layout.getSampleBytes());
+        Brick brick = sink.get(1, 1, 1, 0);
+        assertArrayEquals(new int[] { BRICK, BRICK, BRICK }, brick.getStoredSize());
+        checkVoxel(brick.getData(), 0, values, 2);
+
+        exporter.setEightBit(true);
+        sink = new MemoryBrickSink();
+        layout = exporter.export(encode(values, 2), header(), sink);
+        assertEquals(1, layout.getSampleBytes());
+        checkVoxel(sink.get(0, 2, 0, 1).getData(), 0, new int[] { 1000 / 16, 3000 / 16 }, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddBrickSizeRejected() {
+        new BrickExporter().setBrickSize(BRICK + 1);
+    }
+
+    private static void checkVoxel(ByteBuffer data, int offset, int[] values, int sampleBytes) {
+        for (int c = 0; c < values.length; c++) {
+            int position = offset + c * sampleBytes;
+            int value = sampleBytes == 1 ? data.get(position) & 0xff : data.getShort(position) & 0xffff;
+            assertTrue("Component " + c + " was " + value + ", not " + values[c],
+                    Math.abs(value - values[c]) <= FlatStreams.TOLERANCE);
+        }
+    }
+
+    /**
+     * Padding as H5JWriter would record it, for the encoder's alignment.
+     */
+    private static ImageStack header() throws Exception {
+        byte[] probe = encode(new int[] { 0 }, 1).get(0);
+        StreamHeader stream = StreamHeader.parse(probe);
+        ImageStack header = new ImageStack();
+        header.setPaddingRight(stream.getWidth() - FlatStreams.WIDTH);
+        header.setPaddingBottom(stream.getHeight() - FlatStreams.HEIGHT);
+        return header;
+    }
+
+    private static List<byte[]> encode(int[] values, int bytesPerPixel) throws Exception {
+        List<byte[]> channels = new ArrayList<byte[]>();
+        for (int value : values) {
+            channels.add(FlatStreams.encode(DEPTH, bytesPerPixel, z -> value));
+        }
+        return channels;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.fiji.adapter;
+
+import ij.ImagePlus;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.it.h5j.benchmark.DecodeCounters;
+import org.janelia.it.h5j.benchmark.H5JFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole load, file to hyperstack, as H5j_Reader does it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g", "-Djava.awt.headless=true" })
+public class FijiAdapterBenchmark {
+
+    @Param({ "512x512x200" })
+    public String size;
+
+    @Param({ "4" })
+    public int channels;
+
+    @Param({ "8", "16" })
+    public int bitDepth;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        file = H5JFixtures.fixture(size, channels, bitDepth);
+    }
+
+    @Benchmark
+    public ImagePlus getMultiChannelImagePlus(DecodeCounters counters) throws Exception {
+        ImagePlus image = new FijiAdapter().getMultiChannelImagePlus(file);
+        long planes = image.getStackSize();
+        counters.add(planes, planes * image.getWidth() * image.getHeight() * (image.getBitDepth() / 8));
+        return image;
+    }
+}
@@ -9,6 +9,15 @@ package org.janelia.it.h5j.fiji.adapter;
 
 import ij.ImagePlus;
 import java.io.File;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.janelia.it.h5j.benchmark.H5JFixtures;
+import org.janelia.it.jacs.shared.ffmpeg.CancellationToken;
+import org.janelia.it.jacs.shared.ffmpeg.DecoderPool;
+import org.janelia.it.jacs.shared.ffmpeg.LoadProgress;
+import org.janelia.it.jacs.shared.ffmpeg.NativeResources;
+import org.janelia.it.jacs.shared.ffmpeg.PlaneStorage;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -26,6 +35,8 @@ public class FijiAdapterTest {
     private static final int EXPECT_BPP = 1;
     private static final int EXPECT_WIDTH = 115;
     private static final int EXPECT_HEIGHT = 95;
+    private static final String FIXTURE_SIZE = "64x48x16";
+    private static final int CHECKS_BEFORE_CANCEL = 12;
     
     private FijiAdapter fijiAdapter;
     
@@ -70,4 +81,81 @@ public class FijiAdapterTest {
         assertEquals("Height not as expected", EXPECT_HEIGHT, imagePlus.getHeight());
         assertEquals("Width not as expected", EXPECT_WIDTH, imagePlus.getWidth());
     }
+
+    @Test
+    public void preCancelledLoadStops() throws Exception {
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        checkCancelled(token);
+    }
+
+    @Test
+    public void expiredLoadStops() throws Exception {
+        checkCancelled(CancellationToken.withTimeout(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void loadCancelledWhileDecodingStops() throws Exception {
+        checkCancelled(new CountdownToken(CHECKS_BEFORE_CANCEL));
+    }
+
+    /**
+     * Load a small fixture with the token: it must throw
+     * CancellationException, leave no native allocation behind, and tell
+     * the listener it did not complete, once.
+     */
+    private void checkCancelled(CancellationToken token) throws Exception {
+        File file = H5JFixtures.fixture(FIXTURE_SIZE, 2, 8);
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        fijiAdapter.setCancellation(token);
+        // Nothing kept in a pool, so that every native is freed by the end.
+        fijiAdapter.setDecoderPool(new DecoderPool(0));
+        fijiAdapter.getProfile().setStorage(PlaneStorage.Mode.DIRECT);
+        fijiAdapter.setProgressListener(new LoadProgress.Listener() {
+            @Override
+            public void progress(double fraction) {
+            }
+
+            @Override
+            public void finished(boolean done) {
+                finished.incrementAndGet();
+                if (done) {
+                    completed.incrementAndGet();
+                }
+            }
+        });
+        long liveBytes = NativeResources.getLiveBytes();
+        long liveHandles = NativeResources.getLiveHandles();
+        try {
+            fijiAdapter.getMultiChannelImagePlus(file);
+            fail("The load should have been cancelled");
+        } catch (CancellationException expected) {
+            // As the token says.
+        }
+        assertEquals("Native bytes left", liveBytes, NativeResources.getLiveBytes());
+        assertEquals("Native handles left", liveHandles, NativeResources.getLiveHandles());
+        assertEquals("Told of the end once", 1, finished.get());
+        assertEquals("Not completed", 0, completed.get());
+    }
+
+    /**
+     * Cancels itself once checked a given number of times, part way
+     * through decoding.
+     */
+    private static class CountdownToken extends CancellationToken {
+        private int checks;
+
+        CountdownToken(int checks) {
+            this.checks = checks;
+        }
+
+        @Override
+        public void check() {
+            if (--checks < 0) {
+                cancel();
+            }
+            super.check();
+        }
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.fiji.adapter;
+
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.janelia.it.jacs.shared.ffmpeg.DecoderPool;
+import org.janelia.it.jacs.shared.ffmpeg.FlatStreams;
+import org.janelia.it.jacs.shared.ffmpeg.H5JWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Test that a series decodes a channel of a timepoint only when one of its
+ * planes is asked for, keeps no more timepoints than its cache allows, and
+ * prefetches the timepoints either side.  Every plane is flat, of a value
+ * of its own, so that the plane given shows where it came from.  Decodes
+ * are counted as the decoders the shared pool lends.
+ */
+public class H5JTimeSeriesTest {
+    private static final int TIMEPOINTS = 3;
+    private static final int CHANNELS = 2;
+    private static final int SLICES = 6;
+    private static final long WAIT_MS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void decodesLazily() throws Exception {
+        H5JTimeSeries series = new H5JTimeSeries(writeSeries());
+        try {
+            series.setPrefetch(0);
+            series.setCacheTimepoints(1);
+            long decodes = decodes();
+            assertEquals(TIMEPOINTS * CHANNELS * SLICES, series.getSize());
+            assertEquals(FlatStreams.WIDTH, series.getWidth());
+            assertEquals("t1.h5j", series.getSliceLabel(index(1, 0, 0)));
+            assertEquals("Nothing decoded up front", decodes, decodes());
+
+            checkPlane(series, 2, 1, 3);
+            assertEquals("One channel of one timepoint", decodes + 1, decodes());
+            checkPlane(series, 2, 1, 0);
+            assertEquals("Cached", decodes + 1, decodes());
+            checkPlane(series, 2, 0, 5);
+            assertEquals(decodes + 2, decodes());
+
+            checkPlane(series, 0, 0, 0);
+            checkPlane(series, 2, 1, 3);
+            assertEquals("Dropped to make room", decodes + 4, decodes());
+        } finally {
+            series.close();
+        }
+    }
+
+    @Test
+    public void prefetchesNeighbours() throws Exception {
+        H5JTimeSeries series = new H5JTimeSeries(writeSeries());
+        try {
+            series.setPrefetch(1);
+            series.setCacheTimepoints(3);
+            long decodes = decodes();
+            checkPlane(series, 1, 0, 2);
+            // Channel 0 of the current timepoint, then both channels of
+            // the timepoints either side, in the background.
+            long expected = decodes + 1 + 2 * CHANNELS;
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (decodes() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(expected, decodes());
+
+            // Decoded now, so that stepping away finds nothing left to
+            // prefetch.
+            checkPlane(series, 1, 1, 0);
+            checkPlane(series, 0, 1, 4);
+            checkPlane(series, 2, 0, 1);
+            assertEquals("Prefetched planes are cached", expected + 1, decodes());
+        } finally {
+            series.close();
+        }
+    }
+
+    private static void checkPlane(H5JTimeSeries series, int t, int c, int z) {
+        ImageProcessor ip = series.getProcessor(index(t, c, z));
+        int value = ip.get(ip.getWidth() / 2, ip.getHeight() / 2);
+        assertTrue("Timepoint " + t + ", channel " + c + ", plane " + z + " was " + value,
+                Math.abs(value - valueOf(t, c, z)) <= FlatStreams.TOLERANCE);
+    }
+
+    private static int index(int t, int c, int z) {
+        return 1 + c + CHANNELS * (z + SLICES * t);
+    }
+
+    private static long decodes() {
+        return DecoderPool.shared().getCreatedCount() + DecoderPool.shared().getReusedCount();
+    }
+
+    private List<File> writeSeries() throws Exception {
+        List<File> files = new ArrayList<File>();
+        for (int t = 0; t < TIMEPOINTS; t++) {
+            final int timepoint = t;
+            File file = folder.newFile("t" + t + ".h5j");
+            new H5JWriter(file.getAbsolutePath()).write(FlatStreams.WIDTH, FlatStreams.HEIGHT, SLICES, CHANNELS, 1,
+                    (channel, z) -> {
+                        byte[] plane = new byte[FlatStreams.WIDTH * FlatStreams.HEIGHT];
+                        Arrays.fill(plane, (byte) valueOf(timepoint, channel, z));
+                        return plane;
+                    });
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static int valueOf(int t, int c, int z) {
+        return 20 + 60 * t + 30 * c + 5 * z;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.fiji.adapter;
+
+import java.awt.Color;
+import org.janelia.it.jacs.shared.ffmpeg.Frame;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test the RGB rendering of multi-channel stacks.
+ */
+public class RgbCompositeTest {
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+    private static final int DEPTH = 5;
+
+    /**
+     * Three 8-bit channels, with default settings, pack as red, green and
+     * blue, as getImagePlus() always has.
+     */
+    @Test
+    public void threeChannelsPackAsRgb() throws Exception {
+        ImageStack source = createStack(3, 1, 0);
+        ij.ImageStack rgb = new RgbComposite().render(source, null);
+
+        assertEquals(DEPTH, rgb.getSize());
+        for (int z = 0; z < DEPTH; z++) {
+            int[] pixels = (int[]) rgb.getPixels(z + 1);
+            for (int i = 0; i < pixels.length; i++) {
+                int expected = (value(0, z, i) << 16) | (value(1, z, i) << 8) | value(2, z, i);
+                assertEquals("Slice " + z + " pixel " + i, expected, pixels[i]);
+            }
+        }
+    }
+
+    /**
+     * A fourth channel (gray) adds to all three colors, saturating rather
+     * than overflowing into the next.
+     */
+    @Test
+    public void extraChannelsSaturate() throws Exception {
+        ImageStack source = createStack(4, 1, 0);
+        int[] pixels = (int[]) new RgbComposite().render(source, null).getPixels(1);
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals(Math.min(255, value(0, 0, i) + grayLevel(value(3, 0, i))), (pixels[i] >> 16) & 0xff);
+            assertEquals(Math.min(255, value(2, 0, i) + grayLevel(value(3, 0, i))), pixels[i] & 0xff);
+            assertEquals(0, pixels[i] >>> 24);
+        }
+    }
+
+    /**
+     * 16-bit channels are windowed by their display range, and padding is
+     * cut off.
+     */
+    @Test
+    public void sixteenBitWindowed() throws Exception {
+        ImageStack source = createStack(1, 2, 2);
+        RgbComposite composite = new RgbComposite();
+        composite.setChannel(0, new RgbComposite.Channel(Color.white, 100, 355));
+        ij.ImageStack rgb = composite.render(source, null);
+
+        assertEquals(WIDTH, rgb.getWidth());
+        int[] pixels = (int[]) rgb.getPixels(2);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int level = Math.max(0, Math.min(255, value12(1, y * (WIDTH + 2) + x) - 100));
+                assertEquals("Pixel " + x + "," + y, (level << 16) | (level << 8) | level, pixels[y * WIDTH + x]);
+            }
+        }
+    }
+
+    private static int grayLevel(int value) {
+        return Color.gray.getRed() * value / 255;
+    }
+
+    private ImageStack createStack(int channels, int bytesPerPixel, int padding) {
+        int paddedWidth = WIDTH + padding;
+        ImageStack stack = new ImageStack();
+        stack.setWidth(paddedWidth);
+        stack.setHeight(HEIGHT);
+        stack.setPaddingRight(padding);
+        stack.setBytesPerPixel(bytesPerPixel);
+        for (int z = 0; z < DEPTH; z++) {
+            Frame frame = new Frame();
+            for (int c = 0; c < channels; c++) {
+                byte[] plane = new byte[paddedWidth * HEIGHT * bytesPerPixel];
+                for (int i = 0; i < paddedWidth * HEIGHT; i++) {
+                    if (bytesPerPixel == 1) {
+                        plane[i] = (byte) value(c, z, i);
+                    } else {
+                        // Big-endian, scaled up to 16 bits as the decoder gives it.
+                        int v = value12(z, i) << 4;
+                        plane[2 * i] = (byte) (v >> 8);
+                        plane[2 * i + 1] = (byte) v;
+                    }
+                }
+                frame.imageBytes.add(plane);
+            }
+            stack.add(frame);
+        }
+        return stack;
+    }
+
+    private static int value(int channel, int z, int i) {
+        return (channel * 70 + z * 11 + i * 9) & 0xff;
+    }
+
+    private static int value12(int z, int i) {
+        return (z * 37 + i * 19) % 4096;
+    }
+}
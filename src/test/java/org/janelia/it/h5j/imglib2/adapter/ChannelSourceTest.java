@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.imglib2.adapter;
+
+import java.io.File;
+import org.janelia.it.h5j.benchmark.H5JFixtures;
+import org.janelia.it.jacs.shared.ffmpeg.FFMpegLoader;
+import org.janelia.it.jacs.shared.ffmpeg.H5JLoader;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test that a slab decoded on its own, from whatever plane it starts at,
+ * holds the planes of the whole channel decoded from the top, and that
+ * planes past the end of the stream repeat its last one.
+ */
+public class ChannelSourceTest {
+    private static final String SIZE = "64x48x24";
+    private static final int SLAB = 5;
+    private static final int PAST_END = 3;
+
+    @Test
+    public void slabsMatchWholeChannel() throws Exception {
+        File file = H5JFixtures.fixture(SIZE, 1, 8);
+        ChannelSource source = new ChannelSource(file);
+        int planeSize = source.getWidth() * source.getHeight();
+        byte[] whole = decodeWhole(file, source);
+        int depth = source.getDepth();
+
+        for (int fromZ = 0; fromZ + SLAB <= depth; fromZ++) {
+            byte[] slab = new byte[SLAB * planeSize];
+            source.readSlab(0, fromZ, fromZ + SLAB, slab);
+            for (int i = 0; i < slab.length; i++) {
+                if (slab[i] != whole[fromZ * planeSize + i]) {
+                    fail("Slab from " + fromZ + " differs at plane " + (fromZ + i / planeSize));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tailRepeatsLastPlane() throws Exception {
+        File file = H5JFixtures.fixture(SIZE, 1, 16);
+        ChannelSource source = new ChannelSource(file);
+        int planeSize = source.getWidth() * source.getHeight();
+        int depth = source.getDepth();
+
+        short[] slab = new short[(1 + PAST_END) * planeSize];
+        source.readSlab(0, depth - 1, depth + PAST_END, slab);
+        short[] last = new short[planeSize];
+        source.readSlab(0, depth - 1, depth, last);
+        for (int z = 0; z <= PAST_END; z++) {
+            for (int i = 0; i < planeSize; i++) {
+                assertEquals("Plane " + (depth - 1 + z) + " at " + i, last[i], slab[z * planeSize + i]);
+            }
+        }
+    }
+
+    /**
+     * The channel as FFMpegLoader.grab() gives it, cropped as ChannelSource
+     * crops.
+     */
+    private static byte[] decodeWhole(File file, ChannelSource source) throws Exception {
+        H5JLoader loader = new H5JLoader(file.getAbsolutePath());
+        byte[] data;
+        try {
+            data = loader.readChannel(loader.channelNames().get(0));
+        } finally {
+            loader.close();
+        }
+        int width = source.getWidth();
+        int height = source.getHeight();
+        byte[] whole = new byte[source.getDepth() * width * height];
+        try (FFMpegLoader movie = new FFMpegLoader(data)) {
+            movie.start();
+            movie.grab();
+            ImageStack stack = movie.getImage();
+            assertEquals(source.getDepth(), stack.getNumFrames());
+            int paddedWidth = movie.getImageWidth();
+            for (int z = 0; z < stack.getNumFrames(); z++) {
+                byte[] plane = stack.image(z, 0);
+                for (int y = 0; y < height; y++) {
+                    System.arraycopy(plane, y * paddedWidth, whole, (z * height + y) * width, width);
+                }
+            }
+            stack.release();
+        }
+        return whole;
+    }
+}
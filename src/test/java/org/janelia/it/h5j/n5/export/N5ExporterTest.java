@@ -0,0 +1,179 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.n5.export;
+
+import java.io.File;
+import org.janelia.it.h5j.benchmark.H5JFixtures;
+import org.janelia.it.jacs.shared.ffmpeg.H5JLoader;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Test that every chunk of a fixture's export holds the decoded, unpadded
+ * channel, and that each coarser scale is the 2x2x2 average of the one
+ * before, in both N5 and Zarr containers.  The fixture's width and height
+ * are padded in the H5J file, and none of its dimensions is a multiple of
+ * the chunk size, so edge chunks are partial.
+ */
+public class N5ExporterTest {
+    private static final String SIZE = "100x70x40";
+    private static final int CHUNK = 32;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void n5ChunksAndPyramid() throws Exception {
+        checkExport(N5Exporter.Format.N5);
+    }
+
+    @Test
+    public void zarrChunksAndPyramid() throws Exception {
+        checkExport(N5Exporter.Format.ZARR);
+    }
+
+    private void checkExport(N5Exporter.Format format) throws Exception {
+        File file = H5JFixtures.fixture(SIZE, 1, 8);
+        int[] size = H5JFixtures.parseSize(SIZE);
+        short[] expected = decode(file, size);
+
+        File dir = folder.newFolder();
+        N5Exporter exporter = new N5Exporter();
+        exporter.setFormat(format);
+        exporter.setBlockSize(new int[] { CHUNK, CHUNK, CHUNK });
+        exporter.setThreads(2);
+        exporter.export(file, dir);
+
+        N5Reader reader = format == N5Exporter.Format.ZARR
+                ? new N5ZarrReader(dir.getAbsolutePath())
+                : new N5FSReader(dir.getAbsolutePath());
+        long[][] dimensions = new long[][] { { 100, 70, 40 }, { 50, 35, 20 }, { 25, 18, 10 } };
+        for (int s = 0; s < dimensions.length; s++) {
+            String path = "c0/s" + s;
+            DatasetAttributes attributes = reader.getDatasetAttributes(path);
+            assertNotNull(path, attributes);
+            assertArrayEquals(path, dimensions[s], attributes.getDimensions());
+            assertEquals(path, DataType.UINT8, attributes.getDataType());
+            short[] level = readLevel(reader, path, attributes);
+            for (int i = 0; i < level.length; i++) {
+                if (level[i] != expected[i]) {
+                    fail(path + " differs at " + i + ": " + level[i] + ", not " + expected[i]);
+                }
+            }
+            if (s + 1 < dimensions.length) {
+                expected = downsample(expected, dimensions[s], dimensions[s + 1]);
+            }
+        }
+        assertFalse("Scales stop once one chunk holds the channel", reader.datasetExists("c0/s3"));
+    }
+
+    /**
+     * The channel as the loader decodes it, unpadded, in X, Y, Z order.
+     */
+    private static short[] decode(File file, int[] size) throws Exception {
+        H5JLoader loader = new H5JLoader(file.getAbsolutePath());
+        try {
+            ImageStack stack = loader.extract(loader.channelNames().get(0));
+            assertEquals(size[2], stack.getNumFrames());
+            assertTrue("Padded", stack.width() > size[0]);
+            short[] voxels = new short[size[0] * size[1] * size[2]];
+            for (int z = 0; z < size[2]; z++) {
+                byte[] plane = stack.image(z, 0);
+                for (int y = 0; y < size[1]; y++) {
+                    for (int x = 0; x < size[0]; x++) {
+                        voxels[(z * size[1] + y) * size[0] + x] = (short) (plane[y * stack.width() + x] & 0xff);
+                    }
+                }
+            }
+            stack.release();
+            return voxels;
+        } finally {
+            loader.close();
+        }
+    }
+
+    /**
+     * Every chunk of a dataset, put together in X, Y, Z order.
+     */
+    private static short[] readLevel(N5Reader reader, String path, DatasetAttributes attributes) throws Exception {
+        long[] dims = attributes.getDimensions();
+        int width = (int) dims[0];
+        int height = (int) dims[1];
+        short[] voxels = new short[width * height * (int) dims[2]];
+        for (long gz = 0; gz * CHUNK < dims[2]; gz++) {
+            for (long gy = 0; gy * CHUNK < dims[1]; gy++) {
+                for (long gx = 0; gx * CHUNK < dims[0]; gx++) {
+                    DataBlock<?> block = reader.readBlock(path, attributes, gx, gy, gz);
+                    assertNotNull(path + " chunk " + gx + "," + gy + "," + gz, block);
+                    int[] blockSize = block.getSize();
+                    byte[] data = (byte[]) block.getData();
+                    // Zarr keeps edge chunks whole; what is past the edge
+                    // is fill.
+                    int i = 0;
+                    for (int z = 0; z < blockSize[2]; z++) {
+                        for (int y = 0; y < blockSize[1]; y++) {
+                            for (int x = 0; x < blockSize[0]; x++, i++) {
+                                long vx = gx * CHUNK + x;
+                                long vy = gy * CHUNK + y;
+                                long vz = gz * CHUNK + z;
+                                if (vx < dims[0] && vy < dims[1] && vz < dims[2]) {
+                                    voxels[(int) ((vz * height + vy) * width + vx)] = (short) (data[i] & 0xff);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return voxels;
+    }
+
+    /**
+     * 2x2x2 average, rounded, of the samples that exist at odd edges.
+     */
+    private static short[] downsample(short[] voxels, long[] dims, long[] nextDims) {
+        int width = (int) dims[0];
+        int height = (int) dims[1];
+        int depth = (int) dims[2];
+        int nextWidth = (int) nextDims[0];
+        int nextHeight = (int) nextDims[1];
+        int nextDepth = (int) nextDims[2];
+        short[] result = new short[nextWidth * nextHeight * nextDepth];
+        for (int z = 0; z < nextDepth; z++) {
+            int z1 = 2 * z;
+            int z2 = Math.min(z1 + 1, depth - 1);
+            for (int y = 0; y < nextHeight; y++) {
+                int y1 = 2 * y;
+                int y2 = Math.min(y1 + 1, height - 1);
+                for (int x = 0; x < nextWidth; x++) {
+                    int x1 = 2 * x;
+                    int x2 = Math.min(x1 + 1, width - 1);
+                    int sum = 0;
+                    for (int zz : new int[] { z1, z2 }) {
+                        for (int yy : new int[] { y1, y2 }) {
+                            for (int xx : new int[] { x1, x2 }) {
+                                sum += voxels[(zz * height + yy) * width + xx];
+                            }
+                        }
+                    }
+                    result[(z * nextHeight + y) * nextWidth + x] = (short) ((sum + 4) / 8);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.scifio;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.janelia.it.jacs.shared.ffmpeg.FFMpegLoader;
+import org.janelia.it.jacs.shared.ffmpeg.FlatStreams;
+import org.janelia.it.jacs.shared.ffmpeg.ImageStack;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test that a cursor gives each plane as a whole-channel decode does,
+ * whether asked for in order, again, or after a later one, and that planes
+ * past the end of the stream repeat its last one.
+ */
+public class ChannelCursorTest {
+    private static final int DEPTH = 20;
+    private static final int STEP = 8;
+    private static final int[] ORDER = new int[] { 0, 1, 5, 5, 4, 2, 12, 3, 19, 0, 18 };
+
+    @Test
+    public void seeksBackwards() throws Exception {
+        for (int bytesPerPixel = 1; bytesPerPixel <= 2; bytesPerPixel++) {
+            byte[] data = FlatStreams.encode(DEPTH, bytesPerPixel, z -> valueOf(z, 1));
+            List<byte[]> expected = decodeWhole(data);
+            try (ChannelCursor cursor = new ChannelCursor(data)) {
+                for (int z : ORDER) {
+                    assertArrayEquals("Plane " + z + ", " + bytesPerPixel + " bytes per pixel",
+                            expected.get(z), cursor.plane(z));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tailRepeatsLastPlane() throws Exception {
+        byte[] data = FlatStreams.encode(DEPTH, 1, z -> valueOf(z, 1));
+        List<byte[]> expected = decodeWhole(data);
+        try (ChannelCursor cursor = new ChannelCursor(data)) {
+            byte[] last = expected.get(DEPTH - 1);
+            assertArrayEquals(last, cursor.plane(DEPTH + 2));
+            assertArrayEquals("Back from past the end", expected.get(3), cursor.plane(3));
+            int value = cursor.plane(DEPTH + 5)[0] & 0xff;
+            assertTrue("Was " + value, Math.abs(value - valueOf(DEPTH - 1, 1)) <= FlatStreams.TOLERANCE);
+        }
+    }
+
+    private static List<byte[]> decodeWhole(byte[] data) throws Exception {
+        List<byte[]> planes = new ArrayList<byte[]>();
+        try (FFMpegLoader movie = new FFMpegLoader(data)) {
+            movie.start();
+            movie.grab();
+            ImageStack stack = movie.getImage();
+            assertEquals(DEPTH, stack.getNumFrames());
+            for (int z = 0; z < DEPTH; z++) {
+                planes.add(stack.image(z, 0).clone());
+            }
+            stack.release();
+        }
+        return planes;
+    }
+
+    static int valueOf(int z, int bytesPerPixel) {
+        return bytesPerPixel == 1 ? 16 + z * STEP : 200 + z * STEP * 16;
+    }
+}
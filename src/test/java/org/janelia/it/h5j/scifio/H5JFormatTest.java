@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.h5j.scifio;
+
+import io.scif.FormatException;
+import io.scif.Reader;
+import io.scif.SCIFIO;
+import java.io.File;
+import java.util.Arrays;
+import net.imglib2.util.Intervals;
+import org.janelia.it.jacs.shared.ffmpeg.H5JWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.scijava.io.location.FileLocation;
+import static org.junit.Assert.*;
+
+/**
+ * Test that SCIFIO opens planes of an H5J file by plane index, channel
+ * after channel, in any order and within any bounds; that 16-bit samples
+ * come back as the 12-bit values written, big-endian; and that a plane
+ * index past the last fails.
+ */
+public class H5JFormatTest {
+    private static final int WIDTH = 70;
+    private static final int HEIGHT = 50;
+    private static final int DEPTH = 8;
+    private static final int CHANNELS = 2;
+    private static final int CHANNEL_OFFSET = 400;
+    private static final int TOLERANCE_16 = 4;
+    private static final long[] ORDER = new long[] { 9, 3, 15, 8, 1, 0 };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void opensBoundedPlanes() throws Exception {
+        File file = folder.newFile("planes.h5j");
+        new H5JWriter(file.getAbsolutePath()).write(WIDTH, HEIGHT, DEPTH, CHANNELS, 2, (channel, z) -> {
+            short[] plane = new short[WIDTH * HEIGHT];
+            Arrays.fill(plane, (short) valueOf(channel, z));
+            return plane;
+        });
+
+        SCIFIO scifio = new SCIFIO();
+        try {
+            Reader reader = scifio.initializer().initializeReader(new FileLocation(file));
+            try {
+                assertEquals(DEPTH * CHANNELS, reader.getPlaneCount(0));
+                assertEquals("Unpadded", WIDTH * HEIGHT * 2, reader.openPlane(0, 0).getBytes().length);
+
+                for (long planeIndex : ORDER) {
+                    byte[] bytes = reader.openPlane(0, planeIndex, Intervals.createMinSize(10, 20, 30, 15)).getBytes();
+                    assertEquals(30 * 15 * 2, bytes.length);
+                    int expected = valueOf((int) (planeIndex / DEPTH), (int) (planeIndex % DEPTH));
+                    for (int i = 0; i < bytes.length; i += 2) {
+                        int value = ((bytes[i] & 0xff) << 8) | (bytes[i + 1] & 0xff);
+                        if (Math.abs(value - expected) > TOLERANCE_16) {
+                            fail("Plane " + planeIndex + " at " + i / 2 + " was " + value + ", not " + expected);
+                        }
+                    }
+                }
+
+                try {
+                    reader.openPlane(0, DEPTH * CHANNELS);
+                    fail("Plane past the last opened");
+                } catch (FormatException expected) {
+                    // Out of range.
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            scifio.getContext().dispose();
+        }
+    }
+
+    private static int valueOf(int channel, int z) {
+        return ChannelCursorTest.valueOf(z, 2) + CHANNEL_OFFSET * channel;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.nio.ByteBuffer;
+import org.bytedeco.javacpp.BytePointer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test that contiguous gathering drops line padding and keeps every page.
+ */
+public class ByteGatherAcceptorTest {
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+    private static final int LINESIZE = 8;
+    private static final int PAGES = 5;
+
+    @Test
+    public void directGatheringIsUnpadded() throws Exception {
+        // Declaring too few frames makes the buffer grow part way.
+        ByteGatherAcceptor acceptor = gather(ByteGatherAcceptor.Gathering.DIRECT, 2);
+        assertEquals(PAGES, acceptor.getNumPages());
+        assertEquals(PAGES * WIDTH * HEIGHT, acceptor.getTotalSize());
+        ByteBuffer buffer = acceptor.getBuffer();
+        assertTrue("Buffer should be direct", buffer.isDirect());
+        assertEquals(PAGES * WIDTH * HEIGHT, buffer.remaining());
+        for (int z = 0; z < PAGES; z++) {
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    assertEquals("Pixel " + x + "," + y + "," + z, value(z, x, y),
+                            buffer.get((z * HEIGHT + y) * WIDTH + x) & 0xff);
+                }
+            }
+        }
+        BytePointer pointer = acceptor.getPointer();
+        assertEquals(acceptor.getTotalSize(), pointer.limit());
+        assertEquals(value(PAGES - 1, WIDTH - 1, HEIGHT - 1), pointer.get(acceptor.getTotalSize() - 1) & 0xff);
+        acceptor.release();
+        assertFalse(acceptor.isPopulated());
+    }
+
+    @Test
+    public void mappedGatheringCrops() throws Exception {
+        ByteGatherAcceptor acceptor = new ByteGatherAcceptor(ByteGatherAcceptor.Gathering.MAPPED);
+        acceptor.setCrop(WIDTH - 1, HEIGHT - 1);
+        feed(acceptor, PAGES);
+        int rowBytes = WIDTH - 1;
+        assertEquals(rowBytes, acceptor.getRowBytes());
+        ByteBuffer buffer = acceptor.getBuffer();
+        assertEquals(PAGES * rowBytes * (HEIGHT - 1), buffer.remaining());
+        assertEquals(value(3, 2, 1), buffer.get((3 * (HEIGHT - 1) + 1) * rowBytes + 2) & 0xff);
+        try {
+            acceptor.getBytes();
+            fail("Contiguous pages are not available as arrays");
+        } catch (IllegalStateException expected) {
+        }
+        acceptor.release();
+    }
+
+    private static ByteGatherAcceptor gather(ByteGatherAcceptor.Gathering gathering, int declaredFrames) {
+        ByteGatherAcceptor acceptor = new ByteGatherAcceptor(gathering);
+        acceptor.setPixelBytes(1);
+        acceptor.setStreamInfo(WIDTH, HEIGHT, declaredFrames);
+        feed(acceptor, PAGES);
+        return acceptor;
+    }
+
+    private static void feed(ByteGatherAcceptor acceptor, int pages) {
+        acceptor.setPixelBytes(1);
+        for (int z = 0; z < pages; z++) {
+            byte[] page = new byte[LINESIZE * HEIGHT];
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < LINESIZE; x++) {
+                    page[y * LINESIZE + x] = (byte) (x < WIDTH ? value(z, x, y) : 0xff);
+                }
+            }
+            if (z % 2 == 0) {
+                acceptor.accept(page, LINESIZE, WIDTH, HEIGHT);
+            } else {
+                BytePointer pointer = new BytePointer(page);
+                acceptor.accept(pointer, LINESIZE, WIDTH, HEIGHT);
+                pointer.deallocate();
+            }
+        }
+    }
+
+    private static int value(int z, int x, int y) {
+        return (z * 29 + y * 13 + x * 3) & 0x7f;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test that channels are read ahead in written order, within the budget,
+ * and handed over, waited for, or left to the caller as documented.
+ */
+public class ChannelPrefetcherTest {
+    private static final String FILE = "volume.h5j";
+    private static final String NEXT_FILE = "next.h5j";
+    private static final int CHANNEL_BYTES = 6;
+    private static final long WAIT_MS = 10000;
+
+    @Test
+    public void writtenOrderIsNumeric() {
+        assertEquals(Arrays.asList("Channel_0", "Channel_2", "Channel_10"),
+                ChannelPrefetcher.inWrittenOrder(Arrays.asList("Channel_10", "Channel_2", "Channel_0")));
+    }
+
+    @Test
+    public void readsAheadWithinBudget() throws Exception {
+        ChannelPrefetcher prefetcher = new ChannelPrefetcher(10);
+        FakeSource source = new FakeSource(null);
+        List<String> channels = Arrays.asList("Channel_0", "Channel_1", "Channel_2");
+        prefetcher.enqueue(FILE, channels, this, source);
+
+        awaitReads(source, 1);
+        Thread.sleep(100);
+        assertEquals("Second channel would exceed the budget", 1, source.reads.get());
+        assertEquals(CHANNEL_BYTES, prefetcher.getHeldBytes());
+
+        for (int c = 0; c < channels.size(); c++) {
+            // As a load would, after decoding the channel before.
+            awaitReads(source, c + 1);
+            byte[] data = prefetcher.take(FILE, channels.get(c));
+            assertNotNull("Channel " + c + " should be prefetched", data);
+            assertEquals(c, data[0]);
+        }
+        assertEquals(3, source.reads.get());
+        assertEquals(0, prefetcher.getHeldBytes());
+        assertEquals(3 * CHANNEL_BYTES, prefetcher.getBytesPrefetched());
+        assertNull("Taken only once", prefetcher.take(FILE, "Channel_0"));
+    }
+
+    @Test
+    public void unstartedChannelsAreLeftToTheCaller() throws Exception {
+        ChannelPrefetcher prefetcher = new ChannelPrefetcher(CHANNEL_BYTES);
+        CountDownLatch proceed = new CountDownLatch(1);
+        FakeSource source = new FakeSource(proceed);
+        prefetcher.enqueue(FILE, Arrays.asList("Channel_0", "Channel_1", "Channel_2"), this, source);
+
+        // Channel_0 is being read, and the others wait their turn: the
+        // caller reads Channel_2 itself, and waits for Channel_0.
+        assertTrue(source.started.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertNull(prefetcher.take(FILE, "Channel_2"));
+        proceed.countDown();
+        assertNotNull(prefetcher.take(FILE, "Channel_0"));
+
+        awaitReads(source, 2);
+        prefetcher.release(this);
+        assertEquals(0, prefetcher.getHeldBytes());
+        assertNull("Released", prefetcher.take(FILE, "Channel_1"));
+        assertEquals("Channel_2 never read here", 2, source.reads.get());
+    }
+
+    @Test
+    public void channelsWithoutRoomAreLetGo() throws Exception {
+        ChannelPrefetcher prefetcher = new ChannelPrefetcher(CHANNEL_BYTES, 200);
+        FakeSource source = new FakeSource(null);
+        prefetcher.enqueue(FILE, Arrays.asList("Channel_0"), this, source);
+        awaitReads(source, 1);
+
+        // The next file's channel finds no room while Channel_0 is held,
+        // and is let go rather than keeping the reader waiting.
+        prefetcher.enqueue(NEXT_FILE, Arrays.asList("Channel_1"), null, source);
+        Thread.sleep(600);
+        assertNull("Let go", prefetcher.take(NEXT_FILE, "Channel_1"));
+
+        prefetcher.enqueue(FILE, Arrays.asList("Channel_2"), this, source);
+        assertNotNull(prefetcher.take(FILE, "Channel_0"));
+        awaitReads(source, 2);
+        assertNotNull("Read once there was room", prefetcher.take(FILE, "Channel_2"));
+        assertEquals(2, source.reads.get());
+    }
+
+    private static void awaitReads(FakeSource source, int reads) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (source.reads.get() < reads && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("Waited for " + reads + " reads", source.reads.get() >= reads);
+    }
+
+    private static class FakeSource implements ChannelPrefetcher.Source {
+        private final CountDownLatch proceed;
+        private final AtomicInteger reads = new AtomicInteger();
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        FakeSource(CountDownLatch proceed) {
+            this.proceed = proceed;
+        }
+
+        @Override
+        public long size(String channel) {
+            return CHANNEL_BYTES;
+        }
+
+        @Override
+        public byte[] read(String channel) throws Exception {
+            started.countDown();
+            if (proceed != null && !proceed.await(WAIT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Not released");
+            }
+            byte[] data = new byte[CHANNEL_BYTES];
+            data[0] = (byte) Integer.parseInt(channel.substring(channel.indexOf('_') + 1));
+            reads.incrementAndGet();
+            return data;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test that a pooled decoder is lent again to a stream like the one it
+ * decoded, and gives the same planes as a fresh one; that streams differing
+ * only in their codec headers get decoders of their own; and that the pool
+ * keeps no more than it is allowed, freeing everything on clear().
+ */
+public class DecoderPoolTest {
+    private static final int DEPTH = 12;
+    private static final int STEP = 10;
+
+    @Test
+    public void reusedForLikeStream() throws Exception {
+        byte[] data = FlatStreams.encode(DEPTH, 1, DecoderPoolTest::valueOf);
+        DecoderPool pool = new DecoderPool(4);
+        long live = NativeResources.getLiveHandles(NativeResources.Kind.CODEC_CONTEXT);
+
+        List<byte[]> first = decode(data, pool);
+        List<byte[]> second = decode(data, pool);
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(1, pool.getReusedCount());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(DEPTH, second.size());
+        for (int z = 0; z < DEPTH; z++) {
+            assertArrayEquals("Plane " + z + " from the flushed decoder", first.get(z), second.get(z));
+        }
+
+        pool.clear();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals("Codec contexts left", live, NativeResources.getLiveHandles(NativeResources.Kind.CODEC_CONTEXT));
+    }
+
+    @Test
+    public void keyedOnCodecHeaders() throws Exception {
+        // Same codec, size and pixel format; the quality setting shows in
+        // the parameter sets only.
+        byte[] fine = encode(15);
+        byte[] coarse = encode(30);
+        DecoderPool pool = new DecoderPool(4);
+
+        decode(fine, pool);
+        decode(coarse, pool);
+        assertEquals("Headers differ", 2, pool.getCreatedCount());
+        assertEquals(0, pool.getReusedCount());
+        decode(fine, pool);
+        decode(coarse, pool);
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(2, pool.getReusedCount());
+        pool.clear();
+    }
+
+    @Test
+    public void keepsAtMostMaxIdle() throws Exception {
+        byte[] data = FlatStreams.encode(DEPTH, 1, DecoderPoolTest::valueOf);
+        DecoderPool pool = new DecoderPool(1);
+        long live = NativeResources.getLiveHandles(NativeResources.Kind.CODEC_CONTEXT);
+
+        FFMpegLoader first = new FFMpegLoader(data);
+        FFMpegLoader second = new FFMpegLoader(data);
+        try {
+            first.setDecoderPool(pool);
+            second.setDecoderPool(pool);
+            first.start();
+            second.start();
+            assertEquals("Both lent at once", 2, pool.getCreatedCount());
+        } finally {
+            first.close();
+            second.close();
+        }
+        assertEquals(1, pool.getIdleCount());
+        assertEquals("One kept, one freed", live + 1, NativeResources.getLiveHandles(NativeResources.Kind.CODEC_CONTEXT));
+
+        pool.clear();
+        assertEquals(live, NativeResources.getLiveHandles(NativeResources.Kind.CODEC_CONTEXT));
+    }
+
+    private static List<byte[]> decode(byte[] data, DecoderPool pool) throws Exception {
+        List<byte[]> planes = new ArrayList<byte[]>();
+        try (FFMpegLoader movie = new FFMpegLoader(data)) {
+            movie.setDecoderPool(pool);
+            movie.start();
+            movie.grab();
+            ImageStack stack = movie.getImage();
+            for (int z = 0; z < stack.getNumFrames(); z++) {
+                planes.add(stack.image(z, 0).clone());
+            }
+            stack.release();
+        }
+        return planes;
+    }
+
+    private static byte[] encode(int crf) throws Exception {
+        FFMpegEncoder encoder = new FFMpegEncoder(FlatStreams.WIDTH, FlatStreams.HEIGHT, 1);
+        try {
+            encoder.setCrf(crf);
+            encoder.start();
+            for (int z = 0; z < DEPTH; z++) {
+                byte[] plane = new byte[FlatStreams.WIDTH * FlatStreams.HEIGHT];
+                Arrays.fill(plane, (byte) valueOf(z));
+                encoder.encode(plane);
+            }
+            return encoder.finish();
+        } finally {
+            encoder.close();
+        }
+    }
+
+    private static int valueOf(int z) {
+        return 20 + z * STEP;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.janelia.it.h5j.benchmark.DecodeCounters;
+import org.janelia.it.h5j.benchmark.H5JFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding of one channel's stream, already read from the file: the whole
+ * grab(), frame by frame through grabFrame(), and the copy of a converted
+ * picture into a plane (extractBytes) on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class FFMpegLoaderBenchmark {
+
+    @Param({ "512x512x200" })
+    public String size;
+
+    @Param({ "8", "16" })
+    public int bitDepth;
+
+    private byte[] channelBytes;
+    private int width;
+    private int height;
+
+    // For extractBytes: one converted picture, as sws_scale leaves it.
+    private BytePointer picture;
+    private int linesize;
+    private byte[] plane;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File file = H5JFixtures.fixture(size, 1, bitDepth);
+        H5JLoader loader = new H5JLoader(file.getAbsolutePath());
+        try {
+            channelBytes = loader.readChannel(loader.channelNames().get(0));
+        } finally {
+            loader.close();
+        }
+        FFMpegLoader movie = new FFMpegLoader(channelBytes);
+        movie.start();
+        width = movie.getImageWidth();
+        height = movie.getImageHeight();
+        movie.close();
+
+        int bytesPerPixel = bitDepth / 8;
+        // Lines as sws_scale pads them, to 32 bytes.
+        linesize = bytesPerPixel == 1 ? (width * 3 + 31) / 32 * 32 / 3 : (width * 2 + 31) / 32 * 32 / 2;
+        int pictureBytes = linesize * height * (bytesPerPixel == 1 ? 3 : 2);
+        picture = new BytePointer(pictureBytes);
+        for (int i = 0; i < pictureBytes; i++) {
+            picture.put(i, (byte) i);
+        }
+        plane = new byte[width * height * bytesPerPixel];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        picture.deallocate();
+    }
+
+    @Benchmark
+    public void grab(DecodeCounters counters, Blackhole blackhole) throws Exception {
+        FFMpegLoader movie = new FFMpegLoader(channelBytes);
+        try {
+            movie.start();
+            movie.grab();
+            ImageStack stack = movie.getImage();
+            checkDecoded(stack.getNumFrames());
+            blackhole.consume(stack.image(stack.getNumFrames() - 1, 0));
+            counters.add(stack.getNumFrames(), (long) stack.getNumFrames() * width * height * stack.getBytesPerPixel());
+            movie.release();
+        } finally {
+            movie.close();
+        }
+    }
+
+    @Benchmark
+    public void grabFrame(DecodeCounters counters, Blackhole blackhole) throws Exception {
+        FFMpegLoader movie = new FFMpegLoader(channelBytes);
+        try {
+            movie.start();
+            Frame frame;
+            int frames = 0;
+            while ((frame = movie.grabFrame()) != null) {
+                byte[] bytes = frame.imageBytes.get(0);
+                blackhole.consume(bytes);
+                counters.add(1, bytes.length);
+                frames++;
+            }
+            checkDecoded(frames);
+        } finally {
+            movie.close();
+        }
+    }
+
+    /**
+     * A stream that decodes to nothing would otherwise be timed as a very
+     * fast one.
+     */
+    private static void checkDecoded(int frames) {
+        if (frames == 0) {
+            throw new IllegalStateException("No frames decoded; nothing was measured.");
+        }
+    }
+
+    @Benchmark
+    public byte[] extractBytes(DecodeCounters counters) {
+        FFMpegLoader.extractBytes(picture, linesize, width, height, bitDepth / 8, plane);
+        counters.add(1, plane.length);
+        return plane;
+    }
+}
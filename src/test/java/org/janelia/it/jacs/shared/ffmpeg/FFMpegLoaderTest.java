@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import org.junit.Test;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test that fast open leaves FFmpeg's log level as it found it, and that a
+ * stream hint which does not fit is opened as if there were none.
+ */
+public class FFMpegLoaderTest {
+    private static final int DEPTH = 10;
+    private static final int VALUE = 100;
+
+    @Test
+    public void fastOpenRestoresLogLevel() throws Exception {
+        byte[] data = FlatStreams.encode(DEPTH, 1, z -> VALUE);
+        int level = av_log_get_level();
+        try {
+            av_log_set_level(AV_LOG_WARNING);
+            try (FFMpegLoader movie = new FFMpegLoader(data)) {
+                movie.setFastOpen(true);
+                movie.start();
+                assertEquals("Restored once open", AV_LOG_WARNING, av_log_get_level());
+                movie.release();
+            }
+        } finally {
+            av_log_set_level(level);
+        }
+    }
+
+    @Test
+    public void mismatchedHintIsProbed() throws Exception {
+        StreamHint hint;
+        try (FFMpegLoader movie = new FFMpegLoader(FlatStreams.encode(DEPTH, 1, z -> VALUE))) {
+            movie.start();
+            hint = movie.getStreamHint();
+            movie.release();
+        }
+
+        byte[] other = FlatStreams.encode(96, 64, DEPTH, 1, z -> VALUE);
+        try (FFMpegLoader movie = new FFMpegLoader(other)) {
+            movie.setFastOpen(true);
+            movie.setStreamHint(hint);
+            movie.start();
+            assertEquals(96, movie.getImageWidth());
+            assertEquals(64, movie.getImageHeight());
+            movie.grab();
+            ImageStack stack = movie.getImage();
+            assertEquals(DEPTH, stack.getNumFrames());
+            int value = stack.image(DEPTH - 1, 0)[0] & 0xff;
+            assertTrue("Decoded " + value, Math.abs(value - VALUE) <= FlatStreams.TOLERANCE);
+            movie.release();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Channel streams for tests, encoded in memory through the bundled FFmpeg.
+ * Every plane is flat, so that the codec gives each value back to within
+ * TOLERANCE (for 8-bit data), and a plane's value can stand for where it
+ * came from.
+ */
+public final class FlatStreams {
+    public static final int WIDTH = 70;
+    public static final int HEIGHT = 50;
+    public static final int TOLERANCE = 2;
+
+    private FlatStreams() {
+    }
+
+    /**
+     * @param depth planes.
+     * @param bytesPerPixel 1 or 2.
+     * @param valueOfPlane the value of every sample of plane z.
+     * @return a WIDTH x HEIGHT stream, as H5J holds a channel.
+     */
+    public static byte[] encode(int depth, int bytesPerPixel, IntUnaryOperator valueOfPlane) throws Exception {
+        return encode(WIDTH, HEIGHT, depth, bytesPerPixel, valueOfPlane);
+    }
+
+    public static byte[] encode(int width, int height, int depth, int bytesPerPixel,
+                                IntUnaryOperator valueOfPlane) throws Exception {
+        FFMpegEncoder encoder = new FFMpegEncoder(width, height, bytesPerPixel);
+        try {
+            encoder.start();
+            for (int z = 0; z < depth; z++) {
+                int value = valueOfPlane.applyAsInt(z);
+                if (bytesPerPixel == 1) {
+                    byte[] plane = new byte[width * height];
+                    Arrays.fill(plane, (byte) value);
+                    encoder.encode(plane);
+                } else {
+                    short[] plane = new short[width * height];
+                    Arrays.fill(plane, (short) value);
+                    encoder.encode(plane);
+                }
+            }
+            return encoder.finish();
+        } finally {
+            encoder.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import ij.ImagePlus;
+import ij.io.Opener;
+import java.io.File;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Test that exported frames are unpadded, and readable as what they claim
+ * to be.
+ */
+public class FrameFileWriterTest {
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+    private static final int PADDING = 2;
+    private static final int FRAMES = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tiffReadsBack() throws Exception {
+        for (int sampleBytes = 1; sampleBytes <= 2; sampleBytes++) {
+            File dir = write(FrameFileWriter.Format.TIFF, sampleBytes);
+            for (int z = 0; z < FRAMES; z++) {
+                ImagePlus image = new Opener().openImage(new File(dir, name(z, "tif")).getAbsolutePath());
+                assertNotNull("Frame " + z + " should open", image);
+                assertEquals(WIDTH, image.getWidth());
+                assertEquals(HEIGHT, image.getHeight());
+                assertEquals(8 * sampleBytes, image.getBitDepth());
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        assertEquals("Pixel " + x + "," + y, value(z, x, y, sampleBytes),
+                                image.getProcessor().get(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pgmAndRawAreUnpadded() throws Exception {
+        File pgm = write(FrameFileWriter.Format.PGM, 2);
+        ImagePlus image = new Opener().openImage(new File(pgm, name(1, "pgm")).getAbsolutePath());
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(value(1, 5, 3, 2), image.getProcessor().get(5, 3));
+
+        File raw = write(FrameFileWriter.Format.RAW, 1);
+        byte[] bytes = Files.readAllBytes(new File(raw, name(2, "raw")).toPath());
+        assertEquals(WIDTH * HEIGHT, bytes.length);
+        assertEquals(value(2, 1, 1, 1), bytes[WIDTH + 1] & 0xff);
+    }
+
+    @Test
+    public void ppmRepeatsGray() throws Exception {
+        File ppm = write(FrameFileWriter.Format.PPM, 1);
+        byte[] bytes = Files.readAllBytes(new File(ppm, name(0, "ppm")).toPath());
+        String header = "P6\n" + WIDTH + " " + HEIGHT + "\n255\n";
+        assertEquals(header.length() + 3 * WIDTH * HEIGHT, bytes.length);
+        int pixel = header.length() + 3 * (2 * WIDTH + 3);
+        for (int k = 0; k < 3; k++) {
+            assertEquals(value(0, 3, 2, 1), bytes[pixel + k] & 0xff);
+        }
+    }
+
+    private File write(FrameFileWriter.Format format, int sampleBytes) throws Exception {
+        File dir = new File(folder.getRoot(), format + "_" + sampleBytes);
+        int linesize = (WIDTH + PADDING) * sampleBytes;
+        FrameFileWriter writer = new FrameFileWriter(format, dir, "z%1$02d." + format.getExtension(), 2);
+        try {
+            writer.setPixelBytes(sampleBytes);
+            for (int z = 0; z < FRAMES; z++) {
+                byte[] plane = new byte[linesize * HEIGHT];
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH + PADDING; x++) {
+                        int v = x < WIDTH ? value(z, x, y, sampleBytes) : 0xffff;
+                        int i = y * linesize + x * sampleBytes;
+                        if (sampleBytes == 1) {
+                            plane[i] = (byte) v;
+                        } else {
+                            plane[i] = (byte) (v >> 8);
+                            plane[i + 1] = (byte) v;
+                        }
+                    }
+                }
+                writer.setFrameNum(z);
+                writer.accept(plane, linesize, WIDTH, HEIGHT);
+            }
+        } finally {
+            writer.close();
+        }
+        assertEquals(FRAMES, writer.getFramesWritten());
+        return dir;
+    }
+
+    private static String name(int z, String extension) {
+        return String.format("z%02d.%s", z, extension);
+    }
+
+    private static int value(int z, int x, int y, int sampleBytes) {
+        int v = z * 31 + y * 17 + x * 5;
+        return sampleBytes == 1 ? v & 0xff : (v * 97) & 0xffff;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.bytedeco.javacpp.BytePointer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test that frames converted behind the decoder come out as, and in the
+ * order, they do when converted on the decoding thread.  Each plane is
+ * flat, of a value of its own, so order shows in the values; the codec
+ * keeps small 8-bit values near enough, and 16-bit ones are compared with
+ * the sequential planes only.
+ */
+public class FramePipelineTest {
+    private static final int DEPTH = 30;
+    private static final int STEP = 8;
+
+    @Test
+    public void acceptedInOrder() throws Exception {
+        for (int bytesPerPixel = 1; bytesPerPixel <= 2; bytesPerPixel++) {
+            byte[] data = FlatStreams.encode(DEPTH, bytesPerPixel, FramePipelineTest::valueOf);
+            List<byte[]> sequential = accept(data, 0);
+            assertEquals(DEPTH, sequential.size());
+            for (int threads : new int[] { 1, 3 }) {
+                List<byte[]> pipelined = accept(data, threads);
+                assertEquals(DEPTH, pipelined.size());
+                for (int z = 0; z < DEPTH; z++) {
+                    assertArrayEquals("Plane " + z + ", " + threads + " threads",
+                            sequential.get(z), pipelined.get(z));
+                    if (bytesPerPixel == 1) {
+                        checkValue(pipelined.get(z), z);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void storedInOrder() throws Exception {
+        byte[] data = FlatStreams.encode(DEPTH, 1, FramePipelineTest::valueOf);
+        for (PlaneStorage.Mode mode : new PlaneStorage.Mode[] { PlaneStorage.Mode.HEAP, PlaneStorage.Mode.COMPACT }) {
+            List<byte[]> sequential = store(data, 0, mode);
+            List<byte[]> pipelined = store(data, 2, mode);
+            assertEquals(DEPTH, pipelined.size());
+            for (int z = 0; z < DEPTH; z++) {
+                assertArrayEquals("Plane " + z + ", " + mode, sequential.get(z), pipelined.get(z));
+                checkValue(pipelined.get(z), z);
+            }
+        }
+    }
+
+    @Test
+    public void scalersKeptWithPooledDecoder() throws Exception {
+        byte[] data = FlatStreams.encode(DEPTH, 1, FramePipelineTest::valueOf);
+        DecoderPool pool = new DecoderPool(1);
+        long made = NativeResources.getAllocatedHandles(NativeResources.Kind.SCALER);
+        long live = NativeResources.getLiveHandles(NativeResources.Kind.SCALER);
+        for (int load = 0; load < 2; load++) {
+            try (FFMpegLoader movie = new FFMpegLoader(data)) {
+                movie.setDecoderPool(pool);
+                movie.setConvertThreads(2);
+                movie.start();
+                movie.grab();
+                assertEquals(DEPTH, movie.getImage().getNumFrames());
+                movie.release();
+            }
+            assertEquals("Scalers made by load " + load, 2,
+                    NativeResources.getAllocatedHandles(NativeResources.Kind.SCALER) - made);
+        }
+        assertEquals(1, pool.getReusedCount());
+        pool.clear();
+        assertEquals("Scalers left", live, NativeResources.getLiveHandles(NativeResources.Kind.SCALER));
+    }
+
+    private static void checkValue(byte[] plane, int z) {
+        int value = plane[0] & 0xff;
+        assertTrue("Plane " + z + " was " + value, Math.abs(value - valueOf(z)) <= FlatStreams.TOLERANCE);
+    }
+
+    private static List<byte[]> accept(byte[] data, int threads) throws Exception {
+        final List<byte[]> planes = new ArrayList<byte[]>();
+        try (FFMpegLoader movie = new FFMpegLoader(data)) {
+            movie.setConvertThreads(threads);
+            movie.start();
+            movie.grab(new FFMPGByteAcceptor() {
+                @Override
+                public void accept(BytePointer data, int linesize, int width, int height) {
+                    fail("Planes are given as arrays");
+                }
+
+                @Override
+                public void accept(byte[] data, int linesize, int width, int height) {
+                    planes.add(Arrays.copyOf(data, linesize * height));
+                }
+
+                @Override
+                public void setFrameNum(int frameNum) {
+                    assertEquals("Frames numbered in order", planes.size(), frameNum);
+                }
+
+                @Override
+                public void setPixelBytes(int pixelBytes) {
+                }
+            });
+        }
+        return planes;
+    }
+
+    private static List<byte[]> store(byte[] data, int threads, PlaneStorage.Mode mode) throws Exception {
+        List<byte[]> planes = new ArrayList<byte[]>();
+        try (FFMpegLoader movie = new FFMpegLoader(data)) {
+            movie.setConvertThreads(threads);
+            movie.setStorageMode(mode);
+            movie.start();
+            movie.grab();
+            ImageStack stack = movie.getImage();
+            for (int z = 0; z < stack.getNumFrames(); z++) {
+                planes.add(stack.image(z, 0).clone());
+            }
+            stack.release();
+        }
+        return planes;
+    }
+
+    private static int valueOf(int z) {
+        return 16 + z * STEP;
+    }
+}
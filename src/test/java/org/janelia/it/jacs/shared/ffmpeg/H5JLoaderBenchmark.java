@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.it.h5j.benchmark.DecodeCounters;
+import org.janelia.it.h5j.benchmark.H5JFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading and decoding from the file: one channel through extract(), and
+ * every channel through extractAllChannels().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class H5JLoaderBenchmark {
+
+    @Param({ "512x512x200" })
+    public String size;
+
+    @Param({ "4" })
+    public int channels;
+
+    @Param({ "8", "16" })
+    public int bitDepth;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        file = H5JFixtures.fixture(size, channels, bitDepth);
+    }
+
+    @Benchmark
+    public void extract(DecodeCounters counters, Blackhole blackhole) throws Exception {
+        H5JLoader loader = new H5JLoader(file.getAbsolutePath());
+        try {
+            ImageStack stack = loader.extract(loader.channelNames().get(0), 0);
+            count(stack, counters, blackhole);
+            stack.release();
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Benchmark
+    public void extractAllChannels(DecodeCounters counters, Blackhole blackhole) throws Exception {
+        H5JLoader loader = new H5JLoader(file.getAbsolutePath());
+        try {
+            ImageStack stack = loader.extractAllChannels();
+            count(stack, counters, blackhole);
+            stack.release();
+        } finally {
+            loader.close();
+        }
+    }
+
+    private void count(ImageStack stack, DecodeCounters counters, Blackhole blackhole) {
+        int planes = stack.getNumFrames() * stack.getNumComponents();
+        blackhole.consume(stack.image(stack.getNumFrames() - 1, 0));
+        counters.add(planes, (long) planes * stack.width() * stack.height() * stack.getBytesPerPixel());
+    }
+}
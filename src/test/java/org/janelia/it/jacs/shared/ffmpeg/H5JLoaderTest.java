@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.io.File;
+import org.janelia.it.h5j.benchmark.H5JFixtures;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test that a channel failing part way through its decode leaves no native
+ * planes behind.
+ */
+public class H5JLoaderTest {
+    private static final String SIZE = "64x48x16";
+    private static final int FAIL_AFTER = 8;
+
+    @Test
+    public void failedChannelIsReleased() throws Exception {
+        File file = H5JFixtures.fixture(SIZE, 1, 8);
+        long live = NativeResources.getLiveBytes();
+        try (H5JLoader loader = new H5JLoader(file.getAbsolutePath())) {
+            loader.setPrefetcher(null);
+            loader.setStorageMode(PlaneStorage.Mode.DIRECT);
+            loader.setProgress(new FailingProgress());
+            loader.extract(loader.channelNames().get(0));
+            fail("The decode should have failed");
+        } catch (IllegalStateException expected) {
+            // As thrown by FailingProgress, from the decoding thread.
+        }
+        assertEquals("Native bytes left", live, NativeResources.getLiveBytes());
+    }
+
+    /**
+     * Fails the decode once a few planes have been stored.
+     */
+    private static class FailingProgress extends LoadProgress {
+        private int calls = 0;
+
+        FailingProgress() {
+            super(fraction -> { });
+        }
+
+        @Override
+        public void set(double fraction) {
+            if (++calls > FAIL_AFTER) {
+                throw new IllegalStateException("Failed after " + FAIL_AFTER + " planes");
+            }
+            super.set(fraction);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test that metadata reads typed, applies to stacks, and renders as the
+ * "Info" property always has.
+ */
+public class H5JMetadataTest {
+    private static final String NL = System.getProperty("line.separator");
+
+    private static H5JMetadata sample() {
+        return new H5JMetadata(Arrays.asList("Channel_0", "Channel_1"),
+                Arrays.asList(
+                        new H5JMetadata.Attribute(H5JMetadata.VOXEL_SIZE, new double[] { 0.5, 0.5, 1.0 }),
+                        new H5JMetadata.Attribute(H5JMetadata.UNIT, "um"),
+                        new H5JMetadata.Attribute("tags", new String[] { "a", "b" })),
+                Arrays.asList(
+                        new H5JMetadata.Attribute(H5JMetadata.WIDTH, 1024L),
+                        new H5JMetadata.Attribute(H5JMetadata.PAD_RIGHT, 8L),
+                        new H5JMetadata.Attribute(H5JMetadata.FRAMES, new long[] { 200 })));
+    }
+
+    @Test
+    public void typedValues() {
+        H5JMetadata metadata = sample();
+        assertEquals(2, metadata.getChannelCount());
+        assertEquals("Channel_1", metadata.getChannelNames().get(1));
+        assertEquals(1024, metadata.getLong(H5JMetadata.CHANNELS_PATH, H5JMetadata.WIDTH, -1));
+        assertEquals("Arrays are not single numbers", -1,
+                metadata.getLong(H5JMetadata.CHANNELS_PATH, H5JMetadata.FRAMES, -1));
+        assertEquals(-1, metadata.getLong(H5JMetadata.CHANNELS_PATH, H5JMetadata.HEIGHT, -1));
+        assertEquals(8, metadata.getPaddingRight());
+        assertEquals(-1, metadata.getPaddingBottom());
+        assertArrayEquals(new double[] { 0.5, 0.5, 1.0 }, metadata.getVoxelSize(), 0);
+        assertEquals("um", metadata.getUnit());
+    }
+
+    @Test
+    public void appliesToStack() {
+        ImageStack stack = new ImageStack();
+        sample().applyTo(stack);
+        assertEquals(8, stack.getPaddingRight());
+        assertEquals(-1, stack.getPaddingBottom());
+        assertArrayEquals(new double[] { 0.5, 0.5, 1.0 }, stack.getSpacings(), 0);
+        assertEquals("um", stack.getUnit());
+    }
+
+    @Test
+    public void rendersInfo() {
+        H5JMetadata metadata = sample();
+        String expected = "voxel_size: [ 0.5, 0.5, 1.0 ]" + NL
+                + "unit: um" + NL
+                + "tags: [ a, b ]" + NL
+                + "width: 1024" + NL
+                + "pad_right: 8" + NL
+                + "frames: [ 200 ]" + NL;
+        assertEquals(expected, metadata.getInfo());
+        assertSame("Rendered once", metadata.getInfo(), metadata.getInfo());
+
+        H5JMetadata empty = new H5JMetadata(Collections.<String>emptyList(),
+                Collections.<H5JMetadata.Attribute>emptyList(), Collections.<H5JMetadata.Attribute>emptyList());
+        assertEquals("", empty.getInfo());
+        assertNull(empty.getVoxelSize());
+        assertNull(empty.getUnit());
+    }
+}
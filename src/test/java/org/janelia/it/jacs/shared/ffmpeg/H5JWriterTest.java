@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import ij.IJ;
+import ij.ImagePlus;
+import java.io.File;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Test that what H5JWriter writes reads back through H5JLoader: channels,
+ * padding, frame count, voxel size and unit, and each plane's samples.
+ * Planes are flat, of a value for their channel and plane, so that they
+ * come back to within a tolerance; 16-bit samples are compared as
+ * FijiAdapter shows them, scaled down by 16.
+ */
+public class H5JWriterTest {
+    private static final int WIDTH = 70;
+    private static final int HEIGHT = 50;
+    private static final int DEPTH = 12;
+    private static final int CHANNELS = 2;
+    private static final int TOLERANCE_16 = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void eightBitPlanesReadBack() throws Exception {
+        File file = folder.newFile("planes.h5j");
+        H5JWriter writer = new H5JWriter(file.getAbsolutePath());
+        writer.setSpacings(0.5, 0.5, 2.0);
+        writer.setUnit("micron");
+        writer.write(WIDTH, HEIGHT, DEPTH, CHANNELS, 1, (channel, z) -> {
+            byte[] plane = new byte[WIDTH * HEIGHT];
+            Arrays.fill(plane, (byte) valueOf(channel, z, 1));
+            return plane;
+        });
+
+        H5JLoader loader = new H5JLoader(file.getAbsolutePath());
+        try {
+            checkHeader(loader, new double[] { 0.5, 0.5, 2.0 }, "micron");
+            for (int c = 0; c < CHANNELS; c++) {
+                ImageStack stack = loader.extract(loader.channelNames().get(c));
+                assertEquals(1, stack.getBytesPerPixel());
+                checkPlanes(stack, c, 1, FlatStreams.TOLERANCE);
+                stack.release();
+            }
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void sixteenBitImageReadsBack() throws Exception {
+        ImagePlus imp = IJ.createImage("planes", "16-bit black", WIDTH, HEIGHT, CHANNELS, DEPTH, 1);
+        for (int c = 0; c < CHANNELS; c++) {
+            for (int z = 0; z < DEPTH; z++) {
+                short[] pixels = (short[]) imp.getStack().getPixels(imp.getStackIndex(c + 1, z + 1, 1));
+                Arrays.fill(pixels, (short) valueOf(c, z, 2));
+            }
+        }
+        imp.getCalibration().pixelWidth = 0.25;
+        imp.getCalibration().pixelHeight = 0.25;
+        imp.getCalibration().pixelDepth = 1.5;
+        imp.getCalibration().setUnit("micron");
+
+        File file = folder.newFile("image.h5j");
+        new H5JWriter(file.getAbsolutePath()).write(imp);
+
+        H5JLoader loader = new H5JLoader(file.getAbsolutePath());
+        try {
+            checkHeader(loader, new double[] { 0.25, 0.25, 1.5 }, "micron");
+            for (int c = 0; c < CHANNELS; c++) {
+                ImageStack stack = loader.extract(loader.channelNames().get(c));
+                assertEquals(2, stack.getBytesPerPixel());
+                checkPlanes(stack, c, 2, TOLERANCE_16);
+                stack.release();
+            }
+        } finally {
+            loader.close();
+        }
+    }
+
+    private static void checkHeader(H5JLoader loader, double[] spacings, String unit) {
+        assertEquals(CHANNELS, loader.channelNames().size());
+        assertEquals(DEPTH, loader.getChannelsAttribute("frames"));
+        ImageStack header = loader.extractHeader();
+        assertEquals(FFMpegEncoder.padded(WIDTH) - WIDTH, header.getPaddingRight());
+        assertEquals(FFMpegEncoder.padded(HEIGHT) - HEIGHT, header.getPaddingBottom());
+        assertArrayEquals(spacings, header.getSpacings(), 1e-9);
+        assertEquals(unit, header.getUnit());
+    }
+
+    /**
+     * Every unpadded sample of every plane against the value written.
+     */
+    private static void checkPlanes(ImageStack stack, int channel, int bytesPerPixel, int tolerance) {
+        assertEquals(DEPTH, stack.getNumFrames());
+        assertEquals(FFMpegEncoder.padded(WIDTH), stack.width());
+        for (int z = 0; z < DEPTH; z++) {
+            byte[] plane = stack.image(z, 0);
+            int expected = valueOf(channel, z, bytesPerPixel);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    int i = (y * stack.width() + x) * bytesPerPixel;
+                    int value = bytesPerPixel == 1 ? plane[i] & 0xff
+                            : (((plane[i] & 0xff) << 8) | (plane[i + 1] & 0xff)) / 16;
+                    if (Math.abs(value - expected) > tolerance) {
+                        fail("Channel " + channel + ", plane " + z + " at " + x + "," + y
+                                + " was " + value + ", not " + expected);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int valueOf(int channel, int z, int bytesPerPixel) {
+        return bytesPerPixel == 1 ? 16 + 8 * z + 100 * channel : 200 + 250 * z + 400 * channel;
+    }
+}
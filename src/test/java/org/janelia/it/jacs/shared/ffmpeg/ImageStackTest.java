@@ -0,0 +1,122 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test plane storage behind the ImageStack accessors.
+ */
+public class ImageStackTest {
+    private static final int WIDTH = 7;
+    private static final int HEIGHT = 5;
+    private static final int DEPTH = 4;
+
+    /**
+     * Planes moved into mapped storage, and merged across channels, must
+     * read back unchanged through image() and frame(), even once the
+     * stack merged in is released.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void mappedStorageRoundTrip() throws Exception {
+        ImageStack first = createStack(PlaneStorage.Mode.MAPPED, 0);
+        ImageStack second = createStack(PlaneStorage.Mode.MAPPED, 100);
+        first.merge(second);
+        second.release();
+
+        assertEquals("Merged stack is emptied", 0, second.getNumFrames());
+        assertEquals("Component count after merge", 2, first.getNumComponents());
+        for (int z = 0; z < DEPTH; z++) {
+            assertTrue("Plane should be off-heap", first.frame(z).isStored(1));
+            assertArrayEquals("Channel 0 plane " + z, plane(0, z), first.image(z, 0));
+            assertArrayEquals("Channel 1 plane " + z, plane(100, z), first.frame(z).getComponent(1));
+        }
+        assertTrue("Storage should be reserved", first.getStorageBytes() >= 2 * DEPTH * WIDTH * HEIGHT);
+        first.release();
+        assertEquals("Storage should be released", 0, first.getStorageBytes());
+    }
+
+    /**
+     * Blank and constant planes are kept as one sample, the rest
+     * compressed, and all read back unchanged.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void compactStorageRoundTrip() throws Exception {
+        CompactPlaneStorage storage = new CompactPlaneStorage();
+        ImageStack stack = new ImageStack();
+        stack.setStorage(storage);
+        byte[][] planes = new byte[][] {
+            new byte[WIDTH * HEIGHT],
+            constant((byte) 0x0a, (byte) 0xb0),
+            constant((byte) 7, (byte) 7),
+            plane(0, 0),
+            plane(0, 1)
+        };
+        for (byte[] bytes : planes) {
+            Frame frame = new Frame();
+            frame.imageBytes.add(bytes);
+            stack.add(frame);
+        }
+
+        assertEquals("Blank planes", 1, storage.getBlankPlaneCount());
+        assertEquals("Constant planes", 3, storage.getConstantPlaneCount());
+        assertArrayEquals(new byte[] { 0x0a, (byte) 0xb0 }, storage.getConstant(1));
+        assertNull(storage.getConstant(3));
+        for (int z = 0; z < planes.length; z++) {
+            assertTrue("Plane should be stored", stack.frame(z).isStored(0));
+            assertArrayEquals("Plane " + z, planes[z], stack.image(z, 0));
+        }
+        assertTrue("Constant planes should take next to nothing",
+                stack.getStorageBytes() <= 2 * WIDTH * HEIGHT + 3 * 2);
+        stack.release();
+        assertEquals("Storage should be released", 0, stack.getStorageBytes());
+    }
+
+    @Test
+    public void heapStorageUnchanged() throws Exception {
+        ImageStack stack = createStack(PlaneStorage.Mode.HEAP, 0);
+        assertFalse(stack.frame(0).isStored(0));
+        assertArrayEquals(plane(0, 2), stack.frame(2).imageBytes.get(0));
+        assertEquals(0, stack.getStorageBytes());
+    }
+
+    private ImageStack createStack(PlaneStorage.Mode mode, int seed) {
+        ImageStack stack = new ImageStack();
+        stack.setStorageMode(mode);
+        stack.setWidth(WIDTH);
+        stack.setHeight(HEIGHT);
+        stack.setBytesPerPixel(1);
+        for (int z = 0; z < DEPTH; z++) {
+            Frame frame = new Frame();
+            frame.imageBytes.add(plane(seed, z));
+            stack.add(frame);
+        }
+        return stack;
+    }
+
+    private byte[] constant(byte even, byte odd) {
+        byte[] bytes = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = i % 2 == 0 ? even : odd;
+        }
+        return bytes;
+    }
+
+    private byte[] plane(int seed, int z) {
+        byte[] bytes = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (seed + z * 13 + i);
+        }
+        return bytes;
+    }
+}
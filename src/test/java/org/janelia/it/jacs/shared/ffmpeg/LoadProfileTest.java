@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.jacs.shared.ffmpeg;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Test that load profiles parse as documented, from files and maps.
+ */
+public class LoadProfileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void fileOverridesDefaults() throws Exception {
+        File file = folder.newFile("h5j.properties");
+        Files.write(file.toPath(), Arrays.asList(
+                "h5j.codec.threads=3",
+                "storage=compact",
+                "scaler=Bicubic",
+                "memory.budget=4g",
+                "unrelated=ignored"), StandardCharsets.ISO_8859_1);
+        LoadProfile profile = LoadProfile.load(file);
+        assertEquals(3, profile.getCodecThreads());
+        assertEquals(3, profile.resolveCodecThreads());
+        assertEquals(PlaneStorage.Mode.COMPACT, profile.getStorage());
+        assertEquals(LoadProfile.Scaler.BICUBIC, profile.getScaler());
+        assertEquals(4L << 30, profile.getMemoryBudget());
+        assertEquals(LoadProfile.DEFAULT_ASSEMBLY_THREADS, profile.getAssemblyThreads());
+        assertEquals(LoadProfile.DEFAULT_FRAME_RATE, profile.getFrameRate(), 0);
+    }
+
+    @Test
+    public void memoryBudgetApplies() {
+        LoadProfile profile = new LoadProfile();
+        assertFalse("No budget by default", profile.exceedsMemoryBudget(Long.MAX_VALUE));
+        profile.set(LoadProfile.MEMORY_BUDGET, "512m");
+        assertFalse(profile.exceedsMemoryBudget(512L << 20));
+        assertTrue(profile.exceedsMemoryBudget((512L << 20) + 1));
+    }
+
+    @Test
+    public void copiesAreIndependent() {
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put(LoadProfile.FAST_OPEN, "TRUE");
+        settings.put(LoadProfile.FRAME_RATE, "12.5");
+        LoadProfile profile = new LoadProfile().apply(settings);
+        LoadProfile copy = profile.copy();
+        copy.setFastOpen(false);
+        copy.setFrameRate(30);
+        assertTrue(profile.isFastOpen());
+        assertEquals(12.5, profile.getFrameRate(), 0);
+        assertFalse(copy.isFastOpen());
+        assertEquals("codec_threads", LoadProfile.macroKey(LoadProfile.CODEC_THREADS));
+    }
+
+    @Test
+    public void badSettingsAreRejected() {
+        LoadProfile profile = new LoadProfile();
+        String[][] bad = {
+            { "no.such.key", "1" },
+            { LoadProfile.CODEC_THREADS, "many" },
+            { LoadProfile.FAST_OPEN, "yes" },
+            { LoadProfile.SCALER, "nearest" },
+            { LoadProfile.MEMORY_BUDGET, "" },
+        };
+        for (String[] setting : bad) {
+            try {
+                profile.set(setting[0], setting[1]);
+                fail("Should reject " + setting[0] + "=" + setting[1]);
+            } catch (IllegalArgumentException expected) {
+                // As documented.
+            }
+        }
+    }
+}